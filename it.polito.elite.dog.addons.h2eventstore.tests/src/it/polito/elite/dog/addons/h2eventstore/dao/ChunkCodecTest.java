@@ -0,0 +1,162 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ChunkCodec} decodes exactly the encoded points, for every
+ * range of timestamp delta-of-delta and value XOR window, and that regular
+ * series take the expected few bits per point
+ *
+ */
+public class ChunkCodecTest
+{
+	@Test
+	public void emptyAndSinglePointChunks()
+	{
+		this.roundTrip(new long[0], new double[0]);
+		this.roundTrip(new long[] { 1400000000000L }, new double[] { 230.5 });
+	}
+
+	@Test
+	public void encodesOnlyTheGivenNumberOfPoints()
+	{
+		ChunkCodec.Points points = ChunkCodec.decode(ChunkCodec.encode(
+				new long[] { 1, 2, 3 }, new double[] { 1, 2, 3 }, 2));
+		assertEquals("points of a partial chunk", 2, points.size);
+		assertEquals(2, points.timestamps[1]);
+	}
+
+	@Test
+	public void deltaOfDeltaRangeBoundaries()
+	{
+		// both sides of each range boundary
+		long[] deltaOfDeltas = { 0, 1, -1, -63, 64, -64, 65, -255, 256, -256,
+				257, -2047, 2048, -2048, 2049, 1000000, -1000000 };
+
+		for (long deltaOfDelta : deltaOfDeltas)
+		{
+			// a regular series whose third point is shifted
+			long[] timestamps = { 100000, 101000, 102000 + deltaOfDelta,
+					103000 + deltaOfDelta, 104000 + deltaOfDelta };
+			this.roundTrip(timestamps, new double[] { 1, 1, 1, 1, 1 });
+		}
+	}
+
+	@Test
+	public void repeatedAndDecreasingTimestamps()
+	{
+		this.roundTrip(new long[] { 5000, 5000, 5000, 4000, 9000, 9000 },
+				new double[] { 1, 2, 3, 4, 5, 6 });
+	}
+
+	@Test
+	public void timestampsOverflowingLongDeltas()
+	{
+		this.roundTrip(new long[] { Long.MIN_VALUE, Long.MAX_VALUE,
+				Long.MIN_VALUE, 0, Long.MAX_VALUE }, new double[] { 1, 2, 3, 4,
+				5 });
+	}
+
+	@Test
+	public void valueXorWindows()
+	{
+		// unchanged values, values within and outside the previous window,
+		// sign flips, a full 64-bit XOR and XORs with more leading zeros than
+		// the 5-bit window header holds
+		double[] values = { 21.5, 21.5, 21.75, 21.625, 21.5, -21.5, 1e-300,
+				1e300, Double.longBitsToDouble(0x8000000000000001L),
+				Double.longBitsToDouble(0x7ffffffffffffffeL), 0.0, -0.0, 0.0,
+				1.0, Double.longBitsToDouble(0x3ff0000000000001L), 1.0,
+				Double.longBitsToDouble(0x3ff0000100000000L) };
+		long[] timestamps = new long[values.length];
+		for (int i = 0; i < timestamps.length; i++)
+			timestamps[i] = 60000L * i;
+		this.roundTrip(timestamps, values);
+	}
+
+	@Test
+	public void specialValuesKeepTheirBits()
+	{
+		this.roundTrip(new long[] { 0, 1, 2, 3, 4, 5 }, new double[] {
+				Double.NaN, Double.longBitsToDouble(0x7ff8000000000123L),
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.MIN_VALUE, -Double.MAX_VALUE });
+	}
+
+	@Test
+	public void randomSeries()
+	{
+		Random random = new Random(42);
+		for (int series = 0; series < 50; series++)
+		{
+			int size = 1 + random.nextInt(500);
+			long[] timestamps = new long[size];
+			double[] values = new double[size];
+			long timestamp = random.nextLong() >> 20;
+			double value = random.nextGaussian() * 1000;
+			for (int i = 0; i < size; i++)
+			{
+				// jittered sampling and a random walk, with plateaus
+				timestamp += 1000 + random.nextInt(1 << (series % 24)) - 200;
+				if (random.nextInt(4) > 0)
+					value += random.nextGaussian();
+				timestamps[i] = timestamp;
+				values[i] = (series % 3 == 0) ? Math.rint(value) : value;
+			}
+			this.roundTrip(timestamps, values);
+		}
+	}
+
+	@Test
+	public void regularSeriesTakeTwoBitsPerPoint()
+	{
+		// a 160-bit header, the first delta in full with its 4-bit prefix and
+		// an unchanged value bit, then two bits per point
+		int size = 1000;
+		long[] timestamps = new long[size];
+		double[] values = new double[size];
+		for (int i = 0; i < size; i++)
+		{
+			timestamps[i] = 1400000000000L + 60000L * i;
+			values[i] = 230.0;
+		}
+
+		assertEquals("bytes of a regular constant series",
+				(160 + 69 + (size - 2) * 2 + 7) / 8, this.roundTrip(timestamps,
+						values).length);
+
+		// a slowly changing measure still takes far less than 16 bytes per
+		// point
+		for (int i = 0; i < size; i++)
+			values[i] = 230.0 + (i % 8) * 0.5;
+		int length = this.roundTrip(timestamps, values).length;
+		assertTrue("a slowly changing series takes " + length + " bytes",
+				length < size * 3);
+	}
+
+	/**
+	 * Encodes and decodes the given points, asserting that the decoded points
+	 * are the same, values bit by bit
+	 */
+	private byte[] roundTrip(long[] timestamps, double[] values)
+	{
+		byte[] encoded = ChunkCodec.encode(timestamps, values,
+				timestamps.length);
+		ChunkCodec.Points points = ChunkCodec.decode(encoded);
+
+		assertEquals("number of points", timestamps.length, points.size);
+		for (int i = 0; i < timestamps.length; i++)
+		{
+			assertEquals("timestamp " + i, timestamps[i], points.timestamps[i]);
+			assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+					Double.doubleToRawLongBits(points.values[i]));
+		}
+
+		return encoded;
+	}
+}
@@ -0,0 +1,160 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import static org.junit.Assert.assertEquals;
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.PartitionMode;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Tests that the rows of an {@link EventTable} refused by the database leave
+ * no trace: they are neither the latest events of their series nor part of
+ * their rollups, and the other rows of the same group commit are stored. Also
+ * tests that creating a partition does not commit half-built batches.
+ *
+ */
+public class EventTableTest
+{
+	// 2024-03-30T00:00Z
+	private static final long START = 1711756800000L;
+
+	private static final long DAY = 86400000L;
+
+	// the database of each test
+	private static int databases;
+
+	private H2Storage storage;
+	private StateDao stateDao;
+
+	@Before
+	public void setUp() throws SQLException
+	{
+		this.storage = new H2Storage("jdbc:h2:mem:events" + (databases++),
+				"dog", "");
+		this.storage.getGroupCommitter().configure(true, 1000, 60000);
+		this.createDaos();
+	}
+
+	/**
+	 * Creates the DAOs of the test storage, with the test device
+	 */
+	private void createDaos()
+	{
+		Bundle bundle = FrameworkUtil.getBundle(EventTableTest.class);
+		BundleContext context = (bundle != null) ? bundle.getBundleContext()
+				: null;
+
+		DeviceDao deviceDao = new DeviceDao(this.storage, context);
+		SeriesDao seriesDao = new SeriesDao(this.storage, context);
+		ValueDao valueDao = new ValueDao(this.storage, context);
+		RollupDao rollupDao = new RollupDao(this.storage, context);
+		this.stateDao = new StateDao(deviceDao, seriesDao, valueDao,
+				rollupDao, this.storage, context);
+
+		if (!deviceDao.isDevicePresent("meter"))
+			deviceDao.insertDevice("meter", "MeteringPowerOutlet", null);
+	}
+
+	@After
+	public void tearDown() throws SQLException
+	{
+		this.storage.close();
+	}
+
+	@Test
+	public void refusedRowsLeaveNoTrace() throws SQLException
+	{
+		// the database refuses powers of 100 W and more
+		this.insert(START, 1);
+		this.storage.getGroupCommitter().flush();
+		try (Statement stmt = this.storage.getConnection().createStatement())
+		{
+			stmt.execute("ALTER TABLE ContinuousState ADD CONSTRAINT "
+					+ "low_power CHECK (value < 100)");
+		}
+		this.storage.getConnection().commit();
+
+		// the latest row is refused
+		this.insert(START + 60000, 2);
+		this.insert(START + 180000, 500);
+		this.insert(START + 120000, 3);
+		this.storage.getGroupCommitter().flush();
+
+		List<EventDataPoint> points = this.stateDao
+				.getSpecificDeviceContinuousStates("meter", "ActivePowerState",
+						"", new Date(START), new Date(START + 3600000), 0, 100)
+				.getDatapoints();
+		assertEquals(3, points.size());
+		assertEquals(3, this.storage.getQuota().getStoredRows());
+
+		EventDataStreamSet latest = new EventDataStreamSet();
+		this.stateDao.getLatestStates("meter", latest);
+		EventDataPoint point = latest.getDatastreams().iterator().next()
+				.getDatapoints().get(0);
+		assertEquals(START + 120000, point.getAt().getTime());
+		assertEquals("3.0", point.getValue());
+
+		Map<AggregateFunction, EventDataStream> aggregates = this.stateDao
+				.getSpecificDeviceContinuousStateAggregates("meter",
+						"ActivePowerState", "", new Date(START), new Date(
+								START + 3599999), 3600000, EnumSet.of(
+								AggregateFunction.COUNT,
+								AggregateFunction.MAX));
+		assertEquals("3", aggregates.get(AggregateFunction.COUNT)
+				.getDatapoints().get(0).getValue());
+		assertEquals("3.0", aggregates.get(AggregateFunction.MAX)
+				.getDatapoints().get(0).getValue());
+	}
+
+	@Test
+	public void partitionsAreCreatedBetweenFlushes() throws SQLException
+	{
+		this.storage.setPartitionMode(PartitionMode.DAY);
+		this.createDaos();
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
+		// rows of the first day are pending when the second day begins
+		for (int i = 0; i < 10; i++)
+			this.insert(START + i * 60000, i);
+		long flushes = committer.getFlushCount();
+		assertEquals(10, committer.getPendingRows());
+
+		this.insert(START + DAY, 10);
+		assertEquals(flushes + 1, committer.getFlushCount());
+		assertEquals(1, committer.getPendingRows());
+		committer.flush();
+
+		assertEquals(11, this.stateDao.getSpecificDeviceContinuousStates(
+				"meter", "ActivePowerState", "", new Date(START), new Date(
+						START + 2 * DAY), 0, 100).getDatapoints().size());
+	}
+
+	/**
+	 * Inserts a power measure of the test device
+	 */
+	private void insert(long timestamp, double value)
+	{
+		this.stateDao.insertContinuousState("meter", new Date(timestamp),
+				Measure.valueOf(value, SI.WATT), "ActivePowerState", "");
+	}
+}
@@ -0,0 +1,235 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.NumericEventDataStream;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link LttbDownsampler} returns short series unchanged and
+ * reduces longer ones to at most the requested number of their own points, in
+ * time order, keeping the first and last events and the extremes that give
+ * the series its shape
+ *
+ */
+public class LttbDownsamplerTest
+{
+	@Test(expected = IllegalArgumentException.class)
+	public void needsAtLeastThreePoints()
+	{
+		new LttbDownsampler(new NumericEventDataStream(), 2, 0);
+	}
+
+	@Test
+	public void emptySeries()
+	{
+		assertTrue(this.downsample(new ArrayList<EventDataPoint>(), 3)
+				.isEmpty());
+	}
+
+	@Test
+	public void shortSeriesAreUnchanged()
+	{
+		for (int size = 1; size <= 10; size++)
+		{
+			List<EventDataPoint> points = this.series(size, 1000);
+			List<EventDataPoint> selected = this.downsample(points, 10);
+
+			assertEquals("points of a series of " + size, size, selected
+					.size());
+			for (int i = 0; i < size; i++)
+			{
+				assertEquals(points.get(i).getAt(), selected.get(i).getAt());
+				assertEquals(points.get(i).getValue(), selected.get(i)
+						.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void regularSeriesFillEveryBucket()
+	{
+		List<EventDataPoint> points = this.series(10000, 1000);
+
+		for (int maxPoints : new int[] { 3, 4, 10, 100, 9999 })
+		{
+			List<EventDataPoint> selected = this.downsample(points, maxPoints);
+			assertEquals("points selected for " + maxPoints, maxPoints,
+					selected.size());
+			this.assertSubset(points, selected);
+		}
+	}
+
+	@Test
+	public void spikesAndDropsAreKept()
+	{
+		// a flat series with a single spike and a single drop
+		List<EventDataPoint> points = new ArrayList<>();
+		for (int i = 0; i < 5000; i++)
+		{
+			double value = (i == 1234) ? 100 : ((i == 3210) ? -100 : 20);
+			points.add(new EventDataPoint(new Date(60000L * i), Double
+					.toString(value), "C"));
+		}
+
+		List<EventDataPoint> selected = this.downsample(points, 50);
+		this.assertSubset(points, selected);
+
+		List<String> values = new ArrayList<>();
+		for (EventDataPoint point : selected)
+			values.add(point.getValue());
+		assertTrue("the spike has not been selected", values.contains("100.0"));
+		assertTrue("the drop has not been selected", values.contains("-100.0"));
+	}
+
+	@Test
+	public void irregularSeries()
+	{
+		// bursts, gaps and repeated timestamps
+		Random random = new Random(7);
+		List<EventDataPoint> points = new ArrayList<>();
+		long time = 0;
+		for (int i = 0; i < 3000; i++)
+		{
+			time += (random.nextInt(10) == 0) ? random.nextInt(1000000)
+					: random.nextInt(3);
+			points.add(new EventDataPoint(new Date(time), Double
+					.toString(random.nextGaussian()), "W"));
+		}
+
+		for (int maxPoints : new int[] { 3, 7, 64, 500 })
+		{
+			List<EventDataPoint> selected = this.downsample(points, maxPoints);
+			assertTrue(selected.size() + " points selected for " + maxPoints,
+					selected.size() <= maxPoints);
+			this.assertSubset(points, selected);
+		}
+
+		// an end before the last event keeps all the events in the buckets
+		List<EventDataPoint> selected = this.downsample(points, 20, points
+				.get(1500).getAt().getTime());
+		assertTrue(selected.size() + " points selected for 20",
+				selected.size() <= 20);
+		this.assertSubset(points, selected);
+	}
+
+	@Test
+	public void nonNumericEventsAreSkipped()
+	{
+		List<EventDataPoint> points = new ArrayList<>();
+		points.add(new EventDataPoint(new Date(0), "1.0", "W"));
+		points.add(new EventDataPoint(new Date(1), "on", null));
+		points.add(new EventDataPoint(new Date(2), null, null));
+		points.add(new EventDataPoint(new Date(3), "2.0", "W"));
+
+		List<EventDataPoint> selected = this.downsample(points, 3);
+		assertEquals(2, selected.size());
+		assertEquals("1.0", selected.get(0).getValue());
+		assertEquals("2.0", selected.get(1).getValue());
+	}
+
+	@Test
+	public void sameSelectionForEveryStreamType()
+	{
+		List<EventDataPoint> points = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			points.add(new EventDataPoint(new Date(1000L * i), Double
+					.toString(Math.cos(i / 30.0) * i), "W"));
+
+		EventDataStream stream = new EventDataStream("Power", "", "device");
+		LttbDownsampler downsampler = new LttbDownsampler(stream, 40, 999000);
+		for (EventDataPoint point : points)
+			downsampler.visit(stream, point);
+		downsampler.finish();
+
+		List<EventDataPoint> selected = this.downsample(points, 40);
+		assertEquals(selected.size(), stream.getDatapoints().size());
+		for (int i = 0; i < selected.size(); i++)
+			assertEquals("time of point " + i, selected.get(i).getAt(), stream
+					.getDatapoints().get(i).getAt());
+	}
+
+	/**
+	 * Builds a sine series with the given number of points and period
+	 */
+	private List<EventDataPoint> series(int size, long period)
+	{
+		List<EventDataPoint> points = new ArrayList<>();
+		for (int i = 0; i < size; i++)
+			points.add(new EventDataPoint(new Date(1400000000000L + period * i),
+					Double.toString(Math.sin(i / 100.0)), "W"));
+		return points;
+	}
+
+	/**
+	 * Downsamples the given points, with buckets up to the last one
+	 */
+	private List<EventDataPoint> downsample(List<EventDataPoint> points,
+			int maxPoints)
+	{
+		return this.downsample(points, maxPoints, points.isEmpty() ? 0 : points
+				.get(points.size() - 1).getAt().getTime());
+	}
+
+	/**
+	 * Downsamples the given points in a numeric stream
+	 */
+	private List<EventDataPoint> downsample(List<EventDataPoint> points,
+			int maxPoints, long end)
+	{
+		NumericEventDataStream stream = new NumericEventDataStream("Power",
+				"", "device");
+		LttbDownsampler downsampler = new LttbDownsampler(stream, maxPoints,
+				end);
+		for (EventDataPoint point : points)
+			assertTrue("the visit stopped", downsampler.visit(stream, point));
+		downsampler.finish();
+
+		return stream.getDatapoints();
+	}
+
+	/**
+	 * Asserts that the selected points are points of the series, in time
+	 * order, including its first and last points
+	 */
+	private void assertSubset(List<EventDataPoint> points,
+			List<EventDataPoint> selected)
+	{
+		HashMap<Long, List<String>> values = new HashMap<>();
+		for (EventDataPoint point : points)
+		{
+			List<String> timeValues = values.get(point.getAt().getTime());
+			if (timeValues == null)
+			{
+				timeValues = new ArrayList<>();
+				values.put(point.getAt().getTime(), timeValues);
+			}
+			timeValues.add(point.getValue());
+		}
+
+		assertEquals("first point", points.get(0).getAt(), selected.get(0)
+				.getAt());
+		assertEquals("last point", points.get(points.size() - 1).getAt(),
+				selected.get(selected.size() - 1).getAt());
+
+		for (int i = 0; i < selected.size(); i++)
+		{
+			EventDataPoint point = selected.get(i);
+			List<String> timeValues = values.get(point.getAt().getTime());
+			assertTrue("point " + i + " is not in the series: " + point,
+					(timeValues != null) && timeValues.remove(point.getValue()));
+			assertFalse("point " + i + " is out of order: " + point, (i > 0)
+					&& point.getAt().before(selected.get(i - 1).getAt()));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests the keyset encoding of {@link PageCursor}: continuation tokens keep
+ * the position they encode, have a stable format, are rejected when
+ * malformed, and positions are ordered by timestamp, series and row id
+ *
+ */
+public class PageCursorTest
+{
+	@Test
+	public void noTokenStartsFromTheFirstPage()
+	{
+		assertNull(PageCursor.parse(null));
+		assertNull(PageCursor.parse(""));
+	}
+
+	@Test
+	public void tokensKeepTheirPosition()
+	{
+		long[] timestamps = { 0, 1, -1, 1400000000000L, Long.MIN_VALUE,
+				Long.MAX_VALUE };
+		int[] seriesIds = { 0, 1, 36, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		long[] ids = { 0, 35, -1, Long.MIN_VALUE, Long.MAX_VALUE };
+
+		for (long timestamp : timestamps)
+		{
+			for (int seriesId : seriesIds)
+			{
+				for (long id : ids)
+				{
+					PageCursor position = new PageCursor(timestamp, seriesId,
+							id);
+					String token = position.toToken();
+					PageCursor parsed = PageCursor.parse(token);
+					assertNotNull("no position parsed from " + token, parsed);
+					assertEquals("position parsed from " + token, 0, position
+							.compareTo(parsed));
+					assertEquals(token, parsed.toToken());
+
+					// tokens travel in query strings
+					assertFalse("unsafe token " + token, token.matches(
+							".*[/&=?#+ ].*"));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void tokenFormatIsStable()
+	{
+		// tokens handed out to clients must stay valid across releases
+		assertEquals("1.0.0.0", new PageCursor(0, 0, 0).toToken());
+		assertEquals("1.hv5fupkw.a.-1", new PageCursor(1400000000000L, 10, -1)
+				.toToken());
+		assertEquals(0, new PageCursor(1400000000000L, 10, -1)
+				.compareTo(PageCursor.parse("1.hv5fupkw.a.-1")));
+	}
+
+	@Test
+	public void malformedTokensAreRejected()
+	{
+		// wrong field count, wrong version, bad digits and overflows
+		String[] tokens = { "1", "1.0.0", "1.0.0.", "1.0.0.0.0", "2.0.0.0",
+				"x.0.0.0", "1.0.0.?", "1..0.0", "1.0.zzzzzzz.0",
+				"1.zzzzzzzzzzzzzz.0.0", "1 .0.0.0", "." };
+
+		for (String token : tokens)
+		{
+			try
+			{
+				PageCursor.parse(token);
+				fail("parsed the malformed token " + token);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void positionsAreOrderedByTimestampSeriesAndId()
+	{
+		PageCursor[] sorted = { new PageCursor(Long.MIN_VALUE, 0, 0),
+				new PageCursor(-1, Integer.MAX_VALUE, Long.MAX_VALUE),
+				new PageCursor(0, Integer.MIN_VALUE, 0),
+				new PageCursor(0, 0, Long.MIN_VALUE), new PageCursor(0, 0, -1),
+				new PageCursor(0, 0, 0), new PageCursor(0, 1, -5),
+				new PageCursor(1, 0, 0), new PageCursor(Long.MAX_VALUE, 0, 0) };
+
+		for (int i = 0; i < sorted.length; i++)
+		{
+			for (int j = 0; j < sorted.length; j++)
+			{
+				String pair = sorted[i].toToken() + " vs "
+						+ sorted[j].toToken();
+				assertEquals(pair, Integer.compare(i, j), Integer
+						.signum(sorted[i].compareTo(sorted[j])));
+
+				// the order survives the tokens
+				assertEquals(pair, Integer.compare(i, j), Integer
+						.signum(PageCursor.parse(sorted[i].toToken())
+								.compareTo(PageCursor.parse(sorted[j]
+										.toToken()))));
+			}
+		}
+	}
+}
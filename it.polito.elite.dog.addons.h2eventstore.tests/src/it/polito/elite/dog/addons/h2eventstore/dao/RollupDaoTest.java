@@ -0,0 +1,267 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import static org.junit.Assert.assertEquals;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.RollupResolution;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Tests the time-bucketed aggregates that {@link RollupDao} computes in the
+ * database from the stored rollups, against the aggregates of the inserted
+ * events
+ *
+ */
+public class RollupDaoTest
+{
+	// 2024-03-30T00:00Z, three days around a daylight saving time change
+	private static final long START = 1711756800000L;
+
+	private static final long DAY = 86400000L;
+
+	// the database of each test
+	private static int databases;
+
+	private H2Storage storage;
+	private StateDao stateDao;
+	private RollupDao rollupDao;
+
+	@Before
+	public void setUp() throws SQLException
+	{
+		Bundle bundle = FrameworkUtil.getBundle(RollupDaoTest.class);
+		BundleContext context = (bundle != null) ? bundle.getBundleContext()
+				: null;
+
+		this.storage = new H2Storage("jdbc:h2:mem:rollup" + (databases++),
+				"dog", "");
+		DeviceDao deviceDao = new DeviceDao(this.storage, context);
+		SeriesDao seriesDao = new SeriesDao(this.storage, context);
+		ValueDao valueDao = new ValueDao(this.storage, context);
+		this.rollupDao = new RollupDao(this.storage, context);
+		this.stateDao = new StateDao(deviceDao, seriesDao, valueDao,
+				this.rollupDao, this.storage, context);
+
+		deviceDao.insertDevice("meter", "MeteringPowerOutlet", null);
+	}
+
+	@After
+	public void tearDown() throws SQLException
+	{
+		this.storage.close();
+	}
+
+	@Test
+	public void aggregatesOfASingleBucket() throws SQLException
+	{
+		this.insert(START + 60000, 3);
+		this.insert(START + 20000, 1.5);
+		this.insert(START + 899999, 2);
+		this.insert(START + 900000, 10);
+		this.storage.getGroupCommitter().flush();
+
+		Map<AggregateFunction, EventDataStream> aggregates = this.aggregate(
+				new Date(START), new Date(START + 899999), 900000);
+		assertEquals("1.5", this.first(aggregates, AggregateFunction.FIRST));
+		assertEquals("2.0", this.first(aggregates, AggregateFunction.LAST));
+		assertEquals("3", this.first(aggregates, AggregateFunction.COUNT));
+		assertEquals("1.5", this.first(aggregates, AggregateFunction.MIN));
+		assertEquals("3.0", this.first(aggregates, AggregateFunction.MAX));
+		assertEquals("6.5", this.first(aggregates, AggregateFunction.SUM));
+		assertEquals(Double.toString(6.5 / 3), this.first(aggregates,
+				AggregateFunction.AVG));
+		assertEquals(1, aggregates.get(AggregateFunction.AVG).getDatapoints()
+				.size());
+	}
+
+	@Test
+	public void aggregatesMatchTheEvents() throws SQLException
+	{
+		// irregular events, stored in a single transaction
+		TreeMap<Long, Double> events = new TreeMap<>();
+		Random random = new Random(1);
+		for (long t = START; t < START + 3 * DAY; t += 7000 + random
+				.nextInt(20000))
+		{
+			double value = Math.round(random.nextDouble() * 1000) / 10.0;
+			this.insert(t, value);
+			events.put(t, value);
+		}
+		this.storage.getGroupCommitter().flush();
+
+		// widths using minute, hour and day rollups, not always aligned to
+		// the frame
+		Date from = new Date(START + 5 * 3600000L);
+		Date to = new Date(START + 2 * DAY - 1);
+		for (long width : new long[] { 15 * 60000L, 90 * 60000L, 2 * 3600000L,
+				DAY })
+		{
+			Map<AggregateFunction, EventDataStream> aggregates = this
+					.aggregate(from, to, width);
+
+			// the buckets of the events in the frame, first and last values
+			// included
+			TreeMap<Long, double[]> expected = new TreeMap<>();
+			for (Map.Entry<Long, Double> event : events.subMap(
+					from.getTime() - from.getTime() % width, true,
+					to.getTime(), true).entrySet())
+			{
+				long bucket = event.getKey() - event.getKey() % width;
+				double value = event.getValue();
+				double[] bucketAggregates = expected.get(bucket);
+				if (bucketAggregates == null)
+				{
+					bucketAggregates = new double[] { 0, value, value, 0,
+							value, value };
+					expected.put(bucket, bucketAggregates);
+				}
+				bucketAggregates[0]++;
+				bucketAggregates[1] = Math.min(bucketAggregates[1], value);
+				bucketAggregates[2] = Math.max(bucketAggregates[2], value);
+				bucketAggregates[3] += value;
+				bucketAggregates[5] = value;
+			}
+
+			AggregateFunction[] functions = { AggregateFunction.COUNT,
+					AggregateFunction.MIN, AggregateFunction.MAX,
+					AggregateFunction.SUM, AggregateFunction.FIRST,
+					AggregateFunction.LAST };
+			for (int f = 0; f < functions.length; f++)
+			{
+				List<EventDataPoint> points = aggregates.get(functions[f])
+						.getDatapoints();
+				assertEquals("buckets of " + width + " ms", expected.size(),
+						points.size());
+
+				int i = 0;
+				for (Map.Entry<Long, double[]> bucket : expected.entrySet())
+				{
+					EventDataPoint point = points.get(i++);
+					String label = functions[f] + " of " + width
+							+ " ms bucket " + bucket.getKey();
+					assertEquals(label, bucket.getKey().longValue(), point
+							.getAt().getTime());
+					assertEquals(label, bucket.getValue()[f], Double
+							.parseDouble(point.getValue()), 1e-6);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rollupsAreEvictedWithTheirRows() throws SQLException
+	{
+		List<Long> timestamps = new ArrayList<>();
+		Random random = new Random(2);
+		for (long t = START; t < START + DAY; t += 7000 + random.nextInt(20000))
+		{
+			this.insert(t, 1);
+			timestamps.add(t);
+		}
+		this.storage.getGroupCommitter().flush();
+
+		// the oldest rows, then all of them
+		EventTable table = this.stateDao.getTables().get(0);
+		assertEquals(1000, table.evictOldest(1000));
+		long first = timestamps.get(1000);
+		for (RollupResolution resolution : RollupResolution.values())
+		{
+			long firstBucket = resolution.truncate(first);
+			assertEquals(resolution + " buckets before the first row", 0,
+					this.countBuckets(resolution, "bucket<?", firstBucket));
+			assertEquals(resolution + " bucket of the first row", 1, this
+					.countBuckets(resolution, "bucket=?", firstBucket));
+		}
+
+		table.evictOldest(timestamps.size());
+		for (RollupResolution resolution : RollupResolution.values())
+			assertEquals(resolution + " buckets left", 0, this.countBuckets(
+					resolution, "bucket>=?", 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bucketWidthsMustBeWholeMinutes() throws SQLException
+	{
+		this.insert(START, 1);
+		this.storage.getGroupCommitter().flush();
+
+		this.aggregate(new Date(START), new Date(START + DAY), 90000);
+	}
+
+	/**
+	 * Inserts a power measure of the test device
+	 */
+	private void insert(long timestamp, double value)
+	{
+		this.stateDao.insertContinuousState("meter", new Date(timestamp),
+				Measure.valueOf(value, SI.WATT), "ActivePowerState", "");
+	}
+
+	/**
+	 * Counts the stored rollups of the given resolution matching the given
+	 * condition on a bucket time
+	 */
+	private int countBuckets(RollupResolution resolution, String condition,
+			long bucket) throws SQLException
+	{
+		try (PreparedStatement count = this.storage.getConnection()
+				.prepareStatement("SELECT COUNT(*) FROM "
+						+ RollupDao.TABLE_NAME + " WHERE resolution=? AND "
+						+ condition))
+		{
+			count.setInt(1, resolution.getSeconds());
+			count.setTimestamp(2, new Timestamp(bucket));
+			try (ResultSet result = count.executeQuery())
+			{
+				result.next();
+				return result.getInt(1);
+			}
+		}
+	}
+
+	/**
+	 * Computes all the aggregates of the power of the test device
+	 */
+	private Map<AggregateFunction, EventDataStream> aggregate(Date from,
+			Date to, long bucketMillis)
+	{
+		Set<AggregateFunction> functions = EnumSet
+				.allOf(AggregateFunction.class);
+		return this.stateDao.getSpecificDeviceContinuousStateAggregates(
+				"meter", "ActivePowerState", "", from, to, bucketMillis,
+				functions);
+	}
+
+	/**
+	 * Gets the value of the first bucket of the given aggregate
+	 */
+	private String first(Map<AggregateFunction, EventDataStream> aggregates,
+			AggregateFunction function)
+	{
+		return aggregates.get(function).getDatapoints().get(0).getValue();
+	}
+}
@@ -0,0 +1,200 @@
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link GroupCommitter} commits the valid pending rows when the
+ * database refuses some of them, and discards all of them when the
+ * transaction fails
+ *
+ */
+public class GroupCommitterTest
+{
+	// the database of each test
+	private static int databases;
+
+	private H2Storage storage;
+	private GroupCommitter committer;
+	private PreparedStatement insertA;
+	private PreparedStatement insertB;
+
+	// the notified rows
+	private List<Integer> accepted;
+	private List<Integer> refused;
+
+	@Before
+	public void setUp() throws SQLException
+	{
+		this.storage = new H2Storage("jdbc:h2:mem:committer" + (databases++),
+				"dog", "");
+		try (Statement stmt = this.storage.getConnection().createStatement())
+		{
+			stmt.execute("CREATE TABLE A(id INT PRIMARY KEY)");
+			stmt.execute("CREATE TABLE B(id INT PRIMARY KEY)");
+		}
+		this.storage.getConnection().commit();
+
+		this.committer = this.storage.getGroupCommitter();
+		this.committer.configure(true, 1000, 60000);
+		this.insertA = this.storage.getConnection().prepareStatement(
+				"INSERT INTO A VALUES(?)");
+		this.insertB = this.storage.getConnection().prepareStatement(
+				"INSERT INTO B VALUES(?)");
+		this.accepted = new ArrayList<>();
+		this.refused = new ArrayList<>();
+	}
+
+	@After
+	public void tearDown() throws SQLException
+	{
+		this.storage.close();
+	}
+
+	@Test
+	public void validRowsAreCommitted() throws SQLException
+	{
+		for (int id = 0; id < 20; id++)
+		{
+			this.committer.add(this.insertA, new IdRow(id));
+			this.committer.add(this.insertB, new IdRow(100 + id));
+		}
+		this.committer.flush();
+
+		assertEquals(20, this.count("A"));
+		assertEquals(20, this.count("B"));
+		assertEquals(40, this.accepted.size());
+		assertEquals(0, this.refused.size());
+		assertEquals(0, this.committer.getRefusedRows());
+	}
+
+	@Test
+	public void refusedRowsAreDropped() throws SQLException
+	{
+		// a stored row, then duplicates among valid rows of both tables
+		this.committer.add(this.insertA, new IdRow(5));
+		this.committer.flush();
+		this.accepted.clear();
+
+		for (int id = 0; id < 10; id++)
+		{
+			this.committer.add(this.insertA, new IdRow(id));
+			this.committer.add(this.insertB, new IdRow(100 + id));
+		}
+		this.committer.add(this.insertB, new IdRow(103));
+		this.committer.flush();
+
+		assertEquals(10, this.count("A"));
+		assertEquals(10, this.count("B"));
+		assertEquals(19, this.accepted.size());
+		assertEquals(2, this.refused.size());
+		assertEquals(5, this.refused.get(0).intValue());
+		assertEquals(103, this.refused.get(1).intValue());
+		assertEquals(2, this.committer.getRefusedRows());
+		assertEquals(0, this.committer.getPendingRows());
+
+		// the next batches are not affected
+		this.committer.add(this.insertA, new IdRow(10));
+		this.committer.flush();
+		assertEquals(11, this.count("A"));
+	}
+
+	@Test
+	public void failedTransactionsAreDiscarded() throws SQLException
+	{
+		final int[] rollbacks = new int[1];
+		this.committer.addParticipant(new GroupCommitter.Participant() {
+
+			@Override
+			public void beforeCommit() throws SQLException
+			{
+				throw new SQLException("failed participant");
+			}
+
+			@Override
+			public void afterCommit()
+			{
+				fail("committed a failed transaction");
+			}
+
+			@Override
+			public void afterRollback()
+			{
+				rollbacks[0]++;
+			}
+		});
+
+		for (int id = 0; id < 10; id++)
+			this.committer.add(this.insertA, new IdRow(id));
+		try
+		{
+			this.committer.flush();
+			fail("the failed transaction has been committed");
+		}
+		catch (SQLException e)
+		{
+			// expected
+		}
+
+		assertEquals(0, this.count("A"));
+		assertEquals(1, rollbacks[0]);
+		assertEquals(0, this.committer.getPendingRows());
+	}
+
+	/**
+	 * Counts the committed rows of the given table, from another connection
+	 */
+	private int count(String table) throws SQLException
+	{
+		try (ReadConnection reader = this.storage.getReadConnection();
+				ResultSet rs = reader.getStatements()
+						.prepare("SELECT COUNT(*) FROM " + table)
+						.executeQuery())
+		{
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	/**
+	 * A row holding a single id
+	 */
+	private class IdRow implements GroupCommitter.Row
+	{
+		private final int id;
+
+		private IdRow(int id)
+		{
+			this.id = id;
+		}
+
+		@Override
+		public void bind(PreparedStatement statement) throws SQLException
+		{
+			statement.setInt(1, this.id);
+		}
+
+		@Override
+		public void accepted()
+		{
+			GroupCommitterTest.this.accepted.add(this.id);
+		}
+
+		@Override
+		public void refused(SQLException cause)
+		{
+			GroupCommitterTest.this.refused.add(this.id);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package it.polito.elite.dog.addons.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link EventDataBinaryCodec} decodes exactly what it encodes,
+ * including the corner cases of its compact encodings, and that it rejects
+ * truncated payloads
+ *
+ */
+public class EventDataBinaryCodecTest
+{
+	@Test
+	public void emptySets()
+	{
+		this.roundTrip(new EventDataStreamSet());
+
+		// an empty stream keeps its id
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(new NumericEventDataStream("EmptyState", "",
+				"device"));
+		this.roundTrip(streamSet);
+	}
+
+	@Test
+	public void measuresAndStates()
+	{
+		// a typical result: a sampled measure and a few discrete states
+		NumericEventDataStream power = new NumericEventDataStream(
+				"ActivePowerMeasurementNotification", "phaseID-1", "meter");
+		for (int i = 0; i < 1440; i++)
+			power.add(1400000000000L + 60000L * i, 230 + (i % 17) * 0.25, "W");
+		EventDataStream states = new EventDataStream("OnOffState", "", "lamp");
+		states.addDatapoint(new EventDataPoint(new Date(1400000000000L), "on",
+				null));
+		states.addDatapoint(new EventDataPoint(new Date(1400000360000L),
+				"off", null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(power);
+		streamSet.addDatastream(states);
+
+		byte[] encoded = EventDataBinaryCodec.encode(streamSet);
+		this.assertSameStreams(streamSet, EventDataBinaryCodec.decode(encoded));
+
+		// less than a raw timestamp and value per event
+		assertTrue(encoded.length + " bytes for 1442 events",
+				encoded.length < 1442 * 16);
+	}
+
+	@Test
+	public void missingIdsAndUnits()
+	{
+		// a stream with no id, no unit and events with missing fields
+		EventDataStream stream = new EventDataStream();
+		stream.addDatapoint(new EventDataPoint(new Date(1000), "on", null));
+		stream.addDatapoint(new EventDataPoint(null, "off", "W"));
+		stream.addDatapoint(new EventDataPoint(new Date(500), null, null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(stream);
+		EventDataStream decoded = this.roundTrip(streamSet).getDatastreams()
+				.iterator().next();
+		assertNull(decoded.getId());
+		assertNull(decoded.getDeviceUri());
+
+		// a numeric stream with no id and mixed units, null stored as empty
+		NumericEventDataStream numeric = new NumericEventDataStream();
+		numeric.add(1000, 1.5, null);
+		numeric.add(2000, 2.5, "W");
+		numeric.add(3000, 3.5, "");
+		streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		NumericEventDataStream decodedNumeric = (NumericEventDataStream) this
+				.roundTrip(streamSet).getDatastreams().iterator().next();
+		assertNull("unit of mixed units", decodedNumeric.getUnit());
+		assertEquals("", decodedNumeric.getUnit(0));
+	}
+
+	@Test
+	public void bothIdForms()
+	{
+		// with '?' and with '/' before the parameters
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(new EventDataStream("State", "phaseID-1",
+				"device"));
+		streamSet.addDatastream(new EventDataStream("State", "phaseID-2",
+				"device", 4));
+		streamSet.addDatastream(new NumericEventDataStream("Power",
+				"phaseID-1", "device"));
+		streamSet.addDatastream(new NumericEventDataStream("Power",
+				"phaseID-2", "device", 4));
+		this.roundTrip(streamSet);
+	}
+
+	@Test
+	public void negativeZero()
+	{
+		NumericEventDataStream numeric = new NumericEventDataStream("Power",
+				"", "device");
+		numeric.add(1000, -0.0, "W");
+		numeric.add(2000, 0.0, "W");
+		EventDataStream stream = new EventDataStream("State", "", "other");
+		stream.addDatapoint(new EventDataPoint(new Date(1000), "-0.0", null));
+		stream.addDatapoint(new EventDataPoint(new Date(2000), "-0", null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		streamSet.addDatastream(stream);
+		this.roundTrip(streamSet);
+
+		// a lone -0.0 must not take the integer column
+		numeric = new NumericEventDataStream("Power", "", "device");
+		numeric.add(1000, -0.0, "W");
+		streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		this.roundTrip(streamSet);
+	}
+
+	@Test
+	public void nonFiniteValues()
+	{
+		NumericEventDataStream numeric = new NumericEventDataStream("Power",
+				"", "device");
+		numeric.add(1000, Double.NaN, "W");
+		numeric.add(2000, Double.longBitsToDouble(0x7ff8000000000123L), "W");
+		numeric.add(3000, Double.POSITIVE_INFINITY, "W");
+		numeric.add(4000, Double.NEGATIVE_INFINITY, "W");
+		numeric.add(5000, 42, "W");
+		EventDataStream stream = new EventDataStream("State", "", "other");
+		stream.addDatapoint(new EventDataPoint(new Date(1000), "NaN", null));
+		stream.addDatapoint(new EventDataPoint(new Date(2000), "Infinity",
+				null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		streamSet.addDatastream(stream);
+		this.roundTrip(streamSet);
+	}
+
+	@Test
+	public void longExtremes()
+	{
+		// timestamp deltas overflowing a long, and integers beyond 2^53
+		NumericEventDataStream numeric = new NumericEventDataStream("Energy",
+				"", "device");
+		numeric.add(Long.MIN_VALUE, Long.MAX_VALUE, "Wh");
+		numeric.add(Long.MAX_VALUE, Long.MIN_VALUE, "Wh");
+		numeric.add(0, 9007199254740993.0, "Wh");
+		NumericEventDataStream integral = new NumericEventDataStream("Count",
+				"", "device");
+		integral.add(Long.MAX_VALUE, 9007199254740992.0, "");
+		integral.add(Long.MIN_VALUE, -9007199254740992.0, "");
+		integral.add(-1, 0, "");
+		EventDataStream stream = new EventDataStream("State", "", "other");
+		stream.addDatapoint(new EventDataPoint(new Date(Long.MIN_VALUE), Long
+				.toString(Long.MIN_VALUE), null));
+		stream.addDatapoint(new EventDataPoint(new Date(Long.MAX_VALUE), Long
+				.toString(Long.MAX_VALUE), null));
+		stream.addDatapoint(new EventDataPoint(new Date(0),
+				"9223372036854775808", null));
+		stream.addDatapoint(new EventDataPoint(new Date(1), "007", null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		streamSet.addDatastream(integral);
+		streamSet.addDatastream(stream);
+		this.roundTrip(streamSet);
+	}
+
+	@Test
+	public void truncatedPayloadsAreRejected()
+	{
+		byte[] encoded = EventDataBinaryCodec.encode(this.mixedSet());
+
+		// every proper prefix
+		for (int length = 0; length < encoded.length; length++)
+		{
+			try
+			{
+				EventDataBinaryCodec.decode(Arrays.copyOf(encoded, length));
+				fail("decoded a payload truncated to " + length + " of "
+						+ encoded.length + " bytes");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void foreignPayloadsAreRejected()
+	{
+		EventDataBinaryCodec.decode(new byte[] { 1, 2, 3, 4, 5 });
+	}
+
+	@Test
+	public void decodingStopsAtTheEndOfTheSet()
+	{
+		EventDataStreamSet streamSet = this.mixedSet();
+		byte[] encoded = EventDataBinaryCodec.encode(streamSet);
+		ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 3);
+		buffer.put(encoded).put(new byte[] { 7, 7, 7 }).flip();
+
+		this.assertSameStreams(streamSet, EventDataBinaryCodec.decode(buffer));
+		assertEquals(encoded.length, buffer.position());
+	}
+
+	/**
+	 * Builds a set with a numeric stream with two units and a textual stream
+	 * with integer, decimal and other values
+	 */
+	private EventDataStreamSet mixedSet()
+	{
+		NumericEventDataStream numeric = new NumericEventDataStream("Power",
+				"phaseID-1", "device");
+		numeric.add(1000, 1.5, "W");
+		numeric.add(2000, 2.5, "kW");
+		EventDataStream stream = new EventDataStream("State", "", "device");
+		stream.addDatapoint(new EventDataPoint(new Date(1000), "on", null));
+		stream.addDatapoint(new EventDataPoint(new Date(2000), "12", null));
+		stream.addDatapoint(new EventDataPoint(new Date(3000), "1.25", null));
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(numeric);
+		streamSet.addDatastream(stream);
+		return streamSet;
+	}
+
+	/**
+	 * Encodes and decodes the given set, asserting that the decoded set holds
+	 * the same streams
+	 */
+	private EventDataStreamSet roundTrip(EventDataStreamSet streamSet)
+	{
+		EventDataStreamSet decoded = EventDataBinaryCodec
+				.decode(EventDataBinaryCodec.encode(streamSet));
+		this.assertSameStreams(streamSet, decoded);
+		return decoded;
+	}
+
+	/**
+	 * Asserts that the given sets hold streams with the same ids, metadata and
+	 * events, values of numeric streams bit by bit. Streams are matched by id,
+	 * so at most one stream per set may have no id.
+	 */
+	private void assertSameStreams(EventDataStreamSet expected,
+			EventDataStreamSet actual)
+	{
+		assertEquals("number of streams", expected.getDatastreams().size(),
+				actual.getDatastreams().size());
+
+		HashMap<String, EventDataStream> actualStreams = new HashMap<>();
+		for (EventDataStream stream : actual.getDatastreams())
+			actualStreams.put(stream.getId(), stream);
+
+		for (EventDataStream stream : expected.getDatastreams())
+		{
+			String id = stream.getId();
+			EventDataStream actualStream = actualStreams.get(id);
+			assertNotNull("missing stream " + id, actualStream);
+			assertEquals(id, stream.getName(), actualStream.getName());
+			assertEquals(id, stream.getParameters(), actualStream
+					.getParameters());
+			assertEquals(id, stream.getDeviceUri(), actualStream.getDeviceUri());
+			assertEquals(id, stream.getClass(), actualStream.getClass());
+
+			List<EventDataPoint> points = stream.getDatapoints();
+			List<EventDataPoint> actualPoints = actualStream.getDatapoints();
+			assertEquals(id + " size", points.size(), actualPoints.size());
+			for (int i = 0; i < points.size(); i++)
+			{
+				EventDataPoint point = points.get(i);
+				EventDataPoint actualPoint = actualPoints.get(i);
+				assertEquals(id + " time " + i, point.getAt(), actualPoint
+						.getAt());
+				assertEquals(id + " value " + i, point.getValue(), actualPoint
+						.getValue());
+				assertEquals(id + " unit " + i, point.getUnit(), actualPoint
+						.getUnit());
+			}
+
+			if (stream instanceof NumericEventDataStream)
+			{
+				NumericEventDataStream numeric = (NumericEventDataStream) stream;
+				NumericEventDataStream actualNumeric = (NumericEventDataStream) actualStream;
+				for (int i = 0; i < numeric.size(); i++)
+				{
+					assertEquals(id + " timestamp " + i, numeric
+							.getTimestamp(i), actualNumeric.getTimestamp(i));
+					assertEquals(id + " value " + i, Double
+							.doubleToRawLongBits(numeric.getValue(i)), Double
+							.doubleToRawLongBits(actualNumeric.getValue(i)));
+				}
+			}
+		}
+	}
+}
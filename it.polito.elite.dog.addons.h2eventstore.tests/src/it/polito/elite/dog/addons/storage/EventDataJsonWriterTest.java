@@ -0,0 +1,238 @@
+package it.polito.elite.dog.addons.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link EventDataJsonWriter} writes valid JSON: strings are quoted
+ * and escaped wherever they appear, values are written as numbers only if they
+ * are JSON numbers, and timestamps are formatted as the legacy date formatter
+ * did
+ *
+ */
+public class EventDataJsonWriterTest
+{
+	// the JSON of an event without time and value, up to its unit
+	private static final String EVENT_UNIT = "{\"at\":null,\"value\":null,\"unit\":";
+
+	@Test
+	public void escapedCharacters() throws IOException
+	{
+		String unit = "a\"b\\c\nd\re\tf\u0000g\u001fh\bi\fj\u2028k\u2029l/m\u00e9\ud83d\ude00";
+		assertEquals(EVENT_UNIT
+				+ "\"a\\\"b\\\\c\\nd\\re\\tf\\u0000g\\u001fh\\u0008i\\u000cj"
+				+ "\\u2028k\\u2029l/m\u00e9\ud83d\ude00\"}", this
+				.toJson(new EventDataPoint(null, null, unit)));
+	}
+
+	@Test
+	public void everyCharacterIsReadBackUnchanged() throws IOException
+	{
+		StringBuilder all = new StringBuilder();
+		for (int c = 0; c <= 0xffff; c++)
+			all.append((char) c);
+
+		String json = this.toJson(new EventDataPoint(null, null, all
+				.toString()));
+		assertTrue(json.startsWith(EVENT_UNIT) && json.endsWith("}"));
+		assertEquals(all.toString(), this.unescape(json.substring(EVENT_UNIT
+				.length(), json.length() - 1)));
+	}
+
+	@Test
+	public void escapesAcrossBufferBoundaries() throws IOException
+	{
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			value.append((i % 7 == 0) ? '"' : ((i % 11 == 0) ? '\n' : 'x'));
+
+		assertEquals(value.toString(), this.unescape(this.valueOf(value
+				.toString())));
+	}
+
+	@Test
+	public void metadataIsEscaped() throws IOException
+	{
+		// ids, devices, names, parameters and tokens
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		streamSet.addDatastream(new EventDataStream("na\"me", "p\\1",
+				"dev\nice"));
+		StringWriter json = new StringWriter();
+		new EventDataJsonWriter(json).write(new EventDataPage(streamSet,
+				"1.a\"b"));
+		assertEquals("{\"continuation\":\"1.a\\\"b\",\"datastreams\":[{\"uid\":"
+				+ "\"dev\\nice/na\\\"me?p\\\\1\",\"deviceuri\":\"dev\\nice\","
+				+ "\"name\":\"na\\\"me\",\"additionalparams\":\"p\\\\1\","
+				+ "\"datapoints\":[]}]}", json.toString());
+
+		// units of the column layout
+		NumericEventDataStream numeric = new NumericEventDataStream("Power",
+				"", "device");
+		numeric.add(0, 1, "\u00b0\"C");
+		numeric.add(1, 2, "\u00b0\"C");
+		json = new StringWriter();
+		new EventDataJsonWriter(json, EventDataJsonWriter.Layout.COLUMNS)
+				.write(numeric);
+		assertEquals("{\"uid\":\"device/Power\",\"deviceuri\":\"device\","
+				+ "\"name\":\"Power\",\"additionalparams\":\"\",\"unit\":"
+				+ "\"\u00b0\\\"C\",\"timestamps\":[0,1],\"values\":[1.0,2.0]}",
+				json.toString());
+	}
+
+	@Test
+	public void lastPageHasNoContinuation() throws IOException
+	{
+		StringWriter json = new StringWriter();
+		new EventDataJsonWriter(json).write(new EventDataPage(
+				new EventDataStreamSet(), null));
+		assertEquals("{\"continuation\":null,\"datastreams\":[]}", json
+				.toString());
+	}
+
+	@Test
+	public void onlyJsonNumbersAreWrittenAsNumbers() throws IOException
+	{
+		String[] numbers = { "0", "-0", "12", "-0.5", "12.50", "1e10",
+				"1E+2", "2.5e-3", "9223372036854775808" };
+		for (String number : numbers)
+			assertEquals(number, this.valueOf(number));
+
+		// anything else is a string, e.g., values that Java parses
+		String[] strings = { "", "-", "+1", "01", "1.", ".5", "1e", "1e+",
+				"0x10", "NaN", "Infinity", "-Infinity", "1.0f", " 1", "1 ",
+				"on", "1,5" };
+		for (String string : strings)
+			assertEquals("\"" + string + "\"", this.valueOf(string));
+	}
+
+	@Test
+	public void numericColumnValues() throws IOException
+	{
+		// integral values below 1e15 in full, the others as Double.toString
+		// does, and non-finite values as null
+		double[] values = { 0.0, -0.0, 12, -12, 0.1, 1e15, 1e-7, 123456.789,
+				Double.MIN_VALUE, Double.MAX_VALUE, 999999999999999.0,
+				-999999999999999.0, Double.NaN, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY };
+		NumericEventDataStream stream = new NumericEventDataStream("Power",
+				"", "device");
+		for (int i = 0; i < values.length; i++)
+			stream.add(i, values[i], "W");
+
+		StringWriter json = new StringWriter();
+		new EventDataJsonWriter(json, EventDataJsonWriter.Layout.COLUMNS)
+				.write(stream);
+		String written = json.toString();
+		assertEquals("\"values\":[0.0,-0.0,12.0,-12.0,0.1,1.0E15,1.0E-7,"
+				+ "123456.789,4.9E-324,1.7976931348623157E308,"
+				+ "999999999999999.0,-999999999999999.0,null,null,null]}",
+				written.substring(written.indexOf("\"values\":")));
+	}
+
+	@Test
+	public void timestampsAsTheLegacyFormatter()
+	{
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		long[] timestamps = { 0, -1, 1, 951782400000L, 951868799999L,
+				1400000000123L, -86400000L, -2208988800000L, 4102444800000L,
+				253402300799999L };
+		for (long timestamp : timestamps)
+			assertEquals(format.format(new Date(timestamp)),
+					EventDataJsonWriter.formatTimestamp(timestamp));
+	}
+
+	/**
+	 * Writes the given event
+	 */
+	private String toJson(EventDataPoint point) throws IOException
+	{
+		StringWriter json = new StringWriter();
+		new EventDataJsonWriter(json).write(point);
+		return json.toString();
+	}
+
+	/**
+	 * Gets the JSON value written for the given textual event value
+	 */
+	private String valueOf(String value) throws IOException
+	{
+		// events without unit are written with an empty one
+		String prefix = "{\"at\":null,\"value\":";
+		String suffix = ",\"unit\":\"\"}";
+		String json = this.toJson(new EventDataPoint(null, value, null));
+		assertTrue(json.startsWith(prefix) && json.endsWith(suffix));
+		return json.substring(prefix.length(), json.length()
+				- suffix.length());
+	}
+
+	/**
+	 * Reads a JSON string, failing on characters that must be escaped
+	 */
+	private String unescape(String json)
+	{
+		assertTrue("not a JSON string", (json.length() >= 2)
+				&& (json.charAt(0) == '"')
+				&& (json.charAt(json.length() - 1) == '"'));
+
+		StringBuilder value = new StringBuilder();
+		for (int i = 1; i < json.length() - 1; i++)
+		{
+			char c = json.charAt(i);
+			assertTrue("unescaped character " + Integer.toHexString(c)
+					+ " at " + i, (c >= 0x20) && (c != '"') && (c != '\u2028')
+					&& (c != '\u2029'));
+
+			if (c != '\\')
+			{
+				value.append(c);
+				continue;
+			}
+
+			char escaped = json.charAt(++i);
+			switch (escaped)
+			{
+				case '"':
+				case '\\':
+				case '/':
+					value.append(escaped);
+					break;
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					value.append((char) Integer.parseInt(json.substring(i + 1,
+							i + 5), 16));
+					i += 4;
+					break;
+				default:
+					fail("invalid escape " + escaped + " at " + i);
+			}
+		}
+
+		return value.toString();
+	}
+}
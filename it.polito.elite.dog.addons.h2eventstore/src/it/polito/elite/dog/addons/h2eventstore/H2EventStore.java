@@ -17,35 +17,51 @@
  */
 package it.polito.elite.dog.addons.h2eventstore;
 
+import it.polito.elite.dog.addons.h2eventstore.dao.ChunkCompactor;
 import it.polito.elite.dog.addons.h2eventstore.dao.DeviceDao;
+import it.polito.elite.dog.addons.h2eventstore.dao.MeasureValues;
 import it.polito.elite.dog.addons.h2eventstore.dao.NotificationDao;
+import it.polito.elite.dog.addons.h2eventstore.dao.RetentionManager;
+import it.polito.elite.dog.addons.h2eventstore.dao.RollupDao;
+import it.polito.elite.dog.addons.h2eventstore.dao.SeriesDao;
 import it.polito.elite.dog.addons.h2eventstore.dao.StateDao;
+import it.polito.elite.dog.addons.h2eventstore.dao.ValueDao;
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
 import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.PartitionMode;
+import it.polito.elite.dog.addons.h2eventstore.db.QueryCache;
+import it.polito.elite.dog.addons.h2eventstore.db.ReaderPool;
+import it.polito.elite.dog.addons.h2eventstore.db.StorageQuota;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPage;
 import it.polito.elite.dog.addons.storage.EventDataStream;
 import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+import it.polito.elite.dog.addons.storage.EventDataVisitor;
+import it.polito.elite.dog.addons.storage.EventSeriesInfo;
 import it.polito.elite.dog.addons.storage.EventStore;
 import it.polito.elite.dog.addons.storage.EventStoreInfo;
+import it.polito.elite.dog.addons.storage.RollupResolution;
+import it.polito.elite.dog.addons.storage.TimeSeriesEventStore;
 import it.polito.elite.dog.core.housemodel.api.HouseModel;
 import it.polito.elite.dog.core.library.model.DeviceDescriptor;
 import it.polito.elite.dog.core.library.model.DeviceStatus;
 import it.polito.elite.dog.core.library.model.notification.NonParametricNotification;
 import it.polito.elite.dog.core.library.model.notification.ParametricNotification;
-import it.polito.elite.dog.core.library.model.notification.annotation.NotificationParam;
 import it.polito.elite.dog.core.library.model.state.ContinuousState;
 import it.polito.elite.dog.core.library.model.state.State;
 import it.polito.elite.dog.core.library.model.statevalue.StateValue;
 import it.polito.elite.dog.core.library.util.LogHelper;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.measure.Measure;
@@ -135,7 +151,8 @@ import org.osgi.util.tracker.BundleTrackerCustomizer;
  * 
  * 
  */
-public class H2EventStore implements EventHandler, ManagedService, BundleTrackerCustomizer<Object>, EventStore
+public class H2EventStore implements EventHandler, ManagedService, BundleTrackerCustomizer<Object>,
+		TimeSeriesEventStore
 {
 	// the logger
 	private LogHelper logger;
@@ -143,6 +160,9 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	// the data access objects
 	private H2Storage h2Storage;
 	private DeviceDao devDao;
+	private SeriesDao seriesDao;
+	private ValueDao valueDao;
+	private RollupDao rollupDao;
 	private NotificationDao notifDao;
 	private StateDao stateDao;
 	
@@ -151,7 +171,7 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	
 	// the service registration object to publish services offered by this
 	// bundle
-	private ServiceRegistration<EventStore> storageService;
+	private ServiceRegistration<?> storageService;
 	private ServiceRegistration<EventHandler> eventHandler;
 	
 	// the reference to the Dog House Model interface
@@ -165,6 +185,22 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	// events, drop drops incoming events.
 	private DataRetentionMode dataRetention;
 	
+	// the max size of the database file, in megabytes, initially unlimited
+	// (-1)
+	private long maxFileSize;
+	
+	// the enforcer of the storage limits
+	private RetentionManager retentionManager;
+	
+	// true to seal older measures into compressed chunks
+	private boolean chunkStorage;
+	
+	// the sealer of compressed chunks, if enabled
+	private ChunkCompactor chunkCompactor;
+	
+	// true to store discrete states only when their value changes
+	private boolean runLengthStates;
+	
 	// the event handling mode
 	private boolean eventHandlingEnabled;
 	
@@ -174,9 +210,46 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	// the states storage flag
 	private boolean storeStates;
 	
+	// the filter of unchanged monitored states
+	private StateChangeFilter stateFilter;
+	
 	// the database location
 	private String databaseLocation;
 	
+	// the writer decoupling event delivery from event persistence, replaced
+	// when the ingest queue is reconfigured
+	private volatile IngestWriter ingestWriter;
+	
+	// the ingest queue capacity
+	private int ingestQueueCapacity;
+	
+	// the ingest queue overflow policy
+	private OverflowPolicy ingestOverflowPolicy;
+	
+	// the per-class reflection metadata of notifications
+	private NotificationAccessorCache notificationAccessors;
+	
+	// the tracker of active bundles
+	private BundleTracker<Object> bundleTracker;
+	
+	// the group commit configuration
+	private boolean groupCommitEnabled;
+	private int groupCommitRows;
+	private long groupCommitDelay;
+	
+	// the referential integrity flag
+	private boolean relaxedIntegrity;
+	
+	// the reader connections configuration
+	private int maxReaders;
+	private int readerTimeout;
+	
+	// the max number of events kept by the query cache
+	private int queryCacheSize;
+	
+	// the time partitioning of event tables
+	private PartitionMode partitionMode;
+	
 	/**
 	 * The class constructor, creates an instance of the {@link H2EventStore}.
 	 * 
@@ -186,6 +259,8 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		// initialize the inner data structures
 		
 		this.houseModel = new AtomicReference<>();
+		this.notificationAccessors = new NotificationAccessorCache();
+		this.stateFilter = new StateChangeFilter();
 		
 		// by default store neither notifications nor states
 		this.storeNotifications = false;
@@ -196,9 +271,28 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		
 		// default persistent storage size
 		this.maxSize = EventStoreInfo.UNLIMITED_SIZE;
+		this.maxFileSize = EventStoreInfo.UNLIMITED_SIZE;
 		
 		// default event handling
 		this.eventHandlingEnabled = true;
+		
+		// default ingest queue
+		this.ingestQueueCapacity = IngestQueue.DEFAULT_CAPACITY;
+		this.ingestOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+		
+		// default group commit
+		this.groupCommitEnabled = true;
+		this.groupCommitRows = GroupCommitter.DEFAULT_MAX_ROWS;
+		this.groupCommitDelay = GroupCommitter.DEFAULT_MAX_DELAY;
+		
+		// by default foreign keys are checked
+		this.relaxedIntegrity = false;
+		
+		// default query cache
+		this.queryCacheSize = QueryCache.DEFAULT_MAX_WEIGHT;
+		
+		// by default event tables are not partitioned
+		this.partitionMode = PartitionMode.NONE;
 	}
 	
 	/**
@@ -219,10 +313,11 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		this.logger.log(LogService.LOG_DEBUG, "H2 Event Store has been activated...");
 		
 		// open a bundle tracker for waiting h2 to start, this could be avoided
-		// when using OSGI enterprise.
-		BundleTracker<?> bundleTracker = new BundleTracker<>(this.context, Bundle.ACTIVE, this);
+		// when using OSGI enterprise. It is also used to invalidate the
+		// reflection metadata of stopped or refreshed bundles.
+		this.bundleTracker = new BundleTracker<>(this.context, Bundle.ACTIVE, this);
 		
-		bundleTracker.open();
+		this.bundleTracker.open();
 	}
 	
 	/**
@@ -237,9 +332,55 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		// deregister the service
 		this.unRegisterService();
 		
+		// stop tracking bundles
+		if (this.bundleTracker != null)
+		{
+			this.bundleTracker.close();
+			this.bundleTracker = null;
+		}
+		this.notificationAccessors.clear();
+		
+		// persist already queued events
+		if (this.ingestWriter != null)
+		{
+			this.ingestWriter.stop();
+			this.ingestWriter = null;
+		}
+		
+		// stop enforcing the storage limits
+		if (this.retentionManager != null)
+		{
+			this.retentionManager.stop();
+			this.retentionManager = null;
+		}
+		
+		// stop sealing chunks
+		if (this.chunkCompactor != null)
+		{
+			this.chunkCompactor.stop();
+			this.chunkCompactor = null;
+		}
+		
+		// commit pending insertions before closing their statements
+		try
+		{
+			if (this.h2Storage != null)
+				this.h2Storage.getGroupCommitter().flush();
+		}
+		catch (SQLException e)
+		{
+			this.logger.log(LogService.LOG_ERROR, "Unable to commit pending insertions", e);
+		}
+		
 		// close data access
 		if (this.devDao != null)
 			this.devDao.close();
+		if (this.seriesDao != null)
+			this.seriesDao.close();
+		if (this.valueDao != null)
+			this.valueDao.close();
+		if (this.rollupDao != null)
+			this.rollupDao.close();
 		if (this.notifDao != null)
 			this.notifDao.close();
 		if (this.stateDao != null)
@@ -290,21 +431,6 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 			// get the persistent store location
 			String databaseLocationAsString = (String) properties.get(EventStoreInfo.DB_LOCATION);
 			
-			// handle the persistent store initialization
-			if ((databaseLocationAsString != null) && (!databaseLocationAsString.isEmpty()))
-			{
-				// create the event DAO
-				this.databaseLocation = databaseLocationAsString;
-				
-				// try to init the dao
-				initDao(databaseLocation);
-			}
-			else
-			{
-				// log the error
-				this.logger.log(LogService.LOG_ERROR, "Missing configuration param " + EventStoreInfo.DB_LOCATION);
-			}
-			
 			// get the persistent store location
 			String storeNotificationsAsString = (String) properties.get(EventStoreInfo.NOTIFICATIONS_ENABLED);
 			
@@ -375,8 +501,12 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 				}
 			}
 			
+			// get the max size of the database file
+			this.maxFileSize = this.getLongProperty(properties, EventStoreInfo.DB_MAX_FILE_SIZE,
+					EventStoreInfo.UNLIMITED_SIZE);
+			
 			// get optional parameters
-			String autoEventHandlingAsString = (String) properties.get(EventStoreInfo.DB_MAX_SIZE);
+			String autoEventHandlingAsString = (String) properties.get(EventStoreInfo.EVENT_ATTACHMENT);
 			// check not null
 			if ((autoEventHandlingAsString != null) && (!autoEventHandlingAsString.isEmpty()))
 			{
@@ -395,20 +525,239 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 				}
 			}
 			
+			// get optional parameters
+			String queueCapacityAsString = (String) properties.get(EventStoreInfo.INGEST_QUEUE_CAPACITY);
+			// check not null
+			if ((queueCapacityAsString != null) && (!queueCapacityAsString.isEmpty()))
+			{
+				try
+				{
+					this.ingestQueueCapacity = Integer.valueOf(queueCapacityAsString);
+				}
+				catch (IllegalArgumentException | NullPointerException e)
+				{
+					// use the default
+					this.ingestQueueCapacity = IngestQueue.DEFAULT_CAPACITY;
+					
+					// log the error
+					this.logger.log(LogService.LOG_WARNING, "Ingest queue capacity not supported, using: "
+							+ this.ingestQueueCapacity);
+				}
+			}
+			
+			// get optional parameters
+			String overflowPolicyAsString = (String) properties.get(EventStoreInfo.INGEST_OVERFLOW_POLICY);
+			// check not null
+			if ((overflowPolicyAsString != null) && (!overflowPolicyAsString.isEmpty()))
+			{
+				try
+				{
+					this.ingestOverflowPolicy = OverflowPolicy.valueOf(overflowPolicyAsString);
+				}
+				catch (IllegalArgumentException | NullPointerException e)
+				{
+					// use the default
+					this.ingestOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+					
+					// log the error
+					this.logger.log(LogService.LOG_WARNING, "OverflowPolicy not supported, using: "
+							+ this.ingestOverflowPolicy.name());
+				}
+			}
+			
+			// get the group commit parameters
+			this.groupCommitEnabled = this.getBooleanProperty(properties, EventStoreInfo.GROUP_COMMIT_ENABLED, true);
+			this.groupCommitRows = this.getIntProperty(properties, EventStoreInfo.GROUP_COMMIT_ROWS,
+					GroupCommitter.DEFAULT_MAX_ROWS);
+			this.groupCommitDelay = this.getLongProperty(properties, EventStoreInfo.GROUP_COMMIT_DELAY,
+					GroupCommitter.DEFAULT_MAX_DELAY);
+			
+			// get the referential integrity mode
+			this.relaxedIntegrity = this.getBooleanProperty(properties, EventStoreInfo.RELAXED_INTEGRITY, false);
+			
+			// get the reader connections configuration
+			this.maxReaders = this.getIntProperty(properties, EventStoreInfo.DB_READERS, ReaderPool.DEFAULT_MAX_READERS);
+			this.readerTimeout = this.getIntProperty(properties, EventStoreInfo.DB_READER_TIMEOUT,
+					ReaderPool.DEFAULT_ACQUIRE_TIMEOUT);
+			
+			// get the query cache size
+			this.queryCacheSize = this.getIntProperty(properties, EventStoreInfo.QUERY_CACHE_SIZE,
+					QueryCache.DEFAULT_MAX_WEIGHT);
+			
+			// get the compressed chunk storage mode
+			this.chunkStorage = this.getBooleanProperty(properties, EventStoreInfo.CHUNK_STORAGE, false);
+			
+			// get the run-length storage mode of discrete states
+			this.runLengthStates = this.getBooleanProperty(properties, EventStoreInfo.RUN_LENGTH_STATES, false);
+			
+			// get the change-only filtering of monitored states
+			this.stateFilter.configure(this.getBooleanProperty(properties, EventStoreInfo.STATE_FILTER, false),
+					this.getDoubleProperty(properties, EventStoreInfo.STATE_DEADBAND_ABSOLUTE, 0),
+					this.getDoubleProperty(properties, EventStoreInfo.STATE_DEADBAND_RELATIVE, 0),
+					TimeUnit.MINUTES.toMillis(this.getLongProperty(properties, EventStoreInfo.STATE_HEARTBEAT, 0)));
+			
+			// get the time partitioning of event tables
+			String partitionModeAsString = (String) properties.get(EventStoreInfo.PARTITION_MODE);
+			// check not null
+			if ((partitionModeAsString != null) && (!partitionModeAsString.isEmpty()))
+			{
+				try
+				{
+					this.partitionMode = PartitionMode.valueOf(partitionModeAsString);
+				}
+				catch (IllegalArgumentException | NullPointerException e)
+				{
+					// use the default
+					this.partitionMode = PartitionMode.NONE;
+					
+					// log the error
+					this.logger.log(LogService.LOG_WARNING, "PartitionMode not supported, using: "
+							+ this.partitionMode.name());
+				}
+			}
+			
+			// handle the persistent store initialization, once all the
+			// parameters are known
+			if ((databaseLocationAsString != null) && (!databaseLocationAsString.isEmpty()))
+			{
+				// create the event DAO
+				this.databaseLocation = databaseLocationAsString;
+				
+				// try to init the dao
+				initDao(databaseLocation);
+			}
+			else
+			{
+				// log the error
+				this.logger.log(LogService.LOG_ERROR, "Missing configuration param " + EventStoreInfo.DB_LOCATION);
+			}
+			
 			// if everything has been accomplished, register the service
 			if ((this.h2Storage != null) && (this.devDao != null) && (this.notifDao != null) && (this.stateDao != null)
 					&& (storageService == null))
 				this.registerService();
+			else if (this.ingestWriter != null)
+			{
+				// apply the new queue settings, if any
+				this.startIngestWriter();
+			}
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Gets an optional boolean configuration parameter
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The parameter name.
+	 * @param defaultValue
+	 *            The value to use if the parameter is missing.
+	 * @return The parameter value.
+	 */
+	private boolean getBooleanProperty(Dictionary<String, ?> properties, String key, boolean defaultValue)
+	{
+		String valueAsString = (String) properties.get(key);
+		
+		return ((valueAsString != null) && (!valueAsString.isEmpty())) ? Boolean.valueOf(valueAsString.trim())
+				: defaultValue;
+	}
+	
+	/**
+	 * Gets an optional integer configuration parameter, logs a warning and
+	 * uses the default value if the parameter cannot be parsed.
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The parameter name.
+	 * @param defaultValue
+	 *            The value to use if the parameter is missing or malformed.
+	 * @return The parameter value.
+	 */
+	private int getIntProperty(Dictionary<String, ?> properties, String key, int defaultValue)
+	{
+		return (int) this.getLongProperty(properties, key, defaultValue);
+	}
+	
+	/**
+	 * Gets an optional long configuration parameter, logs a warning and uses
+	 * the default value if the parameter cannot be parsed.
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The parameter name.
+	 * @param defaultValue
+	 *            The value to use if the parameter is missing or malformed.
+	 * @return The parameter value.
+	 */
+	private long getLongProperty(Dictionary<String, ?> properties, String key, long defaultValue)
+	{
+		long value = defaultValue;
+		String valueAsString = (String) properties.get(key);
+		
+		// check not null
+		if ((valueAsString != null) && (!valueAsString.isEmpty()))
+		{
+			try
+			{
+				value = Long.valueOf(valueAsString.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				// log the error
+				this.logger.log(LogService.LOG_WARNING, "Value of " + key + " not supported, using: " + defaultValue);
+			}
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Gets an optional decimal configuration parameter, logs a warning and
+	 * uses the default value if the parameter cannot be parsed.
+	 * 
+	 * @param properties
+	 *            The configuration properties.
+	 * @param key
+	 *            The parameter name.
+	 * @param defaultValue
+	 *            The value to use if the parameter is missing or malformed.
+	 * @return The parameter value.
+	 */
+	private double getDoubleProperty(Dictionary<String, ?> properties, String key, double defaultValue)
+	{
+		double value = defaultValue;
+		String valueAsString = (String) properties.get(key);
+		
+		// check not null
+		if ((valueAsString != null) && (!valueAsString.isEmpty()))
+		{
+			try
+			{
+				value = Double.valueOf(valueAsString.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				// log the error
+				this.logger.log(LogService.LOG_WARNING, "Value of " + key + " not supported, using: " + defaultValue);
+			}
+		}
+		
+		return value;
+	}
+	
 	private void registerService()
 	{
-		// register the driver service if not already registered
+		// register the driver service if not already registered, under both
+		// the original and the time-series interfaces
 		if (this.storageService == null)
-			this.storageService = (ServiceRegistration<EventStore>) this.context.registerService(
-					EventStore.class.getName(), this, null);
+			this.storageService = this.context.registerService(new String[] { EventStore.class.getName(),
+					TimeSeriesEventStore.class.getName() }, this, null);
+		
+		// start the writer persisting received events
+		this.startIngestWriter();
 		
 		// register the EventHandler service
 		Hashtable<String, Object> p = new Hashtable<String, Object>();
@@ -423,6 +772,49 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 				EventHandler.class.getName(), this, p);
 	}
 	
+	/**
+	 * Starts the writer persisting received events, or replaces the running
+	 * one if the ingest queue capacity or overflow policy changed. Events
+	 * received meanwhile wait in the new queue until the previous writer has
+	 * persisted its own, so that their order is kept.
+	 */
+	private void startIngestWriter()
+	{
+		IngestWriter previous = this.ingestWriter;
+		
+		// nothing to do if the queue settings did not change
+		if ((previous != null) && (previous.getQueueCapacity() == this.ingestQueueCapacity)
+				&& (previous.getOverflowPolicy() == this.ingestOverflowPolicy))
+			return;
+		
+		IngestWriter writer = new IngestWriter(this.ingestQueueCapacity, this.ingestOverflowPolicy,
+				new IngestWriter.Handler() {
+					
+					@Override
+					public void handle(Event event, Date receivedAt)
+					{
+						processEvent(event, receivedAt);
+					}
+					
+					@Override
+					public long idle()
+					{
+						return flushPendingInsertions();
+					}
+				}, this.logger);
+		this.ingestWriter = writer;
+		
+		// drain the previous queue first
+		if (previous != null)
+		{
+			previous.stop();
+			this.logger.log(LogService.LOG_INFO, "Ingest queue reconfigured: capacity " + this.ingestQueueCapacity
+					+ ", overflow " + this.ingestOverflowPolicy.name());
+		}
+		
+		writer.start();
+	}
+	
 	/**
 	 * Unregisters the H2StorageService from the OSGi registry
 	 */
@@ -446,9 +838,40 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		{
 			// initialize the h2 storage layer
 			this.h2Storage = new H2Storage("jdbc:h2:" + databaseLocation, "dog", "");
+			this.h2Storage.getGroupCommitter().configure(this.groupCommitEnabled, this.groupCommitRows,
+					this.groupCommitDelay);
+			this.h2Storage.setRelaxedIntegrity(this.relaxedIntegrity);
+			this.h2Storage.getReaderPool().configure(this.maxReaders, this.readerTimeout);
+			this.h2Storage.getQueryCache().setMaxWeight(this.queryCacheSize);
+			this.h2Storage.setPartitionMode(this.partitionMode);
+			this.h2Storage.setChunkStorage(this.chunkStorage);
+			this.h2Storage.setRunLengthStates(this.runLengthStates);
 			this.devDao = new DeviceDao(this.h2Storage, this.context);
-			this.notifDao = new NotificationDao(this.devDao, this.h2Storage, this.context);
-			this.stateDao = new StateDao(this.devDao, this.h2Storage, this.context);
+			this.seriesDao = new SeriesDao(this.h2Storage, this.context);
+			this.valueDao = new ValueDao(this.h2Storage, this.context);
+			this.rollupDao = new RollupDao(this.h2Storage, this.context);
+			this.notifDao = new NotificationDao(this.devDao, this.seriesDao, this.valueDao, this.rollupDao,
+					this.h2Storage, this.context);
+			this.stateDao = new StateDao(this.devDao, this.seriesDao, this.valueDao, this.rollupDao, this.h2Storage,
+					this.context);
+			
+			// enforce the storage limits
+			if (this.retentionManager != null)
+				this.retentionManager.stop();
+			this.retentionManager = new RetentionManager(this.stateDao, this.notifDao, this.h2Storage, this.context);
+			this.retentionManager.configure(this.dataRetention == DataRetentionMode.REPLACE, this.maxSize,
+					(this.maxFileSize > 0) ? this.maxFileSize * 1024 * 1024 : StorageQuota.UNLIMITED);
+			this.retentionManager.start();
+			
+			// seal older measures into compressed chunks
+			if (this.chunkCompactor != null)
+				this.chunkCompactor.stop();
+			this.chunkCompactor = null;
+			if (this.chunkStorage)
+			{
+				this.chunkCompactor = new ChunkCompactor(this.stateDao, this.notifDao, this.h2Storage, this.context);
+				this.chunkCompactor.start();
+			}
 			
 			// intialize the set of devices
 			this.initializePermittedDevices();
@@ -487,74 +910,153 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	@Override
 	public void handleEvent(Event event)
 	{
-		if (this.eventHandlingEnabled)
+		// only queue the event here, deserialization and persistence are
+		// carried by the writer thread not to stall the event delivery
+		IngestWriter writer = this.ingestWriter;
+		
+		if ((this.eventHandlingEnabled) && (writer != null))
 		{
 			// TODO replace this check if a proper event_filter, if possible
 			if ((!event.getTopic().contains("ClockTimeNotification"))
 					&& (!event.getTopic().contains("EventNotification")))
 			{
-				// debug logging
-				this.logger.log(LogService.LOG_DEBUG, "TOPIC: " + event.getTopic());
-				
-				// check if the event is a status update
-				if ((event.getTopic().equals("org/osgi/service/monitor/MonitorEvent")) && (this.storeStates))
+				writer.enqueue(event);
+			}
+		}
+	}
+	
+	/**
+	 * Persists a received event, called by the {@link IngestWriter} thread.
+	 * 
+	 * @param event
+	 *            The event to persist.
+	 * @param receivedAt
+	 *            The time at which the event has been received.
+	 */
+	private void processEvent(Event event, Date receivedAt)
+	{
+		// debug logging
+		this.logger.log(LogService.LOG_DEBUG, "TOPIC: " + event.getTopic());
+		
+		// check if the event is a status update
+		if ((event.getTopic().equals("org/osgi/service/monitor/MonitorEvent")) && (this.storeStates))
+		{
+			if (event.getProperty("mon.listener.id") == null)
+			{
+				// handle states
+				if (this.stateDao != null)
 				{
-					if (event.getProperty("mon.listener.id") == null)
+					DeviceStatus currentDeviceState = null;
+					try
 					{
-						// handle states
-						if (this.stateDao != null)
-						{
-							DeviceStatus currentDeviceState = null;
-							try
-							{
-								// Try the deserialization of the DeviceStatus
-								// (property mon.statusvariable.value)
-								currentDeviceState = DeviceStatus.deserializeFromString((String) event
-										.getProperty("mon.statusvariable.value"));
-							}
-							catch (Exception e)
-							{
-								this.logger.log(LogService.LOG_ERROR, "Device status deserialization error "
-										+ e.getClass().getSimpleName());
-							}
-							
-							// handle
-							this.handleStates(currentDeviceState);
-						}
+						// Try the deserialization of the DeviceStatus
+						// (property mon.statusvariable.value)
+						currentDeviceState = DeviceStatus.deserializeFromString((String) event
+								.getProperty("mon.statusvariable.value"));
 					}
-				}
-				else if (this.storeNotifications)
-				{
-					// handle Notification
-					Object eventContent = event.getProperty(EventConstants.EVENT);
-					
-					// check if the corresponding dao exists
-					if (this.notifDao != null)
+					catch (Exception e)
 					{
-						// handle parametric notifications
-						
-						if ((eventContent instanceof ParametricNotification))
-						{
-							this.handleParametricNotification((ParametricNotification) eventContent);
-						}
-						else if (eventContent instanceof NonParametricNotification)
-						{
-							this.handleNonParametricNotification((NonParametricNotification) eventContent);
-						}
+						this.logger.log(LogService.LOG_ERROR, "Device status deserialization error "
+								+ e.getClass().getSimpleName());
 					}
+					
+					// handle
+					this.handleStates(currentDeviceState, receivedAt);
+				}
+			}
+		}
+		else if (this.storeNotifications)
+		{
+			// handle Notification
+			Object eventContent = event.getProperty(EventConstants.EVENT);
+			
+			// check if the corresponding dao exists
+			if (this.notifDao != null)
+			{
+				// handle parametric notifications
+				
+				if ((eventContent instanceof ParametricNotification))
+				{
+					this.handleParametricNotification((ParametricNotification) eventContent, receivedAt);
+				}
+				else if (eventContent instanceof NonParametricNotification)
+				{
+					this.handleNonParametricNotification((NonParametricNotification) eventContent, receivedAt);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Commits the pending insertions whose time budget has been consumed,
+	 * called by the {@link IngestWriter} thread when idle.
+	 * 
+	 * @return The time, in nanoseconds, before the next commit is due.
+	 */
+	private long flushPendingInsertions()
+	{
+		long nextFlush = TimeUnit.MILLISECONDS.toNanos(this.groupCommitDelay);
+		
+		if (this.h2Storage != null)
+		{
+			try
+			{
+				nextFlush = this.h2Storage.getGroupCommitter().flushIfDue();
+			}
+			catch (SQLException e)
+			{
+				this.logger.log(LogService.LOG_ERROR, "Unable to commit stored events", e);
+			}
+		}
+		
+		return nextFlush;
+	}
+	
+	/**
+	 * Gets the number of received events still waiting to be persisted.
+	 * 
+	 * @return The ingest queue depth.
+	 */
+	public int getIngestQueueDepth()
+	{
+		IngestWriter writer = this.ingestWriter;
+		return writer != null ? writer.getQueueDepth() : 0;
+	}
+	
+	/**
+	 * Gets the number of received events dropped as the ingest queue was
+	 * full.
+	 * 
+	 * @return The number of dropped events.
+	 */
+	public long getDroppedEventCount()
+	{
+		IngestWriter writer = this.ingestWriter;
+		return writer != null ? writer.getDroppedCount() : 0;
+	}
+	
+	/**
+	 * Gets the pool of the connections used by queries, e.g., to read its
+	 * metrics.
+	 * 
+	 * @return The reader pool, null if the storage is not available.
+	 */
+	public ReaderPool getReaderPool()
+	{
+		H2Storage storage = this.h2Storage;
+		return storage != null ? storage.getReaderPool() : null;
+	}
+	
 	/**
 	 * Handles events received through the monitor admin bundle and representing
 	 * the last snapshot of a device state.
 	 * 
 	 * @param currentDeviceState
 	 *            The last state snapshot.
+	 * @param receivedAt
+	 *            The time at which the snapshot has been received.
 	 */
-	private void handleStates(DeviceStatus currentDeviceState)
+	private void handleStates(DeviceStatus currentDeviceState, Date receivedAt)
 	{
 		// If the deserialization works
 		if (currentDeviceState != null)
@@ -568,11 +1070,11 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 				// check the state type
 				if (stateInstance instanceof ContinuousState)
 				{
-					this.handleContinuousStates(stateName, stateInstance, currentDeviceState.getDeviceURI());
+					this.handleContinuousStates(stateName, stateInstance, currentDeviceState.getDeviceURI(), receivedAt);
 				}
 				else
 				{
-					this.handleDiscreteStates(stateName, stateInstance, currentDeviceState.getDeviceURI());
+					this.handleDiscreteStates(stateName, stateInstance, currentDeviceState.getDeviceURI(), receivedAt);
 				}
 				
 				// debug
@@ -592,8 +1094,10 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 *            The Instance of {@link State} representing the state.
 	 * @param deviceUri
 	 *            The device URI.
+	 * @param receivedAt
+	 *            The time at which the state has been received.
 	 */
-	private void handleContinuousStates(String stateName, State stateInstance, String deviceUri)
+	private void handleContinuousStates(String stateName, State stateInstance, String deviceUri, Date receivedAt)
 	{
 		// handle continuous state values
 		StateValue[] currentStateValue = stateInstance.getCurrentStateValue();
@@ -607,35 +1111,61 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 			// check value type
 			if (value instanceof Measure<?, ?>)
 			{
-				// get the features and compose the additional parameters, if
-				// needed
-				HashMap<String, Object> features = currentStateValue[i].getFeatures();
+				// compose the additional parameters, if needed
+				String stateParams = this.getStateParams(currentStateValue[i]);
 				
-				StringBuffer stateParams = new StringBuffer();
-				boolean first = true;
-				for (String featureName : features.keySet())
+				// skip values within the deadband of the last written one
+				if (this.stateFilter.isEnabled())
 				{
-					if (!featureName.equals("realStateValue"))
-					{
-						if ((!featureName.isEmpty()) && (features.get(featureName) != null)
-								&& (!features.get(featureName).toString().isEmpty()))
-						{
-							if (!first)
-								stateParams.append("+");
-							else
-								first = false;
-							
-							stateParams.append(featureName + "-" + features.get(featureName));
-						}
-					}
+					String series = deviceUri + "\u0000" + stateName + "\u0000" + stateParams + "\u0000"
+							+ MeasureValues.getUnitSymbol((Measure<?, ?>) value);
+					if ((this.stateFilter.accept(series, receivedAt.getTime(),
+							MeasureValues.getValue((Measure<?, ?>) value)))
+							&& (!this.stateDao.insertContinuousState(deviceUri, receivedAt, (Measure<?, ?>) value,
+									stateName, stateParams)))
+						this.stateFilter.forget(series);
 				}
-				
-				this.stateDao.insertContinuousState(deviceUri, new Date(), (Measure<?, ?>) value, stateName,
-						stateParams.toString());
+				else
+					this.stateDao.insertContinuousState(deviceUri, receivedAt, (Measure<?, ?>) value, stateName,
+							stateParams);
 			}
 		}
 	}
 	
+	/**
+	 * Composes the additional parameters of a state value from its features,
+	 * e.g., <code>phaseID-1+direction-in</code>
+	 * 
+	 * @param stateValue
+	 *            The state value.
+	 * @return The additional parameters, empty if none.
+	 */
+	private String getStateParams(StateValue stateValue)
+	{
+		HashMap<String, Object> features = stateValue.getFeatures();
+		
+		StringBuffer stateParams = new StringBuffer();
+		boolean first = true;
+		for (String featureName : features.keySet())
+		{
+			if (!featureName.equals("realStateValue"))
+			{
+				if ((!featureName.isEmpty()) && (features.get(featureName) != null)
+						&& (!features.get(featureName).toString().isEmpty()))
+				{
+					if (!first)
+						stateParams.append("+");
+					else
+						first = false;
+					
+					stateParams.append(featureName + "-" + features.get(featureName));
+				}
+			}
+		}
+		
+		return stateParams.toString();
+	}
+	
 	/**
 	 * Handles updates for {@link DiscreteState}s, store the state value in the
 	 * discrete state db table.
@@ -646,8 +1176,10 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 *            The Instance of {@link State} representing the state.
 	 * @param deviceUri
 	 *            The device URI.
+	 * @param receivedAt
+	 *            The time at which the state has been received.
 	 */
-	private void handleDiscreteStates(String stateName, State stateInstance, String deviceUri)
+	private void handleDiscreteStates(String stateName, State stateInstance, String deviceUri, Date receivedAt)
 	{
 		// handle continuous state values
 		StateValue[] currentStateValue = stateInstance.getCurrentStateValue();
@@ -658,7 +1190,18 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 			// get the state value
 			Object value = currentStateValue[i].getValue();
 			
-			this.stateDao.insertDiscreteState(deviceUri, new Date(), value.toString(), stateName);
+			// skip values equal to the last written one, telling apart the
+			// values of multi-valued states by their parameters
+			if (this.stateFilter.isEnabled())
+			{
+				String series = deviceUri + "\u0000" + stateName + "\u0000"
+						+ this.getStateParams(currentStateValue[i]);
+				if ((this.stateFilter.accept(series, receivedAt.getTime(), value.toString()))
+						&& (!this.stateDao.insertDiscreteState(deviceUri, receivedAt, value.toString(), stateName)))
+					this.stateFilter.forget(series);
+			}
+			else
+				this.stateDao.insertDiscreteState(deviceUri, receivedAt, value.toString(), stateName);
 			
 		}
 	}
@@ -669,17 +1212,17 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 * 
 	 * @param receivedNotification
 	 *            The notification to handle.
+	 * @param eventTimestamp
+	 *            The time at which the notification has been received.
 	 * 
 	 */
-	private void handleParametricNotification(ParametricNotification receivedNotification)
+	private void handleParametricNotification(ParametricNotification receivedNotification, Date eventTimestamp)
 	{
 		// get the device uri
 		String deviceURI = receivedNotification.getDeviceUri();
 		
 		// prepare the notification measure
 		Measure<?, ?> eventValue = null;
-		// generate the notification timestamp
-		Date eventTimestamp = new Date();
 		
 		// get the notification name from the topic
 		String topic = receivedNotification.getNotificationTopic();
@@ -717,16 +1260,16 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 * 
 	 * @param receivedNotification
 	 *            The notification to handle.
+	 * @param eventTimestamp
+	 *            The time at which the notification has been received.
 	 * 
 	 */
-	private void handleNonParametricNotification(NonParametricNotification receivedNotification)
+	private void handleNonParametricNotification(NonParametricNotification receivedNotification,
+			Date eventTimestamp)
 	{
 		// get the device uri
 		String deviceURI = receivedNotification.getDeviceUri();
 		
-		// generate the notification timestamp
-		Date eventTimestamp = new Date();
-		
 		// get the notification name from the topic
 		String topic = receivedNotification.getNotificationTopic();
 		String notificationName = topic.substring(topic.lastIndexOf('/') + 1);
@@ -754,18 +1297,8 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 */
 	private String getNonParametricNotificationValue(NonParametricNotification receivedNotification)
 	{
-		String value = "";
-		try
-		{
-			value = (String) receivedNotification.getClass().getField("notificationName").get(null);
-		}
-		catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		return value.isEmpty() ? null : value;
+		// the value is the static notification name, resolved once per class
+		return this.notificationAccessors.get(receivedNotification.getClass()).getNotificationName();
 	}
 	
 	/**
@@ -780,26 +1313,20 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 		// the value, initially null
 		Measure<?, ?> value = null;
 		
-		// get all the notification methods
-		Method[] notificationMethods = receivedNotification.getClass().getDeclaredMethods();
-		
-		// extract the measure value...
-		for (Method currentMethod : notificationMethods)
+		try
 		{
-			if (currentMethod.getReturnType().isAssignableFrom(Measure.class))
-			{
-				try
-				{
-					// read the value
-					value = (Measure<?, ?>) currentMethod.invoke(receivedNotification, new Object[] {});
-					break;
-				}
-				catch (Exception e)
-				{
-					this.logger.log(LogService.LOG_ERROR, "Error in getting notification value", e);
-				}
-			}
+			// read the value through the cached getter
+			value = this.notificationAccessors.get(receivedNotification.getClass()).getMeasure(receivedNotification);
+		}
+		catch (Error e)
+		{
+			throw e;
+		}
+		catch (Throwable e)
+		{
+			this.logger.log(LogService.LOG_ERROR, "Error in getting notification value", e);
 		}
+		
 		return value;
 	}
 	
@@ -817,47 +1344,10 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 	 */
 	private String getNotificationParams(ParametricNotification receivedNotification)
 	{
-		// get all notfication getters
-		Method[] methods = receivedNotification.getClass().getMethods();
-		
-		// prepare the buffer for parameters
-		StringBuffer qfParams = new StringBuffer();
-		
-		// the first flag
-		boolean first = true;
-		
-		for (Method currentMethod : methods)
-		{
-			// get only the properly annotated methods
-			if (currentMethod.isAnnotationPresent(NotificationParam.class))
-			{
-				
-				try
-				{
-					// get the param value
-					String methodReturnValue = currentMethod.invoke(receivedNotification, (Object[]) null).toString();
-					// get the annotation value, i.e., the param name
-					String annotationValue = currentMethod.getAnnotation(NotificationParam.class).value();
-					
-					if ((annotationValue != null) && (!annotationValue.isEmpty()) && (methodReturnValue != null)
-							&& (!methodReturnValue.isEmpty()))
-					{
-						// concate the params
-						if (!first)
-							qfParams.append("+");
-						qfParams.append(annotationValue + "-" + methodReturnValue);
-					}
-				}
-				catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e)
-				{
-					// log the error
-					this.logger.log(LogService.LOG_ERROR, "Unable to extract notification parameters for "
-							+ receivedNotification.getNotificationTopic(), e);
-				}
-			}
-		}
-		
-		return qfParams.toString();
+		// extract the params through the cached annotated getters, failing
+		// getters are logged and skipped
+		return this.notificationAccessors.get(receivedNotification.getClass()).getParams(receivedNotification,
+				this.logger);
 	}
 	
 	// ----------------- Bundle tracker customizer --------
@@ -893,21 +1383,23 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 			executor.start();
 			
 		}
-		return null;
+		// track the bundle to be notified when it is stopped or refreshed
+		return bundle;
 	}
 	
 	@Override
 	public void modifiedBundle(Bundle bundle, BundleEvent event, Object object)
 	{
-		// TODO Auto-generated method stub
-		
+		// classes of an updated bundle are replaced upon refresh
+		if ((event != null) && (event.getType() == BundleEvent.UPDATED))
+			this.notificationAccessors.invalidate(bundle);
 	}
 	
 	@Override
 	public void removedBundle(Bundle bundle, BundleEvent event, Object object)
 	{
-		// TODO Auto-generated method stub
-		
+		// drop the reflection metadata of classes defined by the bundle
+		this.notificationAccessors.invalidate(bundle);
 	}
 	
 	// -------------------------- EventStore implementation -------------
@@ -997,6 +1489,202 @@ public class H2EventStore implements EventHandler, ManagedService, BundleTracker
 				nResults);
 	}
 	
+	@Override
+	public EventDataStream getSpecificDeviceContinuousStateRollups(String deviceURI, String stateName,
+			String stateParams, Date startDate, Date endDate, RollupResolution resolution, AggregateFunction function,
+			int startCount, int nResults)
+	{
+		return this.stateDao.getSpecificDeviceContinuousStateRollups(deviceURI, stateName, stateParams, startDate,
+				endDate, resolution, function, startCount, nResults);
+	}
+	
+	@Override
+	public EventDataStream getSpecificDeviceParametricNotificationRollups(String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate, RollupResolution resolution,
+			AggregateFunction function, int startCount, int nResults)
+	{
+		return this.notifDao.getSpecificDeviceParametricNotificationRollups(deviceURI, notificationName,
+				notificationParams, startDate, endDate, resolution, function, startCount, nResults);
+	}
+	
+	@Override
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceContinuousStateAggregates(String deviceURI,
+			String stateName, String stateParams, Date startDate, Date endDate, long bucketMillis,
+			Set<AggregateFunction> functions)
+	{
+		return this.stateDao.getSpecificDeviceContinuousStateAggregates(deviceURI, stateName, stateParams, startDate,
+				endDate, bucketMillis, functions);
+	}
+	
+	@Override
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceParametricNotificationAggregates(String deviceURI,
+			String notificationName, String notificationParams, Date startDate, Date endDate, long bucketMillis,
+			Set<AggregateFunction> functions)
+	{
+		return this.notifDao.getSpecificDeviceParametricNotificationAggregates(deviceURI, notificationName,
+				notificationParams, startDate, endDate, bucketMillis, functions);
+	}
+	
+	@Override
+	public EventDataStreamSet getLatestDeviceValues(String deviceURI)
+	{
+		EventDataStreamSet streamSet = new EventDataStreamSet(deviceURI);
+		this.stateDao.getLatestStates(deviceURI, streamSet);
+		return this.notifDao.getLatestNotifications(deviceURI, streamSet);
+	}
+	
+	@Override
+	public EventDataStreamSet getLatestValues()
+	{
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		this.stateDao.getLatestStates(null, streamSet);
+		return this.notifDao.getLatestNotifications(null, streamSet);
+	}
+	
+	@Override
+	public List<EventSeriesInfo> getDeviceSeries(String deviceURI)
+	{
+		return this.seriesDao.getDeviceSeriesInfo(deviceURI);
+	}
+	
+	@Override
+	public EventDataStream getDownsampledDeviceParametricNotifications(String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate, int maxPoints)
+	{
+		return this.notifDao.getDownsampledDeviceParametricNotifications(deviceURI, notificationName, notificationParams,
+				startDate, endDate, maxPoints);
+	}
+	
+	@Override
+	public EventDataStream getDownsampledDeviceContinuousStates(String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, int maxPoints)
+	{
+		return this.stateDao.getDownsampledDeviceContinuousStates(deviceURI, stateName, stateParams, startDate, endDate,
+				maxPoints);
+	}
+	
+	@Override
+	public EventDataPage getAllDeviceParametricNotifications(String deviceURI, Date startDate, Date endDate,
+			String continuation, int nResults)
+	{
+		return this.notifDao.getAllDeviceParametricNotifications(deviceURI, startDate, endDate, continuation, nResults);
+	}
+	
+	@Override
+	public EventDataPage getAllDeviceNonParametricNotifications(String deviceURI, Date startDate, Date endDate,
+			String continuation, int nResults, boolean aggregated)
+	{
+		return this.notifDao.getAllDeviceNonParametricNotifications(deviceURI, startDate, endDate, continuation,
+				nResults, aggregated);
+	}
+	
+	@Override
+	public EventDataPage getSpecificDeviceParametricNotifications(String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate, String continuation, int nResults)
+	{
+		return this.notifDao.getSpecificDeviceParametricNotifications(deviceURI, notificationName, notificationParams,
+				startDate, endDate, continuation, nResults);
+	}
+	
+	@Override
+	public EventDataPage getSpecificDeviceNonParametricNotifications(String deviceURI, String notificationName,
+			Date startDate, Date endDate, String continuation, int nResults)
+	{
+		return this.notifDao.getSpecificDeviceNonParametricNotifications(deviceURI, notificationName, startDate,
+				endDate, continuation, nResults);
+	}
+	
+	@Override
+	public EventDataPage getAllDeviceContinuousStates(String deviceUri, Date startDate, Date endDate,
+			String continuation, int nResults)
+	{
+		return this.stateDao.getAllDeviceContinuousStates(deviceUri, startDate, endDate, continuation, nResults);
+	}
+	
+	@Override
+	public EventDataPage getAllDeviceDiscreteStates(String deviceUri, Date startDate, Date endDate,
+			String continuation, int nResults, boolean aggregated)
+	{
+		return this.stateDao.getAllDeviceDiscreteStates(deviceUri, startDate, endDate, continuation, nResults,
+				aggregated);
+	}
+	
+	@Override
+	public EventDataPage getSpecificDeviceContinuousStates(String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, String continuation, int nResults)
+	{
+		return this.stateDao.getSpecificDeviceContinuousStates(deviceURI, stateName, stateParams, startDate, endDate,
+				continuation, nResults);
+	}
+	
+	@Override
+	public EventDataPage getSpecificDeviceDiscreteStates(String deviceURI, String stateName, Date startDate,
+			Date endDate, String continuation, int nResults)
+	{
+		return this.stateDao.getSpecificDeviceDiscreteStates(deviceURI, stateName, startDate, endDate, continuation,
+				nResults);
+	}
+	
+	@Override
+	public boolean visitAllDeviceParametricNotifications(String deviceURI, Date startDate, Date endDate,
+			EventDataVisitor visitor)
+	{
+		return this.notifDao.visitAllDeviceParametricNotifications(deviceURI, startDate, endDate, visitor);
+	}
+	
+	@Override
+	public boolean visitAllDeviceNonParametricNotifications(String deviceURI, Date startDate, Date endDate,
+			boolean aggregated, EventDataVisitor visitor)
+	{
+		return this.notifDao.visitAllDeviceNonParametricNotifications(deviceURI, startDate, endDate, aggregated,
+				visitor);
+	}
+	
+	@Override
+	public boolean visitSpecificDeviceParametricNotifications(String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate, EventDataVisitor visitor)
+	{
+		return this.notifDao.visitSpecificDeviceParametricNotifications(deviceURI, notificationName,
+				notificationParams, startDate, endDate, visitor);
+	}
+	
+	@Override
+	public boolean visitSpecificDeviceNonParametricNotifications(String deviceURI, String notificationName,
+			Date startDate, Date endDate, EventDataVisitor visitor)
+	{
+		return this.notifDao.visitSpecificDeviceNonParametricNotifications(deviceURI, notificationName, startDate,
+				endDate, visitor);
+	}
+	
+	@Override
+	public boolean visitAllDeviceContinuousStates(String deviceUri, Date startDate, Date endDate,
+			EventDataVisitor visitor)
+	{
+		return this.stateDao.visitAllDeviceContinuousStates(deviceUri, startDate, endDate, visitor);
+	}
+	
+	@Override
+	public boolean visitAllDeviceDiscreteStates(String deviceUri, Date startDate, Date endDate, boolean aggregated,
+			EventDataVisitor visitor)
+	{
+		return this.stateDao.visitAllDeviceDiscreteStates(deviceUri, startDate, endDate, aggregated, visitor);
+	}
+	
+	@Override
+	public boolean visitSpecificDeviceContinuousStates(String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, EventDataVisitor visitor)
+	{
+		return this.stateDao.visitSpecificDeviceContinuousStates(deviceURI, stateName, stateParams, startDate,
+				endDate, visitor);
+	}
+	
+	@Override
+	public boolean visitSpecificDeviceDiscreteStates(String deviceURI, String stateName, Date startDate,
+			Date endDate, EventDataVisitor visitor)
+	{
+		return this.stateDao.visitSpecificDeviceDiscreteStates(deviceURI, stateName, startDate, endDate, visitor);
+	}
+	
 	@Override
 	public void insertParametricNotifications(EventDataStreamSet notificationsSet)
 	{
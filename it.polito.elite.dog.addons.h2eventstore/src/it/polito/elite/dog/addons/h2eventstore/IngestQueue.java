@@ -0,0 +1,184 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue accepting elements from many producer threads
+ * (typically the EventAdmin delivery threads) and drained by a single consumer
+ * thread. The queue bound is enforced by reserving a slot with a CAS on the
+ * element counter before enqueuing, therefore producers never block: once the
+ * queue is full, the configured {@link OverflowPolicy} decides which element is
+ * discarded.
+ * 
+ * @param <E>
+ *            The type of the queued elements.
+ */
+public class IngestQueue<E>
+{
+	// the default queue capacity
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	// the queued elements
+	private final ConcurrentLinkedQueue<E> elements;
+
+	// the number of queued elements, kept apart as the size of a
+	// ConcurrentLinkedQueue is computed in linear time
+	private final AtomicInteger size;
+
+	// the number of discarded elements
+	private final AtomicLong dropped;
+
+	// the maximum number of queued elements
+	private final int capacity;
+
+	// the policy adopted when the queue is full
+	private final OverflowPolicy overflowPolicy;
+
+	/**
+	 * Creates a new {@link IngestQueue} holding at most the given number of
+	 * elements.
+	 * 
+	 * @param capacity
+	 *            The maximum number of queued elements.
+	 * @param overflowPolicy
+	 *            The {@link OverflowPolicy} to adopt when the queue is full.
+	 */
+	public IngestQueue(int capacity, OverflowPolicy overflowPolicy)
+	{
+		this.elements = new ConcurrentLinkedQueue<>();
+		this.size = new AtomicInteger(0);
+		this.dropped = new AtomicLong(0);
+		this.capacity = capacity > 0 ? capacity : IngestQueue.DEFAULT_CAPACITY;
+		this.overflowPolicy = overflowPolicy != null ? overflowPolicy
+				: OverflowPolicy.DROP_NEWEST;
+	}
+
+	/**
+	 * Adds the given element to the queue, applying the configured
+	 * {@link OverflowPolicy} if the queue is full. Never blocks.
+	 * 
+	 * @param element
+	 *            The element to add.
+	 * @return true if the element has been queued, false if it has been
+	 *         discarded.
+	 */
+	public boolean offer(E element)
+	{
+		while (true)
+		{
+			int current = this.size.get();
+
+			if (current < this.capacity)
+			{
+				// reserve a slot and enqueue
+				if (this.size.compareAndSet(current, current + 1))
+				{
+					this.elements.offer(element);
+					return true;
+				}
+			}
+			else if (this.overflowPolicy == OverflowPolicy.DROP_OLDEST)
+			{
+				// evict the head, the freed slot is immediately re-used by
+				// the incoming element therefore the size does not change
+				if (this.elements.poll() != null)
+				{
+					this.dropped.incrementAndGet();
+					this.elements.offer(element);
+					return true;
+				}
+			}
+			else
+			{
+				// drop the incoming element
+				this.dropped.incrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue, should only be called by
+	 * the consumer thread.
+	 * 
+	 * @return The head of the queue or null if the queue is empty.
+	 */
+	public E poll()
+	{
+		E element = this.elements.poll();
+
+		if (element != null)
+			this.size.decrementAndGet();
+
+		return element;
+	}
+
+	/**
+	 * Checks if the queue is empty
+	 * 
+	 * @return true if no element is queued.
+	 */
+	public boolean isEmpty()
+	{
+		return this.elements.isEmpty();
+	}
+
+	/**
+	 * Gets the number of queued elements
+	 * 
+	 * @return the current queue depth.
+	 */
+	public int size()
+	{
+		return this.size.get();
+	}
+
+	/**
+	 * Gets the maximum number of elements that can be queued
+	 * 
+	 * @return the queue capacity.
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/**
+	 * Gets the number of elements discarded since the queue creation
+	 * 
+	 * @return the drop count.
+	 */
+	public long getDroppedCount()
+	{
+		return this.dropped.get();
+	}
+
+	/**
+	 * Gets the {@link OverflowPolicy} adopted by this queue
+	 * 
+	 * @return the overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return this.overflowPolicy;
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.log.LogService;
+
+/**
+ * The single consumer of the {@link IngestQueue} placed between the
+ * EventAdmin delivery threads and the data access objects. Events are
+ * enqueued together with their reception time and are deserialized and
+ * persisted by a dedicated writer thread, so that event delivery never waits
+ * for the database.
+ * 
+ */
+public class IngestWriter implements Runnable
+{
+	// the max time the writer sleeps when no event is queued
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(50);
+
+	// the max time to wait for the queue to be drained at shutdown
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+	// the logger
+	private LogHelper logger;
+
+	// the queue of events waiting to be persisted
+	private final IngestQueue<PendingEvent> queue;
+
+	// the handler actually persisting events
+	private final Handler handler;
+
+	// the writer thread
+	private volatile Thread writerThread;
+
+	// the running flag
+	private volatile boolean running;
+
+	// true while the writer thread is parked waiting for new events
+	private volatile boolean parked;
+
+	// the drop count last reported in the log
+	private long reportedDrops;
+
+	/**
+	 * The callback interface through which the {@link IngestWriter} hands
+	 * queued events over to the persistence layer.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Persists the given event, called on the writer thread only.
+		 * 
+		 * @param event
+		 *            The event to persist.
+		 * @param receivedAt
+		 *            The time at which the event has been received.
+		 */
+		public void handle(Event event, Date receivedAt);
+
+		/**
+		 * Called on the writer thread whenever the queue has been drained.
+		 * 
+		 * @return The time, in nanoseconds, after which the writer should
+		 *         call this method again if no event arrives in the meantime.
+		 */
+		public long idle();
+	}
+
+	/**
+	 * Creates a new {@link IngestWriter} draining a queue with the given
+	 * capacity and {@link OverflowPolicy}.
+	 * 
+	 * @param capacity
+	 *            The maximum number of queued events.
+	 * @param overflowPolicy
+	 *            The policy adopted when the queue is full.
+	 * @param handler
+	 *            The {@link Handler} persisting events.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	public IngestWriter(int capacity, OverflowPolicy overflowPolicy,
+			Handler handler, LogHelper logger)
+	{
+		this.queue = new IngestQueue<>(capacity, overflowPolicy);
+		this.handler = handler;
+		this.logger = logger;
+		this.reportedDrops = 0;
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	public synchronized void start()
+	{
+		if (this.writerThread == null)
+		{
+			this.running = true;
+			this.writerThread = new Thread(this, "h2eventstore-writer");
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
+	}
+
+	/**
+	 * Stops the writer thread, waiting for already queued events to be
+	 * persisted.
+	 */
+	public synchronized void stop()
+	{
+		Thread thread = this.writerThread;
+
+		if (thread != null)
+		{
+			this.running = false;
+			LockSupport.unpark(thread);
+
+			try
+			{
+				thread.join(IngestWriter.SHUTDOWN_TIMEOUT_MILLIS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			this.writerThread = null;
+		}
+	}
+
+	/**
+	 * Enqueues the given event, never blocks the calling thread.
+	 * 
+	 * @param event
+	 *            The event to persist.
+	 * @return true if the event has been queued, false if it has been dropped
+	 *         due to the queue being full.
+	 */
+	public boolean enqueue(Event event)
+	{
+		boolean queued = this.queue.offer(new PendingEvent(event,
+				System.currentTimeMillis()));
+
+		// wake up the writer if sleeping
+		if (queued && this.parked)
+		{
+			Thread thread = this.writerThread;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Gets the number of events waiting to be persisted
+	 * 
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth()
+	{
+		return this.queue.size();
+	}
+
+	/**
+	 * Gets the queue capacity
+	 * 
+	 * @return the maximum number of queued events.
+	 */
+	public int getQueueCapacity()
+	{
+		return this.queue.getCapacity();
+	}
+
+	/**
+	 * Gets the policy adopted when the queue is full
+	 * 
+	 * @return the overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return this.queue.getOverflowPolicy();
+	}
+
+	/**
+	 * Gets the number of events dropped due to the queue being full
+	 * 
+	 * @return the drop count.
+	 */
+	public long getDroppedCount()
+	{
+		return this.queue.getDroppedCount();
+	}
+
+	@Override
+	public void run()
+	{
+		while (this.running || !this.queue.isEmpty())
+		{
+			PendingEvent pending = this.queue.poll();
+
+			if (pending != null)
+			{
+				try
+				{
+					this.handler.handle(pending.event,
+							new Date(pending.receivedAt));
+				}
+				catch (RuntimeException e)
+				{
+					// never let a single faulty event kill the writer
+					this.logger.log(LogService.LOG_ERROR,
+							"Unable to persist event " + pending.event.getTopic(),
+							e);
+				}
+			}
+			else
+			{
+				// the queue has been drained
+				long parkNanos = Math.min(this.idle(),
+						IngestWriter.IDLE_PARK_NANOS);
+
+				// sleep until new events arrive, re-checking the queue after
+				// raising the flag to avoid missing a wake-up
+				this.parked = true;
+				if (this.running && this.queue.isEmpty() && parkNanos > 0)
+					LockSupport.parkNanos(this, parkNanos);
+				this.parked = false;
+			}
+		}
+
+		// last house keeping before exiting
+		this.idle();
+	}
+
+	/**
+	 * Performs idle-time house keeping, i.e., calls the handler idle hook and
+	 * reports dropped events.
+	 * 
+	 * @return the time, in nanoseconds, the writer may sleep.
+	 */
+	private long idle()
+	{
+		long parkNanos = IngestWriter.IDLE_PARK_NANOS;
+
+		try
+		{
+			parkNanos = this.handler.idle();
+		}
+		catch (RuntimeException e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Error while performing ingest house keeping", e);
+		}
+
+		long drops = this.queue.getDroppedCount();
+		if (drops != this.reportedDrops)
+		{
+			this.logger.log(LogService.LOG_WARNING, (drops - this.reportedDrops)
+					+ " events dropped as the ingest queue is full (capacity: "
+					+ this.queue.getCapacity() + ", policy: "
+					+ this.queue.getOverflowPolicy().name() + ")");
+			this.reportedDrops = drops;
+		}
+
+		return parkNanos;
+	}
+
+	/**
+	 * An event waiting to be persisted, together with its reception time.
+	 */
+	private static class PendingEvent
+	{
+		// the received event
+		private final Event event;
+
+		// the reception time
+		private final long receivedAt;
+
+		public PendingEvent(Event event, long receivedAt)
+		{
+			this.event = event;
+			this.receivedAt = receivedAt;
+		}
+	}
+}
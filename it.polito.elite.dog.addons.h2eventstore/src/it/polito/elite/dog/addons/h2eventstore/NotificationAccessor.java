@@ -0,0 +1,291 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore;
+
+import it.polito.elite.dog.core.library.model.notification.annotation.NotificationParam;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.measure.Measure;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.service.log.LogService;
+
+/**
+ * The reflection metadata needed to extract values and parameters from
+ * notifications of a given class. The metadata is computed once per class,
+ * when the accessor is built, and accessors are shared through the
+ * {@link NotificationAccessorCache}.
+ * 
+ */
+public class NotificationAccessor
+{
+	// the generic getter type used to invoke handles exactly
+	private static final MethodType GETTER_TYPE = MethodType.methodType(
+			Object.class, Object.class);
+
+	// the id of the bundle defining the notification class, -1 if unknown
+	private final long bundleId;
+
+	// the getters returning a Measure, in declaration order
+	private final MethodHandle[] measureGetters;
+
+	// the names of the notification parameters
+	private final String[] paramNames;
+
+	// the getters of the notification parameters
+	private final MethodHandle[] paramGetters;
+
+	// the value of the static notificationName field, null if missing
+	private final String notificationName;
+
+	/**
+	 * Builds the accessor for the given notification class.
+	 * 
+	 * @param notificationClass
+	 *            The notification class.
+	 */
+	public NotificationAccessor(Class<?> notificationClass)
+	{
+		// the owning bundle
+		Bundle bundle = FrameworkUtil.getBundle(notificationClass);
+		this.bundleId = (bundle != null) ? bundle.getBundleId() : -1;
+
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+		// the measure getters, same lookup previously done for each event
+		List<MethodHandle> measureHandles = new ArrayList<>();
+		for (Method currentMethod : notificationClass.getDeclaredMethods())
+		{
+			if ((currentMethod.getReturnType().isAssignableFrom(Measure.class))
+					&& (currentMethod.getParameterTypes().length == 0))
+			{
+				MethodHandle handle = NotificationAccessor.toGetter(lookup,
+						currentMethod);
+				if (handle != null)
+					measureHandles.add(handle);
+			}
+		}
+		this.measureGetters = measureHandles
+				.toArray(new MethodHandle[measureHandles.size()]);
+
+		// the annotated parameter getters
+		List<String> names = new ArrayList<>();
+		List<MethodHandle> paramHandles = new ArrayList<>();
+		for (Method currentMethod : notificationClass.getMethods())
+		{
+			NotificationParam annotation = currentMethod
+					.getAnnotation(NotificationParam.class);
+
+			if ((annotation != null) && (annotation.value() != null)
+					&& (!annotation.value().isEmpty()))
+			{
+				MethodHandle handle = NotificationAccessor.toGetter(lookup,
+						currentMethod);
+				if (handle != null)
+				{
+					names.add(annotation.value());
+					paramHandles.add(handle);
+				}
+			}
+		}
+		this.paramNames = names.toArray(new String[names.size()]);
+		this.paramGetters = paramHandles.toArray(new MethodHandle[paramHandles
+				.size()]);
+
+		// the static notification name
+		String name = null;
+		try
+		{
+			Field nameField = notificationClass.getField("notificationName");
+			if (Modifier.isStatic(nameField.getModifiers()))
+				name = (String) nameField.get(null);
+		}
+		catch (NoSuchFieldException | SecurityException
+				| IllegalArgumentException | IllegalAccessException
+				| ClassCastException e)
+		{
+			// no name available for this class
+			name = null;
+		}
+		this.notificationName = ((name != null) && (!name.isEmpty())) ? name
+				.intern() : null;
+	}
+
+	/**
+	 * Converts the given getter into a {@link MethodHandle} taking and
+	 * returning {@link Object}, suitable for exact invocation.
+	 * 
+	 * @param lookup
+	 *            The lookup to use.
+	 * @param getter
+	 *            The getter.
+	 * @return The handle or null if the getter is not accessible.
+	 */
+	private static MethodHandle toGetter(MethodHandles.Lookup lookup,
+			Method getter)
+	{
+		MethodHandle handle = null;
+
+		if ((!Modifier.isStatic(getter.getModifiers()))
+				&& (getter.getParameterTypes().length == 0))
+		{
+			try
+			{
+				handle = lookup.unreflect(getter).asType(
+						NotificationAccessor.GETTER_TYPE);
+			}
+			catch (IllegalAccessException e)
+			{
+				// not accessible, as it would have been with plain reflection
+				handle = null;
+			}
+		}
+
+		return handle;
+	}
+
+	/**
+	 * Gets the id of the bundle defining the notification class
+	 * 
+	 * @return the bundle id, or -1 if the class is not defined by a bundle.
+	 */
+	public long getBundleId()
+	{
+		return this.bundleId;
+	}
+
+	/**
+	 * Gets the value of the static <code>notificationName</code> field of the
+	 * notification class.
+	 * 
+	 * @return The notification name, or null if missing or empty.
+	 */
+	public String getNotificationName()
+	{
+		return this.notificationName;
+	}
+
+	/**
+	 * Extracts the {@link Measure} carried by the given notification, the
+	 * first getter returning a {@link Measure} without errors is used.
+	 * 
+	 * @param notification
+	 *            The notification, must be an instance of the class this
+	 *            accessor has been built for.
+	 * @return The measure or null if not available.
+	 * @throws Throwable
+	 *             the last error thrown by measure getters, if none succeeded.
+	 */
+	public Measure<?, ?> getMeasure(Object notification) throws Throwable
+	{
+		Throwable lastError = null;
+
+		for (MethodHandle getter : this.measureGetters)
+		{
+			try
+			{
+				return (Measure<?, ?>) (Object) getter.invokeExact(notification);
+			}
+			catch (Error e)
+			{
+				throw e;
+			}
+			catch (Throwable t)
+			{
+				lastError = t;
+			}
+		}
+
+		if (lastError != null)
+			throw lastError;
+
+		return null;
+	}
+
+	/**
+	 * <p>
+	 * Gets the parameters of the given notification, encoded in a post-like
+	 * manner:
+	 * </p>
+	 * <p>
+	 * <code>paramname1-paramvalue1/paramname2-paramvalue2/...</code>
+	 * </p>
+	 * 
+	 * @param notification
+	 *            The notification, must be an instance of the class this
+	 *            accessor has been built for.
+	 * @param logger
+	 *            The logger reporting the parameters whose getter fails,
+	 *            which are skipped.
+	 * @return The parameters.
+	 */
+	public String getParams(Object notification, LogHelper logger)
+	{
+		// no parameters
+		if (this.paramGetters.length == 0)
+			return "";
+
+		// prepare the buffer for parameters
+		StringBuilder qfParams = new StringBuilder();
+
+		for (int i = 0; i < this.paramGetters.length; i++)
+		{
+			// get the param value, skipping only this param on errors
+			Object paramValue;
+			try
+			{
+				paramValue = (Object) this.paramGetters[i]
+						.invokeExact(notification);
+			}
+			catch (Error e)
+			{
+				throw e;
+			}
+			catch (Throwable t)
+			{
+				logger.log(LogService.LOG_ERROR,
+						"Unable to extract the notification parameter "
+								+ this.paramNames[i], t);
+				continue;
+			}
+			String methodReturnValue = (paramValue != null) ? paramValue
+					.toString() : null;
+
+			if ((methodReturnValue != null) && (!methodReturnValue.isEmpty()))
+			{
+				// concatenate the params, with the same encoding adopted by
+				// already stored data
+				qfParams.append(this.paramNames[i]);
+				qfParams.append('-');
+				qfParams.append(methodReturnValue);
+			}
+		}
+
+		return qfParams.toString();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * A per-class cache of {@link NotificationAccessor}s. Accessors are built the
+ * first time a notification class is seen and must be invalidated when the
+ * bundle defining the class is stopped or refreshed, not to retain stale
+ * classes (and their class loader).
+ * 
+ */
+public class NotificationAccessorCache
+{
+	// the accessors indexed by notification class
+	private final ConcurrentHashMap<Class<?>, NotificationAccessor> accessors;
+
+	/**
+	 * Creates an empty {@link NotificationAccessorCache}
+	 */
+	public NotificationAccessorCache()
+	{
+		this.accessors = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Gets the accessor for the given notification class, building it if
+	 * needed.
+	 * 
+	 * @param notificationClass
+	 *            The notification class.
+	 * @return The corresponding {@link NotificationAccessor}.
+	 */
+	public NotificationAccessor get(Class<?> notificationClass)
+	{
+		NotificationAccessor accessor = this.accessors.get(notificationClass);
+
+		if (accessor == null)
+		{
+			// build the accessor, concurrent builds are harmless
+			accessor = new NotificationAccessor(notificationClass);
+			NotificationAccessor previous = this.accessors.putIfAbsent(
+					notificationClass, accessor);
+			if (previous != null)
+				accessor = previous;
+		}
+
+		return accessor;
+	}
+
+	/**
+	 * Removes all the accessors built for classes defined by the given bundle
+	 * 
+	 * @param bundle
+	 *            The stopped or refreshed bundle.
+	 */
+	public void invalidate(Bundle bundle)
+	{
+		long bundleId = bundle.getBundleId();
+
+		Iterator<Map.Entry<Class<?>, NotificationAccessor>> entries = this.accessors
+				.entrySet().iterator();
+		while (entries.hasNext())
+		{
+			if (entries.next().getValue().getBundleId() == bundleId)
+				entries.remove();
+		}
+	}
+
+	/**
+	 * Removes all the cached accessors
+	 */
+	public void clear()
+	{
+		this.accessors.clear();
+	}
+}
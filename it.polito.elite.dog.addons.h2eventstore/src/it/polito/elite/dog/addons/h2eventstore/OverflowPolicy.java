@@ -0,0 +1,34 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package it.polito.elite.dog.addons.h2eventstore;
+
+/**
+ * A public enumeration used to set the behavior of the {@link IngestQueue}
+ * placed in front of the data access objects, when the queue is full. It can
+ * either assume the value <code>OverflowPolicy.DROP_NEWEST</code>, which
+ * discards the incoming event, or the value
+ * <code>OverflowPolicy.DROP_OLDEST</code> that discards the oldest queued event
+ * to make room for the incoming one.
+ * 
+ */
+public enum OverflowPolicy
+{
+	DROP_NEWEST, // drops incoming events once the queue is full
+	DROP_OLDEST // drops the oldest queued events in favor of newer ones.
+}
@@ -0,0 +1,231 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Tracks the last value written for each state series, so that the states
+ * periodically re-reported by MonitorEvents are only stored when they carry
+ * new information: discrete values when they change, measures when they move
+ * outside a deadband around the last written value.
+ * </p>
+ * 
+ * <p>
+ * An optional heartbeat still writes unchanged states once the given time
+ * has elapsed since the last write of their series, so that stored data show
+ * the state is still being reported.
+ * </p>
+ * 
+ */
+public class StateChangeFilter
+{
+	// true if unchanged states are skipped
+	private volatile boolean enabled;
+
+	// the absolute deadband of measures, 0 for none
+	private volatile double absoluteDeadband;
+
+	// the deadband of measures relative to the last written value, 0 for none
+	private volatile double relativeDeadband;
+
+	// the max time between two writes of a series, in milliseconds, 0 for none
+	private volatile long heartbeat;
+
+	// the last written value of each series
+	private final ConcurrentHashMap<String, LastValue> lastValues;
+
+	// the number of skipped states since the start
+	private final AtomicLong skipped;
+
+	/**
+	 * Creates a disabled {@link StateChangeFilter}, accepting all the states
+	 */
+	public StateChangeFilter()
+	{
+		this.enabled = false;
+		this.lastValues = new ConcurrentHashMap<>();
+		this.skipped = new AtomicLong();
+	}
+
+	/**
+	 * Configures the filter, forgetting the values written so far
+	 * 
+	 * @param enabled
+	 *            true to skip unchanged states, false to accept all of them.
+	 * @param absoluteDeadband
+	 *            The max absolute difference of a measure from the last
+	 *            written value to be considered unchanged, 0 for none.
+	 * @param relativeDeadband
+	 *            The max difference of a measure from the last written value,
+	 *            as a fraction of the latter, to be considered unchanged, 0
+	 *            for none.
+	 * @param heartbeat
+	 *            The max time between two writes of the same series, in
+	 *            milliseconds, 0 for none.
+	 */
+	public void configure(boolean enabled, double absoluteDeadband,
+			double relativeDeadband, long heartbeat)
+	{
+		this.enabled = enabled;
+		this.absoluteDeadband = Math.max(0, absoluteDeadband);
+		this.relativeDeadband = Math.max(0, relativeDeadband);
+		this.heartbeat = Math.max(0, heartbeat);
+		this.lastValues.clear();
+	}
+
+	/**
+	 * Checks whether unchanged states are skipped; when they are not, the
+	 * series keys need not be computed at all
+	 * 
+	 * @return true if the filter is enabled.
+	 */
+	public boolean isEnabled()
+	{
+		return this.enabled;
+	}
+
+	/**
+	 * Checks whether the given measure must be written and, if so, records it
+	 * as the last written value of its series
+	 * 
+	 * @param series
+	 *            The key of the series.
+	 * @param timestamp
+	 *            The measure timestamp, in milliseconds.
+	 * @param value
+	 *            The measure value.
+	 * @return true if the measure must be written, false if it can be
+	 *         skipped.
+	 */
+	public boolean accept(String series, long timestamp, double value)
+	{
+		if (!this.enabled)
+			return true;
+
+		LastValue last = this.lastValues.get(series);
+		if ((last != null) && (!this.isHeartbeatDue(last, timestamp))
+				&& (this.isWithinDeadband(last.measure, value)))
+		{
+			this.skipped.incrementAndGet();
+			return false;
+		}
+
+		this.lastValues.put(series, new LastValue(timestamp, value, null));
+		return true;
+	}
+
+	/**
+	 * Checks whether the given discrete value must be written and, if so,
+	 * records it as the last written value of its series
+	 * 
+	 * @param series
+	 *            The key of the series.
+	 * @param timestamp
+	 *            The state timestamp, in milliseconds.
+	 * @param value
+	 *            The discrete value.
+	 * @return true if the value must be written, false if it can be skipped.
+	 */
+	public boolean accept(String series, long timestamp, String value)
+	{
+		if (!this.enabled)
+			return true;
+
+		LastValue last = this.lastValues.get(series);
+		if ((last != null) && (!this.isHeartbeatDue(last, timestamp))
+				&& ((last.value == null) ? (value == null) : last.value
+						.equals(value)))
+		{
+			this.skipped.incrementAndGet();
+			return false;
+		}
+
+		this.lastValues.put(series, new LastValue(timestamp, 0, value));
+		return true;
+	}
+
+	/**
+	 * Forgets the last written value of the given series, e.g., when its
+	 * accepted value could not be stored
+	 * 
+	 * @param series
+	 *            The key of the series.
+	 */
+	public void forget(String series)
+	{
+		this.lastValues.remove(series);
+	}
+
+	/**
+	 * Checks whether the heartbeat of the series requires a write, states
+	 * received out of order are always written
+	 */
+	private boolean isHeartbeatDue(LastValue last, long timestamp)
+	{
+		return (timestamp < last.timestamp)
+				|| ((this.heartbeat > 0)
+						&& (timestamp - last.timestamp >= this.heartbeat));
+	}
+
+	/**
+	 * Checks whether the given measure lies within the deadbands around the
+	 * last written one
+	 */
+	private boolean isWithinDeadband(double last, double value)
+	{
+		// identical values, including NaNs
+		if (Double.compare(last, value) == 0)
+			return true;
+
+		double difference = Math.abs(value - last);
+		return ((this.absoluteDeadband > 0)
+				&& (difference <= this.absoluteDeadband))
+				|| ((this.relativeDeadband > 0)
+						&& (difference <= this.relativeDeadband * Math.abs(last)));
+	}
+
+	/**
+	 * Gets the number of states skipped since the start
+	 * 
+	 * @return The number of skipped states.
+	 */
+	public long getSkippedCount()
+	{
+		return this.skipped.get();
+	}
+
+	/**
+	 * The last written value of a series
+	 */
+	private static class LastValue
+	{
+		private final long timestamp;
+		private final double measure;
+		private final String value;
+
+		private LastValue(long timestamp, double measure, String value)
+		{
+			this.timestamp = timestamp;
+			this.measure = measure;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Encodes the points of a series chunk, i.e., pairs of timestamps and double
+ * values sorted by time, in a compact bit stream: timestamps are stored as
+ * delta-of-delta and values as the XOR with the previous value, so that
+ * regularly sampled and slowly changing measures take a few bits per point.
+ * </p>
+ *
+ * <p>
+ * The stream starts with the number of points, the first timestamp and the
+ * first value, followed by one (timestamp, value) pair per point.
+ * </p>
+ *
+ */
+final class ChunkCodec
+{
+	private ChunkCodec()
+	{
+		// static methods only
+	}
+
+	/**
+	 * Encodes the given points
+	 *
+	 * @param timestamps
+	 *            The point timestamps, in milliseconds, sorted.
+	 * @param values
+	 *            The point values.
+	 * @param size
+	 *            The number of points to encode.
+	 * @return The encoded chunk.
+	 */
+	static byte[] encode(long[] timestamps, double[] values, int size)
+	{
+		BitOutput out = new BitOutput(16 + size * 2);
+
+		// header
+		out.writeBits(size, 32);
+		if (size == 0)
+			return out.toByteArray();
+		out.writeBits(timestamps[0], 64);
+		out.writeBits(Double.doubleToRawLongBits(values[0]), 64);
+
+		long previousTimestamp = timestamps[0];
+		long previousDelta = 0;
+		long previousBits = Double.doubleToRawLongBits(values[0]);
+		int previousLeading = -1;
+		int previousTrailing = 0;
+
+		for (int i = 1; i < size; i++)
+		{
+			// timestamp, as delta of delta
+			long delta = timestamps[i] - previousTimestamp;
+			long deltaOfDelta = delta - previousDelta;
+
+			if (deltaOfDelta == 0)
+				out.writeBits(0, 1);
+			else if ((deltaOfDelta >= -63) && (deltaOfDelta <= 64))
+			{
+				out.writeBits(0b10, 2);
+				out.writeBits(deltaOfDelta + 63, 7);
+			}
+			else if ((deltaOfDelta >= -255) && (deltaOfDelta <= 256))
+			{
+				out.writeBits(0b110, 3);
+				out.writeBits(deltaOfDelta + 255, 9);
+			}
+			else if ((deltaOfDelta >= -2047) && (deltaOfDelta <= 2048))
+			{
+				out.writeBits(0b1110, 4);
+				out.writeBits(deltaOfDelta + 2047, 12);
+			}
+			else
+			{
+				out.writeBits(0b1111, 4);
+				out.writeBits(deltaOfDelta, 64);
+			}
+			previousTimestamp = timestamps[i];
+			previousDelta = delta;
+
+			// value, as xor with the previous one
+			long bits = Double.doubleToRawLongBits(values[i]);
+			long xor = bits ^ previousBits;
+
+			if (xor == 0)
+				out.writeBits(0, 1);
+			else
+			{
+				out.writeBits(1, 1);
+
+				int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+				int trailing = Long.numberOfTrailingZeros(xor);
+
+				if ((previousLeading >= 0) && (leading >= previousLeading)
+						&& (trailing >= previousTrailing))
+				{
+					// the meaningful bits fit in the previous window
+					out.writeBits(0, 1);
+					out.writeBits(xor >>> previousTrailing, 64
+							- previousLeading - previousTrailing);
+				}
+				else
+				{
+					// new window
+					int significant = 64 - leading - trailing;
+					out.writeBits(1, 1);
+					out.writeBits(leading, 5);
+					out.writeBits(significant - 1, 6);
+					out.writeBits(xor >>> trailing, significant);
+
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+			previousBits = bits;
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes the given chunk
+	 *
+	 * @param data
+	 *            The encoded chunk.
+	 * @return The decoded points.
+	 */
+	static Points decode(byte[] data)
+	{
+		BitInput in = new BitInput(data);
+
+		int size = (int) in.readBits(32);
+		Points points = new Points(size);
+		if (size == 0)
+			return points;
+
+		long timestamp = in.readBits(64);
+		long bits = in.readBits(64);
+		points.timestamps[0] = timestamp;
+		points.values[0] = Double.longBitsToDouble(bits);
+
+		long delta = 0;
+		int leading = 0;
+		int trailing = 0;
+
+		for (int i = 1; i < size; i++)
+		{
+			// timestamp
+			long deltaOfDelta;
+			if (in.readBits(1) == 0)
+				deltaOfDelta = 0;
+			else if (in.readBits(1) == 0)
+				deltaOfDelta = in.readBits(7) - 63;
+			else if (in.readBits(1) == 0)
+				deltaOfDelta = in.readBits(9) - 255;
+			else if (in.readBits(1) == 0)
+				deltaOfDelta = in.readBits(12) - 2047;
+			else
+				deltaOfDelta = in.readBits(64);
+
+			delta += deltaOfDelta;
+			timestamp += delta;
+
+			// value
+			if (in.readBits(1) == 1)
+			{
+				if (in.readBits(1) == 1)
+				{
+					// new window
+					leading = (int) in.readBits(5);
+					int significant = (int) in.readBits(6) + 1;
+					trailing = 64 - leading - significant;
+				}
+				bits ^= in.readBits(64 - leading - trailing) << trailing;
+			}
+
+			points.timestamps[i] = timestamp;
+			points.values[i] = Double.longBitsToDouble(bits);
+		}
+
+		return points;
+	}
+
+	/**
+	 * The decoded points of a chunk
+	 */
+	static class Points
+	{
+		final long[] timestamps;
+		final double[] values;
+		final int size;
+
+		private Points(int size)
+		{
+			this.timestamps = new long[size];
+			this.values = new double[size];
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A growing bit stream, most significant bits first
+	 */
+	private static class BitOutput
+	{
+		private byte[] buffer;
+		private int bitLength;
+
+		private BitOutput(int initialBytes)
+		{
+			this.buffer = new byte[Math.max(16, initialBytes)];
+		}
+
+		private void writeBits(long value, int nBits)
+		{
+			for (int i = nBits - 1; i >= 0; i--)
+			{
+				if ((this.bitLength >>> 3) == this.buffer.length)
+					this.buffer = Arrays.copyOf(this.buffer,
+							this.buffer.length * 2);
+
+				int mask = 0x80 >>> (this.bitLength & 7);
+				if (((value >>> i) & 1) != 0)
+					this.buffer[this.bitLength >>> 3] |= (byte) mask;
+				this.bitLength++;
+			}
+		}
+
+		private byte[] toByteArray()
+		{
+			return Arrays.copyOf(this.buffer, (this.bitLength + 7) >>> 3);
+		}
+	}
+
+	/**
+	 * A bit stream reader, most significant bits first
+	 */
+	private static class BitInput
+	{
+		private final byte[] buffer;
+		private int position;
+
+		private BitInput(byte[] buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		private long readBits(int nBits)
+		{
+			long value = 0;
+			for (int i = 0; i < nBits; i++)
+			{
+				int shift = 7 - (this.position & 7);
+				int bit = (this.buffer[this.position >>> 3] >>> shift) & 1;
+				value = (value << 1) | bit;
+				this.position++;
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.storage.RollupResolution;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * Seals the measures older than a grace period into compressed chunks, one
+ * per series and hour, on a background thread. Recent rows stay in the data
+ * tables, where insertions are cheap and rows received late are accepted as
+ * usual; late rows are merged into the sealed chunks at the next pass.
+ * </p>
+ *
+ * <p>
+ * As for evictions, sealing is performed in short transactions and paused as
+ * soon as a time budget is spent.
+ * </p>
+ *
+ */
+public class ChunkCompactor implements Runnable
+{
+	// the interval between two compaction passes, in milliseconds
+	public static final long CHECK_INTERVAL = 60000;
+
+	// the age of the rows to seal, rows received later are merged
+	private static final long GRACE_PERIOD = 300000;
+
+	// the pause between two sealing passes, letting insertions proceed
+	private static final long SEALING_PAUSE = 50;
+
+	// the max time spent in a single sealing pass
+	private static final long PASS_BUDGET_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(500);
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// the measure tables to seal
+	private final List<EventTable> tables;
+
+	// the compaction thread
+	private volatile Thread compactionThread;
+
+	// the running flag
+	private volatile boolean running;
+
+	/**
+	 * Creates the {@link ChunkCompactor} of the measure tables handled by the
+	 * given DAOs
+	 *
+	 * @param stateDao
+	 *            The state DAO.
+	 * @param notificationDao
+	 *            The notification DAO.
+	 * @param storage
+	 *            The storage layer.
+	 * @param context
+	 *            The bundle context.
+	 */
+	public ChunkCompactor(final StateDao stateDao,
+			final NotificationDao notificationDao, final H2Storage storage,
+			final BundleContext context)
+	{
+		// init logger
+		this.logger = new LogHelper(context);
+
+		// the tables to seal
+		this.tables = new ArrayList<>();
+		List<EventTable> all = new ArrayList<>(stateDao.getTables());
+		all.addAll(notificationDao.getTables());
+		for (EventTable table : all)
+		{
+			if (table.isSealable())
+				this.tables.add(table);
+		}
+	}
+
+	/**
+	 * Starts the compaction thread, if any table can be sealed
+	 */
+	public synchronized void start()
+	{
+		if ((this.compactionThread == null) && (!this.tables.isEmpty()))
+		{
+			this.running = true;
+			this.compactionThread = new Thread(this, "h2eventstore-chunks");
+			this.compactionThread.setDaemon(true);
+			this.compactionThread.start();
+		}
+	}
+
+	/**
+	 * Stops the compaction thread, waiting for the current transaction to
+	 * complete
+	 */
+	public synchronized void stop()
+	{
+		Thread thread = this.compactionThread;
+
+		if (thread != null)
+		{
+			this.running = false;
+			thread.interrupt();
+
+			try
+			{
+				thread.join(ChunkCompactor.CHECK_INTERVAL);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			this.compactionThread = null;
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (this.running)
+		{
+			long pause = this.compact();
+
+			try
+			{
+				Thread.sleep(pause);
+			}
+			catch (InterruptedException e)
+			{
+				// stopped
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Seals the rows older than the grace period, called on the compaction
+	 * thread only.
+	 *
+	 * @return the time, in milliseconds, before the next pass.
+	 */
+	private long compact()
+	{
+		// whole hours only
+		long cutoff = RollupResolution.HOUR.truncate(System.currentTimeMillis()
+				- ChunkCompactor.GRACE_PERIOD);
+		long deadline = System.nanoTime() + ChunkCompactor.PASS_BUDGET_NANOS;
+
+		try
+		{
+			for (EventTable table : this.tables)
+			{
+				if ((!this.running) || (!table.sealChunks(cutoff, deadline)))
+					return ChunkCompactor.SEALING_PAUSE;
+			}
+		}
+		catch (SQLException e)
+		{
+			// retry at the next pass
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to seal measures into chunks", e);
+		}
+
+		return ChunkCompactor.CHECK_INTERVAL;
+	}
+}
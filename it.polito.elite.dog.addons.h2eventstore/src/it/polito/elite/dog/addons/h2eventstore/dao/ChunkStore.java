@@ -0,0 +1,912 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.addons.h2eventstore.db.StatementCache;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.RollupResolution;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * The compressed chunks of an {@link EventTable} of measures: rows older
+ * than the sealing cutoff are packed, one chunk per series and hour, by
+ * {@link ChunkCodec} in a side table, and queries merge the sealed points
+ * with the raw rows still stored in the table and its partitions.
+ *
+ */
+class ChunkStore
+{
+	// the time span of the compressed chunks of measures
+	static final long CHUNK_MILLIS = RollupResolution.HOUR.getMillis();
+
+	// the number of chunks read at a time by keyset pagination
+	private static final int PAGE_CHUNKS = 4;
+
+	// the max time span of the rows sealed in a single transaction
+	private static final long SEAL_WINDOW = 24 * ChunkStore.CHUNK_MILLIS;
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the table whose rows are sealed
+	private final EventTable table;
+
+	// the partitions of the table, holding the raw rows
+	private final TablePartitions partitions;
+
+	// the time frame and size of each series
+	private final SeriesCatalog catalog;
+
+	// the table of compressed chunks
+	private final String chunkTableName;
+
+	// true if the chunk table exists and must be queried
+	private volatile boolean chunksInUse;
+
+	/**
+	 * Creates the {@link ChunkStore} of the given table, creating the table
+	 * of chunks if chunk storage is enabled, or checking whether chunks
+	 * stored while it was enabled must be queried
+	 *
+	 * @param table
+	 *            The table whose rows are sealed.
+	 * @param tableName
+	 *            The table name.
+	 * @param numeric
+	 *            true for measures, false for discrete values, which are
+	 *            never sealed.
+	 * @param partitions
+	 *            The partitions of the table.
+	 * @param catalog
+	 *            The series catalog.
+	 * @param storage
+	 *            The storage layer.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	ChunkStore(EventTable table, String tableName, boolean numeric,
+			TablePartitions partitions, SeriesCatalog catalog,
+			H2Storage storage, LogHelper logger)
+	{
+		this.table = table;
+		this.partitions = partitions;
+		this.catalog = catalog;
+		this.storage = storage;
+		this.logger = logger;
+		this.chunkTableName = tableName + "Chunks";
+
+		// check the compressed chunks, if any
+		if (numeric)
+			this.checkChunkTable();
+	}
+
+	/**
+	 * Creates the table of compressed chunks if chunk storage is enabled, or
+	 * checks whether chunks stored while it was enabled must be queried
+	 */
+	private void checkChunkTable()
+	{
+		List<SchemaMigration> migrations = new ArrayList<>();
+
+		// 1: one chunk per series and hour
+		migrations.add(new SchemaMigration(1, "compressed chunks") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate("CREATE TABLE IF NOT EXISTS "
+							+ table
+							+ "(series_id int(11), bucket TIMESTAMP, min_ts TIMESTAMP, max_ts TIMESTAMP, "
+							+ "n_points int(11), data VARBINARY, PRIMARY KEY(series_id, bucket), "
+							+ "FOREIGN KEY (series_id) REFERENCES Series(id) ON DELETE CASCADE);");
+					query.executeUpdate("CREATE INDEX IF NOT EXISTS " + table
+							+ "_bucket ON " + table + "(bucket);");
+				}
+			}
+		});
+
+		// 2: statistics of the chunks sealed before the series catalog
+		migrations.add(new SchemaMigration(2, "series statistics") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				ChunkStore.this.catalog.backfill(table, true);
+			}
+		});
+
+		try
+		{
+			if ((this.storage.isChunkStorage())
+					|| (this.table.hasTable(this.chunkTableName)))
+			{
+				this.storage.getSchemaMigrator().migrate(this.chunkTableName,
+						migrations);
+				this.chunksInUse = true;
+			}
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to check / create " + this.chunkTableName
+							+ " db table", e);
+		}
+	}
+
+	/**
+	 * Gets the name of the table of compressed chunks
+	 *
+	 * @return The table name.
+	 */
+	String getTableName()
+	{
+		return this.chunkTableName;
+	}
+
+	/**
+	 * Checks whether the chunk table exists and must be queried
+	 *
+	 * @return true if chunks may be stored.
+	 */
+	boolean isInUse()
+	{
+		return this.chunksInUse;
+	}
+
+	/**
+	 * Checks whether rows can be sealed into compressed chunks
+	 *
+	 * @return true if chunk storage is enabled.
+	 */
+	boolean isSealable()
+	{
+		return this.chunksInUse && this.storage.isChunkStorage();
+	}
+
+	/**
+	 * Counts the points sealed in chunks
+	 *
+	 * @return The number of points.
+	 * @throws SQLException
+	 */
+	long countPoints() throws SQLException
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT SUM(n_points) FROM "
+						+ this.chunkTableName))
+		{
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Gets the timestamp of the first point of the oldest chunk
+	 *
+	 * @return The timestamp in milliseconds, {@link Long#MAX_VALUE} if no
+	 *         chunk is stored.
+	 * @throws SQLException
+	 */
+	long getFirstTimestamp() throws SQLException
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT min_ts FROM "
+						+ this.chunkTableName + " ORDER BY bucket LIMIT 1"))
+		{
+			return result.next() ? result.getTimestamp(1).getTime()
+					: Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Finds the timestamp of the first point of the given series sealed in
+	 * chunks, on the writer connection
+	 *
+	 * @param seriesId
+	 *            The series id.
+	 * @return The timestamp, null if no point is sealed.
+	 * @throws SQLException
+	 */
+	Long findFirstTimestamp(int seriesId) throws SQLException
+	{
+		PreparedStatement stmt = this.storage.getStatementCache().prepare(
+				"SELECT min_ts FROM " + this.chunkTableName
+						+ " WHERE series_id=? ORDER BY bucket LIMIT 1");
+		stmt.setInt(1, seriesId);
+		try (ResultSet result = stmt.executeQuery())
+		{
+			return result.next() ? result.getTimestamp(1).getTime() : null;
+		}
+	}
+
+	/**
+	 * Gets the last sealed point of each series, from its last chunk
+	 *
+	 * @return The points.
+	 * @throws SQLException
+	 */
+	List<Point> selectLastPoints() throws SQLException
+	{
+		List<Point> points = new ArrayList<>();
+
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT c.series_id, c.data FROM "
+						+ this.chunkTableName
+						+ " c JOIN (SELECT series_id, MAX(bucket) AS last_bucket FROM "
+						+ this.chunkTableName
+						+ " GROUP BY series_id) m ON c.series_id=m.series_id AND c.bucket=m.last_bucket"))
+		{
+			while (result.next())
+			{
+				ChunkCodec.Points decoded = ChunkCodec.decode(result
+						.getBytes(2));
+				if (decoded.size > 0)
+					points.add(new Point(result.getInt(1),
+							decoded.timestamps[decoded.size - 1],
+							decoded.values[decoded.size - 1]));
+			}
+		}
+
+		return points;
+	}
+
+	/**
+	 * Packs the rows older than the given time into compressed chunks, one
+	 * per series and hour, merging rows received late into the already sealed
+	 * chunks. Each series is sealed a day at a time in its own transaction.
+	 *
+	 * @param cutoff
+	 *            The time before which rows are sealed, aligned to the chunk
+	 *            span.
+	 * @param deadline
+	 *            The {@link System#nanoTime()} after which sealing stops.
+	 * @return true if all the rows older than the cutoff have been sealed,
+	 *         false if the deadline has been reached.
+	 * @throws SQLException
+	 */
+	boolean sealChunks(long cutoff, long deadline) throws SQLException
+	{
+		for (String table : this.partitions.planTables(0, cutoff - 1))
+		{
+			// the series having rows to seal
+			List<Integer> seriesIds = new ArrayList<>();
+			try (PreparedStatement stmt = this.storage.getConnection()
+					.prepareStatement(
+							"SELECT DISTINCT series_id FROM " + table
+									+ " WHERE timestamp<?"))
+			{
+				stmt.setTimestamp(1, new Timestamp(cutoff));
+				try (ResultSet result = stmt.executeQuery())
+				{
+					while (result.next())
+						seriesIds.add(result.getInt(1));
+				}
+			}
+
+			for (Integer seriesId : seriesIds)
+			{
+				do
+				{
+					if (System.nanoTime() >= deadline)
+						return false;
+				}
+				while (this.sealStep(table, seriesId, cutoff) > 0);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Seals the oldest day of rows of the given series stored in the given
+	 * table, in a single transaction
+	 *
+	 * @return the number of sealed rows.
+	 */
+	private int sealStep(String table, int seriesId, long cutoff)
+			throws SQLException
+	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+		synchronized (committer)
+		{
+			Connection connection = this.storage.getConnection();
+
+			// commit the batched rows first, a failed step must not discard
+			// them
+			committer.flush();
+
+			long from;
+			long to;
+			int size = 0;
+			try
+			{
+				// the first row to seal
+				try (PreparedStatement stmt = connection
+						.prepareStatement("SELECT MIN(timestamp) FROM "
+								+ table + " WHERE series_id=? AND timestamp<?"))
+				{
+					stmt.setInt(1, seriesId);
+					stmt.setTimestamp(2, new Timestamp(cutoff));
+					try (ResultSet result = stmt.executeQuery())
+					{
+						Timestamp first = result.next() ? result
+								.getTimestamp(1) : null;
+						if (first == null)
+							return 0;
+						from = RollupResolution.HOUR.truncate(first.getTime());
+					}
+				}
+				to = Math.min(cutoff, from + ChunkStore.SEAL_WINDOW);
+
+				// the rows to seal, in time order
+				long[] timestamps = new long[256];
+				double[] values = new double[256];
+				try (PreparedStatement stmt = connection
+						.prepareStatement("SELECT timestamp, value FROM "
+								+ table
+								+ " WHERE series_id=? AND timestamp>=? AND timestamp<?"
+								+ " ORDER BY timestamp, id"))
+				{
+					stmt.setInt(1, seriesId);
+					stmt.setTimestamp(2, new Timestamp(from));
+					stmt.setTimestamp(3, new Timestamp(to));
+					try (ResultSet result = stmt.executeQuery())
+					{
+						while (result.next())
+						{
+							if (size == timestamps.length)
+							{
+								timestamps = Arrays.copyOf(timestamps,
+										size * 2);
+								values = Arrays.copyOf(values, size * 2);
+							}
+							timestamps[size] = result.getTimestamp(1)
+									.getTime();
+							values[size] = result.getDouble(2);
+							size++;
+						}
+					}
+				}
+
+				// one chunk per hour
+				int start = 0;
+				while (start < size)
+				{
+					long bucket = RollupResolution.HOUR
+							.truncate(timestamps[start]);
+					int end = start;
+					while ((end < size)
+							&& (timestamps[end] < bucket
+									+ ChunkStore.CHUNK_MILLIS))
+						end++;
+
+					this.writeChunk(seriesId, bucket,
+							Arrays.copyOfRange(timestamps, start, end),
+							Arrays.copyOfRange(values, start, end));
+					start = end;
+				}
+
+				// remove the sealed rows
+				try (PreparedStatement stmt = connection
+						.prepareStatement("DELETE FROM " + table
+								+ " WHERE series_id=? AND timestamp>=? AND timestamp<?"))
+				{
+					stmt.setInt(1, seriesId);
+					stmt.setTimestamp(2, new Timestamp(from));
+					stmt.setTimestamp(3, new Timestamp(to));
+					stmt.executeUpdate();
+				}
+				connection.commit();
+			}
+			catch (SQLException e)
+			{
+				// neither the chunks nor the removal of the sealed rows must be
+				// committed alone, e.g., by the next flush
+				committer.rollback();
+				throw e;
+			}
+
+			// queries may have read the rows partially sealed
+			this.storage.getQueryCache().rowsMoved(seriesId, from, to - 1);
+
+			return size;
+		}
+	}
+
+	/**
+	 * Writes the chunk of the given series and hour, merging the given
+	 * points with the ones already sealed
+	 */
+	private void writeChunk(int seriesId, long bucket, long[] timestamps,
+			double[] values) throws SQLException
+	{
+		Connection connection = this.storage.getConnection();
+
+		// the points sealed so far, if any
+		ChunkCodec.Points sealed = null;
+		try (PreparedStatement stmt = connection
+				.prepareStatement("SELECT data FROM " + this.chunkTableName
+						+ " WHERE series_id=? AND bucket=?"))
+		{
+			stmt.setInt(1, seriesId);
+			stmt.setTimestamp(2, new Timestamp(bucket));
+			try (ResultSet result = stmt.executeQuery())
+			{
+				if (result.next())
+					sealed = ChunkCodec.decode(result.getBytes(1));
+			}
+		}
+
+		if ((sealed != null) && (sealed.size > 0))
+		{
+			// merge in time order, sealed points first
+			int size = sealed.size + timestamps.length;
+			long[] mergedTimestamps = new long[size];
+			double[] mergedValues = new double[size];
+			for (int i = 0, j = 0, k = 0; k < size; k++)
+			{
+				if ((j >= timestamps.length)
+						|| ((i < sealed.size) && (sealed.timestamps[i] <= timestamps[j])))
+				{
+					mergedTimestamps[k] = sealed.timestamps[i];
+					mergedValues[k] = sealed.values[i++];
+				}
+				else
+				{
+					mergedTimestamps[k] = timestamps[j];
+					mergedValues[k] = values[j++];
+				}
+			}
+			timestamps = mergedTimestamps;
+			values = mergedValues;
+		}
+
+		try (PreparedStatement stmt = connection
+				.prepareStatement("MERGE INTO "
+						+ this.chunkTableName
+						+ "(series_id, bucket, min_ts, max_ts, n_points, data) "
+						+ "KEY(series_id, bucket) VALUES (?,?,?,?,?,?);"))
+		{
+			stmt.setInt(1, seriesId);
+			stmt.setTimestamp(2, new Timestamp(bucket));
+			stmt.setTimestamp(3, new Timestamp(timestamps[0]));
+			stmt.setTimestamp(4, new Timestamp(timestamps[timestamps.length - 1]));
+			stmt.setInt(5, timestamps.length);
+			stmt.setBytes(6,
+					ChunkCodec.encode(timestamps, values, timestamps.length));
+			stmt.executeUpdate();
+		}
+	}
+
+	/**
+	 * Deletes the oldest compressed chunks holding at most the given number of
+	 * points, or the oldest chunk only if larger, and commits. Must be called
+	 * holding the lock of the group committer.
+	 *
+	 * @param maxRows
+	 *            The max number of points to delete.
+	 * @return The number of deleted points.
+	 * @throws SQLException
+	 */
+	long evictChunks(int maxRows) throws SQLException
+	{
+		long deleted = 0;
+		long latest = Long.MIN_VALUE;
+		Map<Integer, Long> removed = new HashMap<>();
+		Connection connection = this.storage.getConnection();
+
+		try (PreparedStatement select = connection
+				.prepareStatement("SELECT series_id, bucket, n_points FROM "
+						+ this.chunkTableName + " ORDER BY bucket LIMIT 64");
+				PreparedStatement delete = connection
+						.prepareStatement("DELETE FROM " + this.chunkTableName
+								+ " WHERE series_id=? AND bucket=?");
+				ResultSet result = select.executeQuery())
+		{
+			while (result.next())
+			{
+				int points = result.getInt(3);
+				if ((deleted > 0) && (deleted + points > maxRows))
+					break;
+
+				delete.setInt(1, result.getInt(1));
+				delete.setTimestamp(2, result.getTimestamp(2));
+				delete.addBatch();
+				deleted += points;
+				latest = Math.max(latest, result.getTimestamp(2).getTime()
+						+ ChunkStore.CHUNK_MILLIS);
+
+				Long seriesRows = removed.get(result.getInt(1));
+				removed.put(result.getInt(1), (seriesRows != null) ? seriesRows
+						+ points : points);
+			}
+			delete.executeBatch();
+		}
+		this.table.rowsRemoved(removed);
+		connection.commit();
+
+		// results including the deleted chunks are stale
+		if (deleted > 0)
+			this.storage.getQueryCache().rowsRemoved(latest);
+
+		return deleted;
+	}
+
+	/**
+	 * Selects the given page of the events of the given series, in the given
+	 * time frame, merging the points sealed in chunks with the raw rows, and
+	 * sorting them either by series and time or by time only. Chunks are read
+	 * one at a time, or one bucket at a time if sorted by time, chunks
+	 * entirely preceding the page are skipped without being decoded, and no
+	 * more than the page end rows are read.
+	 *
+	 * @return the page, or null if no chunk overlaps the time frame.
+	 */
+	List<Point> selectMergedPage(StatementCache statements,
+			List<Series> series, Date startDate, Date endDate,
+			int startCount, int nResults, boolean bySeries)
+			throws SQLException
+	{
+		if (!this.chunksInUse)
+			return null;
+
+		long start = startDate.getTime();
+		long end = endDate.getTime();
+
+		// the overlapping chunks, in the merge order
+		StringBuilder query = new StringBuilder(
+				"SELECT series_id, bucket, min_ts, max_ts, n_points FROM ");
+		query.append(this.chunkTableName);
+		EventTable.appendSeries(query, series.size());
+		query.append(" AND bucket>=? AND bucket<=? AND max_ts>=? AND min_ts<=?");
+		query.append(bySeries ? " ORDER BY series_id, bucket"
+				: " ORDER BY bucket, series_id");
+
+		// cached statement, closed with its connection
+		PreparedStatement chunkStmt = statements.prepare(query.toString());
+		int i = EventTable.setSeries(chunkStmt, 1, series);
+		chunkStmt.setTimestamp(i++,
+				new Timestamp(RollupResolution.HOUR.truncate(start)));
+		chunkStmt.setTimestamp(i++, new Timestamp(end));
+		chunkStmt.setTimestamp(i++, new Timestamp(start));
+		chunkStmt.setTimestamp(i++, new Timestamp(end));
+
+		try (ResultSet chunks = chunkStmt.executeQuery())
+		{
+			if (!chunks.next())
+				return null;
+
+			// the raw rows, up to the page end
+			long pageEnd = (long) Math.max(0, startCount)
+					+ Math.max(0, nResults);
+			PreparedStatement rowStmt = this.table.prepareSelect(statements,
+					series, startDate, endDate, 0,
+					(int) Math.min(Integer.MAX_VALUE, pageEnd),
+					bySeries ? " ORDER BY series_id, timestamp, id"
+							: " ORDER BY timestamp, id");
+
+			try (ResultSet rows = rowStmt.executeQuery())
+			{
+				List<Point> page = new ArrayList<>();
+				long toSkip = Math.max(0, startCount);
+				boolean moreChunks = true;
+				List<ChunkInfo> unit = null;
+				ArrayDeque<Point> decoded = new ArrayDeque<>();
+				Point row = ChunkStore.nextPoint(rows);
+
+				while (page.size() < nResults)
+				{
+					Point next;
+					if (!decoded.isEmpty())
+					{
+						// sealed points come first at equal times
+						if ((row != null)
+								&& (ChunkStore.compare(row.seriesId,
+										row.timestamp,
+										decoded.peekFirst().seriesId,
+										decoded.peekFirst().timestamp,
+										bySeries) < 0))
+						{
+							next = row;
+							row = ChunkStore.nextPoint(rows);
+						}
+						else
+							next = decoded.pollFirst();
+					}
+					else if ((unit == null) && (moreChunks))
+					{
+						// the next chunk, or the chunks of the next bucket
+						unit = new ArrayList<>();
+						do
+						{
+							unit.add(new ChunkInfo(chunks.getInt(1), chunks
+									.getTimestamp(2), chunks.getTimestamp(3)
+									.getTime(), chunks.getTimestamp(4)
+									.getTime(), chunks.getInt(5)));
+							moreChunks = chunks.next();
+						}
+						while ((!bySeries)
+								&& (moreChunks)
+								&& (chunks.getTimestamp(2).equals(unit
+										.get(0).bucket)));
+						continue;
+					}
+					else if (unit != null)
+					{
+						// the bounds of the unit
+						int unitSeries = unit.get(0).seriesId;
+						long unitMin = Long.MAX_VALUE;
+						long unitMax = Long.MIN_VALUE;
+						long unitPoints = 0;
+						boolean inRange = true;
+						for (ChunkInfo chunk : unit)
+						{
+							unitMin = Math.min(unitMin, chunk.minTimestamp);
+							unitMax = Math.max(unitMax, chunk.maxTimestamp);
+							unitPoints += chunk.nPoints;
+							inRange = inRange && (chunk.minTimestamp >= start)
+									&& (chunk.maxTimestamp <= end);
+						}
+
+						if ((row != null)
+								&& (ChunkStore.compare(row.seriesId,
+										row.timestamp, unitSeries, unitMin,
+										bySeries) < 0))
+						{
+							// rows preceding the unit come first
+							next = row;
+							row = ChunkStore.nextPoint(rows);
+						}
+						else
+						{
+							if ((inRange)
+									&& (toSkip >= unitPoints)
+									&& ((row == null) || (ChunkStore.compare(
+											unitSeries, unitMax,
+											row.seriesId, row.timestamp,
+											bySeries) <= 0)))
+							{
+								// entirely before the page
+								toSkip -= unitPoints;
+							}
+							else
+								this.decodeChunks(statements, unit, start,
+										end, decoded);
+							unit = null;
+							continue;
+						}
+					}
+					else if (row != null)
+					{
+						next = row;
+						row = ChunkStore.nextPoint(rows);
+					}
+					else
+						break;
+
+					if (toSkip > 0)
+						toSkip--;
+					else
+						page.add(next);
+				}
+
+				return page;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the points, in the given time frame, of the given chunks of
+	 * either one series or one bucket, and adds them in time order to the
+	 * given queue
+	 */
+	private void decodeChunks(StatementCache statements,
+			List<ChunkInfo> chunks, long start, long end, ArrayDeque<Point> queue)
+			throws SQLException
+	{
+		// cached statement, closed with its connection
+		PreparedStatement stmt = statements.prepare("SELECT data FROM "
+				+ this.chunkTableName + " WHERE series_id=? AND bucket=?");
+
+		List<Point> points = new ArrayList<>();
+		for (ChunkInfo chunk : chunks)
+		{
+			stmt.setInt(1, chunk.seriesId);
+			stmt.setTimestamp(2, chunk.bucket);
+			try (ResultSet result = stmt.executeQuery())
+			{
+				if (!result.next())
+					continue;
+
+				ChunkCodec.Points decoded = ChunkCodec.decode(result
+						.getBytes(1));
+				for (int j = 0; j < decoded.size; j++)
+				{
+					if ((decoded.timestamps[j] >= start)
+							&& (decoded.timestamps[j] <= end))
+						points.add(new Point(chunk.seriesId,
+								decoded.timestamps[j], decoded.values[j]));
+				}
+			}
+		}
+
+		// the chunks of one bucket overlap in time, stable sort
+		if (chunks.size() > 1)
+		{
+			Collections.sort(points, new Comparator<Point>() {
+
+				@Override
+				public int compare(Point p1, Point p2)
+				{
+					return Long.compare(p1.timestamp, p2.timestamp);
+				}
+			});
+		}
+
+		queue.addAll(points);
+	}
+
+	/**
+	 * Adds the first points of the given series sealed in chunks following
+	 * the given position, at most limit, to the given entries. Sealed points
+	 * have no row id, they are identified by their rank among the points of
+	 * the chunk having the same timestamp, and precede raw rows.
+	 */
+	void selectPage(StatementCache statements, Series series,
+			long afterTimestamp, long afterId, long end, int limit,
+			List<EventTable.PageEntry> entries) throws SQLException
+	{
+		PreparedStatement stmt = statements.prepare("SELECT bucket, data FROM "
+				+ this.chunkTableName
+				+ " WHERE series_id=? AND bucket>=? AND bucket<=? AND max_ts>=?"
+				+ " ORDER BY series_id, bucket LIMIT ?;");
+
+		int found = 0;
+		long fromBucket = RollupResolution.HOUR.truncate(afterTimestamp);
+		boolean more = true;
+		while ((more) && (found < limit))
+		{
+			// a few chunks at a time, most pages need one or two
+			stmt.setInt(1, series.getId());
+			stmt.setTimestamp(2, new Timestamp(fromBucket));
+			stmt.setTimestamp(3, new Timestamp(end));
+			stmt.setTimestamp(4, new Timestamp(afterTimestamp));
+			stmt.setInt(5, ChunkStore.PAGE_CHUNKS);
+
+			int nChunks = 0;
+			try (ResultSet result = stmt.executeQuery())
+			{
+				while ((result.next()) && (found < limit))
+				{
+					nChunks++;
+					fromBucket = result.getTimestamp(1).getTime() + 1;
+
+					ChunkCodec.Points decoded = ChunkCodec.decode(result
+							.getBytes(2));
+					int rank = 0;
+					for (int j = 0; (j < decoded.size) && (found < limit); j++)
+					{
+						long timestamp = decoded.timestamps[j];
+						if ((j > 0) && (timestamp == decoded.timestamps[j - 1]))
+							rank++;
+						else
+							rank = 0;
+						long id = Integer.MIN_VALUE + rank;
+
+						// skip the points up to the position
+						if ((timestamp > end)
+								|| (timestamp < afterTimestamp)
+								|| ((timestamp == afterTimestamp)
+										&& (id <= afterId)))
+							continue;
+
+						entries.add(new EventTable.PageEntry(new PageCursor(
+								timestamp, series.getId(), id), series,
+								new Point(series.getId(), timestamp,
+										decoded.values[j]).toDataPoint(series)));
+						found++;
+					}
+				}
+			}
+			more = nChunks == ChunkStore.PAGE_CHUNKS;
+		}
+	}
+
+	/**
+	 * Reads the next raw row of the given result
+	 *
+	 * @return the row, or null if none.
+	 */
+	private static Point nextPoint(ResultSet rows) throws SQLException
+	{
+		return rows.next() ? new Point(rows.getInt(1), rows.getTimestamp(2)
+				.getTime(), rows.getDouble(3)) : null;
+	}
+
+	/**
+	 * Compares two points either by series and time or by time only
+	 */
+	private static int compare(int seriesId1, long timestamp1, int seriesId2,
+			long timestamp2, boolean bySeries)
+	{
+		if ((bySeries) && (seriesId1 != seriesId2))
+			return Integer.compare(seriesId1, seriesId2);
+
+		return Long.compare(timestamp1, timestamp2);
+	}
+
+	/**
+	 * The bounds of a sealed chunk, read before its points
+	 */
+	private static class ChunkInfo
+	{
+		private final int seriesId;
+		private final Timestamp bucket;
+		private final long minTimestamp;
+		private final long maxTimestamp;
+		private final int nPoints;
+
+		private ChunkInfo(int seriesId, Timestamp bucket, long minTimestamp,
+				long maxTimestamp, int nPoints)
+		{
+			this.seriesId = seriesId;
+			this.bucket = bucket;
+			this.minTimestamp = minTimestamp;
+			this.maxTimestamp = maxTimestamp;
+			this.nPoints = nPoints;
+		}
+	}
+
+	/**
+	 * A numeric point, either sealed in a chunk or read from a raw row
+	 */
+	static class Point
+	{
+		final int seriesId;
+		final long timestamp;
+		final double value;
+
+		private Point(int seriesId, long timestamp, double value)
+		{
+			this.seriesId = seriesId;
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+
+		/**
+		 * Converts the point into an {@link EventDataPoint} of the given
+		 * series
+		 */
+		EventDataPoint toDataPoint(Series series)
+		{
+			return new EventDataPoint(new Date(this.timestamp), ""
+					+ this.value, series.getUnit());
+		}
+	}
+}
@@ -1,11 +1,16 @@
 package it.polito.elite.dog.addons.h2eventstore.dao;
 
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
 import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
 import it.polito.elite.dog.core.library.util.LogHelper;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
@@ -19,6 +24,9 @@ public class DeviceDao
 	// The storage layer
 	private H2Storage storage;
 
+	// the URIs of the devices stored in the db, checked before inserting rows
+	private final Set<String> knownDevices;
+
 	// ---- TABLE NAMES
 	private final String deviceTableName = "Device";
 
@@ -29,14 +37,14 @@ public class DeviceDao
 
 	// --------- commonly used statements ------------
 	private PreparedStatement insertDeviceStmt;
-	private PreparedStatement selectDeviceStmt;
 
 	// ---- INSERTION QUERIES
 	private final String insertDeviceQuery = "INSERT INTO "
 			+ this.deviceTableName + "(uri, class, name) VALUES (?,?,?);";
 
 	// ---- SELECT QUERIES
-	private final String selectDeviceQuery = "SELECT * FROM Device WHERE Device.uri = ?;";
+	private final String selectDeviceUrisQuery = "SELECT uri FROM "
+			+ this.deviceTableName + ";";
 
 	public DeviceDao(final H2Storage storage, final BundleContext context)
 	{
@@ -46,9 +54,16 @@ public class DeviceDao
 		// store the connection
 		this.storage = storage;
 
+		// the in-memory device registry
+		this.knownDevices = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 		// check and create tables if needed
 		this.checkAndCreateTables();
 
+		// load the already stored devices
+		this.loadDevices();
+
 		// prepare the commonly executed statements
 		this.prepareCommonStatements();
 	}
@@ -84,6 +99,26 @@ public class DeviceDao
 		}
 	}
 
+	/**
+	 * Loads the URIs of all the stored devices in the in-memory registry
+	 */
+	private void loadDevices()
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query
+						.executeQuery(this.selectDeviceUrisQuery))
+		{
+			while (result.next())
+				this.knownDevices.add(result.getString(1));
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the stored devices", e);
+		}
+	}
+
 	/**
 	 * Prepares commonly used statements to improve db operation performance.
 	 */
@@ -95,8 +130,6 @@ public class DeviceDao
 		{
 			this.insertDeviceStmt = this.storage.getConnection()
 					.prepareStatement(this.insertDeviceQuery);
-			this.selectDeviceStmt = this.storage.getConnection()
-					.prepareStatement(selectDeviceQuery);
 		}
 		catch (SQLException e)
 		{
@@ -114,7 +147,6 @@ public class DeviceDao
 		try
 		{
 			this.insertDeviceStmt.close();
-			this.selectDeviceStmt.close();
 			isClosed = true;
 		}
 		catch (SQLException e)
@@ -126,42 +158,43 @@ public class DeviceDao
 		return isClosed;
 	}
 
+	/**
+	 * Checks whether the given device is stored in the database, by looking
+	 * at the in-memory registry only.
+	 * 
+	 * @param deviceUri
+	 *            The device URI.
+	 * @return true if the device is stored, false otherwise.
+	 */
 	public boolean isDevicePresent(String deviceUri)
 	{
-		boolean isPresent = false;
-
-		// check if the device is already available
-		try
-		{
-			this.selectDeviceStmt.setString(1, deviceUri);
-
-			// exec the query
-			ResultSet result = this.selectDeviceStmt.executeQuery();
-
-			if (result.next())
-				isPresent = true;
-		}
-		catch (SQLException e)
-		{
-			// log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to check device presence in the db");
-		}
-
-		return isPresent;
+		return (deviceUri != null) && this.knownDevices.contains(deviceUri);
 	}
 
 	public void insertDevice(String deviceURI, String ontClass, String name)
 	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
 		try
 		{
-		// create the device
-		this.insertDeviceStmt.setString(1, deviceURI);
-		this.insertDeviceStmt.setString(2, ontClass!=null?ontClass:"");
-		this.insertDeviceStmt.setString(3, name!=null?name:"");
+			// the connection is shared with the group committer
+			synchronized (committer)
+			{
+				// the pending rows are committed on their own first
+				committer.flush();
 
-		this.insertDeviceStmt.executeUpdate();
-		this.storage.getConnection().commit();
+				// create the device
+				this.insertDeviceStmt.setString(1, deviceURI);
+				this.insertDeviceStmt.setString(2, ontClass != null ? ontClass
+						: "");
+				this.insertDeviceStmt.setString(3, name != null ? name : "");
+
+				this.insertDeviceStmt.executeUpdate();
+				this.storage.getConnection().commit();
+			}
+
+			// register the device
+			this.knownDevices.add(deviceURI);
 		}
 		catch (SQLException e)
 		{
@@ -169,6 +202,6 @@ public class DeviceDao
 			this.logger.log(LogService.LOG_ERROR,
 					"Unable to create device in the db");
 		}
-		
+
 	}
 }
@@ -0,0 +1,1842 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.QueryCache;
+import it.polito.elite.dog.addons.h2eventstore.db.ReadConnection;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.addons.h2eventstore.db.StatementCache;
+import it.polito.elite.dog.addons.storage.EventDataPage;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+import it.polito.elite.dog.addons.storage.EventDataVisitor;
+import it.polito.elite.dog.addons.storage.NumericEventDataStream;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * A data table storing the events of one {@link SeriesCategory}. Rows only
+ * carry the series id, the timestamp and the value, either numeric or the
+ * code of a discrete value, while devices, names, parameters and units are
+ * resolved through the {@link SeriesDao} dictionary and discrete values
+ * through the {@link ValueDao} dictionary. The time partitions, the
+ * compressed chunks and the latest events of the table are handled by
+ * {@link TablePartitions}, {@link ChunkStore} and {@link LatestEvents}.
+ *
+ */
+class EventTable
+{
+	// the number of events read at a time by visits
+	private static final int VISIT_BATCH = 1000;
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the series dictionary
+	private SeriesDao seriesDao;
+
+	// the time frame and size of each series
+	private SeriesCatalog catalog;
+
+	// the value dictionary, null for measures
+	private ValueDao valueDao;
+
+	// the rollups fed by the table, null if none
+	private RollupDao rollupDao;
+
+	// the category of the stored series
+	private final SeriesCategory category;
+
+	// the table name
+	private final String tableName;
+
+	// true if values are numbers, false if they are strings
+	private final boolean numeric;
+
+	// the time partitions of the table, and its base table
+	private final TablePartitions partitions;
+
+	// the compressed chunks, measures only
+	private final ChunkStore chunks;
+
+	// the latest event and the run in progress of each series
+	private final LatestEvents latest;
+
+	/**
+	 * Creates the {@link EventTable} storing events of the given category,
+	 * the table is created, or converted from the legacy layout, if needed.
+	 * 
+	 * @param tableName
+	 *            The table name.
+	 * @param category
+	 *            The category of the stored series.
+	 * @param numeric
+	 *            true for measures, false for discrete values.
+	 * @param seriesDao
+	 *            The series dictionary.
+	 * @param valueDao
+	 *            The value dictionary, null for measures.
+	 * @param rollupDao
+	 *            The rollups to maintain, null for none (discrete values have
+	 *            no rollups).
+	 * @param storage
+	 *            The storage layer.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	EventTable(String tableName, SeriesCategory category, boolean numeric,
+			SeriesDao seriesDao, ValueDao valueDao, RollupDao rollupDao,
+			H2Storage storage, LogHelper logger)
+	{
+		this.tableName = tableName;
+		this.category = category;
+		this.numeric = numeric;
+		this.seriesDao = seriesDao;
+		this.catalog = seriesDao.getCatalog();
+		this.valueDao = numeric ? null : valueDao;
+		this.rollupDao = numeric ? rollupDao : null;
+		this.storage = storage;
+		this.logger = logger;
+
+		// check and create the table if needed
+		this.checkAndCreateTable();
+
+		// find the existing partitions
+		this.partitions = new TablePartitions(this, tableName, storage, logger);
+
+		// check the compressed chunks, if any
+		this.chunks = new ChunkStore(this, tableName, numeric,
+				this.partitions, this.catalog, storage, logger);
+
+		// find the latest event of each series
+		this.latest = new LatestEvents(tableName, category, numeric,
+				seriesDao, this.valueDao, this.partitions, this.chunks,
+				storage, logger);
+	}
+
+	/**
+	 * Gets the table creation query for the given table name
+	 */
+	private String getCreateQuery(String name)
+	{
+		return "CREATE TABLE " + name
+				+ "(id int(11) NOT NULL AUTO_INCREMENT, series_id int(11), timestamp TIMESTAMP, "
+				+ "value " + (this.numeric ? "DOUBLE" : "VARCHAR(100)")
+				+ ", PRIMARY KEY(id), "
+				+ "FOREIGN KEY (series_id) REFERENCES Series(id) ON DELETE CASCADE);";
+	}
+
+	/**
+	 * Gets the ordered migrations of the table, from its creation on
+	 */
+	private List<SchemaMigration> getMigrations()
+	{
+		List<SchemaMigration> migrations = new ArrayList<>();
+
+		// 1: series-based layout, creating or converting the table
+		migrations.add(new SchemaMigration(1, "series-based layout") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				if (!EventTable.this.hasTable(table))
+				{
+					// missing event table: create it
+					try (Statement query = connection.createStatement())
+					{
+						query.executeUpdate(EventTable.this
+								.getCreateQuery(table));
+					}
+				}
+				else if (EventTable.this.hasColumn(table, "DEVICEURI"))
+				{
+					// rows still carry devices and names, convert them
+					EventTable.this.convertLegacyTable(table);
+				}
+			}
+		});
+
+		// 2: time-series index, serving all the series-based queries
+		migrations.add(new SchemaMigration(2, "series and timestamp index") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate("CREATE INDEX IF NOT EXISTS " + table
+							+ "_series_ts ON " + table
+							+ "(series_id, timestamp);");
+				}
+			}
+		});
+
+		// 3: rollups of the rows stored before their introduction
+		if (this.rollupDao != null)
+		{
+			migrations.add(new SchemaMigration(3, "rollups of stored rows") {
+
+				@Override
+				public void apply(Connection connection, String table)
+						throws SQLException
+				{
+					EventTable.this.rollupDao.backfill(table);
+				}
+			});
+		}
+
+		// 3: codes in place of discrete values
+		if (this.valueDao != null)
+		{
+			migrations.add(new SchemaMigration(3, "value codes") {
+
+				@Override
+				public void apply(Connection connection, String table)
+						throws SQLException
+				{
+					EventTable.this.convertValueCodes(table);
+				}
+			});
+		}
+
+		// 4: statistics of the rows stored before the series catalog
+		migrations.add(new SchemaMigration(4, "series statistics") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				EventTable.this.catalog.backfill(table, false);
+			}
+		});
+
+		// 5: ids in the time-series index, so that keyset pages are read in
+		// index order instead of being sorted
+		migrations.add(new SchemaMigration(5, "series, timestamp and id index") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate("CREATE INDEX IF NOT EXISTS " + table
+							+ "_series_ts_id ON " + table
+							+ "(series_id, timestamp, id);");
+					query.executeUpdate("DROP INDEX IF EXISTS " + table
+							+ "_series_ts;");
+				}
+			}
+		});
+
+		return migrations;
+	}
+
+	private void checkAndCreateTable()
+	{
+		try
+		{
+			// bring the table to the latest schema version
+			this.migrateTable(this.tableName);
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to check / create " + this.tableName
+							+ " db table", e);
+		}
+	}
+
+	/**
+	 * Brings the given table, either the base table or a partition, to the
+	 * latest schema version, creating it if needed
+	 */
+	void migrateTable(String table) throws SQLException
+	{
+		for (SchemaMigration migration : this.storage.getSchemaMigrator()
+				.migrate(table, this.getMigrations()))
+			this.logger.log(LogService.LOG_INFO, table
+					+ " migrated to version " + migration.getVersion() + ": "
+					+ migration.getDescription());
+	}
+
+	/**
+	 * Drops all the partitions holding rows older than the given date only,
+	 * the base table is never dropped.
+	 * 
+	 * @param limit
+	 *            The date before which rows can be discarded.
+	 * @return The number of dropped partitions.
+	 * @throws SQLException
+	 */
+	public int dropPartitionsBefore(Date limit) throws SQLException
+	{
+		int dropped = 0;
+
+		GroupCommitter committer = this.storage.getGroupCommitter();
+		synchronized (committer)
+		{
+			// pending rows may target the dropped partitions
+			committer.flush();
+
+			for (TablePartitions.Partition partition : this.partitions
+					.getPartitions())
+			{
+				if (partition.end <= limit.getTime())
+				{
+					this.storage.getQuota().rowsRemoved(
+							this.countRows(partition.name));
+					this.dropPartition(partition);
+					dropped++;
+				}
+			}
+		}
+
+		return dropped;
+	}
+
+	/**
+	 * Drops the given partition, must be called holding the lock of the group
+	 * committer, with no pending rows.
+	 */
+	private void dropPartition(TablePartitions.Partition partition)
+			throws SQLException
+	{
+		// the last runs may have been dropped
+		this.latest.rowsRemoved();
+
+		try (Statement query = this.storage.getConnection().createStatement())
+		{
+			// the rows of each series about to be dropped
+			Map<Integer, Long> removed = this.countRemoved(query,
+					partition.name, "");
+
+			this.partitions.drop(partition);
+			this.rowsRemoved(removed);
+		}
+		this.storage.getConnection().commit();
+
+		// results including the dropped rows are stale
+		this.storage.getQueryCache().rowsRemoved(partition.end);
+	}
+
+	/**
+	 * Counts the rows stored in the table, base table and partitions
+	 * 
+	 * @return The number of rows.
+	 * @throws SQLException
+	 */
+	public long countRows() throws SQLException
+	{
+		long rows = this.countRows(this.tableName);
+		for (TablePartitions.Partition partition : this.partitions
+				.getPartitions())
+			rows += this.countRows(partition.name);
+
+		// sealed rows are counted as points
+		if (this.chunks.isInUse())
+			rows += this.chunks.countPoints();
+
+		return rows;
+	}
+
+	/**
+	 * Counts the rows of the given table, either the base table or a
+	 * partition
+	 */
+	private long countRows(String table) throws SQLException
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT COUNT(*) FROM "
+						+ table))
+		{
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Gets the timestamp of the oldest row of the table, approximated by the
+	 * first inserted row of the table, or partition, holding the oldest data.
+	 * 
+	 * @return The timestamp in milliseconds, {@link Long#MAX_VALUE} if the
+	 *         table is empty.
+	 * @throws SQLException
+	 */
+	public long getOldestTimestamp() throws SQLException
+	{
+		String table = this.getOldestTable();
+
+		return (table != null) ? this.getFirstTimestamp(table)
+				: Long.MAX_VALUE;
+	}
+
+	/**
+	 * Gets the table, base table, partition or chunk table, holding the
+	 * oldest rows
+	 * 
+	 * @return The table name, null if the table is empty.
+	 */
+	private String getOldestTable() throws SQLException
+	{
+		String oldestTable = null;
+		long oldestTimestamp = Long.MAX_VALUE;
+
+		List<String> candidates = new ArrayList<>();
+		if (this.partitions.isBaseTableInUse())
+			candidates.add(this.tableName);
+		if (this.chunks.isInUse())
+			candidates.add(this.chunks.getTableName());
+
+		// partitions do not overlap, the first non-empty one is the oldest
+		for (TablePartitions.Partition partition : this.partitions
+				.getPartitions())
+		{
+			if (this.getFirstTimestamp(partition.name) != Long.MAX_VALUE)
+			{
+				candidates.add(partition.name);
+				break;
+			}
+		}
+
+		for (String table : candidates)
+		{
+			long timestamp = this.getFirstTimestamp(table);
+			if (timestamp < oldestTimestamp)
+			{
+				oldestTable = table;
+				oldestTimestamp = timestamp;
+			}
+		}
+
+		return oldestTable;
+	}
+
+	/**
+	 * Gets the timestamp of the first inserted row of the given table
+	 */
+	private long getFirstTimestamp(String table) throws SQLException
+	{
+		// the first chunk or the first inserted row
+		if (table.equals(this.chunks.getTableName()))
+			return this.chunks.getFirstTimestamp();
+
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT timestamp FROM "
+						+ table + " ORDER BY id LIMIT 1"))
+		{
+			return result.next() ? result.getTimestamp(1).getTime()
+					: Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Deletes at most the given number of the oldest rows of the table, in a
+	 * single short transaction: a partition is dropped at once if small
+	 * enough, otherwise its first inserted rows are deleted. Compressed
+	 * chunks are deleted as a whole, possibly exceeding the given number.
+	 * 
+	 * @param maxRows
+	 *            The max number of rows to delete.
+	 * @return The number of deleted rows.
+	 * @throws SQLException
+	 */
+	public long evictOldest(int maxRows) throws SQLException
+	{
+		long deleted = 0;
+
+		GroupCommitter committer = this.storage.getGroupCommitter();
+		synchronized (committer)
+		{
+			String table = this.getOldestTable();
+			if (table == null)
+				return 0;
+
+			TablePartitions.Partition partition = this.partitions
+					.getPartition(table);
+			long rows = (partition != null) ? this.countRows(table) : -1;
+			if (table.equals(this.chunks.getTableName()))
+			{
+				// whole chunks, at least one
+				deleted = this.chunks.evictChunks(maxRows);
+			}
+			else if ((partition != null) && (rows <= maxRows))
+			{
+				// pending rows may target the dropped partition
+				committer.flush();
+				this.dropPartition(partition);
+				deleted = rows;
+			}
+			else
+			{
+				long latest = Long.MAX_VALUE;
+				try (PreparedStatement bound = this.storage.getConnection()
+						.prepareStatement(
+								"SELECT id FROM " + table
+										+ " ORDER BY id LIMIT 1 OFFSET ?"))
+				{
+					// the id of the first row to keep, if any
+					bound.setInt(1, maxRows);
+					try (ResultSet result = bound.executeQuery();
+							Statement query = this.storage.getConnection()
+									.createStatement())
+					{
+						String condition = result.next() ? " WHERE id<"
+								+ result.getInt(1) : "";
+
+						// the rows of each series about to be deleted, and the
+						// latest of them, rows are mostly in time order
+						Map<Integer, Long> removed = this.countRemoved(query,
+								table, condition);
+						try (ResultSet last = query
+								.executeQuery("SELECT MAX(timestamp) FROM "
+										+ table + condition))
+						{
+							if ((last.next()) && (last.getTimestamp(1) != null))
+								latest = last.getTimestamp(1).getTime();
+						}
+
+						deleted = query.executeUpdate("DELETE FROM " + table
+								+ condition);
+						this.rowsRemoved(removed);
+					}
+				}
+				this.storage.getConnection().commit();
+
+				// results including the deleted rows are stale
+				this.storage.getQueryCache().rowsRemoved(latest);
+
+				// an emptied base table is no longer queried
+				if (table.equals(this.tableName))
+					this.partitions.checkBaseTable();
+
+				// the last runs may have been evicted
+				this.latest.rowsRemoved();
+			}
+		}
+
+		this.storage.getQuota().rowsRemoved(deleted);
+
+		return deleted;
+	}
+
+	/**
+	 * Counts the rows of each series selected by the given condition in the
+	 * given table, before removing them
+	 */
+	private Map<Integer, Long> countRemoved(Statement query, String table,
+			String condition) throws SQLException
+	{
+		Map<Integer, Long> removed = new HashMap<>();
+
+		try (ResultSet result = query
+				.executeQuery("SELECT series_id, COUNT(*) FROM " + table
+						+ condition + " GROUP BY series_id"))
+		{
+			while (result.next())
+				removed.put(result.getInt(1), result.getLong(2));
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Updates and writes the statistics of the series having the given
+	 * number of rows removed, must be called holding the lock of the group
+	 * committer, once rows have been removed and before committing.
+	 */
+	void rowsRemoved(Map<Integer, Long> removed) throws SQLException
+	{
+		for (Map.Entry<Integer, Long> seriesRows : removed.entrySet())
+		{
+			Long first = this.findFirstTimestamp(seriesRows.getKey());
+			this.catalog.rowsRemoved(seriesRows.getKey(), seriesRows
+					.getValue(), first);
+
+			// the rollups of the removed rows go with them
+			if (this.rollupDao != null)
+				this.rollupDao.rowsRemoved(seriesRows.getKey(), first);
+		}
+
+		this.catalog.write(removed.keySet());
+	}
+
+	/**
+	 * Finds the timestamp of the first stored row of the given series, raw or
+	 * sealed, on the writer connection
+	 * 
+	 * @return the timestamp, null if no row is stored.
+	 */
+	private Long findFirstTimestamp(int seriesId) throws SQLException
+	{
+		StatementCache statements = this.storage.getStatementCache();
+		Long first = null;
+
+		List<String> tables = this.partitions.planTables(Long.MIN_VALUE,
+				Long.MAX_VALUE);
+		for (String table : tables)
+		{
+			// partitions do not overlap, the first one holding rows is enough
+			if ((first != null) && (!table.equals(this.tableName)))
+				break;
+
+			PreparedStatement stmt = statements.prepare("SELECT timestamp FROM "
+					+ table + " WHERE series_id=? ORDER BY timestamp LIMIT 1");
+			stmt.setInt(1, seriesId);
+			try (ResultSet result = stmt.executeQuery())
+			{
+				if (result.next())
+					first = result.getTimestamp(1).getTime();
+			}
+		}
+
+		if (this.chunks.isInUse())
+		{
+			Long sealed = this.chunks.findFirstTimestamp(seriesId);
+			if (sealed != null)
+				first = (first != null) ? Math.min(first, sealed) : sealed;
+		}
+
+		return first;
+	}
+
+	/**
+	 * Checks whether rows of this table can be sealed into compressed chunks
+	 * 
+	 * @return true if chunk storage is enabled for this table.
+	 */
+	public boolean isSealable()
+	{
+		return this.chunks.isSealable();
+	}
+
+	/**
+	 * Packs the rows older than the given time into compressed chunks, see
+	 * {@link ChunkStore#sealChunks(long, long)}.
+	 * 
+	 * @param cutoff
+	 *            The time before which rows are sealed, aligned to the chunk
+	 *            span.
+	 * @param deadline
+	 *            The {@link System#nanoTime()} after which sealing stops.
+	 * @return true if all the rows older than the cutoff have been sealed,
+	 *         false if the deadline has been reached.
+	 * @throws SQLException
+	 */
+	public boolean sealChunks(long cutoff, long deadline) throws SQLException
+	{
+		return this.chunks.sealChunks(cutoff, deadline);
+	}
+
+	/**
+	 * Checks whether the given table exists
+	 */
+	boolean hasTable(String table) throws SQLException
+	{
+		try (ResultSet tableSet = this.storage
+				.getConnection()
+				.getMetaData()
+				.getTables(this.storage.getConnection().getCatalog(), null,
+						table.toUpperCase(), null))
+		{
+			return tableSet.next();
+		}
+	}
+
+	/**
+	 * Checks whether the given table has the given column
+	 */
+	private boolean hasColumn(String table, String column) throws SQLException
+	{
+		try (ResultSet columns = this.storage
+				.getConnection()
+				.getMetaData()
+				.getColumns(this.storage.getConnection().getCatalog(), null,
+						table.toUpperCase(), column))
+		{
+			return columns.next();
+		}
+	}
+
+	/**
+	 * Converts a table in the legacy layout, where each row repeats the device
+	 * URI, the name, the parameters and the unit, into the series-based
+	 * layout. Series are registered in the dictionary and rows are copied in
+	 * a new table which eventually replaces the legacy one.
+	 */
+	private void convertLegacyTable(String table) throws SQLException
+	{
+		this.logger.log(LogService.LOG_INFO, "Converting " + table
+				+ " to series ids...");
+
+		// the legacy columns, discrete tables have neither params nor unit
+		List<String> columns = new ArrayList<>();
+		columns.add("name");
+		if (this.hasColumn(table, "PARAMS"))
+			columns.add("params");
+		if (this.hasColumn(table, "UNIT"))
+			columns.add("unit");
+
+		try (Statement query = this.storage.getConnection().createStatement())
+		{
+			// series store empty strings in place of nulls
+			for (String column : columns)
+				query.executeUpdate("UPDATE " + table + " SET " + column
+						+ "='' WHERE " + column + " IS NULL");
+
+			// register the series
+			try (ResultSet result = query.executeQuery("SELECT DISTINCT "
+					+ "deviceuri, name, "
+					+ (columns.contains("params") ? "params" : "''") + ", "
+					+ (columns.contains("unit") ? "unit" : "''") + " FROM "
+					+ table + " WHERE deviceuri IS NOT NULL"))
+			{
+				while (result.next())
+					this.seriesDao.getOrCreateSeries(this.category,
+							result.getString(1), result.getString(2),
+							result.getString(3), result.getString(4));
+			}
+
+			// copy the rows in the new layout
+			String convertedTableName = table + "_converted";
+			query.executeUpdate("DROP TABLE IF EXISTS " + convertedTableName);
+			query.executeUpdate(this.getCreateQuery(convertedTableName));
+			query.executeUpdate("INSERT INTO " + convertedTableName
+					+ "(series_id, timestamp, value) "
+					+ "SELECT s.id, t.timestamp, t.value FROM " + table
+					+ " t JOIN Series s ON s.category='"
+					+ this.category.name()
+					+ "' AND s.deviceuri=t.deviceuri AND s.name=t.name"
+					+ " AND s.params="
+					+ (columns.contains("params") ? "t.params" : "''")
+					+ " AND s.unit="
+					+ (columns.contains("unit") ? "t.unit" : "''")
+					+ " ORDER BY t.id");
+
+			// replace the legacy table
+			query.executeUpdate("DROP TABLE " + table);
+			query.executeUpdate("ALTER TABLE " + convertedTableName
+					+ " RENAME TO " + table);
+		}
+
+		this.logger.log(LogService.LOG_INFO, table
+				+ " conversion has been successful!");
+	}
+
+	/**
+	 * Replaces the discrete values stored in the given table with their codes
+	 * in the value dictionary
+	 */
+	private void convertValueCodes(String table) throws SQLException
+	{
+		try (Statement query = this.storage.getConnection().createStatement())
+		{
+			// register the values
+			try (ResultSet result = query.executeQuery("SELECT DISTINCT value"
+					+ " FROM " + table + " WHERE value IS NOT NULL"))
+			{
+				while (result.next())
+					this.valueDao.getOrCreateCode(result.getString(1));
+			}
+
+			// replace the value column
+			query.executeUpdate("ALTER TABLE " + table
+					+ " ADD COLUMN IF NOT EXISTS value_code int(11)");
+			query.executeUpdate("UPDATE " + table
+					+ " t SET value_code=(SELECT d.id FROM ValueDictionary d"
+					+ " WHERE d.value=t.value)");
+			query.executeUpdate("ALTER TABLE " + table + " DROP COLUMN value");
+			query.executeUpdate("ALTER TABLE " + table
+					+ " ALTER COLUMN value_code RENAME TO value");
+		}
+	}
+
+	public boolean close()
+	{
+		this.latest.close();
+
+		boolean isClosed = false;
+		try
+		{
+			this.partitions.close();
+			isClosed = true;
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to close commonly used prepared statements");
+		}
+
+		return isClosed;
+	}
+
+	/**
+	 * Adds a numeric row to the next group commit
+	 * 
+	 * @param series
+	 *            The series of the row.
+	 * @param timestamp
+	 *            The event timestamp.
+	 * @param value
+	 *            The event value.
+	 * @return true if the row has been added, false if it has been refused
+	 *         since the storage is full.
+	 * @throws SQLException
+	 */
+	public boolean insert(Series series, Date timestamp, double value)
+			throws SQLException
+	{
+		// refuse rows exceeding the storage limits, if required
+		if (!this.storage.getQuota().tryAcquire())
+			return false;
+
+		GroupCommitter committer = this.storage.getGroupCommitter();
+		synchronized (committer)
+		{
+			// the statement of the target partition
+			PreparedStatement stmt = this.partitions
+					.getInsertStatement(timestamp.getTime());
+
+			// add the row to the next group commit
+			committer.add(stmt, new PendingRow(series.getId(), timestamp
+					.getTime(), value, null));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds a discrete row to the next group commit, unless it repeats the
+	 * value of the current run in run-length mode
+	 * 
+	 * @param series
+	 *            The series of the row.
+	 * @param timestamp
+	 *            The event timestamp.
+	 * @param value
+	 *            The event value.
+	 * @return true if the row has been added, or merged in the current run,
+	 *         false if it has been refused since the storage is full.
+	 * @throws SQLException
+	 */
+	public boolean insert(Series series, Date timestamp, String value)
+			throws SQLException
+	{
+		// the value code
+		Integer code = this.valueDao.getOrCreateCode(value);
+
+		GroupCommitter committer = this.storage.getGroupCommitter();
+		synchronized (committer)
+		{
+			// repetitions of the current run are not stored, but they are
+			// still the latest event of the series
+			LatestEvents.Run run = this.latest.findCurrentRun(series);
+			if (this.latest.extendRun(series, run, timestamp.getTime(), code))
+				return true;
+
+			// refuse rows exceeding the storage limits, if required
+			if (!this.storage.getQuota().tryAcquire())
+				return false;
+
+			// the statement of the target partition
+			PreparedStatement stmt = this.partitions
+					.getInsertStatement(timestamp.getTime());
+
+			// the row starts a new run, unless received late
+			this.latest.startRun(series, run, timestamp.getTime(), code);
+
+			// add the row to the next group commit
+			committer.add(stmt, new PendingRow(series.getId(), timestamp
+					.getTime(), 0, code));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the latest event of the series of the given device, or of all the
+	 * devices, to the given set, in one stream per device, name and
+	 * parameters. Events are served from memory, with no query.
+	 * 
+	 * @param deviceUri
+	 *            The device URI, null for all the devices.
+	 * @param streamSet
+	 *            The set to fill.
+	 * @return The filled set.
+	 */
+	public EventDataStreamSet selectLatest(String deviceUri,
+			EventDataStreamSet streamSet)
+	{
+		return this.latest.selectLatest(deviceUri, streamSet);
+	}
+
+	/**
+	 * Selects the events of the given series in the given time frame, using
+	 * pagination, and returns them grouped in one stream per series name and
+	 * parameters (series differing in unit only share the same stream).
+	 * 
+	 * @param deviceUri
+	 *            The device URI.
+	 * @param series
+	 *            The series to select, of the same device.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param startCount
+	 *            The starting count.
+	 * @param nResults
+	 *            The number of results to provide back.
+	 * @return The streams.
+	 * @throws SQLException
+	 */
+	public EventDataStreamSet selectStreams(String deviceUri,
+			List<Series> series, Date startDate, Date endDate, int startCount,
+			int nResults) throws SQLException
+	{
+		// series with no event in the time frame are not queried
+		series = this.filterByBounds(series, startDate, endDate);
+		if (series.isEmpty())
+			return new EventDataStreamSet();
+
+		// identical queries are served from the cache
+		QueryCache cache = this.storage.getQueryCache();
+		String key = this.getCacheKey("streams", series, startDate, endDate,
+				deviceUri + "," + startCount + "," + nResults);
+		EventDataStreamSet cached = (EventDataStreamSet) cache.get(key);
+		if (cached != null)
+			return EventTable.copy(cached);
+
+		// queries run on a reader connection, not to delay insertions
+		try (QueryCache.Ticket ticket = this.beginCached(cache, key, series,
+				startDate, endDate);
+				ReadConnection reader = this.storage.getReadConnection())
+		{
+			EventDataStreamSet streamSet = this.selectStreams(
+					reader.getStatements(), deviceUri, series, startDate,
+					endDate, startCount, nResults);
+
+			cached = EventTable.copy(streamSet);
+			int weight = 0;
+			for (EventDataStream stream : cached.getDatastreams())
+				weight += EventTable.sizeOf(stream);
+			cache.put(ticket, cached, weight);
+
+			return streamSet;
+		}
+	}
+
+	/**
+	 * Selects the events of the given series, grouped in streams, on the
+	 * given statement cache
+	 */
+	private EventDataStreamSet selectStreams(StatementCache statements,
+			String deviceUri, List<Series> series, Date startDate,
+			Date endDate, int startCount, int nResults) throws SQLException
+	{
+		// the event data stream set to return
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+
+		if (series.isEmpty())
+			return streamSet;
+
+		// the streams indexed by series id
+		Map<Integer, EventDataStream> streams = new HashMap<>();
+		Map<String, EventDataStream> streamsByName = new HashMap<>();
+
+		// sealed points are decoded and merged with the raw rows
+		List<ChunkStore.Point> page = this.chunks.selectMergedPage(
+				statements, series, startDate, endDate, startCount, nResults,
+				true);
+		if (page != null)
+		{
+			for (ChunkStore.Point point : page)
+			{
+				Series current = this.seriesDao.getSeries(point.seriesId);
+				if (current != null)
+					this.addPoint(this.getStream(current, deviceUri, streams,
+							streamsByName, streamSet), current, point);
+			}
+
+			return streamSet;
+		}
+
+		PreparedStatement stmt = this.prepareSelect(statements, series,
+				startDate, endDate, startCount, nResults,
+				" ORDER BY series_id, timestamp, id");
+		try (ResultSet result = stmt.executeQuery())
+		{
+			while (result.next())
+			{
+				Series current = this.seriesDao.getSeries(result.getInt(1));
+				if (current == null)
+					continue;
+
+				// store the event data
+				this.addRow(this.getStream(current, deviceUri, streams,
+						streamsByName, streamSet), current, result);
+			}
+		}
+
+		return streamSet;
+	}
+
+	/**
+	 * Gets the stream of the given series, creating it and adding it to the
+	 * given set if needed
+	 */
+	private EventDataStream getStream(Series current, String deviceUri,
+			Map<Integer, EventDataStream> streams,
+			Map<String, EventDataStream> streamsByName,
+			EventDataStreamSet streamSet)
+	{
+		EventDataStream currentStream = streams.get(current.getId());
+		if (currentStream == null)
+		{
+			// series sharing name and parameters share the stream
+			String streamKey = current.getName() + "\u0000"
+					+ current.getParams();
+			currentStream = streamsByName.get(streamKey);
+			if (currentStream == null)
+			{
+				currentStream = this.numeric ? new NumericEventDataStream(
+						current.getName(), current.getParams(), deviceUri)
+						: new EventDataStream(current.getName(), current
+								.getParams(), deviceUri);
+				streamsByName.put(streamKey, currentStream);
+
+				// add the stream to the event set
+				streamSet.addDatastream(currentStream);
+			}
+			streams.put(current.getId(), currentStream);
+		}
+
+		return currentStream;
+	}
+
+	/**
+	 * Selects the events of the given series in the given time frame, using
+	 * pagination, and adds them, in time order, to the given stream.
+	 * 
+	 * @param stream
+	 *            The stream to fill.
+	 * @param series
+	 *            The series to select.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param startCount
+	 *            The starting count.
+	 * @param nResults
+	 *            The number of results to provide back.
+	 * @return The filled stream.
+	 * @throws SQLException
+	 */
+	public EventDataStream selectInto(EventDataStream stream,
+			List<Series> series, Date startDate, Date endDate, int startCount,
+			int nResults) throws SQLException
+	{
+		// series with no event in the time frame are not queried
+		series = this.filterByBounds(series, startDate, endDate);
+		if (series.isEmpty())
+			return stream;
+
+		// identical queries are served from the cache
+		QueryCache cache = this.storage.getQueryCache();
+		String key = this.getCacheKey("points", series, startDate, endDate,
+				startCount + "," + nResults);
+		EventDataStream cached = (EventDataStream) cache.get(key);
+		if (cached != null)
+		{
+			EventTable.copy(cached, 0, stream);
+			return stream;
+		}
+
+		// queries run on a reader connection, not to delay insertions
+		try (QueryCache.Ticket ticket = this.beginCached(cache, key, series,
+				startDate, endDate);
+				ReadConnection reader = this.storage.getReadConnection())
+		{
+			int first = EventTable.sizeOf(stream);
+			this.selectInto(reader.getStatements(), stream, series,
+					startDate, endDate, startCount, nResults);
+
+			// the selected points only, in a stream of the same kind
+			cached = (stream instanceof NumericEventDataStream) ? new NumericEventDataStream()
+					: new EventDataStream();
+			EventTable.copy(stream, first, cached);
+			cache.put(ticket, cached, EventTable.sizeOf(cached));
+
+			return stream;
+		}
+	}
+
+	/**
+	 * Selects the events of the given series, in time order, on the given
+	 * statement cache
+	 */
+	private EventDataStream selectInto(StatementCache statements,
+			EventDataStream stream, List<Series> series, Date startDate,
+			Date endDate, int startCount, int nResults) throws SQLException
+	{
+		// sealed points are decoded and merged with the raw rows
+		List<ChunkStore.Point> page = this.chunks.selectMergedPage(
+				statements, series, startDate, endDate, startCount, nResults,
+				false);
+		if (page != null)
+		{
+			for (ChunkStore.Point point : page)
+			{
+				Series current = this.seriesDao.getSeries(point.seriesId);
+				if (current != null)
+					this.addPoint(stream, current, point);
+			}
+
+			return stream;
+		}
+
+		if (this.latest.isRunLength())
+		{
+			// the runs in progress at the start date come first
+			List<EventDataPoint> runs = new ArrayList<>();
+			for (Series current : series)
+			{
+				LatestEvents.Run run = this.latest.findRun(statements,
+						current.getId(), startDate.getTime());
+				if (run != null)
+					runs.add(new EventDataPoint(startDate, this
+							.decodeValue(run.code), ""));
+			}
+
+			int from = Math.min(runs.size(), Math.max(0, startCount));
+			int to = (int) Math.min(runs.size(), (long) from + nResults);
+			for (EventDataPoint point : runs.subList(from, Math.max(from, to)))
+				stream.addDatapoint(point);
+
+			// followed by the transitions in the time frame
+			nResults -= Math.max(0, to - from);
+			startCount = Math.max(0, startCount - runs.size());
+			if (nResults <= 0)
+				return stream;
+		}
+
+		PreparedStatement stmt = this.prepareSelect(statements, series,
+				startDate, endDate, startCount, nResults,
+				" ORDER BY timestamp, id");
+		try (ResultSet result = stmt.executeQuery())
+		{
+			while (result.next())
+			{
+				Series current = this.seriesDao.getSeries(result.getInt(1));
+				if (current != null)
+					this.addRow(stream, current, result);
+			}
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Selects the events of the given series in the given time frame that
+	 * follow the given continuation token, in time order, using keyset
+	 * pagination: each series is read from its position on the series and
+	 * timestamp index, so that the cost of a page does not depend on the
+	 * number of events preceding it.
+	 * 
+	 * @param deviceUri
+	 *            The device URI.
+	 * @param series
+	 *            The series to select, of the same device.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back.
+	 * @param stream
+	 *            The stream collecting all the events, or null to group
+	 *            events in one stream per series name and parameters.
+	 * @return The page.
+	 * @throws SQLException
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage selectPage(String deviceUri, List<Series> series,
+			Date startDate, Date endDate, String continuation, int nResults,
+			EventDataStream stream) throws SQLException
+	{
+		PageCursor after = PageCursor.parse(continuation);
+
+		// series with no event in the time frame are not queried
+		series = this.filterByBounds(series, startDate, endDate);
+
+		// the event data stream set to return
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+		if (stream != null)
+			streamSet.addDatastream(stream);
+
+		if ((series.isEmpty()) || (nResults <= 0))
+			return new EventDataPage(streamSet, (nResults <= 0) ? continuation
+					: null);
+
+		// one more event tells whether a following page exists
+		List<PageEntry> entries = this.selectCachedEntries(series,
+				startDate, endDate, after, Math.min(nResults,
+						Integer.MAX_VALUE - 1) + 1);
+
+		Map<Integer, EventDataStream> streams = new HashMap<>();
+		Map<String, EventDataStream> streamsByName = new HashMap<>();
+		int size = Math.min(entries.size(), nResults);
+		for (PageEntry entry : entries.subList(0, size))
+		{
+			EventDataStream target = (stream != null) ? stream : this
+					.getStream(entry.series, deviceUri, streams,
+							streamsByName, streamSet);
+			target.addDatapoint(entry.point);
+		}
+
+		return new EventDataPage(streamSet,
+				(entries.size() > size) ? entries.get(size - 1).position
+						.toToken() : null);
+	}
+
+	/**
+	 * Visits the events of the given series in the given time frame, in time
+	 * order. Events are read in batches with keyset pagination, so that
+	 * memory use does not depend on the length of the time frame, and the
+	 * next batch is read only when the visitor has consumed the current one.
+	 * 
+	 * @param deviceUri
+	 *            The device URI.
+	 * @param series
+	 *            The series to visit, of the same device.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param stream
+	 *            The stream passed with all the events, or null to pass the
+	 *            stream of each series name and parameters.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit.
+	 * @throws SQLException
+	 */
+	public boolean visit(String deviceUri, List<Series> series,
+			Date startDate, Date endDate, EventDataStream stream,
+			EventDataVisitor visitor) throws SQLException
+	{
+		// the streams are descriptors only, they never hold points
+		Map<Integer, EventDataStream> streams = new HashMap<>();
+		Map<String, EventDataStream> streamsByName = new HashMap<>();
+		EventDataStreamSet streamSet = new EventDataStreamSet();
+
+		// series with no event in the time frame are not visited
+		series = this.filterByBounds(series, startDate, endDate);
+
+		PageCursor after = null;
+		while (!series.isEmpty())
+		{
+			List<PageEntry> entries = this.selectEntries(series, startDate,
+					endDate, after, EventTable.VISIT_BATCH);
+
+			for (PageEntry entry : entries)
+			{
+				EventDataStream target = (stream != null) ? stream : this
+						.getStream(entry.series, deviceUri, streams,
+								streamsByName, streamSet);
+				if (!visitor.visit(target, entry.point))
+					return false;
+			}
+
+			if (entries.size() < EventTable.VISIT_BATCH)
+				break;
+			after = entries.get(entries.size() - 1).position;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Selects the events following the given position as
+	 * {@link #selectEntries(List, Date, Date, PageCursor, int)}, serving
+	 * identical pages from the query cache
+	 */
+	private List<PageEntry> selectCachedEntries(List<Series> series,
+			Date startDate, Date endDate, PageCursor after, int limit)
+			throws SQLException
+	{
+		QueryCache cache = this.storage.getQueryCache();
+		String key = this.getCacheKey("page", series, startDate, endDate,
+				((after != null) ? after.toToken() : "") + "," + limit);
+		@SuppressWarnings("unchecked")
+		List<PageEntry> cached = (List<PageEntry>) cache.get(key);
+
+		if (cached == null)
+		{
+			try (QueryCache.Ticket ticket = this.beginCached(cache, key,
+					series, startDate, endDate))
+			{
+				List<PageEntry> entries = this.selectEntries(series,
+						startDate, endDate, after, limit);
+				cached = new ArrayList<>();
+				for (PageEntry entry : entries)
+					cached.add(new PageEntry(entry.position, entry.series,
+							EventTable.copy(entry.point)));
+				cache.put(ticket, cached, cached.size());
+
+				return entries;
+			}
+		}
+
+		// cached points are never handed out
+		List<PageEntry> entries = new ArrayList<>();
+		for (PageEntry entry : cached)
+			entries.add(new PageEntry(entry.position, entry.series,
+					EventTable.copy(entry.point)));
+
+		return entries;
+	}
+
+	/**
+	 * Downsamples the events of the given series in the given time frame to
+	 * the given number of points, adding them to the given stream. Events are
+	 * visited in batches as in {@link #visit}, and only the buckets being
+	 * downsampled are held in memory, see {@link LttbDownsampler}.
+	 * 
+	 * @param stream
+	 *            The stream receiving the points.
+	 * @param series
+	 *            The series to downsample, of the same device.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param maxPoints
+	 *            The max number of points, at least 3.
+	 * @throws SQLException
+	 */
+	public void selectDownsampled(EventDataStream stream, List<Series> series,
+			Date startDate, Date endDate, int maxPoints) throws SQLException
+	{
+		// buckets span up to the last stored event, if known
+		long end = endDate.getTime();
+		if (this.catalog.isComplete())
+		{
+			long last = Long.MIN_VALUE;
+			for (Series current : series)
+			{
+				SeriesCatalog.Stats stats = this.catalog.getStats(current
+						.getId());
+				if ((stats != null) && (stats.rows > 0))
+					last = Math.max(last, stats.last);
+			}
+
+			if (last >= startDate.getTime())
+				end = Math.min(end, last);
+		}
+
+		LttbDownsampler downsampler = new LttbDownsampler(stream, maxPoints,
+				end);
+		this.visit(stream.getDeviceUri(), series, startDate, endDate, stream,
+				downsampler);
+		downsampler.finish();
+	}
+
+	/**
+	 * Gets the given series that may have events in the given time frame,
+	 * according to the series catalog, so that queries skip the others and
+	 * are not run at all if none is left. In run-length mode series count
+	 * until their first event, as runs in progress at the start are returned.
+	 */
+	private List<Series> filterByBounds(List<Series> series, Date startDate,
+			Date endDate)
+	{
+		if (!this.catalog.isComplete())
+			return series;
+
+		List<Series> matching = null;
+		for (int i = 0; i < series.size(); i++)
+		{
+			SeriesCatalog.Stats stats = this.catalog.getStats(series.get(i)
+					.getId());
+			boolean overlaps = (stats != null)
+					&& (stats.overlaps(startDate.getTime(), endDate.getTime(),
+							this.latest.isRunLength()));
+
+			// the list is copied only if some series is skipped
+			if ((!overlaps) && (matching == null))
+				matching = new ArrayList<>(series.subList(0, i));
+			else if ((overlaps) && (matching != null))
+				matching.add(series.get(i));
+		}
+
+		return (matching != null) ? matching : series;
+	}
+
+	/**
+	 * Gets the key of a query of the given kind on the given series and time
+	 * frame, with the given arguments, in the query cache
+	 */
+	private String getCacheKey(String query, List<Series> series,
+			Date startDate, Date endDate, String arguments)
+	{
+		StringBuilder key = new StringBuilder(this.tableName);
+		key.append('|').append(query);
+		for (Series current : series)
+			key.append('|').append(current.getId());
+		key.append('|').append(startDate.getTime()).append('|')
+				.append(endDate.getTime()).append('|').append(arguments);
+
+		return key.toString();
+	}
+
+	/**
+	 * Starts tracking a query on the given series and time frame in the given
+	 * query cache. In run-length mode results also depend on the rows
+	 * preceding the time frame, i.e., on the runs in progress at its start.
+	 */
+	private QueryCache.Ticket beginCached(QueryCache cache, String key,
+			List<Series> series, Date startDate, Date endDate)
+	{
+		int[] seriesIds = new int[series.size()];
+		for (int i = 0; i < seriesIds.length; i++)
+			seriesIds[i] = series.get(i).getId();
+
+		return cache.begin(key, seriesIds,
+				this.latest.isRunLength() ? Long.MIN_VALUE : startDate
+						.getTime(), endDate.getTime());
+	}
+
+	/**
+	 * Selects the first events of the given series following the given
+	 * position, at most limit, in position order
+	 */
+	private List<PageEntry> selectEntries(List<Series> series,
+			Date startDate, Date endDate, PageCursor after, int limit)
+			throws SQLException
+	{
+		List<PageEntry> entries = new ArrayList<>();
+		try (ReadConnection reader = this.storage.getReadConnection())
+		{
+			for (Series current : series)
+				this.selectPage(reader.getStatements(), current, startDate,
+						endDate, after, limit, entries);
+		}
+
+		// merge the series
+		Collections.sort(entries);
+
+		return (entries.size() > limit) ? entries.subList(0, limit)
+				: entries;
+	}
+
+	/**
+	 * Adds the first events of the given series following the given
+	 * position, at most limit, to the given entries
+	 */
+	private void selectPage(StatementCache statements, Series series,
+			Date startDate, Date endDate, PageCursor after, int limit,
+			List<PageEntry> entries) throws SQLException
+	{
+		// the position preceding the series events
+		long afterTimestamp = startDate.getTime();
+		long afterId = Long.MIN_VALUE;
+		if ((after != null) && (after.timestamp >= afterTimestamp))
+		{
+			afterTimestamp = after.timestamp;
+			if (series.getId() < after.seriesId)
+				afterId = Long.MAX_VALUE;
+			else if (series.getId() == after.seriesId)
+				afterId = after.id;
+		}
+		long end = endDate.getTime();
+
+		if (afterTimestamp > end)
+			return;
+
+		// the run in progress at the start date comes first
+		PageCursor runPosition = new PageCursor(startDate.getTime(),
+				series.getId(), Long.MIN_VALUE);
+		if ((this.latest.isRunLength())
+				&& ((after == null) || (runPosition.compareTo(after) > 0)))
+		{
+			LatestEvents.Run run = this.latest.findRun(statements,
+					series.getId(), startDate.getTime());
+			if (run != null)
+				entries.add(new PageEntry(runPosition, series,
+						new EventDataPoint(startDate, this
+								.decodeValue(run.code), "")));
+		}
+
+		// sealed points
+		if (this.chunks.isInUse())
+			this.chunks.selectPage(statements, series, afterTimestamp,
+					afterId, end, limit, entries);
+
+		// raw rows, from each table overlapping the remaining time frame
+		for (String table : this.partitions.planTables(afterTimestamp, end))
+		{
+			PreparedStatement stmt = statements.prepare("SELECT series_id, "
+					+ "timestamp, value, id FROM " + table
+					+ " WHERE series_id=? AND timestamp>=? AND timestamp<=?"
+					+ " AND (timestamp>? OR id>?)"
+					+ " ORDER BY series_id, timestamp, id LIMIT ?;");
+			stmt.setInt(1, series.getId());
+			stmt.setTimestamp(2, new Timestamp(afterTimestamp));
+			stmt.setTimestamp(3, new Timestamp(end));
+			stmt.setTimestamp(4, new Timestamp(afterTimestamp));
+			stmt.setLong(5, afterId);
+			stmt.setInt(6, limit);
+
+			try (ResultSet result = stmt.executeQuery())
+			{
+				while (result.next())
+					entries.add(new PageEntry(new PageCursor(result
+							.getTimestamp(2).getTime(), series.getId(), result
+							.getLong(4)), series, this.toDataPoint(series,
+							result)));
+			}
+		}
+	}
+
+	/**
+	 * Prepares and fills the select statement for the given series, the
+	 * statement is cached and must not be closed
+	 */
+	PreparedStatement prepareSelect(StatementCache statements,
+			List<Series> series, Date startDate, Date endDate, int startCount,
+			int nResults, String orderBy) throws SQLException
+	{
+		// the tables holding rows in the time frame
+		List<String> tables = this.partitions.planTables(
+				startDate.getTime(), endDate.getTime());
+
+		// the base table always exists, and is empty if no partition overlaps
+		if (tables.isEmpty())
+			tables = Collections.singletonList(this.tableName);
+
+		// the select query, over the union of the overlapping partitions
+		StringBuilder query = new StringBuilder();
+		if (tables.size() == 1)
+		{
+			query.append("SELECT series_id, timestamp, value FROM ");
+			this.appendSelection(query, tables.get(0), series.size());
+		}
+		else
+		{
+			query.append("SELECT series_id, timestamp, value FROM (");
+			for (int i = 0; i < tables.size(); i++)
+			{
+				if (i > 0)
+					query.append(" UNION ALL ");
+				query.append("SELECT id, series_id, timestamp, value FROM ");
+				this.appendSelection(query, tables.get(i), series.size());
+			}
+			query.append(")");
+		}
+		query.append(orderBy);
+		query.append(" LIMIT ? OFFSET ?;");
+
+		PreparedStatement stmt = statements.prepare(query.toString());
+
+		// fill the statement data, once per table
+		int i = 1;
+		for (int j = 0; j < tables.size(); j++)
+		{
+			i = EventTable.setSeries(stmt, i, series);
+			stmt.setTimestamp(i++, new Timestamp(startDate.getTime()));
+			stmt.setTimestamp(i++, new Timestamp(endDate.getTime()));
+		}
+		stmt.setInt(i++, nResults);
+		stmt.setInt(i++, startCount);
+
+		return stmt;
+	}
+
+	/**
+	 * Appends the table name and the series and time frame restrictions to
+	 * the given query
+	 */
+	private void appendSelection(StringBuilder query, String table,
+			int nSeries)
+	{
+		query.append(table);
+		EventTable.appendSeries(query, nSeries);
+		query.append(" AND timestamp>=? AND timestamp<=?");
+	}
+
+	/**
+	 * Appends the series restriction to the given query, with a number of
+	 * placeholders rounded up to the next power of two so that queries on
+	 * similar numbers of series share the same cached statement
+	 */
+	static void appendSeries(StringBuilder query, int nSeries)
+	{
+		query.append(" WHERE series_id IN (");
+		for (int i = 0; i < StatementCache.getArity(nSeries); i++)
+			query.append((i == 0) ? "?" : ",?");
+		query.append(")");
+	}
+
+	/**
+	 * Fills the placeholders appended by
+	 * {@link #appendSeries(StringBuilder, int)}, repeating the last series id
+	 * in the exceeding ones
+	 * 
+	 * @return the index of the next parameter.
+	 */
+	static int setSeries(PreparedStatement stmt, int index,
+			List<Series> series) throws SQLException
+	{
+		int arity = StatementCache.getArity(series.size());
+		for (int i = 0; i < arity; i++)
+			stmt.setInt(index++,
+					series.get(Math.min(i, series.size() - 1)).getId());
+
+		return index;
+	}
+
+	/**
+	 * Copies the given point, so that cached points are never shared
+	 */
+	private static EventDataPoint copy(EventDataPoint point)
+	{
+		return new EventDataPoint((point.getAt() != null) ? new Date(point
+				.getAt().getTime()) : null, point.getValue(), point.getUnit());
+	}
+
+	/**
+	 * Copies the given set, with its streams and points
+	 */
+	private static EventDataStreamSet copy(EventDataStreamSet streamSet)
+	{
+		EventDataStreamSet copy = new EventDataStreamSet();
+		for (EventDataStream stream : streamSet.getDatastreams())
+		{
+			EventDataStream streamCopy = (stream instanceof NumericEventDataStream) ? new NumericEventDataStream(
+					stream.getName(), stream.getParameters(), stream
+							.getDeviceUri())
+					: new EventDataStream(stream.getName(), stream
+							.getParameters(), stream.getDeviceUri());
+			EventTable.copy(stream, 0, streamCopy);
+			copy.addDatastream(streamCopy);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Copies the points of the given stream, from the given position on, to
+	 * the target stream; numeric points are copied column by column
+	 */
+	private static void copy(EventDataStream source, int from,
+			EventDataStream target)
+	{
+		if (source instanceof NumericEventDataStream)
+		{
+			NumericEventDataStream numeric = (NumericEventDataStream) source;
+			for (int i = from; i < numeric.size(); i++)
+			{
+				if (target instanceof NumericEventDataStream)
+					((NumericEventDataStream) target).add(numeric
+							.getTimestamp(i), numeric.getValue(i), numeric
+							.getUnit(i));
+				else
+					target.addDatapoint(new EventDataPoint(new Date(numeric
+							.getTimestamp(i)), "" + numeric.getValue(i),
+							numeric.getUnit(i)));
+			}
+		}
+		else
+		{
+			List<EventDataPoint> points = source.getDatapoints();
+			for (EventDataPoint point : points.subList(from, points.size()))
+				target.addDatapoint(EventTable.copy(point));
+		}
+	}
+
+	/**
+	 * Gets the number of points of the given stream, without building the
+	 * points of numeric streams
+	 */
+	private static int sizeOf(EventDataStream stream)
+	{
+		return (stream instanceof NumericEventDataStream) ? ((NumericEventDataStream) stream)
+				.size()
+				: stream.getDatapoints().size();
+	}
+
+	/**
+	 * Adds the current row of the given result set to the given stream,
+	 * straight into the columns of numeric streams
+	 */
+	private void addRow(EventDataStream stream, Series series,
+			ResultSet result) throws SQLException
+	{
+		if ((this.numeric) && (stream instanceof NumericEventDataStream))
+			((NumericEventDataStream) stream).add(result.getTimestamp(2)
+					.getTime(), result.getDouble(3), series.getUnit());
+		else
+			stream.addDatapoint(this.toDataPoint(series, result));
+	}
+
+	/**
+	 * Adds the given sealed point to the given stream, straight into the
+	 * columns of numeric streams
+	 */
+	private void addPoint(EventDataStream stream, Series series,
+			ChunkStore.Point point)
+	{
+		if (stream instanceof NumericEventDataStream)
+			((NumericEventDataStream) stream).add(point.timestamp,
+					point.value, series.getUnit());
+		else
+			stream.addDatapoint(point.toDataPoint(series));
+	}
+
+	/**
+	 * Converts the current row of the given result set into an
+	 * {@link EventDataPoint}
+	 */
+	private EventDataPoint toDataPoint(Series series, ResultSet result)
+			throws SQLException
+	{
+		Date at = new Date(result.getTimestamp(2).getTime());
+
+		if (this.numeric)
+			return new EventDataPoint(at, "" + result.getDouble(3),
+					series.getUnit());
+		else
+		{
+			int code = result.getInt(3);
+			return new EventDataPoint(at, result.wasNull() ? null : this
+					.decodeValue(code), "");
+		}
+	}
+
+	/**
+	 * Gets the discrete value having the given code
+	 */
+	private String decodeValue(Integer code)
+	{
+		return (code != null) ? this.valueDao.getValue(code) : null;
+	}
+
+	/**
+	 * A row added to the group commit, either a measure or the code of a
+	 * discrete value
+	 */
+	private class PendingRow implements GroupCommitter.Row
+	{
+		private final int seriesId;
+		private final long timestamp;
+		private final double value;
+		private final Integer code;
+
+		private PendingRow(int seriesId, long timestamp, double value,
+				Integer code)
+		{
+			this.seriesId = seriesId;
+			this.timestamp = timestamp;
+			this.value = value;
+			this.code = code;
+		}
+
+		@Override
+		public void bind(PreparedStatement statement) throws SQLException
+		{
+			statement.setInt(1, this.seriesId);
+			statement.setTimestamp(2, new Timestamp(this.timestamp));
+			if (EventTable.this.numeric)
+				statement.setDouble(3, this.value);
+			else if (this.code != null)
+				statement.setInt(3, this.code);
+			else
+				statement.setNull(3, Types.INTEGER);
+		}
+
+		@Override
+		public void accepted()
+		{
+			// the changes derived from the row, committed with it or undone
+			// by the rollback
+			EventTable.this.storage.getQueryCache().rowAdded(this.seriesId,
+					this.timestamp);
+			EventTable.this.catalog.rowAdded(this.seriesId, this.timestamp);
+			if (EventTable.this.rollupDao != null)
+				EventTable.this.rollupDao.accumulate(this.seriesId,
+						this.timestamp, this.value);
+
+			// the row may be the latest event of the series, once committed
+			EventTable.this.latest.stageLatest(this.seriesId,
+					this.timestamp, this.value, this.code);
+		}
+
+		@Override
+		public void refused(SQLException cause)
+		{
+			// the row is not stored
+			EventTable.this.storage.getQuota().rowsRemoved(1);
+
+			// a run started by the row is looked up again
+			EventTable.this.latest.rowRefused(this.seriesId, this.timestamp);
+
+			EventTable.this.logger.log(LogService.LOG_WARNING,
+					"Unable to store the event of series " + this.seriesId
+							+ " at " + new Date(this.timestamp) + " in "
+							+ EventTable.this.tableName, cause);
+		}
+	}
+
+	/**
+	 * An event selected for a page, with its position
+	 */
+	static class PageEntry implements Comparable<PageEntry>
+	{
+		private final PageCursor position;
+		private final Series series;
+		private final EventDataPoint point;
+
+		PageEntry(PageCursor position, Series series,
+				EventDataPoint point)
+		{
+			this.position = position;
+			this.series = series;
+			this.point = point;
+		}
+
+		@Override
+		public int compareTo(PageEntry other)
+		{
+			return this.position.compareTo(other.position);
+		}
+	}
+}
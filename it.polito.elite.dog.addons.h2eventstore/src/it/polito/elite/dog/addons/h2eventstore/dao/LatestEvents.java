@@ -0,0 +1,526 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.StatementCache;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * The latest event of each series of an {@link EventTable}, kept in memory so
+ * that latest events are served with no query, and, for discrete states in
+ * run-length mode, the run in progress of each series, i.e., its last stored
+ * value, so that repetitions are recognized without reading the table.
+ * </p>
+ *
+ * <p>
+ * Both follow the group commits: events of pending rows become the latest
+ * ones once committed, and runs are looked up again after a rollback.
+ * </p>
+ *
+ */
+class LatestEvents implements GroupCommitter.Participant
+{
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the series dictionary
+	private SeriesDao seriesDao;
+
+	// the value dictionary, null for measures
+	private ValueDao valueDao;
+
+	// the category of the stored series
+	private final SeriesCategory category;
+
+	// the table name
+	private final String tableName;
+
+	// true if values are numbers, false if they are strings
+	private final boolean numeric;
+
+	// the partitions of the table, holding the rows
+	private final TablePartitions partitions;
+
+	// true if only value transitions are stored
+	private final boolean runLength;
+
+	// the last stored run of each series, guarded by the group committer
+	private final Map<Integer, Run> lastRuns;
+
+	// the latest event of each series, updated holding the group committer
+	private final ConcurrentHashMap<Integer, LatestPoint> latestPoints;
+
+	// the latest events of the rows not yet committed, guarded by the group
+	// committer
+	private final Map<Integer, LatestPoint> pendingLatestPoints;
+
+	/**
+	 * Creates the {@link LatestEvents} of the given table, finding the latest
+	 * event of each series
+	 *
+	 * @param tableName
+	 *            The table name.
+	 * @param category
+	 *            The category of the stored series.
+	 * @param numeric
+	 *            true for measures, false for discrete values.
+	 * @param seriesDao
+	 *            The series dictionary.
+	 * @param valueDao
+	 *            The value dictionary, null for measures.
+	 * @param partitions
+	 *            The partitions of the table.
+	 * @param chunks
+	 *            The compressed chunks of the table.
+	 * @param storage
+	 *            The storage layer.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	LatestEvents(String tableName, SeriesCategory category, boolean numeric,
+			SeriesDao seriesDao, ValueDao valueDao, TablePartitions partitions,
+			ChunkStore chunks, H2Storage storage, LogHelper logger)
+	{
+		this.tableName = tableName;
+		this.category = category;
+		this.numeric = numeric;
+		this.seriesDao = seriesDao;
+		this.valueDao = valueDao;
+		this.partitions = partitions;
+		this.storage = storage;
+		this.logger = logger;
+		this.runLength = (category == SeriesCategory.DISCRETE_STATE)
+				&& (storage.isRunLengthStates());
+		this.lastRuns = new HashMap<>();
+		this.latestPoints = new ConcurrentHashMap<>();
+		this.pendingLatestPoints = new HashMap<>();
+
+		// find the latest event of each series
+		this.loadLatestPoints(chunks);
+
+		// the runs and latest events in memory must follow the commits
+		this.storage.getGroupCommitter().addParticipant(this);
+	}
+
+	/**
+	 * Stops following the group commits
+	 */
+	void close()
+	{
+		this.storage.getGroupCommitter().removeParticipant(this);
+	}
+
+	/**
+	 * Checks whether only value transitions are stored
+	 *
+	 * @return true in run-length mode.
+	 */
+	boolean isRunLength()
+	{
+		return this.runLength;
+	}
+
+	@Override
+	public void beforeCommit() throws SQLException
+	{
+		// nothing to do, rows are written by their batches
+	}
+
+	@Override
+	public void afterCommit()
+	{
+		// the committed rows may now be served as the latest events
+		for (Map.Entry<Integer, LatestPoint> pending : this.pendingLatestPoints
+				.entrySet())
+			this.updateLatest(pending.getKey(), pending.getValue());
+		this.pendingLatestPoints.clear();
+	}
+
+	@Override
+	public void afterRollback()
+	{
+		// the last runs may refer to discarded rows, they are looked up again
+		this.lastRuns.clear();
+		this.pendingLatestPoints.clear();
+	}
+
+	/**
+	 * Records the given event as the latest event of its series, unless a
+	 * later one is already known. Must be called holding the lock of the
+	 * group committer.
+	 */
+	private void updateLatest(int seriesId, LatestPoint point)
+	{
+		LatestPoint latest = this.latestPoints.get(seriesId);
+		if ((latest == null) || (point.timestamp >= latest.timestamp))
+			this.latestPoints.put(seriesId, point);
+	}
+
+	/**
+	 * Holds the event of a row not yet committed, to be recorded as the
+	 * latest event of its series by the next commit. Must be called holding
+	 * the lock of the group committer.
+	 *
+	 * @param seriesId
+	 *            The series id.
+	 * @param timestamp
+	 *            The event timestamp.
+	 * @param value
+	 *            The measure, for numeric tables.
+	 * @param code
+	 *            The code of the discrete value, for discrete tables.
+	 */
+	void stageLatest(int seriesId, long timestamp, double value, Integer code)
+	{
+		LatestPoint point = new LatestPoint(timestamp, value, code);
+		LatestPoint staged = this.pendingLatestPoints.get(seriesId);
+		if ((staged == null) || (point.timestamp >= staged.timestamp))
+			this.pendingLatestPoints.put(seriesId, point);
+	}
+
+	/**
+	 * Finds the latest event of each series with a single query per table,
+	 * partition and chunk table, to warm the in-memory latest events
+	 */
+	private void loadLatestPoints(ChunkStore chunks)
+	{
+		try
+		{
+			// sealed points first, raw rows win at equal times
+			if (chunks.isInUse())
+			{
+				for (ChunkStore.Point point : chunks.selectLastPoints())
+					this.updateLatest(point.seriesId, new LatestPoint(
+							point.timestamp, point.value, null));
+			}
+
+			for (String table : this.partitions.planTables(Long.MIN_VALUE,
+					Long.MAX_VALUE))
+			{
+				try (Statement query = this.storage.getConnection()
+						.createStatement();
+						ResultSet result = query.executeQuery("SELECT t.series_id, t.timestamp, t.value FROM "
+								+ table
+								+ " t JOIN (SELECT series_id, MAX(timestamp) AS last_ts FROM "
+								+ table
+								+ " GROUP BY series_id) m ON t.series_id=m.series_id AND t.timestamp=m.last_ts"
+								+ " ORDER BY t.id"))
+				{
+					while (result.next())
+					{
+						long timestamp = result.getTimestamp(2).getTime();
+						if (this.numeric)
+							this.updateLatest(result.getInt(1), new LatestPoint(
+									timestamp, result.getDouble(3), null));
+						else
+						{
+							int code = result.getInt(3);
+							this.updateLatest(result.getInt(1), new LatestPoint(
+									timestamp, 0, result.wasNull() ? null
+											: code));
+						}
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the latest events of " + this.tableName,
+					e);
+		}
+	}
+
+	/**
+	 * Adds the latest event of the series of the given device, or of all the
+	 * devices, to the given set, in one stream per device, name and
+	 * parameters. Events are served from memory, with no query.
+	 *
+	 * @param deviceUri
+	 *            The device URI, null for all the devices.
+	 * @param streamSet
+	 *            The set to fill.
+	 * @return The filled set.
+	 */
+	EventDataStreamSet selectLatest(String deviceUri,
+			EventDataStreamSet streamSet)
+	{
+		// the series having a latest event
+		List<Series> series;
+		if (deviceUri != null)
+			series = this.seriesDao.getDeviceSeries(this.category, deviceUri);
+		else
+		{
+			series = new ArrayList<>();
+			for (Integer seriesId : this.latestPoints.keySet())
+			{
+				Series current = this.seriesDao.getSeries(seriesId);
+				if (current != null)
+					series.add(current);
+			}
+		}
+
+		// series sharing device, name and parameters share the stream
+		Map<String, EventDataStream> streams = new HashMap<>();
+		for (Series current : series)
+		{
+			LatestPoint latest = this.latestPoints.get(current.getId());
+			if (latest == null)
+				continue;
+
+			String streamKey = current.getDeviceUri() + "\u0000"
+					+ current.getName() + "\u0000" + current.getParams();
+			EventDataStream stream = streams.get(streamKey);
+			if (stream == null)
+			{
+				stream = new EventDataStream(current.getName(),
+						current.getParams(), current.getDeviceUri());
+				streams.put(streamKey, stream);
+				streamSet.addDatastream(stream);
+			}
+
+			Date at = new Date(latest.timestamp);
+			if (this.numeric)
+				stream.addDatapoint(new EventDataPoint(at, "" + latest.value,
+						current.getUnit()));
+			else
+				stream.addDatapoint(new EventDataPoint(at, (latest.code != null)
+						? this.valueDao.getValue(latest.code) : null, ""));
+		}
+
+		return streamSet;
+	}
+
+	/**
+	 * Gets the run in progress of the given series, i.e., its last stored
+	 * value, from memory or from the stored rows. Must be called holding the
+	 * lock of the group committer.
+	 *
+	 * @param series
+	 *            The series.
+	 * @return the run, or null if the series has no stored row or only value
+	 *         transitions are not stored.
+	 * @throws SQLException
+	 */
+	Run findCurrentRun(Series series) throws SQLException
+	{
+		if (!this.runLength)
+			return null;
+
+		Run last = this.lastRuns.get(series.getId());
+		if (last == null)
+		{
+			// first row since the start, the last eviction or rollback
+			last = this.findRun(this.storage.getStatementCache(),
+					series.getId(), Long.MAX_VALUE);
+		}
+
+		return last;
+	}
+
+	/**
+	 * Merges the given discrete event in the given run in progress of its
+	 * series, if it repeats its value: the event is not stored, but it is
+	 * still the latest event of the series. Must be called holding the lock
+	 * of the group committer.
+	 *
+	 * @param series
+	 *            The series of the event.
+	 * @param run
+	 *            The run in progress, null if none.
+	 * @param timestamp
+	 *            The event timestamp.
+	 * @param code
+	 *            The code of the event value.
+	 * @return true if the event has been merged in the run, false if it must
+	 *         be stored.
+	 */
+	boolean extendRun(Series series, Run run, long timestamp, Integer code)
+	{
+		if ((run == null) || (timestamp < run.start)
+				|| ((run.code == null) ? (code != null) : !run.code
+						.equals(code)))
+			return false;
+
+		this.lastRuns.put(series.getId(), run);
+
+		// the run is committed, unless rows are pending
+		LatestPoint point = new LatestPoint(timestamp, 0, code);
+		if (this.storage.getGroupCommitter().getPendingRows() == 0)
+			this.updateLatest(series.getId(), point);
+		else
+			this.stageLatest(series.getId(), timestamp, 0, code);
+
+		return true;
+	}
+
+	/**
+	 * Records the given discrete event, about to be stored, as the start of
+	 * the run in progress of its series, unless received late. Must be called
+	 * holding the lock of the group committer.
+	 *
+	 * @param series
+	 *            The series of the event.
+	 * @param run
+	 *            The run in progress before the event, null if none.
+	 * @param timestamp
+	 *            The event timestamp.
+	 * @param code
+	 *            The code of the event value.
+	 */
+	void startRun(Series series, Run run, long timestamp, Integer code)
+	{
+		if ((this.runLength) && ((run == null) || (timestamp >= run.start)))
+			this.lastRuns.put(series.getId(), new Run(timestamp, code));
+	}
+
+	/**
+	 * Forgets the run started by a row refused by the database, if any, so
+	 * that it is looked up again. Must be called holding the lock of the
+	 * group committer.
+	 *
+	 * @param seriesId
+	 *            The series of the refused row.
+	 * @param timestamp
+	 *            The timestamp of the refused row.
+	 */
+	void rowRefused(int seriesId, long timestamp)
+	{
+		Run run = this.lastRuns.get(seriesId);
+		if ((run != null) && (run.start == timestamp))
+			this.lastRuns.remove(seriesId);
+	}
+
+	/**
+	 * Forgets all the runs, once rows have been removed, so that they are
+	 * looked up again. Must be called holding the lock of the group
+	 * committer.
+	 */
+	void rowsRemoved()
+	{
+		this.lastRuns.clear();
+	}
+
+	/**
+	 * Finds the last row of the given series stored before the given time,
+	 * i.e., the run in progress at that time
+	 *
+	 * @param statements
+	 *            The statement cache of the connection to use.
+	 * @param seriesId
+	 *            The series id.
+	 * @param before
+	 *            The time, in milliseconds.
+	 * @return the run, or null if no row is stored before the given time.
+	 * @throws SQLException
+	 */
+	Run findRun(StatementCache statements, int seriesId, long before)
+			throws SQLException
+	{
+		Run run = this.partitions.isBaseTableInUse() ? this.findRun(
+				statements, this.tableName, seriesId, before) : null;
+
+		// partitions do not overlap, the latest one holding rows is enough
+		List<String> tables = this.partitions.planTables(0, before - 1);
+		for (int i = tables.size() - 1; i >= 0; i--)
+		{
+			if (tables.get(i).equals(this.tableName))
+				continue;
+
+			Run candidate = this.findRun(statements, tables.get(i), seriesId,
+					before);
+			if (candidate != null)
+			{
+				if ((run == null) || (candidate.start >= run.start))
+					run = candidate;
+				break;
+			}
+		}
+
+		return run;
+	}
+
+	/**
+	 * Finds the last row of the given series stored in the given table before
+	 * the given time
+	 */
+	private Run findRun(StatementCache statements, String table,
+			int seriesId, long before) throws SQLException
+	{
+		boolean bounded = before != Long.MAX_VALUE;
+
+		PreparedStatement stmt = statements.prepare("SELECT timestamp, value "
+				+ "FROM " + table + " WHERE series_id=?"
+				+ (bounded ? " AND timestamp<?" : "")
+				+ " ORDER BY timestamp DESC, id DESC LIMIT 1");
+		stmt.setInt(1, seriesId);
+		if (bounded)
+			stmt.setTimestamp(2, new Timestamp(before));
+
+		try (ResultSet result = stmt.executeQuery())
+		{
+			if (!result.next())
+				return null;
+
+			int code = result.getInt(2);
+			return new Run(result.getTimestamp(1).getTime(),
+					result.wasNull() ? null : code);
+		}
+	}
+
+	/**
+	 * The latest event of a series, either a measure or the code of a
+	 * discrete value
+	 */
+	private static class LatestPoint
+	{
+		private final long timestamp;
+		private final double value;
+		private final Integer code;
+
+		private LatestPoint(long timestamp, double value, Integer code)
+		{
+			this.timestamp = timestamp;
+			this.value = value;
+			this.code = code;
+		}
+	}
+
+	/**
+	 * A run of a discrete series, i.e., a stored value and the time from which
+	 * it holds
+	 */
+	static class Run
+	{
+		final long start;
+		final Integer code;
+
+		private Run(long start, Integer code)
+		{
+			this.start = start;
+			this.code = code;
+		}
+	}
+}
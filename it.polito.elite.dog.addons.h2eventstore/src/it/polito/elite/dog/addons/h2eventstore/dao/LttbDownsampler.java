@@ -0,0 +1,296 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.EventDataVisitor;
+import it.polito.elite.dog.addons.storage.NumericEventDataStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Downsamples numeric events to a given number of points with the
+ * Largest-Triangle-Three-Buckets algorithm, keeping the visual shape of the
+ * series, e.g., its peaks and drops, as events are visited in time order.
+ * </p>
+ *
+ * <p>
+ * The first and last events are always kept; the others are split in
+ * buckets of equal duration, one point per bucket, so that the events of two
+ * buckets at most are held in memory at the same time. Up to the given
+ * number of events are returned unchanged.
+ * </p>
+ *
+ */
+public class LttbDownsampler implements EventDataVisitor
+{
+	// the stream receiving the selected points
+	private final EventDataStream target;
+
+	// the max number of points to select
+	private final int maxPoints;
+
+	// the end of the time frame covered by the buckets
+	private final long end;
+
+	// the first events, held until they exceed the max number of points
+	private List<Sample> head;
+
+	// the start of the first bucket and the bucket width
+	private long origin;
+	private double width;
+
+	// the last selected event
+	private Sample selected;
+
+	// the bucket to select a point from, and the following one
+	private Bucket current;
+	private Bucket next;
+
+	// the last visited event, not yet assigned to a bucket
+	private Sample last;
+
+	/**
+	 * Creates a {@link LttbDownsampler} adding the selected points to the
+	 * given stream
+	 *
+	 * @param target
+	 *            The stream receiving the points.
+	 * @param maxPoints
+	 *            The max number of points, at least 3.
+	 * @param end
+	 *            The end of the visited time frame, or the timestamp of the
+	 *            last event if known, in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             if less than 3 points are requested.
+	 */
+	public LttbDownsampler(EventDataStream target, int maxPoints, long end)
+	{
+		if (maxPoints < 3)
+			throw new IllegalArgumentException(
+					"At least 3 points are needed to downsample, got "
+							+ maxPoints);
+
+		this.target = target;
+		this.maxPoints = maxPoints;
+		this.end = end;
+		this.head = new ArrayList<>();
+	}
+
+	@Override
+	public boolean visit(EventDataStream stream, EventDataPoint point)
+	{
+		double value;
+		try
+		{
+			value = Double.parseDouble(point.getValue());
+		}
+		catch (NumberFormatException | NullPointerException e)
+		{
+			// non numeric events cannot be drawn
+			return true;
+		}
+
+		Sample sample = new Sample(point, value);
+		if (this.head != null)
+		{
+			this.head.add(sample);
+
+			// short series are returned as they are
+			if (this.head.size() > this.maxPoints)
+				this.startBuckets();
+		}
+		else
+			this.add(sample);
+
+		return true;
+	}
+
+	/**
+	 * Adds the selected points still pending to the target stream, once all
+	 * the events have been visited
+	 */
+	public void finish()
+	{
+		if (this.head != null)
+		{
+			for (Sample sample : this.head)
+				this.emit(sample);
+			this.head = null;
+		}
+		else
+		{
+			// the last event closes the last bucket
+			if (this.next != null)
+			{
+				this.select(this.current, this.next.averageTime(),
+						this.next.averageValue());
+				this.select(this.next, this.last.time, this.last.value);
+			}
+			else if (this.current != null)
+				this.select(this.current, this.last.time, this.last.value);
+
+			this.emit(this.last);
+		}
+
+		this.current = null;
+		this.next = null;
+	}
+
+	/**
+	 * Selects the first event and splits the time frame following it in
+	 * buckets, once the events exceed the max number of points
+	 */
+	private void startBuckets()
+	{
+		Sample first = this.head.get(0);
+		this.emit(first);
+		this.selected = first;
+
+		// the first and last events are not in any bucket
+		this.origin = first.time;
+		this.width = Math.max(1, this.end - this.origin)
+				/ (double) (this.maxPoints - 2);
+
+		List<Sample> held = this.head;
+		this.head = null;
+		for (Sample sample : held.subList(1, held.size()))
+			this.add(sample);
+	}
+
+	/**
+	 * Adds an event, the previous one is assigned to its bucket as it is not
+	 * the last one
+	 */
+	private void add(Sample sample)
+	{
+		if (this.last != null)
+			this.assign(this.last);
+		this.last = sample;
+	}
+
+	/**
+	 * Assigns an event to its bucket, selecting the point of the current
+	 * bucket as soon as the following one is complete
+	 */
+	private void assign(Sample sample)
+	{
+		int index = (int) Math.min(this.maxPoints - 3, Math.max(0,
+				(long) ((sample.time - this.origin) / this.width)));
+
+		if ((this.current == null) || (index <= this.current.index))
+		{
+			if (this.current == null)
+				this.current = new Bucket(index);
+			this.current.add(sample);
+		}
+		else if ((this.next == null) || (index <= this.next.index))
+		{
+			if (this.next == null)
+				this.next = new Bucket(index);
+			this.next.add(sample);
+		}
+		else
+		{
+			// the next bucket is complete, its average is known
+			this.select(this.current, this.next.averageTime(),
+					this.next.averageValue());
+			this.current = this.next;
+			this.next = new Bucket(index);
+			this.next.add(sample);
+		}
+	}
+
+	/**
+	 * Selects the event of the given bucket forming the largest triangle with
+	 * the last selected event and the given point
+	 */
+	private void select(Bucket bucket, double time, double value)
+	{
+		// times relative to the first event, to keep their precision
+		double ax = this.selected.time - this.origin;
+		double ay = this.selected.value;
+		double cx = time - this.origin;
+
+		Sample best = null;
+		double bestArea = -1;
+		for (Sample sample : bucket.samples)
+		{
+			double area = Math.abs((ax - cx) * (sample.value - ay)
+					- (ax - (sample.time - this.origin)) * (value - ay));
+			if (area > bestArea)
+			{
+				best = sample;
+				bestArea = area;
+			}
+		}
+
+		this.emit(best);
+		this.selected = best;
+	}
+
+	/**
+	 * Adds the given event to the target stream, straight into the columns
+	 * of numeric streams
+	 */
+	private void emit(Sample sample)
+	{
+		if (this.target instanceof NumericEventDataStream)
+			((NumericEventDataStream) this.target).add(sample.time,
+					sample.value, sample.point.getUnit());
+		else
+			this.target.addDatapoint(sample.point);
+	}
+
+	/**
+	 * A visited event with its numeric value
+	 */
+	private static class Sample
+	{
+		final EventDataPoint point;
+		final long time;
+		final double value;
+
+		Sample(EventDataPoint point, double value)
+		{
+			this.point = point;
+			this.time = point.getAt().getTime();
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The events falling in the same bucket
+	 */
+	private static class Bucket
+	{
+		final int index;
+		final List<Sample> samples;
+		double timeSum;
+		double valueSum;
+
+		Bucket(int index)
+		{
+			this.index = index;
+			this.samples = new ArrayList<>();
+		}
+
+		void add(Sample sample)
+		{
+			this.samples.add(sample);
+			this.timeSum += sample.time;
+			this.valueSum += sample.value;
+		}
+
+		double averageTime()
+		{
+			return this.timeSum / this.samples.size();
+		}
+
+		double averageValue()
+		{
+			return this.valueSum / this.samples.size();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.measure.DecimalMeasure;
+import javax.measure.Measure;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.Unit;
+
+/**
+ * Extracts the numeric value and the unit symbol of {@link Measure}s to be
+ * stored as continuous states or parametric notifications, without going
+ * through their string representation.
+ * 
+ */
+public class MeasureValues
+{
+	// the max number of cached unit symbols, units are few in practice
+	private static final int MAX_CACHED_UNITS = 1024;
+
+	// the interned symbols of the already seen units
+	private static final ConcurrentHashMap<Unit<?>, String> unitSymbols = new ConcurrentHashMap<>();
+
+	private MeasureValues()
+	{
+		// static helpers only
+	}
+
+	/**
+	 * Gets the numeric value of the given {@link Measure}, numeric values are
+	 * read directly while exotic measure types fall back to parsing the
+	 * measure string representation.
+	 * 
+	 * @param measure
+	 *            The measure.
+	 * @return The measure value as a double.
+	 */
+	public static double getValue(Measure<?, ?> measure)
+	{
+		Object value = measure.getValue();
+
+		// floats are widened through their decimal form, as the string
+		// representation previously did, e.g., 0.1f is stored as 0.1
+		if (value instanceof Float)
+			return Double.parseDouble(value.toString());
+
+		// direct extraction, covers Double, Long, Integer and BigDecimal
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+
+		// fall back to parsing
+		DecimalMeasure<? extends Quantity> parsed = DecimalMeasure
+				.valueOf(measure.toString());
+		return parsed.getValue().doubleValue();
+	}
+
+	/**
+	 * Gets the symbol of the unit of the given {@link Measure}, the symbol of
+	 * each unit is computed once and then shared.
+	 * 
+	 * @param measure
+	 *            The measure.
+	 * @return The interned unit symbol.
+	 */
+	public static String getUnitSymbol(Measure<?, ?> measure)
+	{
+		Unit<?> unit = measure.getUnit();
+
+		String symbol = MeasureValues.unitSymbols.get(unit);
+
+		if (symbol == null)
+		{
+			symbol = unit.toString().intern();
+
+			// cache the symbol unless too many units have been seen
+			if (MeasureValues.unitSymbols.size() < MeasureValues.MAX_CACHED_UNITS)
+				MeasureValues.unitSymbols.putIfAbsent(unit, symbol);
+		}
+
+		return symbol;
+	}
+}
@@ -3,25 +3,30 @@
  */
 package it.polito.elite.dog.addons.h2eventstore.dao;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.measure.DecimalMeasure;
 import javax.measure.Measure;
-import javax.measure.quantity.Quantity;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
 
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
 import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPage;
 import it.polito.elite.dog.addons.storage.EventDataPoint;
 import it.polito.elite.dog.addons.storage.EventDataStream;
 import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+import it.polito.elite.dog.addons.storage.EventDataVisitor;
+import it.polito.elite.dog.addons.storage.NumericEventDataStream;
+import it.polito.elite.dog.addons.storage.RollupResolution;
 import it.polito.elite.dog.core.library.util.LogHelper;
 
 /**
@@ -37,6 +42,12 @@ public class NotificationDao
 	// the device dao
 	private DeviceDao devDao;
 
+	// the series dictionary
+	private SeriesDao seriesDao;
+
+	// the rollups of measures
+	private RollupDao rollupDao;
+
 	// The storage layer
 	private H2Storage storage;
 
@@ -44,35 +55,16 @@ public class NotificationDao
 	private final String parametricNotificationTableName = "ParametricNotification";
 	private final String nonParametricNotificationTableName = "NonParametricNotification";
 
-	// ---- TABLE CREATION QUERIES
-	private final String parametricNotificationTableCreateQuery = "CREATE TABLE "
-			+ this.parametricNotificationTableName
-			+ "(id int(11) NOT NULL AUTO_INCREMENT, timestamp TIMESTAMP, unit VARCHAR(5), "
-			+ "value DOUBLE, name VARCHAR(100), params VARCHAR(255), deviceuri VARCHAR(255), "
-			+ "PRIMARY KEY(id), FOREIGN KEY (deviceuri) REFERENCES Device(uri) ON DELETE CASCADE);";
-	private final String nonParametricNotificationTableCreateQuery = "CREATE TABLE "
-			+ this.nonParametricNotificationTableName
-			+ "(id int(11) NOT NULL AUTO_INCREMENT, timestamp TIMESTAMP, value VARCHAR(100), "
-			+ "name VARCHAR(100), deviceuri VARCHAR(255), PRIMARY KEY(id), "
-			+ "FOREIGN KEY (deviceuri) REFERENCES Device(uri) ON DELETE CASCADE);";
-
-	// --------- commonly used statements ------------
-	private PreparedStatement insertParametricNotificationStmt;
-	private PreparedStatement insertNonParametricNotificationStmt;
-
-	// ---- INSERTION QUERIES
-	private final String insertParametricNotificationQuery = "INSERT INTO "
-			+ this.parametricNotificationTableName
-			+ "(timestamp, unit, value, name, params, deviceuri) VALUES (?,?,?,?,?,?)";
-	private final String insertNonParametricNotificationsQuery = "INSERT INTO "
-			+ this.nonParametricNotificationTableName
-			+ "(timestamp, value, name, deviceuri) VALUES (?,?,?,?);";
+	// ---- TABLES
+	private EventTable parametricNotificationTable;
+	private EventTable nonParametricNotificationTable;
 
 	/**
 	 * 
 	 */
-	public NotificationDao(final DeviceDao devDao, final H2Storage storage,
-			final BundleContext context)
+	public NotificationDao(final DeviceDao devDao, final SeriesDao seriesDao,
+			final ValueDao valueDao, final RollupDao rollupDao,
+			final H2Storage storage, final BundleContext context)
 	{
 		// init logger
 		this.logger = new LogHelper(context);
@@ -80,116 +72,37 @@ public class NotificationDao
 		// store the connection
 		this.storage = storage;
 
-		// store the device DAO instance
+		// store the device and series DAO instances
 		this.devDao = devDao;
-
-		// check and create tables if needed
-		this.checkAndCreateTables();
-
-		// prepare the commonly executed statements
-		this.prepareCommonStatements();
-	}
-
-	private void checkAndCreateTables()
-	{
-		try
-		{
-			// check if the Event table exist
-			ResultSet tableSet = this.storage
-					.getConnection()
-					.getMetaData()
-					.getTables(
-							this.storage.getConnection().getCatalog(),
-							null,
-							this.nonParametricNotificationTableName
-									.toUpperCase(), null);
-
-			if (!tableSet.next())
-			{
-				// missing event table: create it
-				this.storage
-						.getConnection()
-						.prepareStatement(
-								this.nonParametricNotificationTableCreateQuery)
-						.executeUpdate();
-				this.logger.log(LogService.LOG_INFO,
-						"Schema creation has been successful!");
-			}
-
-			tableSet.close();
-
-			// check if the RealEvent table exist
-			tableSet = this.storage
-					.getConnection()
-					.getMetaData()
-					.getTables(this.storage.getConnection().getCatalog(), null,
-							this.parametricNotificationTableName.toUpperCase(),
-							null);
-
-			if (!tableSet.next())
-			{
-				// missing event table: create it
-				this.storage
-						.getConnection()
-						.prepareStatement(
-								this.parametricNotificationTableCreateQuery)
-						.executeUpdate();
-				this.logger.log(LogService.LOG_INFO,
-						"Schema creation has been successful!");
-			}
-
-			tableSet.close();
-		}
-		catch (SQLException e)
-		{
-			// Log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to check / create state db tables");
-		}
+		this.seriesDao = seriesDao;
+		this.rollupDao = rollupDao;
+
+		// check and create (or convert) tables if needed
+		this.nonParametricNotificationTable = new EventTable(
+				this.nonParametricNotificationTableName,
+				SeriesCategory.NON_PARAMETRIC_NOTIFICATION, false, seriesDao,
+				valueDao, null, storage, this.logger);
+		this.parametricNotificationTable = new EventTable(
+				this.parametricNotificationTableName,
+				SeriesCategory.PARAMETRIC_NOTIFICATION, true, seriesDao,
+				null, rollupDao, storage, this.logger);
 	}
 
 	/**
-	 * Prepares commonly used statements to improve db operation performance.
+	 * Gets the data tables handled by this DAO
+	 * 
+	 * @return The tables.
 	 */
-	private void prepareCommonStatements()
+	List<EventTable> getTables()
 	{
-		// prepare commonly used statements to improve statement execution
-		// performance
-		try
-		{
-			this.insertParametricNotificationStmt = this.storage
-					.getConnection().prepareStatement(
-							this.insertParametricNotificationQuery);
-
-			this.insertNonParametricNotificationStmt = this.storage
-					.getConnection().prepareStatement(
-							this.insertNonParametricNotificationsQuery);
-
-		}
-		catch (SQLException e)
-		{
-			// Log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to create commonly used prepared statements");
-		}
-
+		return Arrays.asList(this.parametricNotificationTable, this.nonParametricNotificationTable);
 	}
 
 	public boolean close()
 	{
-		boolean isClosed = false;
-		// close db connection
-		try
-		{
-			this.insertNonParametricNotificationStmt.close();
-			this.insertParametricNotificationStmt.close();
-			isClosed = true;
-		}
-		catch (SQLException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		// close the insertion statements
+		boolean isClosed = this.parametricNotificationTable.close();
+		isClosed = this.nonParametricNotificationTable.close() && isClosed;
 
 		return isClosed;
 	}
@@ -205,29 +118,19 @@ public class NotificationDao
 
 			if (this.devDao.isDevicePresent(deviceURI))
 			{
-				// Insert the real event in the right table
+				// extract the value and the unit symbol, without parsing
+				double value = MeasureValues.getValue(eventValue);
+				String unit = MeasureValues.getUnitSymbol(eventValue);
+
+				// resolve the series
+				Series series = this.seriesDao.getOrCreateSeries(
+						SeriesCategory.PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, notificationParams, unit);
 
-				// fill the prepared statement
-				this.insertParametricNotificationStmt.setTimestamp(1,
-						new Timestamp(eventTimestamp.getTime()));
-				DecimalMeasure<? extends Quantity> measure = DecimalMeasure
-						.valueOf(eventValue.toString());
-				this.insertParametricNotificationStmt.setString(2, eventValue
-						.getUnit().toString());
-				this.insertParametricNotificationStmt.setDouble(3, measure
-						.getValue().doubleValue());
-				this.insertParametricNotificationStmt.setString(4,
-						notificationName);
-				this.insertParametricNotificationStmt.setString(5,
-						notificationParams);
-				this.insertParametricNotificationStmt.setString(6, deviceURI);
-
-				// execute the insert query
-				this.insertParametricNotificationStmt.executeUpdate();
-				this.storage.getConnection().commit();
-
-				// turn the insertion flag to true
-				inserted = true;
+				// Insert the real event in the right table
+				// (refused once the storage is full)
+				inserted = this.parametricNotificationTable.insert(series,
+						eventTimestamp, value);
 			}
 		}
 		catch (SQLException e)
@@ -250,24 +153,15 @@ public class NotificationDao
 			// check if the device is already available
 			if (this.devDao.isDevicePresent(deviceURI))
 			{
+				// resolve the series
+				Series series = this.seriesDao.getOrCreateSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceURI,
+						name, "", "");
 
 				// Insert the real event in the right table
-
-				// fill the prepared statement
-				this.insertNonParametricNotificationStmt.setTimestamp(1,
-						new Timestamp(eventTimestamp.getTime()));
-				this.insertNonParametricNotificationStmt.setString(2,
-						eventValue);
-				this.insertNonParametricNotificationStmt.setString(3, name);
-				this.insertNonParametricNotificationStmt
-						.setString(4, deviceURI);
-
-				// execute the insert query
-				this.insertNonParametricNotificationStmt.executeUpdate();
-				this.storage.getConnection().commit();
-
-				// turn the insertion flag to true
-				inserted = true;
+				// (refused once the storage is full)
+				inserted = this.nonParametricNotificationTable.insert(series,
+						eventTimestamp, eventValue);
 			}
 		}
 		catch (SQLException e)
@@ -303,70 +197,13 @@ public class NotificationDao
 		// the event data stream set to return
 		EventDataStreamSet streamSet = new EventDataStreamSet();
 
-		// the select query
-		String allRealEventsQuery = "SELECT * FROM "
-				+ this.parametricNotificationTableName
-				+ " WHERE deviceuri=? AND timestamp>=? and timestamp<=? ORDER BY name,params ASC LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement allRealEventsStmt = this.storage.getConnection()
-					.prepareStatement(allRealEventsQuery);
-
-			// fill the statement data
-			allRealEventsStmt.setString(1, deviceUri);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			allRealEventsStmt.setTimestamp(2, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			allRealEventsStmt.setTimestamp(3, endTimestamp);
-			allRealEventsStmt.setInt(4, nResults);
-			allRealEventsStmt.setInt(5, startCount);
-
-			// exec the query
-			ResultSet result = allRealEventsStmt.executeQuery();
-
-			// compose the EventStreamDataSet
-			String currentName = "";
-			String currentParams = "";
-			String previousName = "";
-			String previousParams = "";
-
-			EventDataStream currentStream = null;
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentName = result.getString("name");
-				currentParams = result.getString("params");
-
-				// check if a new event stream should be created
-				if (((currentName.equals(previousName)) && (!currentParams
-						.equals(previousParams)))
-						|| (!currentName.equals(previousName)))
-				{
-					// check if stream exists
-					currentStream = new EventDataStream(currentName,
-							currentParams, deviceUri);
-
-					// add the stream to the event set
-					streamSet.addDatastream(currentStream);
-
-					// update the previous values
-					previousName = currentName;
-					previousParams = currentParams;
-				}
-
-				// create the single event data
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()),
-						"" + result.getDouble("value"),
-						result.getString("unit"));
-
-				// store the event data
-				currentStream.addDatapoint(currentPoint);
-			}
+			// select the points of all the device series
+			streamSet = this.parametricNotificationTable.selectStreams(
+					deviceUri, this.seriesDao.getDeviceSeries(
+							SeriesCategory.PARAMETRIC_NOTIFICATION, deviceUri),
+					startDate, endDate, startCount, nResults);
 		}
 		catch (SQLException e)
 		{
@@ -376,7 +213,6 @@ public class NotificationDao
 		}
 
 		return streamSet;
-
 	}
 
 	/**
@@ -403,70 +239,27 @@ public class NotificationDao
 		// the event data stream set to return
 		EventDataStreamSet streamSet = new EventDataStreamSet();
 
-		// the select query
-		String allRealEventsQuery = "SELECT * FROM "
-				+ this.nonParametricNotificationTableName
-				+ " WHERE deviceuri=? AND timestamp>=? and timestamp<=?";
-		if (aggregated)
-			allRealEventsQuery = allRealEventsQuery
-					+ " ORDER BY timestamp ASC LIMIT ? OFFSET ?;";
-		else
-			allRealEventsQuery = allRealEventsQuery
-					+ " ORDER BY name,timestamp ASC LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement allRealEventsStmt = this.storage.getConnection()
-					.prepareStatement(allRealEventsQuery);
-
-			// fill the statement data
-			allRealEventsStmt.setString(1, deviceUri);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			allRealEventsStmt.setTimestamp(2, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			allRealEventsStmt.setTimestamp(3, endTimestamp);
-			allRealEventsStmt.setInt(4, nResults);
-			allRealEventsStmt.setInt(5, startCount);
-
-			// exec the query
-			ResultSet result = allRealEventsStmt.executeQuery();
-
-			// compose the EventStreamDataSet
-			String currentName = "";
-			String previousName = "";
-
-			EventDataStream currentStream = null;
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				if (aggregated)
-					currentName = "events";
-				else
-					currentName = result.getString("name");
-
-				// check if a new event stream should be created
-				if (!currentName.equals(previousName))
-				{
-					// check if stream exists
-					currentStream = new EventDataStream(currentName, "",
-							deviceUri);
-
-					// add the stream to the event set
-					streamSet.addDatastream(currentStream);
+			List<Series> series = this.seriesDao.getDeviceSeries(
+					SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceUri);
 
-					// update the previous values only if not aggregated
-					previousName = currentName;
-				}
-
-				// create the single event data
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()), result.getString("value"), "");
-
-				// store the event data
-				currentStream.addDatapoint(currentPoint);
+			if (aggregated)
+			{
+				// all the events in a single stream
+				EventDataStream stream = this.nonParametricNotificationTable
+						.selectInto(new EventDataStream("events", "",
+								deviceUri), series, startDate, endDate,
+								startCount, nResults);
+				if (!stream.getDatapoints().isEmpty())
+					streamSet.addDatastream(stream);
+			}
+			else
+			{
+				// one stream per notification
+				streamSet = this.nonParametricNotificationTable.selectStreams(
+						deviceUri, series, startDate, endDate, startCount,
+						nResults);
 			}
 		}
 		catch (SQLException e)
@@ -477,7 +270,6 @@ public class NotificationDao
 		}
 
 		return streamSet;
-
 	}
 
 	/**
@@ -510,49 +302,18 @@ public class NotificationDao
 			int startCount, int nResults)
 	{
 		// The event stream to return
-		EventDataStream stream = new EventDataStream(notificationName,
-				notificationParams, deviceURI);
-
-		// the select query
-		// the select query
-		String realEventsQuery = "SELECT * FROM "
-				+ this.parametricNotificationTableName
-				+ " WHERE deviceuri=? AND name=? AND params=? AND timestamp>=? and timestamp<=? ORDER BY name,params LIMIT ? OFFSET ?;";
+		EventDataStream stream = new NumericEventDataStream(
+				notificationName, notificationParams, deviceURI);
 
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement realEventsStmt = this.storage.getConnection()
-					.prepareStatement(realEventsQuery);
-
-			// fill the statement data
-			realEventsStmt.setString(1, deviceURI);
-			realEventsStmt.setString(2, notificationName);
-			realEventsStmt.setString(3, notificationParams);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			realEventsStmt.setTimestamp(4, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			realEventsStmt.setTimestamp(5, endTimestamp);
-			realEventsStmt.setInt(6, nResults);
-			realEventsStmt.setInt(7, startCount);
-
-			// exec the query
-			ResultSet result = realEventsStmt.executeQuery();
-
-			// the current data point
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()),
-						"" + result.getDouble("value"),
-						result.getString("unit"));
-
-				stream.addDatapoint(currentPoint);
-			}
-
+			// select the points of the matching series (one per unit)
+			this.parametricNotificationTable.selectInto(stream, this.seriesDao
+					.getDeviceSeries(SeriesCategory.PARAMETRIC_NOTIFICATION,
+							deviceURI, notificationName,
+							(notificationParams != null) ? notificationParams
+									: ""), startDate, endDate, startCount,
+					nResults);
 		}
 		catch (SQLException e)
 		{
@@ -595,43 +356,14 @@ public class NotificationDao
 		EventDataStream stream = new EventDataStream(notificationName, "",
 				deviceURI);
 
-		// the select query
-		// the select query
-		String realEventsQuery = "SELECT * FROM "
-				+ this.nonParametricNotificationTableName
-				+ " WHERE deviceuri=? AND name=? AND timestamp>=? and timestamp<=? ORDER BY name LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement realEventsStmt = this.storage.getConnection()
-					.prepareStatement(realEventsQuery);
-
-			// fill the statement data
-			realEventsStmt.setString(1, deviceURI);
-			realEventsStmt.setString(2, notificationName);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			realEventsStmt.setTimestamp(3, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			realEventsStmt.setTimestamp(4, endTimestamp);
-			realEventsStmt.setInt(5, nResults);
-			realEventsStmt.setInt(6, startCount);
-
-			// exec the query
-			ResultSet result = realEventsStmt.executeQuery();
-
-			// the current data point
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()), result.getString("value"), "");
-
-				stream.addDatapoint(currentPoint);
-			}
-
+			// select the points of the matching series
+			this.nonParametricNotificationTable.selectInto(stream,
+					this.seriesDao.getDeviceSeries(
+							SeriesCategory.NON_PARAMETRIC_NOTIFICATION,
+							deviceURI, notificationName, ""), startDate,
+					endDate, startCount, nResults);
 		}
 		catch (SQLException e)
 		{
@@ -651,67 +383,18 @@ public class NotificationDao
 		EventDataStream stream = new EventDataStream(eventStreamName, "",
 				deviceURI);
 
-		// the select query
-		// the select query
-		StringBuffer realEventsQueryBuffer = new StringBuffer();
-		realEventsQueryBuffer.append("SELECT * FROM "
-				+ this.nonParametricNotificationTableName
-				+ " WHERE deviceuri=? AND name IN (");
-
-		boolean first = true;
-		for (int i = 0; i < notificationNames.size(); i++)
-		{
-			if (!first)
-				realEventsQueryBuffer.append(",");
-			else
-				first = false;
-
-			realEventsQueryBuffer.append("?");
-		}
-		realEventsQueryBuffer
-				.append(") AND timestamp>=? and timestamp<=? ORDER BY name LIMIT ? OFFSET ?;");
-
-		String realEventsQuery = realEventsQueryBuffer.toString();
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement realEventsStmt = this.storage.getConnection()
-					.prepareStatement(realEventsQuery);
-
-			int i = 1;
-			// fill the statement data
-			realEventsStmt.setString(i++, deviceURI);
-
-			// compose the stream name sequence
+			// gather the series of all the given notifications
+			List<Series> series = new ArrayList<>();
 			for (String notificationName : notificationNames)
-			{
-				realEventsStmt.setString(i, notificationName);
-				i++;
-			}
-
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			realEventsStmt.setTimestamp(i++, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			realEventsStmt.setTimestamp(i++, endTimestamp);
-			realEventsStmt.setInt(i++, nResults);
-			realEventsStmt.setInt(i++, startCount);
-
-			// exec the query
-			ResultSet result = realEventsStmt.executeQuery();
-
-			// the current data point
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()), result.getString("value"), "");
-
-				stream.addDatapoint(currentPoint);
-			}
+				series.addAll(this.seriesDao.getDeviceSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, ""));
 
+			// select their points in a single stream
+			this.nonParametricNotificationTable.selectInto(stream, series,
+					startDate, endDate, startCount, nResults);
 		}
 		catch (SQLException e)
 		{
@@ -741,8 +424,489 @@ public class NotificationDao
 		return streamSet;
 	}
 
+	/**
+	 * Gets the events carrying a measure generated by a given device in the
+	 * time frame between startDate and endDate, in time order, using keyset
+	 * pagination.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @return the page, one stream per notification.
+	 */
+	public EventDataPage getAllDeviceParametricNotifications(
+			String deviceUri, Date startDate, Date endDate,
+			String continuation, int nResults)
+	{
+		return this.selectPage(this.parametricNotificationTable, deviceUri,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.PARAMETRIC_NOTIFICATION, deviceUri),
+				startDate, endDate, continuation, nResults, null);
+	}
+
+	/**
+	 * Gets the events carrying a discrete value generated by a given device
+	 * in the time frame between startDate and endDate, in time order, using
+	 * keyset pagination.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @param aggregated
+	 *            true to get all the events in a single stream
+	 * @return the page.
+	 */
+	public EventDataPage getAllDeviceNonParametricNotifications(
+			String deviceUri, Date startDate, Date endDate,
+			String continuation, int nResults, boolean aggregated)
+	{
+		return this.selectPage(this.nonParametricNotificationTable,
+				deviceUri, this.seriesDao.getDeviceSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceUri),
+				startDate, endDate, continuation, nResults,
+				aggregated ? new EventDataStream("events", "", deviceUri)
+						: null);
+	}
+
+	/**
+	 * Gets the events corresponding to the given notification (continuous) including
+	 * any restricting parameter in the time frame between startDate and
+	 * endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the notification stream.
+	 */
+	public EventDataPage getSpecificDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			String continuation, int nResults)
+	{
+		String params = (notificationParams != null) ? notificationParams
+				: "";
+
+		return this.selectPage(this.parametricNotificationTable, deviceURI,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, params), startDate, endDate,
+				continuation, nResults, new EventDataStream(
+						notificationName, params, deviceURI));
+	}
+
+	/**
+	 * Gets the events corresponding to the given notification (discrete) in the time
+	 * frame between startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the notification stream.
+	 */
+	public EventDataPage getSpecificDeviceNonParametricNotifications(
+			String deviceURI, String notificationName, Date startDate,
+			Date endDate, String continuation, int nResults)
+	{
+		return this.selectPage(this.nonParametricNotificationTable,
+				deviceURI, this.seriesDao.getDeviceSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, ""), startDate, endDate,
+				continuation, nResults, new EventDataStream(
+						notificationName, "", deviceURI));
+	}
+
+	/**
+	 * Selects a page of events from the given table, if the events cannot be
+	 * retrieved the page is empty and carries the given continuation token,
+	 * so that the same page can be requested again
+	 */
+	private EventDataPage selectPage(EventTable table, String deviceUri,
+			List<Series> series, Date startDate, Date endDate,
+			String continuation, int nResults, EventDataStream stream)
+	{
+		try
+		{
+			return table.selectPage(deviceUri, series, startDate, endDate,
+					continuation, nResults, stream);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve a page of sensor events", e);
+		}
+
+		return new EventDataPage(new EventDataStreamSet(), continuation);
+	}
+
+	/**
+	 * Visits the events carrying a measure generated by a given device in the
+	 * time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param visitor
+	 *            the visitor, called with the stream of each notification
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitAllDeviceParametricNotifications(String deviceUri,
+			Date startDate, Date endDate, EventDataVisitor visitor)
+	{
+		return this.visit(this.parametricNotificationTable, deviceUri,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.PARAMETRIC_NOTIFICATION, deviceUri),
+				startDate, endDate, null, visitor);
+	}
+
+	/**
+	 * Visits the events carrying a discrete value generated by a given device
+	 * in the time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param aggregated
+	 *            true to visit all the events with a single stream
+	 * @param visitor
+	 *            the visitor
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitAllDeviceNonParametricNotifications(String deviceUri,
+			Date startDate, Date endDate, boolean aggregated,
+			EventDataVisitor visitor)
+	{
+		return this.visit(this.nonParametricNotificationTable, deviceUri,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceUri),
+				startDate, endDate,
+				aggregated ? new EventDataStream("events", "", deviceUri)
+						: null, visitor);
+	}
+
+	/**
+	 * Gets the events corresponding to the given notification (continuous)
+	 * including any restricting parameter in the time frame between startDate
+	 * and endDate, downsampled to the given number of points with the
+	 * Largest-Triangle-Three-Buckets algorithm, without holding all the
+	 * events in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param maxPoints
+	 *            The max number of points, at least 3.
+	 * @return The downsampled events.
+	 * @throws IllegalArgumentException
+	 *             if less than 3 points are requested.
+	 */
+	public EventDataStream getDownsampledDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			int maxPoints)
+	{
+		String params = (notificationParams != null) ? notificationParams : "";
+
+		// The event stream to return
+		EventDataStream stream = new NumericEventDataStream(
+				notificationName, params, deviceURI);
+
+		try
+		{
+			this.parametricNotificationTable.selectDownsampled(stream,
+					this.seriesDao.getDeviceSeries(
+							SeriesCategory.PARAMETRIC_NOTIFICATION, deviceURI,
+							notificationName, params), startDate, endDate,
+					maxPoints);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data", e);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Visits the events corresponding to the given notification (continuous)
+	 * including any restricting parameter in the time frame between startDate
+	 * and endDate, in time order, without holding them in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitSpecificDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			EventDataVisitor visitor)
+	{
+		String params = (notificationParams != null) ? notificationParams
+				: "";
+
+		return this.visit(this.parametricNotificationTable, deviceURI,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, params), startDate, endDate,
+				new EventDataStream(notificationName, params, deviceURI),
+				visitor);
+	}
+
+	/**
+	 * Visits the events corresponding to the given notification (discrete) in
+	 * the time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitSpecificDeviceNonParametricNotifications(
+			String deviceURI, String notificationName, Date startDate,
+			Date endDate, EventDataVisitor visitor)
+	{
+		return this.visit(this.nonParametricNotificationTable, deviceURI,
+				this.seriesDao.getDeviceSeries(
+						SeriesCategory.NON_PARAMETRIC_NOTIFICATION, deviceURI,
+						notificationName, ""), startDate, endDate,
+				new EventDataStream(notificationName, "", deviceURI), visitor);
+	}
+
+	/**
+	 * Visits the events of the given table
+	 * 
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events cannot be retrieved.
+	 */
+	private boolean visit(EventTable table, String deviceUri,
+			List<Series> series, Date startDate, Date endDate,
+			EventDataStream stream, EventDataVisitor visitor)
+	{
+		try
+		{
+			return table.visit(deviceUri, series, startDate, endDate,
+					stream, visitor);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to visit sensor events", e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the given aggregates of the given notification (including any restricting
+	 * parameter) in the time frame between startDate and endDate, computed
+	 * by the database in buckets of the given width.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param bucketMillis
+	 *            The bucket width in milliseconds, a multiple of one minute.
+	 * @param functions
+	 *            The aggregate functions.
+	 * @return One stream per function, empty if the aggregates cannot be
+	 *         retrieved.
+	 */
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceParametricNotificationAggregates(
+			String deviceURI, String notificationName, String notificationParams,
+			Date startDate, Date endDate, long bucketMillis,
+			Set<AggregateFunction> functions)
+	{
+		String params = (notificationParams != null) ? notificationParams
+				: "";
+
+		try
+		{
+			// aggregate the rollups of the matching series (one per unit)
+			return this.rollupDao.selectAggregates(new EventDataStream(
+					notificationName, params, deviceURI), this.seriesDao
+					.getDeviceSeries(SeriesCategory.PARAMETRIC_NOTIFICATION,
+							deviceURI, notificationName, params), bucketMillis,
+					functions, startDate, endDate);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data aggregates", e);
+		}
+
+		return new EnumMap<>(AggregateFunction.class);
+	}
+
+	/**
+	 * Gets the rollups of the given notification (including any restricting
+	 * parameter) in the time frame between startDate and endDate, as one data
+	 * point per bucket carrying the requested aggregate, using pagination over
+	 * buckets.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification.
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param resolution
+	 *            The bucket width.
+	 * @param function
+	 *            The aggregate function.
+	 * @param startCount
+	 *            The number of buckets to skip.
+	 * @param nResults
+	 *            The number of buckets to provide back.
+	 * @return The stream of aggregates.
+	 */
+	public EventDataStream getSpecificDeviceParametricNotificationRollups(String deviceURI,
+			String notificationName, String notificationParams, Date startDate,
+			Date endDate, RollupResolution resolution,
+			AggregateFunction function, int startCount, int nResults)
+	{
+		// The event stream to return
+		EventDataStream stream = new EventDataStream(notificationName,
+				notificationParams, deviceURI);
+
+		try
+		{
+			// select the rollups of the matching series (one per unit)
+			this.rollupDao.selectInto(stream, this.seriesDao.getDeviceSeries(
+					SeriesCategory.PARAMETRIC_NOTIFICATION, deviceURI, notificationName,
+					(notificationParams != null) ? notificationParams : ""),
+					resolution, function, startDate, endDate, startCount,
+					nResults);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data rollups", e);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Adds the latest notification of each parametric and non-parametric
+	 * notification of the given device, or of all the devices, to the given
+	 * set, one stream per notification. Latest notifications are kept in
+	 * memory, updated at every insertion, so that no query is needed.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}, null for all the devices.
+	 * @param streamSet
+	 *            The set to fill.
+	 * @return The filled set.
+	 */
+	public EventDataStreamSet getLatestNotifications(String deviceURI,
+			EventDataStreamSet streamSet)
+	{
+		this.parametricNotificationTable.selectLatest(deviceURI, streamSet);
+		return this.nonParametricNotificationTable.selectLatest(deviceURI,
+				streamSet);
+	}
+
 	public void insertParametricNotifications(EventDataStreamSet notificationSet)
 	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
 		// iterate over the stream sets
 		for (EventDataStream currentStream : notificationSet.getDatastreams())
 		{
@@ -750,61 +914,28 @@ public class NotificationDao
 			{
 				if (this.devDao.isDevicePresent(currentStream.getDeviceUri()))
 				{
-					this.storage.getConnection().setAutoCommit(false);
-					// the insert counter
-					int i = 0;
+					// the series of the last point, units seldom change
+					Series series = null;
 
 					// iterate over the data points
 					for (EventDataPoint currentDataPoint : currentStream
 							.getDatapoints())
 					{
-						if (i % H2Storage.MAX_BATCH_SIZE == 0)
-						{
-							// exclude the first time
-							if (i > 0)
-							{
-								// execute the insertion batch
-								// TODO: check if synchronization is required
-								// (should be carried by the db)
-
-								this.insertParametricNotificationStmt
-										.executeBatch();
-								this.storage.getConnection().commit();
-
-							}
-						}
-
-						// add the notification to the batch
-						// fill the prepared statement
-						this.insertParametricNotificationStmt.setTimestamp(1,
-								new Timestamp(currentDataPoint.getAt()
-										.getTime()));
-						this.insertParametricNotificationStmt.setString(2,
-								currentDataPoint.getUnit());
-						this.insertParametricNotificationStmt.setDouble(3,
+						String unit = (currentDataPoint.getUnit() != null) ? currentDataPoint
+								.getUnit() : "";
+						if ((series == null)
+								|| (!series.getUnit().equals(unit)))
+							series = this.seriesDao.getOrCreateSeries(
+									SeriesCategory.PARAMETRIC_NOTIFICATION,
+									currentStream.getDeviceUri(),
+									currentStream.getName(),
+									currentStream.getParameters(), unit);
+
+						// the group committer executes the batch once full
+						this.parametricNotificationTable.insert(series,
+								currentDataPoint.getAt(),
 								Double.valueOf(currentDataPoint.getValue()));
-						this.insertParametricNotificationStmt.setString(4,
-								currentStream.getName());
-						this.insertParametricNotificationStmt.setString(5,
-								currentStream.getParameters());
-						this.insertParametricNotificationStmt.setString(6,
-								currentStream.getDeviceUri());
-
-						// execute the insert query
-						this.insertParametricNotificationStmt.addBatch();
-						// increments the insert counter
-						i++;
 					}
-
-					// execute the remaining batch
-					if (i % H2Storage.MAX_BATCH_SIZE > 0)
-					{
-						this.storage.getConnection().setAutoCommit(false);
-						this.insertParametricNotificationStmt.executeBatch();
-						this.storage.getConnection().setAutoCommit(true);
-					}
-
-					this.storage.getConnection().setAutoCommit(true);
 				}
 			}
 			catch (SQLException e)
@@ -814,11 +945,16 @@ public class NotificationDao
 								+ currentStream.getDeviceUri(), e);
 			}
 		}
+
+		// commit the remaining batch
+		this.flush(committer);
 	}
 
 	public void insertNonParametricNotifications(
 			EventDataStreamSet notificationSet)
 	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
 		// iterate over the stream sets
 		for (EventDataStream currentStream : notificationSet.getDatastreams())
 		{
@@ -826,56 +962,21 @@ public class NotificationDao
 			{
 				if (this.devDao.isDevicePresent(currentStream.getDeviceUri()))
 				{
-					this.storage.getConnection().setAutoCommit(false);
-					// the insert counter
-					int i = 0;
+					// resolve the series
+					Series series = this.seriesDao.getOrCreateSeries(
+							SeriesCategory.NON_PARAMETRIC_NOTIFICATION,
+							currentStream.getDeviceUri(),
+							currentStream.getName(), "", "");
 
 					// iterate over the data points
 					for (EventDataPoint currentDataPoint : currentStream
 							.getDatapoints())
 					{
-						if (i % H2Storage.MAX_BATCH_SIZE == 0)
-						{
-							// exclude the first time
-							if (i > 0)
-							{
-								// execute the insertion batch
-								// TODO: check if synchronization is required
-								// (should be carried by the db)
-
-								this.insertNonParametricNotificationStmt
-										.executeBatch();
-								this.storage.getConnection().commit();
-
-							}
-						}
-
-						// add the notification to the batch
-						// fill the prepared statement
-						this.insertNonParametricNotificationStmt.setTimestamp(
-								1, new Timestamp(currentDataPoint.getAt()
-										.getTime()));
-						this.insertNonParametricNotificationStmt.setString(2,
+						// the group committer executes the batch once full
+						this.nonParametricNotificationTable.insert(series,
+								currentDataPoint.getAt(),
 								currentDataPoint.getValue());
-						this.insertNonParametricNotificationStmt.setString(3,
-								currentStream.getName());
-						this.insertNonParametricNotificationStmt.setString(4,
-								currentStream.getDeviceUri());
-
-						// execute the insert query
-						this.insertNonParametricNotificationStmt.addBatch();
-						// increments the insert counter
-						i++;
 					}
-
-					// execute the remaining batch
-					if (i % H2Storage.MAX_BATCH_SIZE > 0)
-					{
-						this.storage.getConnection().setAutoCommit(false);
-						this.insertNonParametricNotificationStmt.executeBatch();
-						this.storage.getConnection().setAutoCommit(true);
-					}
-					this.storage.getConnection().setAutoCommit(true);
 				}
 			}
 			catch (SQLException e)
@@ -885,5 +986,28 @@ public class NotificationDao
 								+ currentStream.getDeviceUri(), e);
 			}
 		}
+
+		// commit the remaining batch
+		this.flush(committer);
+	}
+
+	/**
+	 * Commits the rows still pending in the given {@link GroupCommitter}, used
+	 * by bulk insertions to make data durable before returning.
+	 * 
+	 * @param committer
+	 *            The group committer to flush.
+	 */
+	private void flush(GroupCommitter committer)
+	{
+		try
+		{
+			committer.flush();
+		}
+		catch (SQLException e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to commit stored notifications", e);
+		}
 	}
 }
@@ -0,0 +1,90 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+/**
+ * The position of an event in the order used by keyset pagination, i.e., by
+ * timestamp, series id and row id. Continuation tokens are the opaque string
+ * form of the position of the last event of a page.
+ * 
+ */
+final class PageCursor implements Comparable<PageCursor>
+{
+	// the version of the token format
+	private static final String TOKEN_VERSION = "1";
+
+	// the event timestamp, in milliseconds
+	final long timestamp;
+
+	// the event series
+	final int seriesId;
+
+	// the row id, negative for events not stored as rows
+	final long id;
+
+	/**
+	 * Creates the position of the given event
+	 */
+	PageCursor(long timestamp, int seriesId, long id)
+	{
+		this.timestamp = timestamp;
+		this.seriesId = seriesId;
+		this.id = id;
+	}
+
+	/**
+	 * Parses the given continuation token
+	 * 
+	 * @param token
+	 *            The token.
+	 * @return The position, or null for null or empty tokens, i.e., the
+	 *         first page.
+	 * @throws IllegalArgumentException
+	 *             if the token is not a valid continuation token.
+	 */
+	static PageCursor parse(String token)
+	{
+		if ((token == null) || (token.isEmpty()))
+			return null;
+
+		String[] fields = token.split("\\.");
+		if ((fields.length != 4)
+				|| (!fields[0].equals(PageCursor.TOKEN_VERSION)))
+			throw new IllegalArgumentException("Invalid continuation token: "
+					+ token);
+
+		try
+		{
+			return new PageCursor(Long.parseLong(fields[1], 36),
+					Integer.parseInt(fields[2], 36), Long.parseLong(fields[3],
+							36));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid continuation token: "
+					+ token, e);
+		}
+	}
+
+	/**
+	 * Gets the continuation token of this position
+	 * 
+	 * @return The token.
+	 */
+	String toToken()
+	{
+		return PageCursor.TOKEN_VERSION + "."
+				+ Long.toString(this.timestamp, 36) + "."
+				+ Integer.toString(this.seriesId, 36) + "."
+				+ Long.toString(this.id, 36);
+	}
+
+	@Override
+	public int compareTo(PageCursor other)
+	{
+		if (this.timestamp != other.timestamp)
+			return Long.compare(this.timestamp, other.timestamp);
+		if (this.seriesId != other.seriesId)
+			return Integer.compare(this.seriesId, other.seriesId);
+
+		return Long.compare(this.id, other.id);
+	}
+}
@@ -0,0 +1,362 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.StorageQuota;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * Enforces the storage limits on a background thread. With the drop
+ * retention, rows exceeding the limits are refused by the data tables as soon
+ * as the {@link StorageQuota} is full; with the replace retention, the oldest
+ * rows are evicted until the storage is back below its limits. The rollups
+ * summarizing evicted rows only are deleted with them.
+ * </p>
+ * 
+ * <p>
+ * Evictions are performed in small chunks, each deleting a bounded number of
+ * rows in its own transaction, and are paused as soon as a time budget is
+ * spent, so that insertions are never stalled for long.
+ * </p>
+ * 
+ */
+public class RetentionManager implements Runnable
+{
+	// the interval between two checks of the storage size, in milliseconds
+	public static final long CHECK_INTERVAL = 5000;
+
+	// the pause between two eviction passes, letting insertions proceed
+	private static final long EVICTION_PAUSE = 20;
+
+	// the interval between two actual counts of the stored rows
+	private static final long RECOUNT_INTERVAL = 600000;
+
+	// the max number of rows deleted in a single transaction
+	private static final int CHUNK_ROWS = 1000;
+
+	// the max time spent in a single eviction pass
+	private static final long PASS_BUDGET_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(200);
+
+	// the fraction of the max rows evictions bring the storage back to
+	private static final double LOW_WATERMARK = 0.95;
+
+	// the fraction of rows evicted whenever the database file outgrows its
+	// max size, freed pages are reused before the file grows again
+	private static final double FILE_EVICTION_RATIO = 0.1;
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// the storage layer
+	private H2Storage storage;
+
+	// the data tables subject to retention
+	private final List<EventTable> tables;
+
+	// true to evict older rows, false to refuse newer ones
+	private volatile boolean replace;
+
+	// the retention thread
+	private volatile Thread retentionThread;
+
+	// the running flag
+	private volatile boolean running;
+
+	// the time of the last row count
+	private long lastRecount;
+
+	// the number of rows still to evict
+	private long rowsToEvict;
+
+	// the file size which triggered the last eviction, 0 if none
+	private long evictedFileSize;
+
+	// the number of rows evicted since the start
+	private volatile long evictedRows;
+
+	// the storage state last reported in the log
+	private boolean reportedFull;
+
+	/**
+	 * Creates the {@link RetentionManager} of the tables handled by the given
+	 * DAOs, by default the storage is unlimited.
+	 * 
+	 * @param stateDao
+	 *            The state DAO.
+	 * @param notificationDao
+	 *            The notification DAO.
+	 * @param storage
+	 *            The storage layer.
+	 * @param context
+	 *            The bundle context.
+	 */
+	public RetentionManager(final StateDao stateDao,
+			final NotificationDao notificationDao, final H2Storage storage,
+			final BundleContext context)
+	{
+		// init logger
+		this.logger = new LogHelper(context);
+
+		// store the storage layer
+		this.storage = storage;
+
+		// the tables subject to retention
+		this.tables = new ArrayList<>();
+		this.tables.addAll(stateDao.getTables());
+		this.tables.addAll(notificationDao.getTables());
+
+		this.replace = false;
+	}
+
+	/**
+	 * Configures the storage limits and the retention mode, limits are
+	 * enforced once started.
+	 * 
+	 * @param replace
+	 *            true to evict older rows once full, false to refuse newer
+	 *            rows.
+	 * @param maxRows
+	 *            The max number of rows, {@link StorageQuota#UNLIMITED} for no
+	 *            limit.
+	 * @param maxFileSize
+	 *            The max size of the database file in bytes,
+	 *            {@link StorageQuota#UNLIMITED} for no limit.
+	 */
+	public void configure(boolean replace, long maxRows, long maxFileSize)
+	{
+		this.replace = replace;
+		this.storage.getQuota().configure(maxRows, maxFileSize, !replace);
+	}
+
+	/**
+	 * Counts the stored rows and starts the retention thread, if the storage
+	 * is bounded
+	 */
+	public synchronized void start()
+	{
+		// the initial row count
+		this.recount();
+
+		if ((this.retentionThread == null)
+				&& (this.storage.getQuota().isBounded()))
+		{
+			this.running = true;
+			this.retentionThread = new Thread(this, "h2eventstore-retention");
+			this.retentionThread.setDaemon(true);
+			this.retentionThread.start();
+		}
+	}
+
+	/**
+	 * Stops the retention thread, waiting for the current eviction chunk to
+	 * complete
+	 */
+	public synchronized void stop()
+	{
+		Thread thread = this.retentionThread;
+
+		if (thread != null)
+		{
+			this.running = false;
+			thread.interrupt();
+
+			try
+			{
+				thread.join(RetentionManager.CHECK_INTERVAL);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			this.retentionThread = null;
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (this.running)
+		{
+			long pause = this.enforce();
+
+			try
+			{
+				Thread.sleep(pause);
+			}
+			catch (InterruptedException e)
+			{
+				// stopped
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks the storage limits and evicts rows if needed, called on the
+	 * retention thread only.
+	 * 
+	 * @return the time, in milliseconds, before the next check.
+	 */
+	private long enforce()
+	{
+		// recover from drifts of the tracked row count, e.g., failed commits
+		long now = System.currentTimeMillis();
+		if (now - this.lastRecount >= RetentionManager.RECOUNT_INTERVAL)
+			this.recount();
+
+		StorageQuota quota = this.storage.getQuota();
+		long fileSize = this.storage.getDatabaseFileSize();
+		boolean fileFull = quota.checkFileSize(fileSize);
+
+		if (!this.replace)
+		{
+			// rows are refused by the tables, just report it
+			boolean full = quota.isFull();
+			if (full != this.reportedFull)
+			{
+				this.logger.log(LogService.LOG_WARNING,
+						full ? "Event storage is full, new events are dropped"
+								: "Event storage is no longer full");
+				this.reportedFull = full;
+			}
+
+			return RetentionManager.CHECK_INTERVAL;
+		}
+
+		// rows exceeding the max number of rows
+		long storedRows = quota.getStoredRows();
+		if ((quota.getMaxRows() > 0) && (storedRows > quota.getMaxRows()))
+			this.rowsToEvict = Math.max(this.rowsToEvict, storedRows
+					- (long) (quota.getMaxRows()
+							* RetentionManager.LOW_WATERMARK));
+
+		// a share of the rows once the file outgrows its max size
+		if (!fileFull)
+			this.evictedFileSize = 0;
+		else if (fileSize > this.evictedFileSize)
+		{
+			this.rowsToEvict = Math.max(this.rowsToEvict,
+					(long) (storedRows
+							* RetentionManager.FILE_EVICTION_RATIO));
+			this.evictedFileSize = fileSize;
+		}
+
+		if (this.rowsToEvict <= 0)
+			return RetentionManager.CHECK_INTERVAL;
+
+		this.evict();
+
+		return (this.rowsToEvict > 0) ? RetentionManager.EVICTION_PAUSE
+				: RetentionManager.CHECK_INTERVAL;
+	}
+
+	/**
+	 * Evicts the oldest rows, chunk by chunk, until either all the rows to
+	 * evict have been deleted or the time budget of the pass is spent
+	 */
+	private void evict()
+	{
+		long deadline = System.nanoTime()
+				+ RetentionManager.PASS_BUDGET_NANOS;
+
+		try
+		{
+			while ((this.rowsToEvict > 0) && (this.running)
+					&& (System.nanoTime() < deadline))
+			{
+				// the table holding the oldest rows
+				EventTable oldest = null;
+				long oldestTimestamp = Long.MAX_VALUE;
+				for (EventTable table : this.tables)
+				{
+					long timestamp = table.getOldestTimestamp();
+					if (timestamp < oldestTimestamp)
+					{
+						oldest = table;
+						oldestTimestamp = timestamp;
+					}
+				}
+
+				long deleted = (oldest != null) ? oldest
+						.evictOldest((int) Math.min(this.rowsToEvict,
+								RetentionManager.CHUNK_ROWS)) : 0;
+
+				if (deleted > 0)
+				{
+					this.rowsToEvict -= deleted;
+					this.evictedRows += deleted;
+				}
+				else
+				{
+					// nothing left to evict
+					this.rowsToEvict = 0;
+				}
+			}
+
+			if (this.rowsToEvict <= 0)
+			{
+				this.rowsToEvict = 0;
+				this.logger.log(LogService.LOG_DEBUG, "Evicted old events, "
+						+ this.evictedRows + " rows evicted since the start");
+			}
+		}
+		catch (SQLException e)
+		{
+			// retry at the next check
+			this.rowsToEvict = 0;
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to evict old events", e);
+		}
+	}
+
+	/**
+	 * Counts the rows actually stored in the tables
+	 */
+	private void recount()
+	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
+		try
+		{
+			synchronized (committer)
+			{
+				// pending rows are already accounted
+				committer.flush();
+
+				long rows = 0;
+				for (EventTable table : this.tables)
+					rows += table.countRows();
+
+				this.storage.getQuota().setStoredRows(rows);
+			}
+		}
+		catch (SQLException e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to count the stored events", e);
+		}
+
+		this.lastRecount = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the number of rows evicted since the start
+	 * 
+	 * @return the evicted rows.
+	 */
+	public long getEvictedRows()
+	{
+		return this.evictedRows;
+	}
+}
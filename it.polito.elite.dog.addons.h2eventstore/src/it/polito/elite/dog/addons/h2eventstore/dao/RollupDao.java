@@ -0,0 +1,848 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.ReadConnection;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.addons.h2eventstore.db.StatementCache;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPoint;
+import it.polito.elite.dog.addons.storage.EventDataStream;
+import it.polito.elite.dog.addons.storage.RollupResolution;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * Maintains the rollups of the events carrying a measure, i.e., the count,
+ * min, max, sum, first and last value of each series in 1-minute, 1-hour and
+ * 1-day buckets.
+ * </p>
+ *
+ * <p>
+ * Rollups are updated incrementally: inserted values are accumulated in
+ * memory and merged into the stored buckets by the {@link GroupCommitter}
+ * flush, in the same transaction as the inserted rows.
+ * </p>
+ *
+ */
+public class RollupDao implements GroupCommitter.Participant
+{
+	// the rollup table name
+	public static final String TABLE_NAME = "Rollup";
+
+	// the max number of buckets accumulated by a backfill before writing
+	private static final int BACKFILL_BUCKETS = 10000;
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the buckets updated since the last flush, guarded by the group
+	// committer
+	private Map<Bucket, Aggregate> pending;
+
+	/**
+	 * Creates the {@link RollupDao}, creating the rollup table if needed, and
+	 * registers it to the group commits of the given storage
+	 *
+	 * @param storage
+	 *            The storage layer.
+	 * @param context
+	 *            The bundle context.
+	 */
+	public RollupDao(final H2Storage storage, final BundleContext context)
+	{
+		// init logger
+		this.logger = new LogHelper(context);
+
+		// store the connection
+		this.storage = storage;
+
+		this.pending = new HashMap<>();
+
+		// check and create the table if needed
+		this.checkAndCreateTable();
+
+		// write rollups together with the rows
+		this.storage.getGroupCommitter().addParticipant(this);
+	}
+
+	private void checkAndCreateTable()
+	{
+		List<SchemaMigration> migrations = new ArrayList<>();
+
+		// 1: the rollup table
+		migrations.add(new SchemaMigration(1, "rollup table") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate("CREATE TABLE IF NOT EXISTS "
+							+ table
+							+ "(series_id int(11), resolution int(11), bucket TIMESTAMP, "
+							+ "cnt BIGINT, min_value DOUBLE, max_value DOUBLE, sum_value DOUBLE, "
+							+ "first_at TIMESTAMP, first_value DOUBLE, last_at TIMESTAMP, last_value DOUBLE, "
+							+ "PRIMARY KEY(series_id, resolution, bucket), "
+							+ "FOREIGN KEY (series_id) REFERENCES Series(id) ON DELETE CASCADE);");
+				}
+			}
+		});
+
+		try
+		{
+			this.storage.getSchemaMigrator().migrate(RollupDao.TABLE_NAME,
+					migrations);
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to check / create " + RollupDao.TABLE_NAME
+							+ " db table", e);
+		}
+	}
+
+	public boolean close()
+	{
+		this.storage.getGroupCommitter().removeParticipant(this);
+
+		return true;
+	}
+
+	/**
+	 * Accumulates an inserted value in the rollups of its series, must be
+	 * called holding the lock of the group committer.
+	 *
+	 * @param seriesId
+	 *            The series id.
+	 * @param timestamp
+	 *            The event timestamp, in milliseconds.
+	 * @param value
+	 *            The event value.
+	 */
+	void accumulate(int seriesId, long timestamp, double value)
+	{
+		RollupDao.accumulate(this.pending, seriesId, timestamp, value);
+	}
+
+	/**
+	 * Accumulates a value in the rollups held by the given map
+	 */
+	private static void accumulate(Map<Bucket, Aggregate> buckets,
+			int seriesId, long timestamp, double value)
+	{
+		for (RollupResolution resolution : RollupResolution.values())
+		{
+			Bucket bucket = new Bucket(seriesId, resolution.getSeconds(),
+					resolution.truncate(timestamp));
+
+			Aggregate aggregate = buckets.get(bucket);
+			if (aggregate == null)
+			{
+				aggregate = new Aggregate();
+				buckets.put(bucket, aggregate);
+			}
+			aggregate.add(timestamp, value);
+		}
+	}
+
+	@Override
+	public void beforeCommit() throws SQLException
+	{
+		if (!this.pending.isEmpty())
+		{
+			try
+			{
+				this.write(this.pending);
+			}
+			finally
+			{
+				this.pending = new HashMap<>();
+			}
+		}
+	}
+
+	@Override
+	public void afterCommit()
+	{
+		// nothing to do, rollups are written before committing
+	}
+
+	@Override
+	public void afterRollback()
+	{
+		// the accumulated rows have been discarded
+		this.pending = new HashMap<>();
+	}
+
+	/**
+	 * Computes the rollups of the rows already stored in the given data
+	 * table, e.g., rows stored before rollups were introduced. Commits are
+	 * left to the caller.
+	 *
+	 * @param table
+	 *            The name of the data table, having numeric values.
+	 * @throws SQLException
+	 */
+	void backfill(String table) throws SQLException
+	{
+		Map<Bucket, Aggregate> buckets = new HashMap<>();
+
+		try (Statement query = this.storage.getConnection().createStatement())
+		{
+			// stream the rows
+			query.setFetchSize(1000);
+			try (ResultSet result = query
+					.executeQuery("SELECT series_id, timestamp, value FROM "
+							+ table + " WHERE value IS NOT NULL"))
+			{
+				while (result.next())
+				{
+					RollupDao.accumulate(buckets, result.getInt(1), result
+							.getTimestamp(2).getTime(), result.getDouble(3));
+
+					// bound the memory used by large tables
+					if (buckets.size() >= RollupDao.BACKFILL_BUCKETS)
+					{
+						this.write(buckets);
+						buckets.clear();
+					}
+				}
+			}
+		}
+
+		this.write(buckets);
+	}
+
+	/**
+	 * Deletes the rollups of the given series summarizing removed rows only,
+	 * i.e., the buckets ending before its first stored row, or all of them
+	 * if no row is left. Buckets holding both removed and stored rows are
+	 * kept. Must be called holding the lock of the group committer, commits
+	 * are left to the caller.
+	 *
+	 * @param seriesId
+	 *            The series id.
+	 * @param first
+	 *            The timestamp of the first row left, null if none.
+	 * @throws SQLException
+	 */
+	void rowsRemoved(int seriesId, Long first) throws SQLException
+	{
+		if (first == null)
+		{
+			try (PreparedStatement delete = this.storage.getConnection()
+					.prepareStatement("DELETE FROM " + RollupDao.TABLE_NAME
+							+ " WHERE series_id=?;"))
+			{
+				delete.setInt(1, seriesId);
+				delete.executeUpdate();
+			}
+			return;
+		}
+
+		try (PreparedStatement delete = this.storage.getConnection()
+				.prepareStatement("DELETE FROM " + RollupDao.TABLE_NAME
+						+ " WHERE series_id=? AND resolution=? AND bucket<?;"))
+		{
+			// buckets do not overlap, those before the bucket of the first
+			// row end before it
+			for (RollupResolution resolution : RollupResolution.values())
+			{
+				delete.setInt(1, seriesId);
+				delete.setInt(2, resolution.getSeconds());
+				delete.setTimestamp(3, new Timestamp(resolution
+						.truncate(first)));
+				delete.addBatch();
+			}
+			delete.executeBatch();
+		}
+	}
+
+	/**
+	 * Merges the given aggregates into the stored buckets
+	 */
+	private void write(Map<Bucket, Aggregate> buckets) throws SQLException
+	{
+		if (buckets.isEmpty())
+			return;
+
+		List<Bucket> keys = new ArrayList<>(buckets.keySet());
+
+		// update the existing buckets first
+		int[] updated;
+		try (PreparedStatement update = this.storage
+				.getConnection()
+				.prepareStatement(
+						"UPDATE "
+								+ RollupDao.TABLE_NAME
+								+ " SET cnt=cnt+?, min_value=LEAST(min_value,?), max_value=GREATEST(max_value,?), "
+								+ "sum_value=sum_value+?, "
+								+ "first_value=CASE WHEN ?<first_at THEN ? ELSE first_value END, first_at=LEAST(first_at,?), "
+								+ "last_value=CASE WHEN ?>=last_at THEN ? ELSE last_value END, last_at=GREATEST(last_at,?) "
+								+ "WHERE series_id=? AND resolution=? AND bucket=?;"))
+		{
+			for (Bucket key : keys)
+			{
+				Aggregate aggregate = buckets.get(key);
+				Timestamp firstAt = new Timestamp(aggregate.firstAt);
+				Timestamp lastAt = new Timestamp(aggregate.lastAt);
+
+				update.setLong(1, aggregate.count);
+				update.setDouble(2, aggregate.min);
+				update.setDouble(3, aggregate.max);
+				update.setDouble(4, aggregate.sum);
+				update.setTimestamp(5, firstAt);
+				update.setDouble(6, aggregate.first);
+				update.setTimestamp(7, firstAt);
+				update.setTimestamp(8, lastAt);
+				update.setDouble(9, aggregate.last);
+				update.setTimestamp(10, lastAt);
+				update.setInt(11, key.seriesId);
+				update.setInt(12, key.resolution);
+				update.setTimestamp(13, new Timestamp(key.start));
+				update.addBatch();
+			}
+			updated = update.executeBatch();
+		}
+
+		// then insert the new ones
+		try (PreparedStatement insert = this.storage.getConnection()
+				.prepareStatement(
+						"INSERT INTO " + RollupDao.TABLE_NAME
+								+ " VALUES (?,?,?,?,?,?,?,?,?,?,?);"))
+		{
+			boolean inserting = false;
+			for (int i = 0; i < keys.size(); i++)
+			{
+				if (updated[i] == 0)
+				{
+					Bucket key = keys.get(i);
+					Aggregate aggregate = buckets.get(key);
+
+					insert.setInt(1, key.seriesId);
+					insert.setInt(2, key.resolution);
+					insert.setTimestamp(3, new Timestamp(key.start));
+					insert.setLong(4, aggregate.count);
+					insert.setDouble(5, aggregate.min);
+					insert.setDouble(6, aggregate.max);
+					insert.setDouble(7, aggregate.sum);
+					insert.setTimestamp(8, new Timestamp(aggregate.firstAt));
+					insert.setDouble(9, aggregate.first);
+					insert.setTimestamp(10, new Timestamp(aggregate.lastAt));
+					insert.setDouble(11, aggregate.last);
+					insert.addBatch();
+					inserting = true;
+				}
+			}
+			if (inserting)
+				insert.executeBatch();
+		}
+	}
+
+	/**
+	 * Selects the rollups of the given series in the given time frame, using
+	 * pagination over buckets, and adds to the given stream one point per
+	 * bucket, carrying the requested aggregate. Buckets overlapping the time
+	 * frame are included and rollups of different series are merged.
+	 *
+	 * @param stream
+	 *            The stream to fill.
+	 * @param series
+	 *            The series to select.
+	 * @param resolution
+	 *            The rollup resolution.
+	 * @param function
+	 *            The aggregate function.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param startCount
+	 *            The number of buckets to skip.
+	 * @param nResults
+	 *            The max number of buckets to provide back.
+	 * @return The filled stream.
+	 * @throws SQLException
+	 */
+	public EventDataStream selectInto(EventDataStream stream,
+			List<Series> series, RollupResolution resolution,
+			AggregateFunction function, Date startDate, Date endDate,
+			int startCount, int nResults) throws SQLException
+	{
+		if (series.isEmpty())
+			return stream;
+
+		// the series ids, in index order
+		List<Integer> ids = new ArrayList<>();
+		for (Series current : series)
+			ids.add(current.getId());
+		Collections.sort(ids);
+
+		StringBuilder query = new StringBuilder(
+				"SELECT bucket, cnt, min_value, max_value, sum_value, first_at, first_value, last_at, last_value FROM ");
+		query.append(RollupDao.TABLE_NAME);
+		query.append(" WHERE series_id IN (");
+		int arity = StatementCache.getArity(ids.size());
+		for (int i = 0; i < arity; i++)
+			query.append((i == 0) ? "?" : ",?");
+		query.append(") AND resolution=? AND bucket>=? AND bucket<=? ORDER BY bucket;");
+
+		// the unit of the measures, if any
+		String unit = (function == AggregateFunction.COUNT) ? "" : series
+				.get(0).getUnit();
+
+		// queries run on a reader connection, not to delay insertions
+		try (ReadConnection reader = this.storage.getReadConnection())
+		{
+			// cached statement, closed with its connection
+			PreparedStatement stmt = reader.getStatements().prepare(
+					query.toString());
+
+			// fill the statement data, repeating the last id if needed
+			int i = 1;
+			for (int j = 0; j < arity; j++)
+				stmt.setInt(i++, ids.get(Math.min(j, ids.size() - 1)));
+			stmt.setInt(i++, resolution.getSeconds());
+			stmt.setTimestamp(i++,
+					new Timestamp(resolution.truncate(startDate.getTime())));
+			stmt.setTimestamp(i++, new Timestamp(endDate.getTime()));
+
+			try (ResultSet result = stmt.executeQuery())
+			{
+				long currentBucket = 0;
+				Aggregate current = null;
+				int nBuckets = 0;
+
+				while (result.next())
+				{
+					long bucket = result.getTimestamp(1).getTime();
+
+					if ((current != null) && (bucket != currentBucket))
+					{
+						// a complete bucket
+						if (nBuckets++ >= startCount)
+							stream.addDatapoint(new EventDataPoint(new Date(
+									currentBucket), current.get(function),
+									unit));
+						current = null;
+
+						if (nBuckets >= startCount + nResults)
+							break;
+					}
+
+					if (current == null)
+					{
+						current = new Aggregate();
+						currentBucket = bucket;
+					}
+					current.merge(result);
+				}
+
+				// the last bucket
+				if ((current != null) && (nBuckets >= startCount)
+						&& (nBuckets < startCount + nResults))
+					stream.addDatapoint(new EventDataPoint(new Date(
+							currentBucket), current.get(function), unit));
+			}
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Computes the requested aggregates of the given series in buckets of
+	 * the given width, aligned to UTC, merging the series. Aggregation runs
+	 * in the database, grouping the stored rollups of the largest resolution
+	 * dividing the bucket width, so that the cost depends on the number of
+	 * rollups rather than of events. Buckets overlapping the time frame are
+	 * included.
+	 * 
+	 * @param template
+	 *            The stream describing the aggregated series, each returned
+	 *            stream has its name, parameters and device.
+	 * @param series
+	 *            The series to aggregate.
+	 * @param bucketMillis
+	 *            The bucket width in milliseconds, a multiple of one minute.
+	 * @param functions
+	 *            The aggregate functions to compute.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @return One stream per requested function, holding one point per
+	 *         bucket.
+	 * @throws SQLException
+	 * @throws IllegalArgumentException
+	 *             if the bucket width is not a positive multiple of one
+	 *             minute.
+	 */
+	public Map<AggregateFunction, EventDataStream> selectAggregates(
+			EventDataStream template, List<Series> series, long bucketMillis,
+			Set<AggregateFunction> functions, Date startDate, Date endDate)
+			throws SQLException
+	{
+		RollupResolution resolution = RollupDao.getResolution(bucketMillis);
+
+		Map<AggregateFunction, EventDataStream> streams = new EnumMap<>(
+				AggregateFunction.class);
+		for (AggregateFunction function : functions)
+			streams.put(function, new EventDataStream(template.getName(),
+					template.getParameters(), template
+							.getDeviceUri()));
+
+		if ((series.isEmpty()) || (functions.isEmpty()))
+			return streams;
+
+		// the series ids, in index order
+		List<Integer> ids = new ArrayList<>();
+		for (Series current : series)
+			ids.add(current.getId());
+		Collections.sort(ids);
+
+		// first and last values need a lookup of the matching rollup
+		boolean first = functions.contains(AggregateFunction.FIRST);
+		boolean last = functions.contains(AggregateFunction.LAST);
+
+		// the buckets, merged across segments of constant utc offset
+		TreeMap<Long, Aggregate> buckets = new TreeMap<>();
+
+		long start = bucketMillis
+				* RollupDao.floorDiv(startDate.getTime(), bucketMillis);
+		long end = endDate.getTime() + 1;
+
+		// queries run on a reader connection, not to delay insertions
+		try (ReadConnection reader = this.storage.getReadConnection())
+		{
+			for (long[] segment : RollupDao.splitByOffset(start, end))
+			{
+				List<Object> params = new ArrayList<>();
+				StringBuilder query = new StringBuilder(
+						"SELECT g.k, g.cnt, g.mn, g.mx, g.sm, g.fa, ");
+				this.appendLookup(query, params, first, "first", "g.fa",
+						ids, resolution);
+				query.append(", g.la, ");
+				this.appendLookup(query, params, last, "last", "g.la", ids,
+						resolution);
+
+				// timestamps are stored as local times: the local time in
+				// milliseconds is built from the date and time fields, as
+				// the date arithmetic of H2 1.4.179 is wrong across offset
+				// changes, then corrected by the offset of the segment
+				query.append(" FROM (SELECT CAST(FLOOR(CAST(DATEDIFF('DAY', DATE '1970-01-01', CAST(bucket AS DATE)) * 86400000 "
+						+ "+ HOUR(bucket) * 3600000 + MINUTE(bucket) * 60000 - ? AS DOUBLE) / ?) AS BIGINT) AS k, "
+						+ "SUM(cnt) AS cnt, MIN(min_value) AS mn, MAX(max_value) AS mx, SUM(sum_value) AS sm, "
+						+ "MIN(first_at) AS fa, MAX(last_at) AS la FROM ");
+				params.add(segment[2]);
+				params.add(bucketMillis);
+				query.append(RollupDao.TABLE_NAME);
+				this.appendSeries(query, params, ids, resolution);
+				query.append(" AND bucket>=? AND bucket<? GROUP BY k) g ORDER BY g.k;");
+				params.add(new Timestamp(segment[0]));
+				params.add(new Timestamp(segment[1]));
+
+				// cached statement, closed with its connection
+				PreparedStatement stmt = reader.getStatements().prepare(
+						query.toString());
+				for (int i = 0; i < params.size(); i++)
+					stmt.setObject(i + 1, params.get(i));
+
+				try (ResultSet result = stmt.executeQuery())
+				{
+					while (result.next())
+					{
+						// buckets across an offset change are split
+						Long bucket = result.getLong(1) * bucketMillis;
+						Aggregate aggregate = buckets.get(bucket);
+						if (aggregate == null)
+						{
+							aggregate = new Aggregate();
+							buckets.put(bucket, aggregate);
+						}
+						aggregate.merge(result);
+					}
+				}
+			}
+		}
+
+		// the unit of the measures, if any
+		String unit = series.get(0).getUnit();
+
+		for (Map.Entry<Long, Aggregate> bucket : buckets.entrySet())
+		{
+			Date at = new Date(bucket.getKey());
+			for (Map.Entry<AggregateFunction, EventDataStream> stream : streams
+					.entrySet())
+				stream.getValue().addDatapoint(
+						new EventDataPoint(at, bucket.getValue().get(
+								stream.getKey()),
+								(stream.getKey() == AggregateFunction.COUNT) ? ""
+										: unit));
+		}
+
+		return streams;
+	}
+
+	/**
+	 * Appends the series and resolution restrictions to the given query
+	 */
+	private void appendSeries(StringBuilder query, List<Object> params,
+			List<Integer> ids, RollupResolution resolution)
+	{
+		query.append(" WHERE series_id IN (");
+		int arity = StatementCache.getArity(ids.size());
+		for (int i = 0; i < arity; i++)
+		{
+			query.append((i == 0) ? "?" : ",?");
+			params.add(ids.get(Math.min(i, ids.size() - 1)));
+		}
+		query.append(") AND resolution=?");
+		params.add(resolution.getSeconds());
+	}
+
+	/**
+	 * Appends the lookup of the first or last value of a group, i.e., the
+	 * value of the rollup holding the first or last event of the group, or a
+	 * null value if not needed
+	 */
+	private void appendLookup(StringBuilder query, List<Object> params,
+			boolean needed, String kind, String at, List<Integer> ids,
+			RollupResolution resolution)
+	{
+		if (!needed)
+		{
+			query.append("CAST(NULL AS DOUBLE)");
+			return;
+		}
+
+		query.append("(SELECT f." + kind + "_value FROM ");
+		query.append(RollupDao.TABLE_NAME);
+		query.append(" f");
+		this.appendSeries(query, params, ids, resolution);
+
+		// the rollup holding the event, with an offset change margin
+		query.append(" AND f.bucket<=" + at
+				+ " AND f.bucket>DATEADD('SECOND', ?, " + at + ") AND f." + kind + "_at=" + at + " LIMIT 1)");
+		params.add(-(resolution.getSeconds() + 3600));
+	}
+
+	/**
+	 * Gets the largest rollup resolution dividing the given bucket width
+	 */
+	private static RollupResolution getResolution(long bucketMillis)
+	{
+		RollupResolution[] resolutions = RollupResolution.values();
+		for (int i = resolutions.length - 1; i >= 0; i--)
+		{
+			if ((bucketMillis > 0)
+					&& (bucketMillis % resolutions[i].getMillis() == 0))
+				return resolutions[i];
+		}
+
+		throw new IllegalArgumentException("Invalid bucket width "
+				+ bucketMillis + " ms, it must be a multiple of one minute");
+	}
+
+	/**
+	 * Splits the given time frame in segments where the offset of the
+	 * default time zone from UTC is constant
+	 * 
+	 * @return the segments, as start, end and offset in milliseconds.
+	 */
+	private static List<long[]> splitByOffset(long from, long to)
+	{
+		TimeZone zone = TimeZone.getDefault();
+		List<long[]> segments = new ArrayList<>();
+
+		long segmentStart = from;
+		int offset = zone.getOffset(from);
+		long current = from;
+		while (current < to)
+		{
+			long next = Math.min(to, current
+					+ RollupResolution.DAY.getMillis());
+			if (zone.getOffset(next) != offset)
+			{
+				// find the first instant having the new offset
+				long low = current;
+				long high = next;
+				while (high - low > 1)
+				{
+					long middle = low + (high - low) / 2;
+					if (zone.getOffset(middle) == offset)
+						low = middle;
+					else
+						high = middle;
+				}
+
+				segments.add(new long[] { segmentStart, high, offset });
+				segmentStart = high;
+				offset = zone.getOffset(high);
+				next = high;
+			}
+			current = next;
+		}
+		segments.add(new long[] { segmentStart, to, offset });
+
+		return segments;
+	}
+
+	/**
+	 * Divides and rounds towards negative infinity
+	 */
+	private static long floorDiv(long value, long divisor)
+	{
+		long quotient = value / divisor;
+		if ((value % divisor != 0) && ((value < 0) != (divisor < 0)))
+			quotient--;
+
+		return quotient;
+	}
+
+	/**
+	 * The identifier of a rollup bucket
+	 */
+	private static class Bucket
+	{
+		private final int seriesId;
+		private final int resolution;
+		private final long start;
+
+		private Bucket(int seriesId, int resolution, long start)
+		{
+			this.seriesId = seriesId;
+			this.resolution = resolution;
+			this.start = start;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Bucket))
+				return false;
+
+			Bucket other = (Bucket) obj;
+			return (this.seriesId == other.seriesId)
+					&& (this.resolution == other.resolution)
+					&& (this.start == other.start);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = 31 * this.seriesId + this.resolution;
+			return 31 * h + (int) (this.start ^ (this.start >>> 32));
+		}
+	}
+
+	/**
+	 * The summary of the values of a bucket
+	 */
+	private static class Aggregate
+	{
+		private long count;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private double sum;
+		private long firstAt = Long.MAX_VALUE;
+		private double first;
+		private long lastAt = Long.MIN_VALUE;
+		private double last;
+
+		/**
+		 * Adds a single value
+		 */
+		private void add(long timestamp, double value)
+		{
+			this.count++;
+			this.min = Math.min(this.min, value);
+			this.max = Math.max(this.max, value);
+			this.sum += value;
+			if (timestamp < this.firstAt)
+			{
+				this.firstAt = timestamp;
+				this.first = value;
+			}
+			if (timestamp >= this.lastAt)
+			{
+				this.lastAt = timestamp;
+				this.last = value;
+			}
+		}
+
+		/**
+		 * Merges the stored summary in the current row of the given result
+		 * set, as selected by selectInto
+		 */
+		private void merge(ResultSet result) throws SQLException
+		{
+			this.count += result.getLong(2);
+			this.min = Math.min(this.min, result.getDouble(3));
+			this.max = Math.max(this.max, result.getDouble(4));
+			this.sum += result.getDouble(5);
+
+			long at = result.getTimestamp(6).getTime();
+			if (at < this.firstAt)
+			{
+				this.firstAt = at;
+				this.first = result.getDouble(7);
+			}
+			at = result.getTimestamp(8).getTime();
+			if (at >= this.lastAt)
+			{
+				this.lastAt = at;
+				this.last = result.getDouble(9);
+			}
+		}
+
+		/**
+		 * Gets the value of the given aggregate function
+		 */
+		private String get(AggregateFunction function)
+		{
+			switch (function)
+			{
+				case COUNT:
+					return "" + this.count;
+				case MIN:
+					return "" + this.min;
+				case MAX:
+					return "" + this.max;
+				case SUM:
+					return "" + this.sum;
+				case AVG:
+					return "" + (this.sum / this.count);
+				case FIRST:
+					return "" + this.first;
+				default:
+					return "" + this.last;
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+/**
+ * An entry of the series dictionary, i.e., the association between the
+ * integer id stored in data tables and the device, name, parameters and unit
+ * of the events belonging to the series. Series without identifier are only
+ * used as dictionary keys.
+ * 
+ */
+public class Series
+{
+	// the series id, -1 for lookup keys
+	private final int id;
+
+	// the series category
+	private final SeriesCategory category;
+
+	// the device generating the events
+	private final String deviceUri;
+
+	// the state or notification name
+	private final String name;
+
+	// the state or notification parameters, post-like encoded
+	private final String params;
+
+	// the unit of measure, empty for discrete values
+	private final String unit;
+
+	// the hash code, computed once
+	private final int hash;
+
+	/**
+	 * Creates a new {@link Series}, null names, parameters and units are
+	 * stored as empty strings.
+	 * 
+	 * @param id
+	 *            The series id.
+	 * @param category
+	 *            The series category.
+	 * @param deviceUri
+	 *            The URI of the device generating the events.
+	 * @param name
+	 *            The state or notification name.
+	 * @param params
+	 *            The state or notification parameters.
+	 * @param unit
+	 *            The unit of measure.
+	 */
+	public Series(int id, SeriesCategory category, String deviceUri,
+			String name, String params, String unit)
+	{
+		this.id = id;
+		this.category = category;
+		this.deviceUri = deviceUri;
+		this.name = (name != null) ? name : "";
+		this.params = (params != null) ? params : "";
+		this.unit = (unit != null) ? unit : "";
+
+		int h = category.hashCode();
+		h = 31 * h + deviceUri.hashCode();
+		h = 31 * h + this.name.hashCode();
+		h = 31 * h + this.params.hashCode();
+		h = 31 * h + this.unit.hashCode();
+		this.hash = h;
+	}
+
+	/**
+	 * Creates a lookup key, i.e., a {@link Series} without identifier
+	 * 
+	 * @param category
+	 *            The series category.
+	 * @param deviceUri
+	 *            The URI of the device generating the events.
+	 * @param name
+	 *            The state or notification name.
+	 * @param params
+	 *            The state or notification parameters.
+	 * @param unit
+	 *            The unit of measure.
+	 */
+	public Series(SeriesCategory category, String deviceUri, String name,
+			String params, String unit)
+	{
+		this(-1, category, deviceUri, name, params, unit);
+	}
+
+	public int getId()
+	{
+		return this.id;
+	}
+
+	public SeriesCategory getCategory()
+	{
+		return this.category;
+	}
+
+	public String getDeviceUri()
+	{
+		return this.deviceUri;
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public String getParams()
+	{
+		return this.params;
+	}
+
+	public String getUnit()
+	{
+		return this.unit;
+	}
+
+	/**
+	 * Checks whether this series has the given name and parameters
+	 * 
+	 * @param name
+	 *            The name to check, null matches the empty name.
+	 * @param params
+	 *            The parameters to check, null matches any parameter.
+	 * @return true if the series matches, false otherwise.
+	 */
+	public boolean matches(String name, String params)
+	{
+		return (this.name.equals((name != null) ? name : ""))
+				&& ((params == null) || (this.params.equals(params)));
+	}
+
+	/**
+	 * Two series are equal if they share category, device, name, parameters
+	 * and unit, regardless of their id.
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Series))
+			return false;
+
+		Series other = (Series) obj;
+		return (this.hash == other.hash) && (this.category == other.category)
+				&& (this.deviceUri.equals(other.deviceUri))
+				&& (this.name.equals(other.name))
+				&& (this.params.equals(other.params))
+				&& (this.unit.equals(other.unit));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Series [id=" + this.id + ", category=" + this.category
+				+ ", deviceUri=" + this.deviceUri + ", name=" + this.name
+				+ ", params=" + this.params + ", unit=" + this.unit + "]";
+	}
+}
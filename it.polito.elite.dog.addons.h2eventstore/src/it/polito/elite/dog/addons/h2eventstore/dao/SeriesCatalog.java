@@ -0,0 +1,434 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * The catalog of the stored series, keeping the first and last timestamp and
+ * the number of stored events of each series, so that series can be listed
+ * and queries falling outside the stored time frame of a series can be
+ * answered without reading the data tables.
+ * </p>
+ *
+ * <p>
+ * The catalog is kept in memory, updated at every insertion, and persisted
+ * in a small metadata table written in the same transaction as the inserted
+ * rows. Bounds may be wider than the stored events, e.g., while rows are
+ * pending, but never narrower.
+ * </p>
+ *
+ */
+public class SeriesCatalog implements GroupCommitter.Participant
+{
+	// the catalog table name
+	public static final String TABLE_NAME = "SeriesStats";
+
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the statistics indexed by series id
+	private final ConcurrentHashMap<Integer, Stats> stats;
+
+	// the series changed since the last commit, guarded by the group
+	// committer
+	private Set<Integer> dirty;
+
+	// false if the statistics could not be loaded or computed
+	private volatile boolean complete;
+
+	/**
+	 * Creates the {@link SeriesCatalog}, creating its table if needed and
+	 * loading the stored statistics
+	 *
+	 * @param storage
+	 *            The storage layer.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	SeriesCatalog(H2Storage storage, LogHelper logger)
+	{
+		this.storage = storage;
+		this.logger = logger;
+		this.stats = new ConcurrentHashMap<>();
+		this.dirty = new HashSet<>();
+		this.complete = true;
+
+		// check and create the table if needed
+		this.checkAndCreateTable();
+
+		// load the statistics
+		this.loadStats();
+
+		// statistics are written with the rows
+		this.storage.getGroupCommitter().addParticipant(this);
+	}
+
+	private void checkAndCreateTable()
+	{
+		List<SchemaMigration> migrations = new ArrayList<>();
+		migrations.add(new SchemaMigration(1, "series statistics") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate("CREATE TABLE IF NOT EXISTS "
+							+ table
+							+ "(series_id int(11) NOT NULL, first_ts TIMESTAMP, last_ts TIMESTAMP, "
+							+ "n_rows BIGINT NOT NULL, PRIMARY KEY(series_id), "
+							+ "FOREIGN KEY (series_id) REFERENCES Series(id) ON DELETE CASCADE);");
+				}
+			}
+		});
+
+		try
+		{
+			for (SchemaMigration migration : this.storage.getSchemaMigrator()
+					.migrate(SeriesCatalog.TABLE_NAME, migrations))
+				this.logger.log(LogService.LOG_INFO, SeriesCatalog.TABLE_NAME
+						+ " migrated to version " + migration.getVersion()
+						+ ": " + migration.getDescription());
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.complete = false;
+			this.logger.log(LogService.LOG_ERROR, "Unable to check / create "
+					+ SeriesCatalog.TABLE_NAME + " db table", e);
+		}
+	}
+
+	/**
+	 * Loads the stored statistics in memory
+	 */
+	private void loadStats()
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query
+						.executeQuery("SELECT series_id, first_ts, last_ts, n_rows FROM "
+								+ SeriesCatalog.TABLE_NAME))
+		{
+			while (result.next())
+				this.stats.put(result.getInt(1), Stats.read(result));
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.complete = false;
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the series statistics", e);
+		}
+	}
+
+	public boolean close()
+	{
+		this.storage.getGroupCommitter().removeParticipant(this);
+
+		return true;
+	}
+
+	/**
+	 * Gets the statistics of the given series
+	 *
+	 * @param seriesId
+	 *            The series id.
+	 * @return The statistics, or null if no event of the series has been
+	 *         stored.
+	 */
+	Stats getStats(int seriesId)
+	{
+		return this.stats.get(seriesId);
+	}
+
+	/**
+	 * Checks whether the statistics account for all the stored events, i.e.,
+	 * whether they can be trusted to skip queries
+	 *
+	 * @return true if the statistics are complete.
+	 */
+	boolean isComplete()
+	{
+		return this.complete;
+	}
+
+	/**
+	 * Records a row written in the group commit being flushed, must be called
+	 * holding the lock of the group committer
+	 *
+	 * @param seriesId
+	 *            The series of the row.
+	 * @param timestamp
+	 *            The row timestamp.
+	 */
+	void rowAdded(int seriesId, long timestamp)
+	{
+		Stats current = this.stats.get(seriesId);
+		this.stats.put(seriesId, (current != null) ? current.add(timestamp, 1)
+				: new Stats(timestamp, timestamp, 1));
+		this.dirty.add(seriesId);
+	}
+
+	/**
+	 * Records rows removed from the given series, must be called holding the
+	 * lock of the group committer. The statistics are written at the next
+	 * {@link #write(Collection)} or group commit.
+	 *
+	 * @param seriesId
+	 *            The series of the rows.
+	 * @param rows
+	 *            The number of removed rows.
+	 * @param first
+	 *            The timestamp of the first row left, null if none.
+	 */
+	void rowsRemoved(int seriesId, long rows, Long first)
+	{
+		Stats current = this.stats.get(seriesId);
+		if (current == null)
+			return;
+
+		long left = Math.max(0, current.rows - rows);
+		if ((left == 0) || (first == null))
+			this.stats.put(seriesId, new Stats(0, 0, 0));
+		else
+			this.stats.put(seriesId, new Stats(first, Math.max(first,
+					current.last), left));
+		this.dirty.add(seriesId);
+	}
+
+	/**
+	 * Adds the rows already stored in the given data table to the
+	 * statistics, e.g., rows stored before the catalog was introduced.
+	 * Commits are left to the caller.
+	 *
+	 * @param table
+	 *            The name of the data table, or of the chunk table.
+	 * @param chunks
+	 *            true if the table stores compressed chunks.
+	 * @throws SQLException
+	 */
+	void backfill(String table, boolean chunks) throws SQLException
+	{
+		Set<Integer> changed = new HashSet<>();
+
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery(chunks ? "SELECT series_id, MIN(min_ts), MAX(max_ts), SUM(n_points) FROM "
+						+ table + " GROUP BY series_id"
+						: "SELECT series_id, MIN(timestamp), MAX(timestamp), COUNT(*) FROM "
+								+ table + " GROUP BY series_id"))
+		{
+			while (result.next())
+			{
+				Stats stored = Stats.read(result);
+				if (stored.rows == 0)
+					continue;
+
+				int seriesId = result.getInt(1);
+				Stats current = this.stats.get(seriesId);
+				this.stats.put(seriesId, (current != null) ? current
+						.merge(stored) : stored);
+				changed.add(seriesId);
+			}
+		}
+		catch (SQLException e)
+		{
+			// queries cannot rely on partial statistics
+			this.complete = false;
+			throw e;
+		}
+
+		this.write(changed);
+	}
+
+	/**
+	 * Writes the statistics of the given series, commits are left to the
+	 * caller
+	 *
+	 * @param seriesIds
+	 *            The series to write.
+	 * @throws SQLException
+	 */
+	void write(Collection<Integer> seriesIds) throws SQLException
+	{
+		if (seriesIds.isEmpty())
+			return;
+
+		try (PreparedStatement stmt = this.storage.getConnection()
+				.prepareStatement(
+						"MERGE INTO " + SeriesCatalog.TABLE_NAME
+								+ "(series_id, first_ts, last_ts, n_rows) "
+								+ "KEY(series_id) VALUES (?,?,?,?);"))
+		{
+			for (Integer seriesId : seriesIds)
+			{
+				Stats current = this.stats.get(seriesId);
+				if (current == null)
+					continue;
+
+				stmt.setInt(1, seriesId);
+				if (current.rows > 0)
+				{
+					stmt.setTimestamp(2, new Timestamp(current.first));
+					stmt.setTimestamp(3, new Timestamp(current.last));
+				}
+				else
+				{
+					stmt.setNull(2, Types.TIMESTAMP);
+					stmt.setNull(3, Types.TIMESTAMP);
+				}
+				stmt.setLong(4, current.rows);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	@Override
+	public void beforeCommit() throws SQLException
+	{
+		if (!this.dirty.isEmpty())
+		{
+			this.write(this.dirty);
+			this.dirty = new HashSet<>();
+		}
+	}
+
+	@Override
+	public void afterCommit()
+	{
+		// nothing to do, statistics are written before committing
+	}
+
+	@Override
+	public void afterRollback()
+	{
+		// the rows have been discarded, restore the stored statistics
+		Set<Integer> discarded = this.dirty;
+		this.dirty = new HashSet<>();
+
+		try (PreparedStatement stmt = this.storage.getConnection()
+				.prepareStatement(
+						"SELECT series_id, first_ts, last_ts, n_rows FROM "
+								+ SeriesCatalog.TABLE_NAME
+								+ " WHERE series_id=?"))
+		{
+			for (Integer seriesId : discarded)
+			{
+				stmt.setInt(1, seriesId);
+				try (ResultSet result = stmt.executeQuery())
+				{
+					if (result.next())
+						this.stats.put(seriesId, Stats.read(result));
+					else
+						this.stats.remove(seriesId);
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// wider bounds are still safe, counts are not
+			this.logger.log(LogService.LOG_WARNING,
+					"Unable to restore the series statistics", e);
+		}
+	}
+
+	/**
+	 * The statistics of a series: the first and last timestamp and the
+	 * number of its stored events
+	 */
+	static class Stats
+	{
+		final long first;
+		final long last;
+		final long rows;
+
+		private Stats(long first, long last, long rows)
+		{
+			this.first = first;
+			this.last = last;
+			this.rows = rows;
+		}
+
+		/**
+		 * Gets the statistics including the given number of rows at the
+		 * given time
+		 */
+		private Stats add(long timestamp, long added)
+		{
+			if (this.rows == 0)
+				return new Stats(timestamp, timestamp, added);
+
+			return new Stats(Math.min(this.first, timestamp), Math.max(
+					this.last, timestamp), this.rows + added);
+		}
+
+		/**
+		 * Gets the statistics including the given ones
+		 */
+		private Stats merge(Stats other)
+		{
+			if (other.rows == 0)
+				return this;
+			if (this.rows == 0)
+				return other;
+
+			return new Stats(Math.min(this.first, other.first), Math.max(
+					this.last, other.last), this.rows + other.rows);
+		}
+
+		/**
+		 * Checks whether stored events may fall in the given time frame
+		 *
+		 * @param start
+		 *            The start of the time frame.
+		 * @param end
+		 *            The end of the time frame.
+		 * @param before
+		 *            true if events stored before the time frame count, e.g.,
+		 *            for runs in progress at its start.
+		 */
+		boolean overlaps(long start, long end, boolean before)
+		{
+			return (this.rows > 0) && (this.first <= end)
+					&& ((before) || (this.last >= start));
+		}
+
+		/**
+		 * Reads the statistics in columns 2 to 4 of the current row
+		 */
+		private static Stats read(ResultSet result) throws SQLException
+		{
+			Timestamp first = result.getTimestamp(2);
+			Timestamp last = result.getTimestamp(3);
+			long rows = result.getLong(4);
+
+			if ((first == null) || (last == null) || (rows <= 0))
+				return new Stats(0, 0, 0);
+
+			return new Stats(first.getTime(), last.getTime(), rows);
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+/**
+ * The kinds of event series handled by the event store, each category is
+ * persisted in its own data table.
+ * 
+ */
+public enum SeriesCategory
+{
+	CONTINUOUS_STATE, // states carrying a measure
+	DISCRETE_STATE, // states carrying a discrete value
+	PARAMETRIC_NOTIFICATION, // notifications carrying a measure
+	NON_PARAMETRIC_NOTIFICATION // notifications carrying a discrete value
+}
@@ -0,0 +1,409 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.addons.storage.EventSeriesInfo;
+import it.polito.elite.dog.addons.storage.EventSeriesType;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * The series dictionary, maps each (category, device, name, parameters, unit)
+ * tuple to the integer id stored in data tables. The whole dictionary is kept
+ * in memory and is bidirectional: series can be resolved both by id and by
+ * their describing tuple.
+ * 
+ */
+public class SeriesDao
+{
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the series indexed by describing tuple
+	private final ConcurrentHashMap<Series, Series> seriesByKey;
+
+	// the series indexed by id
+	private final ConcurrentHashMap<Integer, Series> seriesById;
+
+	// the series of each device, in creation order
+	private final ConcurrentHashMap<String, List<Series>> seriesByDevice;
+
+	// the time frame and size of each series
+	private final SeriesCatalog catalog;
+
+	// ---- TABLE NAMES
+	private final String seriesTableName = "Series";
+
+	// ---- TABLE STRUCTURE
+	private final String seriesTableCreateQuery = "CREATE TABLE IF NOT EXISTS "
+			+ this.seriesTableName
+			+ "(id int(11) NOT NULL AUTO_INCREMENT, category VARCHAR(40), deviceuri VARCHAR(255), "
+			+ "name VARCHAR(255), params VARCHAR(255), unit VARCHAR(20), PRIMARY KEY(id), "
+			+ "UNIQUE(category, deviceuri, name, params, unit), "
+			+ "FOREIGN KEY (deviceuri) REFERENCES Device(uri) ON DELETE CASCADE);";
+
+	// --------- commonly used statements ------------
+	private PreparedStatement insertSeriesStmt;
+
+	// ---- INSERTION QUERIES
+	private final String insertSeriesQuery = "INSERT INTO "
+			+ this.seriesTableName
+			+ "(category, deviceuri, name, params, unit) VALUES (?,?,?,?,?);";
+
+	// ---- SELECT QUERIES
+	private final String selectAllSeriesQuery = "SELECT id, category, deviceuri, name, params, unit FROM "
+			+ this.seriesTableName + " ORDER BY id;";
+
+	public SeriesDao(final H2Storage storage, final BundleContext context)
+	{
+		// init logger
+		this.logger = new LogHelper(context);
+
+		// store the connection
+		this.storage = storage;
+
+		// the in-memory dictionary
+		this.seriesByKey = new ConcurrentHashMap<>();
+		this.seriesById = new ConcurrentHashMap<>();
+		this.seriesByDevice = new ConcurrentHashMap<>();
+
+		// check and create tables if needed
+		this.checkAndCreateTables();
+
+		// load the dictionary
+		this.loadSeries();
+
+		// load the series statistics
+		this.catalog = new SeriesCatalog(storage, this.logger);
+
+		// prepare the commonly executed statements
+		this.prepareCommonStatements();
+	}
+
+	private void checkAndCreateTables()
+	{
+		// the series table migrations
+		List<SchemaMigration> migrations = new ArrayList<>();
+		migrations.add(new SchemaMigration(1, "series dictionary") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate(SeriesDao.this.seriesTableCreateQuery);
+				}
+			}
+		});
+
+		try
+		{
+			// create or evolve the Series table
+			for (SchemaMigration migration : this.storage.getSchemaMigrator()
+					.migrate(this.seriesTableName, migrations))
+				this.logger.log(LogService.LOG_INFO, this.seriesTableName
+						+ " migrated to version " + migration.getVersion()
+						+ ": " + migration.getDescription());
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to check / create series db tables", e);
+		}
+	}
+
+	/**
+	 * Loads all the stored series in the in-memory dictionary
+	 */
+	private void loadSeries()
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query
+						.executeQuery(this.selectAllSeriesQuery))
+		{
+			while (result.next())
+			{
+				try
+				{
+					this.register(new Series(result.getInt(1), SeriesCategory
+							.valueOf(result.getString(2)), result.getString(3),
+							result.getString(4), result.getString(5), result
+									.getString(6)));
+				}
+				catch (IllegalArgumentException e)
+				{
+					// unknown category, skip the series
+					this.logger.log(LogService.LOG_WARNING,
+							"Skipping series with unknown category "
+									+ result.getString(2));
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the series dictionary", e);
+		}
+	}
+
+	/**
+	 * Prepares commonly used statements to improve db operation performance.
+	 */
+	private void prepareCommonStatements()
+	{
+		try
+		{
+			this.insertSeriesStmt = this.storage.getConnection()
+					.prepareStatement(this.insertSeriesQuery,
+							Statement.RETURN_GENERATED_KEYS);
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to create commonly used prepared statements");
+		}
+	}
+
+	public boolean close()
+	{
+		boolean isClosed = false;
+		// close db connection
+		try
+		{
+			this.insertSeriesStmt.close();
+			isClosed = this.catalog.close();
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to close commonly used prepared statements");
+		}
+
+		return isClosed;
+	}
+
+	/**
+	 * Adds the given series to the in-memory dictionary
+	 * 
+	 * @param series
+	 *            The series to add.
+	 */
+	private void register(Series series)
+	{
+		this.seriesByKey.put(series, series);
+		this.seriesById.put(series.getId(), series);
+
+		List<Series> deviceSeries = this.seriesByDevice.get(series
+				.getDeviceUri());
+		if (deviceSeries == null)
+		{
+			deviceSeries = new CopyOnWriteArrayList<>();
+			List<Series> previous = this.seriesByDevice.putIfAbsent(
+					series.getDeviceUri(), deviceSeries);
+			if (previous != null)
+				deviceSeries = previous;
+		}
+		deviceSeries.add(series);
+	}
+
+	/**
+	 * Gets the {@link SeriesCatalog} holding the time frame and size of each
+	 * series
+	 * 
+	 * @return The series catalog.
+	 */
+	SeriesCatalog getCatalog()
+	{
+		return this.catalog;
+	}
+
+	/**
+	 * Describes all the series of the given device, in creation order, with
+	 * the time frame and the number of their stored events, served from
+	 * memory without reading the data tables.
+	 * 
+	 * @param deviceUri
+	 *            The device URI.
+	 * @return The series descriptions, possibly empty.
+	 */
+	public List<EventSeriesInfo> getDeviceSeriesInfo(String deviceUri)
+	{
+		List<EventSeriesInfo> infos = new ArrayList<>();
+
+		List<Series> deviceSeries = (deviceUri != null) ? this.seriesByDevice
+				.get(deviceUri) : null;
+
+		if (deviceSeries != null)
+		{
+			for (Series series : deviceSeries)
+			{
+				SeriesCatalog.Stats stats = this.catalog.getStats(series
+						.getId());
+				boolean stored = (stats != null) && (stats.rows > 0);
+
+				infos.add(new EventSeriesInfo(EventSeriesType.valueOf(series
+						.getCategory().name()), series.getDeviceUri(), series
+						.getName(), series.getParams(), series.getUnit(),
+						stored ? new Date(stats.first) : null,
+						stored ? new Date(stats.last) : null,
+						stored ? stats.rows : 0));
+			}
+		}
+
+		return infos;
+	}
+
+	/**
+	 * Gets the series having the given id
+	 * 
+	 * @param id
+	 *            The series id.
+	 * @return The series or null if no series has the given id.
+	 */
+	public Series getSeries(int id)
+	{
+		return this.seriesById.get(id);
+	}
+
+	/**
+	 * Gets the series described by the given tuple, without creating it
+	 * 
+	 * @return The series or null if not yet stored.
+	 */
+	public Series getSeries(SeriesCategory category, String deviceUri,
+			String name, String params, String unit)
+	{
+		return this.seriesByKey.get(new Series(category, deviceUri, name,
+				params, unit));
+	}
+
+	/**
+	 * Gets the series described by the given tuple, storing it if needed. The
+	 * device must be already stored.
+	 * 
+	 * @return The series.
+	 * @throws SQLException
+	 *             if the series cannot be stored.
+	 */
+	public Series getOrCreateSeries(SeriesCategory category, String deviceUri,
+			String name, String params, String unit) throws SQLException
+	{
+		Series key = new Series(category, deviceUri, name, params, unit);
+		Series series = this.seriesByKey.get(key);
+
+		if (series == null)
+		{
+			// the connection is shared with the group committer
+			GroupCommitter committer = this.storage.getGroupCommitter();
+			synchronized (committer)
+			{
+				// check again, another thread may have created it
+				series = this.seriesByKey.get(key);
+
+				if (series == null)
+				{
+					// the pending rows are committed on their own first
+					committer.flush();
+
+					this.insertSeriesStmt.setString(1, category.name());
+					this.insertSeriesStmt.setString(2, key.getDeviceUri());
+					this.insertSeriesStmt.setString(3, key.getName());
+					this.insertSeriesStmt.setString(4, key.getParams());
+					this.insertSeriesStmt.setString(5, key.getUnit());
+					this.insertSeriesStmt.executeUpdate();
+
+					try (ResultSet keys = this.insertSeriesStmt
+							.getGeneratedKeys())
+					{
+						if (!keys.next())
+							throw new SQLException(
+									"No id generated for series " + key);
+
+						series = new Series(keys.getInt(1), category,
+								key.getDeviceUri(), key.getName(),
+								key.getParams(), key.getUnit());
+					}
+
+					// the series must be visible before rows referring to it
+					this.storage.getConnection().commit();
+
+					this.register(series);
+				}
+			}
+		}
+
+		return series;
+	}
+
+	/**
+	 * Gets all the series of the given device and category, in creation order
+	 * 
+	 * @param category
+	 *            The series category.
+	 * @param deviceUri
+	 *            The device URI.
+	 * @return The list of series, possibly empty.
+	 */
+	public List<Series> getDeviceSeries(SeriesCategory category,
+			String deviceUri)
+	{
+		return this.getDeviceSeries(category, deviceUri, null, null);
+	}
+
+	/**
+	 * Gets all the series of the given device and category having the given
+	 * name and parameters, in creation order
+	 * 
+	 * @param category
+	 *            The series category.
+	 * @param deviceUri
+	 *            The device URI.
+	 * @param name
+	 *            The series name, null matches any name.
+	 * @param params
+	 *            The series parameters, null matches any parameter.
+	 * @return The list of series, possibly empty.
+	 */
+	public List<Series> getDeviceSeries(SeriesCategory category,
+			String deviceUri, String name, String params)
+	{
+		List<Series> matching = new ArrayList<>();
+
+		List<Series> deviceSeries = (deviceUri != null) ? this.seriesByDevice
+				.get(deviceUri) : null;
+
+		if (deviceSeries != null)
+		{
+			for (Series series : deviceSeries)
+			{
+				if ((series.getCategory() == category)
+						&& ((name == null) || (series.matches(name, params))))
+					matching.add(series);
+			}
+		}
+
+		return matching;
+	}
+}
@@ -1,22 +1,28 @@
 package it.polito.elite.dog.addons.h2eventstore.dao;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.measure.DecimalMeasure;
 import javax.measure.Measure;
-import javax.measure.quantity.Quantity;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
 
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
 import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.storage.AggregateFunction;
+import it.polito.elite.dog.addons.storage.EventDataPage;
 import it.polito.elite.dog.addons.storage.EventDataPoint;
 import it.polito.elite.dog.addons.storage.EventDataStream;
 import it.polito.elite.dog.addons.storage.EventDataStreamSet;
+import it.polito.elite.dog.addons.storage.EventDataVisitor;
+import it.polito.elite.dog.addons.storage.NumericEventDataStream;
+import it.polito.elite.dog.addons.storage.RollupResolution;
 import it.polito.elite.dog.core.library.util.LogHelper;
 
 public class StateDao
@@ -28,6 +34,12 @@ public class StateDao
 	// the device dao
 	private DeviceDao devDao;
 
+	// the series dictionary
+	private SeriesDao seriesDao;
+
+	// the rollups of measures
+	private RollupDao rollupDao;
+
 	// The storage layer
 	private H2Storage storage;
 
@@ -35,32 +47,13 @@ public class StateDao
 	private final String continuousStateTableName = "ContinuousState";
 	private final String discreteStateTableName = "DiscreteState";
 
-	// ---- TABLE STRUCTURE
-	private final String continuousStateTableCreateQuery = "CREATE TABLE "
-			+ this.continuousStateTableName
-			+ "(id int(11) NOT NULL AUTO_INCREMENT, timestamp TIMESTAMP, unit VARCHAR(5), "
-			+ "value DOUBLE, name VARCHAR(100), params VARCHAR(255), deviceuri VARCHAR(255), "
-			+ "PRIMARY KEY(id), FOREIGN KEY (deviceuri) REFERENCES Device(uri) ON DELETE CASCADE);";
-	private final String discreteStateTableCreateQuery = "CREATE TABLE "
-			+ this.discreteStateTableName
-			+ "(id int(11) NOT NULL AUTO_INCREMENT, timestamp TIMESTAMP, value VARCHAR(100), "
-			+ "name VARCHAR(255), deviceuri VARCHAR(255), PRIMARY KEY(id), "
-			+ "FOREIGN KEY (deviceuri) REFERENCES Device(uri) ON DELETE CASCADE);";
-
-	// --------- commonly used statements ------------
-	private PreparedStatement insertContinuousStateStmt;
-	private PreparedStatement insertDiscreteStateStmt;
-
-	// ---- INSERTION QUERIES
-	private final String insertContinuousStateQuery = "INSERT INTO "
-			+ this.continuousStateTableName
-			+ "(timestamp, unit, value, name, params, deviceuri) VALUES (?,?,?,?,?,?)";
-	private final String insertDiscreteStateQuery = "INSERT INTO "
-			+ this.discreteStateTableName
-			+ "(timestamp, value, name, deviceuri) VALUES (?,?,?,?);";
-
-	public StateDao(final DeviceDao devDao, final H2Storage storage,
-			final BundleContext context)
+	// ---- TABLES
+	private EventTable continuousStateTable;
+	private EventTable discreteStateTable;
+
+	public StateDao(final DeviceDao devDao, final SeriesDao seriesDao,
+			final ValueDao valueDao, final RollupDao rollupDao,
+			final H2Storage storage, final BundleContext context)
 	{
 		// init logger
 		this.logger = new LogHelper(context);
@@ -68,108 +61,35 @@ public class StateDao
 		// store the connection
 		this.storage = storage;
 
-		// store the device DAO instance
+		// store the device and series DAO instances
 		this.devDao = devDao;
-
-		// check and create tables if needed
-		this.checkAndCreateTables();
-
-		// prepare the commonly executed statements
-		this.prepareCommonStatements();
-	}
-
-	private void checkAndCreateTables()
-	{
-		try
-		{
-			// check if the ContinuousState table exist
-			ResultSet tableSet = this.storage
-					.getConnection()
-					.getMetaData()
-					.getTables(this.storage.getConnection().getCatalog(), null,
-							this.continuousStateTableName.toUpperCase(), null);
-
-			if (!tableSet.next())
-			{
-				// missing event table: create it
-				this.storage.getConnection()
-						.prepareStatement(this.continuousStateTableCreateQuery)
-						.executeUpdate();
-				this.logger.log(LogService.LOG_INFO,
-						"Schema creation has been successful!");
-			}
-
-			tableSet.close();
-
-			// check if the DiscreteState table exist
-			tableSet = this.storage
-					.getConnection()
-					.getMetaData()
-					.getTables(this.storage.getConnection().getCatalog(), null,
-							this.discreteStateTableName.toUpperCase(), null);
-
-			if (!tableSet.next())
-			{
-				// missing event table: create it
-				this.storage.getConnection()
-						.prepareStatement(this.discreteStateTableCreateQuery)
-						.executeUpdate();
-				this.logger.log(LogService.LOG_INFO,
-						"Schema creation has been successful!");
-			}
-
-			tableSet.close();
-		}
-		catch (SQLException e)
-		{
-			// Log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to check / create state db tables");
-		}
+		this.seriesDao = seriesDao;
+		this.rollupDao = rollupDao;
+
+		// check and create (or convert) tables if needed
+		this.continuousStateTable = new EventTable(
+				this.continuousStateTableName, SeriesCategory.CONTINUOUS_STATE,
+				true, seriesDao, null, rollupDao, storage, this.logger);
+		this.discreteStateTable = new EventTable(this.discreteStateTableName,
+				SeriesCategory.DISCRETE_STATE, false, seriesDao, valueDao, null,
+				storage, this.logger);
 	}
 
 	/**
-	 * Prepares commonly used statements to improve db operation performance.
+	 * Gets the data tables handled by this DAO
+	 * 
+	 * @return The tables.
 	 */
-	private void prepareCommonStatements()
+	List<EventTable> getTables()
 	{
-		// prepare commonly used statements to improve statement execution
-		// performance
-		try
-		{
-
-			this.insertContinuousStateStmt = this.storage.getConnection()
-					.prepareStatement(this.insertContinuousStateQuery);
-
-			this.insertDiscreteStateStmt = this.storage.getConnection()
-					.prepareStatement(this.insertDiscreteStateQuery);
-
-		}
-		catch (SQLException e)
-		{
-			// Log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to create commonly used prepared statements");
-		}
-
+		return Arrays.asList(this.continuousStateTable, this.discreteStateTable);
 	}
 
 	public boolean close()
 	{
-		boolean isClosed = false;
-		// close db connection
-		try
-		{
-			this.insertContinuousStateStmt.close();
-			this.insertDiscreteStateStmt.close();
-			isClosed = true;
-		}
-		catch (SQLException e)
-		{
-			// Log the error
-			this.logger.log(LogService.LOG_ERROR,
-					"Unable to create commonly used prepared statements");
-		}
+		// close the insertion statements
+		boolean isClosed = this.continuousStateTable.close();
+		isClosed = this.discreteStateTable.close() && isClosed;
 
 		return isClosed;
 	}
@@ -184,27 +104,19 @@ public class StateDao
 
 			if (this.devDao.isDevicePresent(deviceURI))
 			{
-				// Insert the real event in the right table
+				// extract the value and the unit symbol, without parsing
+				double value = MeasureValues.getValue(eventValue);
+				String unit = MeasureValues.getUnitSymbol(eventValue);
+
+				// resolve the series
+				Series series = this.seriesDao.getOrCreateSeries(
+						SeriesCategory.CONTINUOUS_STATE, deviceURI, stateName,
+						stateParams, unit);
 
-				// fill the prepared statement
-				this.insertContinuousStateStmt.setTimestamp(1, new Timestamp(
-						eventTimestamp.getTime()));
-				DecimalMeasure<? extends Quantity> measure = DecimalMeasure
-						.valueOf(eventValue.toString());
-				this.insertContinuousStateStmt.setString(2, eventValue
-						.getUnit().toString());
-				this.insertContinuousStateStmt.setDouble(3, measure.getValue()
-						.doubleValue());
-				this.insertContinuousStateStmt.setString(4, stateName);
-				this.insertContinuousStateStmt.setString(5, stateParams);
-				this.insertContinuousStateStmt.setString(6, deviceURI);
-
-				// execute the insert query
-				this.insertContinuousStateStmt.executeUpdate();
-				this.storage.getConnection().commit();
-
-				// turn the insertion flag to true
-				inserted = true;
+				// Insert the real event in the right table
+				// (refused once the storage is full)
+				inserted = this.continuousStateTable.insert(series,
+						eventTimestamp, value);
 			}
 		}
 		catch (SQLException e)
@@ -227,22 +139,14 @@ public class StateDao
 			// check if the device is already available
 			if (this.devDao.isDevicePresent(deviceURI))
 			{
+				// resolve the series
+				Series series = this.seriesDao.getOrCreateSeries(
+						SeriesCategory.DISCRETE_STATE, deviceURI, name, "", "");
 
 				// Insert the real event in the right table
-
-				// fill the prepared statement
-				this.insertDiscreteStateStmt.setTimestamp(1, new Timestamp(
-						eventTimestamp.getTime()));
-				this.insertDiscreteStateStmt.setString(2, eventValue);
-				this.insertDiscreteStateStmt.setString(3, name);
-				this.insertDiscreteStateStmt.setString(4, deviceURI);
-
-				// execute the insert query
-				this.insertDiscreteStateStmt.executeUpdate();
-				this.storage.getConnection().commit();
-
-				// turn the insertion flag to true
-				inserted = true;
+				// (refused once the storage is full)
+				inserted = this.discreteStateTable.insert(series, eventTimestamp,
+						eventValue);
 			}
 		}
 		catch (SQLException e)
@@ -277,70 +181,13 @@ public class StateDao
 		// the event data stream set to return
 		EventDataStreamSet streamSet = new EventDataStreamSet();
 
-		// the select query
-		String allRealEventsQuery = "SELECT * FROM "
-				+ this.continuousStateTableName
-				+ " WHERE deviceuri=? AND timestamp>=? and timestamp<=? ORDER BY name,params ASC LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement allRealEventsStmt = this.storage.getConnection()
-					.prepareStatement(allRealEventsQuery);
-
-			// fill the statement data
-			allRealEventsStmt.setString(1, deviceUri);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			allRealEventsStmt.setTimestamp(2, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			allRealEventsStmt.setTimestamp(3, endTimestamp);
-			allRealEventsStmt.setInt(4, nResults);
-			allRealEventsStmt.setInt(5, startCount);
-
-			// exec the query
-			ResultSet result = allRealEventsStmt.executeQuery();
-
-			// compose the EventStreamDataSet
-			String currentName = "";
-			String currentParams = "";
-			String previousName = "";
-			String previousParams = "";
-
-			EventDataStream currentStream = null;
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentName = result.getString("name");
-				currentParams = result.getString("params");
-
-				// check if a new event stream should be created
-				if (((currentName.equals(previousName)) && (!currentParams
-						.equals(previousParams)))
-						|| (!currentName.equals(previousName)))
-				{
-					// check if stream exists
-					currentStream = new EventDataStream(currentName,
-							currentParams, deviceUri);
-
-					// add the stream to the event set
-					streamSet.addDatastream(currentStream);
-
-					// update the previous values
-					previousName = currentName;
-					previousParams = currentParams;
-				}
-
-				// create the single event data
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()),
-						"" + result.getDouble("value"),
-						result.getString("unit"));
-
-				// store the event data
-				currentStream.addDatapoint(currentPoint);
-			}
+			// select the points of all the device series
+			streamSet = this.continuousStateTable.selectStreams(deviceUri,
+					this.seriesDao.getDeviceSeries(
+							SeriesCategory.CONTINUOUS_STATE, deviceUri),
+					startDate, endDate, startCount, nResults);
 		}
 		catch (SQLException e)
 		{
@@ -350,7 +197,6 @@ public class StateDao
 		}
 
 		return streamSet;
-
 	}
 
 	/**
@@ -377,70 +223,25 @@ public class StateDao
 		// the event data stream set to return
 		EventDataStreamSet streamSet = new EventDataStreamSet();
 
-		// the select query
-		String allRealEventsQuery = "SELECT * FROM "
-				+ this.discreteStateTableName
-				+ " WHERE deviceuri=? AND timestamp>=? and timestamp<=?";
-		if (aggregated)
-			allRealEventsQuery = allRealEventsQuery
-					+ " ORDER BY timestamp ASC LIMIT ? OFFSET ?;";
-		else
-			allRealEventsQuery = allRealEventsQuery
-					+ " ORDER BY name,timestamp ASC LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement allRealEventsStmt = this.storage.getConnection()
-					.prepareStatement(allRealEventsQuery);
-
-			// fill the statement data
-			allRealEventsStmt.setString(1, deviceUri);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			allRealEventsStmt.setTimestamp(2, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			allRealEventsStmt.setTimestamp(3, endTimestamp);
-			allRealEventsStmt.setInt(4, nResults);
-			allRealEventsStmt.setInt(5, startCount);
-
-			// exec the query
-			ResultSet result = allRealEventsStmt.executeQuery();
-
-			// compose the EventStreamDataSet
-			String currentName = "";
-			String previousName = "";
-
-			EventDataStream currentStream = null;
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				if (aggregated)
-					currentName = "events";
-				else
-					currentName = result.getString("name");
-
-				// check if a new event stream should be created
-				if (!currentName.equals(previousName))
-				{
-					// check if stream exists
-					currentStream = new EventDataStream(currentName, "",
-							deviceUri);
+			List<Series> series = this.seriesDao.getDeviceSeries(
+					SeriesCategory.DISCRETE_STATE, deviceUri);
 
-					// add the stream to the event set
-					streamSet.addDatastream(currentStream);
-
-					// update the previous values only if not aggregated
-					previousName = currentName;
-				}
-
-				// create the single event data
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()), result.getString("value"), "");
-
-				// store the event data
-				currentStream.addDatapoint(currentPoint);
+			if (aggregated)
+			{
+				// all the events in a single stream
+				EventDataStream stream = this.discreteStateTable.selectInto(
+						new EventDataStream("events", "", deviceUri), series,
+						startDate, endDate, startCount, nResults);
+				if (!stream.getDatapoints().isEmpty())
+					streamSet.addDatastream(stream);
+			}
+			else
+			{
+				// one stream per state
+				streamSet = this.discreteStateTable.selectStreams(deviceUri,
+						series, startDate, endDate, startCount, nResults);
 			}
 		}
 		catch (SQLException e)
@@ -451,7 +252,6 @@ public class StateDao
 		}
 
 		return streamSet;
-
 	}
 
 	/**
@@ -483,49 +283,18 @@ public class StateDao
 			Date endDate, int startCount, int nResults)
 	{
 		// The event stream to return
-		EventDataStream stream = new EventDataStream(notificationName,
-				notificationParams, deviceURI);
+		EventDataStream stream = new NumericEventDataStream(
+				notificationName, notificationParams, deviceURI);
 
-		// the select query
-		// the select query
-		String realEventsQuery = "SELECT * FROM "
-				+ this.continuousStateTableName
-				+ " WHERE deviceuri=? AND name=? AND params=? AND timestamp>=? and timestamp<=? ORDER BY name,params LIMIT ? OFFSET ?;";
-
-		// the select statement
 		try
 		{
-			// prepare the select statement
-			PreparedStatement realEventsStmt = this.storage.getConnection()
-					.prepareStatement(realEventsQuery);
-
-			// fill the statement data
-			realEventsStmt.setString(1, deviceURI);
-			realEventsStmt.setString(2, notificationName);
-			realEventsStmt.setString(3, notificationParams);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			realEventsStmt.setTimestamp(4, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			realEventsStmt.setTimestamp(5, endTimestamp);
-			realEventsStmt.setInt(6, nResults);
-			realEventsStmt.setInt(7, startCount);
-
-			// exec the query
-			ResultSet result = realEventsStmt.executeQuery();
-
-			// the current data point
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()),
-						"" + result.getDouble("value"),
-						result.getString("unit"));
-
-				stream.addDatapoint(currentPoint);
-			}
-
+			// select the points of the matching series (one per unit)
+			this.continuousStateTable.selectInto(stream, this.seriesDao
+					.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+							deviceURI, notificationName,
+							(notificationParams != null) ? notificationParams
+									: ""), startDate, endDate, startCount,
+					nResults);
 		}
 		catch (SQLException e)
 		{
@@ -567,43 +336,265 @@ public class StateDao
 	{
 		EventDataStream stream = new EventDataStream(stateName, "", deviceURI);
 
-		// the select query
-		// the select query
-		String realEventsQuery = "SELECT * FROM "
-				+ this.discreteStateTableName
-				+ " WHERE deviceuri=? AND name=? AND timestamp>=? and timestamp<=? ORDER BY name LIMIT ? OFFSET ?;";
+		try
+		{
+			// select the points of the matching series
+			this.discreteStateTable.selectInto(stream, this.seriesDao
+					.getDeviceSeries(SeriesCategory.DISCRETE_STATE, deviceURI,
+							stateName, ""), startDate, endDate, startCount,
+					nResults);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data", e);
+		}
+
+		return stream;
+	}
 
-		// the select statement
+	/**
+	 * Gets the events carrying a measure generated by a given device in the
+	 * time frame between startDate and endDate, in time order, using keyset
+	 * pagination.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @return the page, one stream per state.
+	 */
+	public EventDataPage getAllDeviceContinuousStates(String deviceUri,
+			Date startDate, Date endDate, String continuation, int nResults)
+	{
+		return this.selectPage(this.continuousStateTable, deviceUri,
+				this.seriesDao.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+						deviceUri), startDate, endDate, continuation,
+				nResults, null);
+	}
+
+	/**
+	 * Gets the events carrying a discrete value generated by a given device
+	 * in the time frame between startDate and endDate, in time order, using
+	 * keyset pagination.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @param aggregated
+	 *            true to get all the events in a single stream
+	 * @return the page.
+	 */
+	public EventDataPage getAllDeviceDiscreteStates(String deviceUri,
+			Date startDate, Date endDate, String continuation, int nResults,
+			boolean aggregated)
+	{
+		return this.selectPage(this.discreteStateTable, deviceUri,
+				this.seriesDao.getDeviceSeries(SeriesCategory.DISCRETE_STATE,
+						deviceUri), startDate, endDate, continuation,
+				nResults, aggregated ? new EventDataStream("events", "",
+						deviceUri) : null);
+	}
+
+	/**
+	 * Gets the events corresponding to the given state (continuous) including
+	 * any restricting parameter in the time frame between startDate and
+	 * endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the state stream.
+	 */
+	public EventDataPage getSpecificDeviceContinuousStates(String deviceURI,
+			String stateName, String stateParams, Date startDate,
+			Date endDate, String continuation, int nResults)
+	{
+		String params = (stateParams != null) ? stateParams : "";
+
+		return this.selectPage(this.continuousStateTable, deviceURI,
+				this.seriesDao.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+						deviceURI, stateName, params), startDate, endDate,
+				continuation, nResults, new EventDataStream(stateName,
+						params, deviceURI));
+	}
+
+	/**
+	 * Gets the events corresponding to the given state (discrete) in the time
+	 * frame between startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the state stream.
+	 */
+	public EventDataPage getSpecificDeviceDiscreteStates(String deviceURI,
+			String stateName, Date startDate, Date endDate,
+			String continuation, int nResults)
+	{
+		return this.selectPage(this.discreteStateTable, deviceURI,
+				this.seriesDao.getDeviceSeries(SeriesCategory.DISCRETE_STATE,
+						deviceURI, stateName, ""), startDate, endDate,
+				continuation, nResults, new EventDataStream(stateName, "",
+						deviceURI));
+	}
+
+	/**
+	 * Selects a page of events from the given table, if the events cannot be
+	 * retrieved the page is empty and carries the given continuation token,
+	 * so that the same page can be requested again
+	 */
+	private EventDataPage selectPage(EventTable table, String deviceUri,
+			List<Series> series, Date startDate, Date endDate,
+			String continuation, int nResults, EventDataStream stream)
+	{
 		try
 		{
-			// prepare the select statement
-			PreparedStatement realEventsStmt = this.storage.getConnection()
-					.prepareStatement(realEventsQuery);
-
-			// fill the statement data
-			realEventsStmt.setString(1, deviceURI);
-			realEventsStmt.setString(2, stateName);
-			Timestamp startTimestamp = new Timestamp(startDate.getTime());
-			realEventsStmt.setTimestamp(3, startTimestamp);
-			Timestamp endTimestamp = new Timestamp(endDate.getTime());
-			realEventsStmt.setTimestamp(4, endTimestamp);
-			realEventsStmt.setInt(5, nResults);
-			realEventsStmt.setInt(6, startCount);
-
-			// exec the query
-			ResultSet result = realEventsStmt.executeQuery();
-
-			// the current data point
-			EventDataPoint currentPoint = null;
-
-			while (result.next())
-			{
-				currentPoint = new EventDataPoint(new Date(result.getTimestamp(
-						"timestamp").getTime()), result.getString("value"), "");
+			return table.selectPage(deviceUri, series, startDate, endDate,
+					continuation, nResults, stream);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve a page of sensor events", e);
+		}
 
-				stream.addDatapoint(currentPoint);
-			}
+		return new EventDataPage(new EventDataStreamSet(), continuation);
+	}
 
+	/**
+	 * Visits the events carrying a measure generated by a given device in the
+	 * time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param visitor
+	 *            the visitor, called with the stream of each state
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitAllDeviceContinuousStates(String deviceUri,
+			Date startDate, Date endDate, EventDataVisitor visitor)
+	{
+		return this.visit(this.continuousStateTable, deviceUri,
+				this.seriesDao.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+						deviceUri), startDate, endDate, null, visitor);
+	}
+
+	/**
+	 * Visits the events carrying a discrete value generated by a given device
+	 * in the time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceUri
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param aggregated
+	 *            true to visit all the events with a single stream
+	 * @param visitor
+	 *            the visitor
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitAllDeviceDiscreteStates(String deviceUri,
+			Date startDate, Date endDate, boolean aggregated,
+			EventDataVisitor visitor)
+	{
+		return this.visit(this.discreteStateTable, deviceUri,
+				this.seriesDao.getDeviceSeries(SeriesCategory.DISCRETE_STATE,
+						deviceUri), startDate, endDate,
+				aggregated ? new EventDataStream("events", "", deviceUri)
+						: null, visitor);
+	}
+
+	/**
+	 * Gets the events corresponding to the given state (continuous) including
+	 * any restricting parameter in the time frame between startDate and
+	 * endDate, downsampled to the given number of points with the
+	 * Largest-Triangle-Three-Buckets algorithm, without holding all the
+	 * events in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param maxPoints
+	 *            The max number of points, at least 3.
+	 * @return The downsampled events.
+	 * @throws IllegalArgumentException
+	 *             if less than 3 points are requested.
+	 */
+	public EventDataStream getDownsampledDeviceContinuousStates(
+			String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, int maxPoints)
+	{
+		String params = (stateParams != null) ? stateParams : "";
+
+		// The event stream to return
+		EventDataStream stream = new NumericEventDataStream(stateName,
+				params, deviceURI);
+
+		try
+		{
+			this.continuousStateTable.selectDownsampled(stream, this.seriesDao
+					.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+							deviceURI, stateName, params), startDate, endDate,
+					maxPoints);
 		}
 		catch (SQLException e)
 		{
@@ -615,8 +606,220 @@ public class StateDao
 		return stream;
 	}
 
+	/**
+	 * Visits the events corresponding to the given state (continuous)
+	 * including any restricting parameter in the time frame between startDate
+	 * and endDate, in time order, without holding them in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitSpecificDeviceContinuousStates(String deviceURI,
+			String stateName, String stateParams, Date startDate,
+			Date endDate, EventDataVisitor visitor)
+	{
+		String params = (stateParams != null) ? stateParams : "";
+
+		return this.visit(this.continuousStateTable, deviceURI,
+				this.seriesDao.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+						deviceURI, stateName, params), startDate, endDate,
+				new EventDataStream(stateName, params, deviceURI), visitor);
+	}
+
+	/**
+	 * Visits the events corresponding to the given state (discrete) in the
+	 * time frame between startDate and endDate, in time order, without
+	 * holding them in memory.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited.
+	 */
+	public boolean visitSpecificDeviceDiscreteStates(String deviceURI,
+			String stateName, Date startDate, Date endDate,
+			EventDataVisitor visitor)
+	{
+		return this.visit(this.discreteStateTable, deviceURI,
+				this.seriesDao.getDeviceSeries(SeriesCategory.DISCRETE_STATE,
+						deviceURI, stateName, ""), startDate, endDate,
+				new EventDataStream(stateName, "", deviceURI), visitor);
+	}
+
+	/**
+	 * Visits the events of the given table
+	 * 
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events cannot be retrieved.
+	 */
+	private boolean visit(EventTable table, String deviceUri,
+			List<Series> series, Date startDate, Date endDate,
+			EventDataStream stream, EventDataVisitor visitor)
+	{
+		try
+		{
+			return table.visit(deviceUri, series, startDate, endDate,
+					stream, visitor);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to visit sensor events", e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the given aggregates of the given state (including any restricting
+	 * parameter) in the time frame between startDate and endDate, computed
+	 * by the database in buckets of the given width.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which
+	 *            state must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param bucketMillis
+	 *            The bucket width in milliseconds, a multiple of one minute.
+	 * @param functions
+	 *            The aggregate functions.
+	 * @return One stream per function, empty if the aggregates cannot be
+	 *         retrieved.
+	 */
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceContinuousStateAggregates(
+			String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, long bucketMillis,
+			Set<AggregateFunction> functions)
+	{
+		String params = (stateParams != null) ? stateParams : "";
+
+		try
+		{
+			// aggregate the rollups of the matching series (one per unit)
+			return this.rollupDao.selectAggregates(new EventDataStream(
+					stateName, params, deviceURI), this.seriesDao
+					.getDeviceSeries(SeriesCategory.CONTINUOUS_STATE,
+							deviceURI, stateName, params), bucketMillis,
+					functions, startDate, endDate);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data aggregates", e);
+		}
+
+		return new EnumMap<>(AggregateFunction.class);
+	}
+
+	/**
+	 * Gets the rollups of the given state (including any restricting
+	 * parameter) in the time frame between startDate and endDate, as one data
+	 * point per bucket carrying the requested aggregate, using pagination over
+	 * buckets.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state.
+	 * @param stateParams
+	 *            The parameter values needed to further specify which
+	 *            state must be matched, in a post-like encoding
+	 *            <code>name1=value1&name2=value2&...</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param resolution
+	 *            The bucket width.
+	 * @param function
+	 *            The aggregate function.
+	 * @param startCount
+	 *            The number of buckets to skip.
+	 * @param nResults
+	 *            The number of buckets to provide back.
+	 * @return The stream of aggregates.
+	 */
+	public EventDataStream getSpecificDeviceContinuousStateRollups(String deviceURI,
+			String stateName, String stateParams, Date startDate,
+			Date endDate, RollupResolution resolution,
+			AggregateFunction function, int startCount, int nResults)
+	{
+		// The event stream to return
+		EventDataStream stream = new EventDataStream(stateName,
+				stateParams, deviceURI);
+
+		try
+		{
+			// select the rollups of the matching series (one per unit)
+			this.rollupDao.selectInto(stream, this.seriesDao.getDeviceSeries(
+					SeriesCategory.CONTINUOUS_STATE, deviceURI, stateName,
+					(stateParams != null) ? stateParams : ""),
+					resolution, function, startDate, endDate, startCount,
+					nResults);
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to retrieve sensor data rollups", e);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Adds the latest state of each continuous and discrete state of the given
+	 * device, or of all the devices, to the given set, one stream per state.
+	 * Latest states are kept in memory, updated at every insertion, so that no
+	 * query is needed.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}, null for all the devices.
+	 * @param streamSet
+	 *            The set to fill.
+	 * @return The filled set.
+	 */
+	public EventDataStreamSet getLatestStates(String deviceURI,
+			EventDataStreamSet streamSet)
+	{
+		this.continuousStateTable.selectLatest(deviceURI, streamSet);
+		return this.discreteStateTable.selectLatest(deviceURI, streamSet);
+	}
+
 	public void insertContinuousStates(EventDataStreamSet stateSet)
 	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
 		// iterate over the stream sets
 		for (EventDataStream currentStream : stateSet.getDatastreams())
 		{
@@ -624,75 +827,47 @@ public class StateDao
 			{
 				if (this.devDao.isDevicePresent(currentStream.getDeviceUri()))
 				{
-					this.storage.getConnection().setAutoCommit(
-							false);
-					// the insert counter
-					int i = 0;
+					// the series of the last point, units seldom change
+					Series series = null;
 
 					// iterate over the data points
 					for (EventDataPoint currentDataPoint : currentStream
 							.getDatapoints())
 					{
-						if (i % H2Storage.MAX_BATCH_SIZE == 0)
-						{
-							// exclude the first time
-							if (i > 0)
-							{
-								// execute the insertion batch
-								// TODO: check if synchronization is required
-								// (should be carried by the db)
-								
-								this.insertContinuousStateStmt.executeBatch();
-								this.storage.getConnection().commit();
-							}
-						}
-
-						// add the notification to the batch
-						// fill the prepared statement
-						this.insertContinuousStateStmt.setTimestamp(1,
-								new Timestamp(currentDataPoint.getAt()
-										.getTime()));
-						this.insertContinuousStateStmt.setString(2,
-								currentDataPoint.getUnit());
-						this.insertContinuousStateStmt.setDouble(3,
+						String unit = (currentDataPoint.getUnit() != null) ? currentDataPoint
+								.getUnit() : "";
+						if ((series == null)
+								|| (!series.getUnit().equals(unit)))
+							series = this.seriesDao.getOrCreateSeries(
+									SeriesCategory.CONTINUOUS_STATE,
+									currentStream.getDeviceUri(),
+									currentStream.getName(),
+									currentStream.getParameters(), unit);
+
+						// the group committer executes the batch once full
+						this.continuousStateTable.insert(series,
+								currentDataPoint.getAt(),
 								Double.valueOf(currentDataPoint.getValue()));
-						this.insertContinuousStateStmt.setString(4,
-								currentStream.getName());
-						this.insertContinuousStateStmt.setString(5,
-								currentStream.getParameters());
-						this.insertContinuousStateStmt.setString(6,
-								currentStream.getDeviceUri());
-
-						// execute the insert query
-						this.insertContinuousStateStmt.addBatch();
-						// increments the insert counter
-						i++;
-					}
-
-					// execute the remaining batch
-					if (i % H2Storage.MAX_BATCH_SIZE > 0)
-					{
-						this.storage.getConnection().setAutoCommit(false);
-						this.insertContinuousStateStmt.executeBatch();
-						this.storage.getConnection().setAutoCommit(true);
 					}
-					
-					this.storage.getConnection()
-					.setAutoCommit(true);
 				}
 			}
 			catch (SQLException e)
 			{
 				this.logger.log(LogService.LOG_ERROR,
-						"Unable to store event stream of parametric notifications for the device: "
+						"Unable to store event stream of continuous states for the device: "
 								+ currentStream.getDeviceUri(), e);
 			}
 
 		}
+
+		// commit the remaining batch
+		this.flush(committer);
 	}
 
 	public void insertDiscreteStates(EventDataStreamSet stateSet)
 	{
+		GroupCommitter committer = this.storage.getGroupCommitter();
+
 		// iterate over the stream sets
 		for (EventDataStream currentStream : stateSet.getDatastreams())
 		{
@@ -700,62 +875,52 @@ public class StateDao
 			{
 				if (this.devDao.isDevicePresent(currentStream.getDeviceUri()))
 				{
-					// the insert counter
-					int i = 0;
+					// resolve the series
+					Series series = this.seriesDao.getOrCreateSeries(
+							SeriesCategory.DISCRETE_STATE,
+							currentStream.getDeviceUri(),
+							currentStream.getName(), "", "");
 
 					// iterate over the data points
 					for (EventDataPoint currentDataPoint : currentStream
 							.getDatapoints())
 					{
-						if (i % H2Storage.MAX_BATCH_SIZE == 0)
-						{
-							// exclude the first time
-							if (i > 0)
-							{
-								// execute the insertion batch
-								// TODO: check if synchronization is required
-								// (should be carried by the db)
-								this.storage.getConnection().setAutoCommit(
-										false);
-								this.insertDiscreteStateStmt.executeBatch();
-								this.storage.getConnection()
-										.setAutoCommit(true);
-							}
-						}
-
-						// add the notification to the batch
-						// fill the prepared statement
-						this.insertDiscreteStateStmt.setTimestamp(1,
-								new Timestamp(currentDataPoint.getAt()
-										.getTime()));
-						this.insertDiscreteStateStmt.setString(2,
+						// the group committer executes the batch once full
+						this.discreteStateTable.insert(series,
+								currentDataPoint.getAt(),
 								currentDataPoint.getValue());
-						this.insertDiscreteStateStmt.setString(3,
-								currentStream.getName());
-						this.insertDiscreteStateStmt.setString(4,
-								currentStream.getDeviceUri());
-
-						// execute the insert query
-						this.insertDiscreteStateStmt.addBatch();
-						// increments the insert counter
-						i++;
-					}
-
-					// execute the remaining batch
-					if (i % H2Storage.MAX_BATCH_SIZE > 0)
-					{
-						this.storage.getConnection().setAutoCommit(false);
-						this.insertDiscreteStateStmt.executeBatch();
-						this.storage.getConnection().setAutoCommit(true);
 					}
 				}
 			}
 			catch (SQLException e)
 			{
 				this.logger.log(LogService.LOG_ERROR,
-						"Unable to store event stream of non parametric notifications for the device: "
+						"Unable to store event stream of discrete states for the device: "
 								+ currentStream.getDeviceUri(), e);
 			}
 		}
+
+		// commit the remaining batch
+		this.flush(committer);
+	}
+
+	/**
+	 * Commits the rows still pending in the given {@link GroupCommitter}, used
+	 * by bulk insertions to make data durable before returning.
+	 * 
+	 * @param committer
+	 *            The group committer to flush.
+	 */
+	private void flush(GroupCommitter committer)
+	{
+		try
+		{
+			committer.flush();
+		}
+		catch (SQLException e)
+		{
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to commit stored states", e);
+		}
 	}
 }
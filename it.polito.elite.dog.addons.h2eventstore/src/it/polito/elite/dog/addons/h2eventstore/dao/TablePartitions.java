@@ -0,0 +1,446 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.PartitionMode;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * The time partitions of an {@link EventTable}: the tables, one per day or
+ * month, storing the rows in place of the base table when partitioning is
+ * enabled, and the base table itself, still holding the rows stored before.
+ * Partitions are created on the first row falling in them and dropped as a
+ * whole when older than the retention limit.
+ *
+ */
+class TablePartitions
+{
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the partitioned table, bringing new partitions to its schema
+	private final EventTable table;
+
+	// the base table name
+	private final String tableName;
+
+	// the insertion statement of the base (non partitioned) table
+	private PreparedStatement insertStmt;
+
+	// the time partitioning adopted for new rows
+	private final PartitionMode partitionMode;
+
+	// the existing time partitions, indexed by table name
+	private final ConcurrentHashMap<String, Partition> partitions;
+
+	// the partition of the last inserted row, guarded by the group committer
+	private Partition lastPartition;
+
+	// true if the base table may hold rows and must be queried
+	private volatile boolean baseTableInUse;
+
+	/**
+	 * Creates the {@link TablePartitions} of the given table, whose base
+	 * table must already be at the latest schema version, and finds the
+	 * existing partitions
+	 *
+	 * @param table
+	 *            The partitioned table.
+	 * @param tableName
+	 *            The base table name.
+	 * @param storage
+	 *            The storage layer.
+	 * @param logger
+	 *            The logger to use.
+	 */
+	TablePartitions(EventTable table, String tableName, H2Storage storage,
+			LogHelper logger)
+	{
+		this.table = table;
+		this.tableName = tableName;
+		this.storage = storage;
+		this.logger = logger;
+		this.partitionMode = storage.getPartitionMode();
+		this.partitions = new ConcurrentHashMap<>();
+
+		// check whether the base table must be queried
+		try
+		{
+			this.checkBaseTable();
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR, "Unable to check / create "
+					+ this.tableName + " db table", e);
+		}
+
+		// find the existing partitions
+		this.loadPartitions();
+
+		// prepare the insertion statement
+		try
+		{
+			this.insertStmt = this.storage.getConnection().prepareStatement(
+					"INSERT INTO " + this.tableName
+							+ "(series_id, timestamp, value) VALUES (?,?,?);");
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to create commonly used prepared statements");
+		}
+	}
+
+	/**
+	 * Checks whether the base table must be queried: unpartitioned tables
+	 * always are, partitioned ones only while they still hold rows stored
+	 * without partitioning
+	 *
+	 * @throws SQLException
+	 */
+	void checkBaseTable() throws SQLException
+	{
+		this.baseTableInUse = (this.partitionMode == PartitionMode.NONE)
+				|| (this.hasRows(this.tableName));
+	}
+
+	/**
+	 * Checks whether the base table may hold rows and must be queried
+	 *
+	 * @return true if the base table is in use.
+	 */
+	boolean isBaseTableInUse()
+	{
+		return this.baseTableInUse;
+	}
+
+	/**
+	 * Checks whether the given table holds at least one row
+	 */
+	private boolean hasRows(String table) throws SQLException
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query.executeQuery("SELECT id FROM "
+						+ table + " LIMIT 1"))
+		{
+			return result.next();
+		}
+	}
+
+	/**
+	 * Finds the partitions of this table already stored in the database
+	 */
+	private void loadPartitions()
+	{
+		String prefix = this.tableName.toUpperCase() + "_";
+
+		try (ResultSet tableSet = this.storage
+				.getConnection()
+				.getMetaData()
+				.getTables(this.storage.getConnection().getCatalog(), null,
+						null, new String[] { "TABLE" }))
+		{
+			while (tableSet.next())
+			{
+				String table = tableSet.getString("TABLE_NAME");
+
+				if (table.startsWith(prefix))
+				{
+					Partition partition = Partition.parse(table,
+							table.substring(prefix.length()));
+
+					if (partition != null)
+					{
+						// bring the partition to the latest schema version
+						this.table.migrateTable(table);
+						this.partitions.put(table, partition);
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the partitions of " + this.tableName, e);
+		}
+	}
+
+	/**
+	 * Gets the insertion statement of the table, or partition, storing rows
+	 * with the given timestamp, creating the partition if needed, after
+	 * flushing the pending rows. Must be called holding the lock of the group
+	 * committer.
+	 *
+	 * @param timestamp
+	 *            The timestamp of the row to insert.
+	 * @return The insertion statement, shared and not to be closed.
+	 * @throws SQLException
+	 */
+	PreparedStatement getInsertStatement(long timestamp) throws SQLException
+	{
+		if (this.partitionMode == PartitionMode.NONE)
+			return this.insertStmt;
+
+		// most rows fall in the same partition as the previous one
+		Partition partition = this.lastPartition;
+		if ((partition == null) || (!partition.contains(timestamp)))
+		{
+			String name = Partition.getName(this.tableName,
+					this.partitionMode, timestamp);
+			partition = this.partitions.get(name.toUpperCase());
+
+			if (partition == null)
+			{
+				// new partition: create it, the migrations commit on their
+				// own, so the pending rows are committed first
+				this.storage.getGroupCommitter().flush();
+				this.table.migrateTable(name);
+				partition = Partition.create(name.toUpperCase(),
+						this.partitionMode, timestamp);
+				this.partitions.put(partition.name, partition);
+			}
+
+			this.lastPartition = partition;
+		}
+
+		if (partition.insertStmt == null)
+			partition.insertStmt = this.storage.getConnection()
+					.prepareStatement(
+							"INSERT INTO " + partition.name
+									+ "(series_id, timestamp, value) VALUES (?,?,?);");
+
+		return partition.insertStmt;
+	}
+
+	/**
+	 * Gets the tables, base table and partitions, that may hold rows in the
+	 * given time frame
+	 *
+	 * @param from
+	 *            The start of the time frame, in milliseconds.
+	 * @param to
+	 *            The end of the time frame, in milliseconds.
+	 * @return The table names, the base table first and partitions in time
+	 *         order.
+	 */
+	List<String> planTables(long from, long to)
+	{
+		List<Partition> overlapping = new ArrayList<>();
+		for (Partition partition : this.partitions.values())
+		{
+			if (partition.overlaps(from, to))
+				overlapping.add(partition);
+		}
+
+		// partitions in time order
+		Collections.sort(overlapping);
+
+		List<String> tables = new ArrayList<>();
+		if (this.baseTableInUse)
+			tables.add(this.tableName);
+		for (Partition partition : overlapping)
+			tables.add(partition.name);
+
+		return tables;
+	}
+
+	/**
+	 * Gets the existing partitions in time order
+	 *
+	 * @return The partitions.
+	 */
+	List<Partition> getPartitions()
+	{
+		List<Partition> sorted = new ArrayList<>(this.partitions.values());
+		Collections.sort(sorted);
+
+		return sorted;
+	}
+
+	/**
+	 * Gets the partition stored in the given table
+	 *
+	 * @param table
+	 *            The table name.
+	 * @return The partition, null if the table is not a partition.
+	 */
+	Partition getPartition(String table)
+	{
+		return this.partitions.get(table);
+	}
+
+	/**
+	 * Drops the table of the given partition, in the current transaction.
+	 * Must be called holding the lock of the group committer, with no pending
+	 * rows.
+	 *
+	 * @param partition
+	 *            The partition to drop.
+	 * @throws SQLException
+	 */
+	void drop(Partition partition) throws SQLException
+	{
+		if (partition.insertStmt != null)
+			partition.insertStmt.close();
+		if (this.lastPartition == partition)
+			this.lastPartition = null;
+
+		try (Statement query = this.storage.getConnection().createStatement())
+		{
+			query.executeUpdate("DROP TABLE IF EXISTS " + partition.name);
+			this.partitions.remove(partition.name);
+		}
+		this.storage.getSchemaMigrator().forget(partition.name);
+	}
+
+	/**
+	 * Closes the insertion statements of the base table and partitions
+	 *
+	 * @throws SQLException
+	 */
+	void close() throws SQLException
+	{
+		this.insertStmt.close();
+		for (Partition partition : this.partitions.values())
+		{
+			if (partition.insertStmt != null)
+				partition.insertStmt.close();
+		}
+	}
+
+	/**
+	 * A time partition of the table, covering rows with timestamps in
+	 * [start, end)
+	 */
+	static class Partition implements Comparable<Partition>
+	{
+		// partitions are aligned to UTC days and months
+		private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+		// the partition table name, upper case
+		final String name;
+
+		// the partition bounds, in milliseconds
+		final long start;
+		final long end;
+
+		// the insertion statement, prepared on first use
+		private PreparedStatement insertStmt;
+
+		private Partition(String name, long start, long end)
+		{
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Builds the partition of the given mode holding the given timestamp
+		 */
+		private static Partition create(String name, PartitionMode mode,
+				long timestamp)
+		{
+			Calendar calendar = Partition.truncate(mode, timestamp);
+			long start = calendar.getTimeInMillis();
+			calendar.add((mode == PartitionMode.DAY) ? Calendar.DAY_OF_MONTH
+					: Calendar.MONTH, 1);
+
+			return new Partition(name, start, calendar.getTimeInMillis());
+		}
+
+		/**
+		 * Rebuilds a partition from its table name and suffix, yyyyMMdd for
+		 * days and yyyyMM for months
+		 *
+		 * @return the partition or null if the suffix is not a partition one.
+		 */
+		private static Partition parse(String name, String suffix)
+		{
+			if (((suffix.length() != 8) && (suffix.length() != 6))
+					|| (!suffix.matches("[0-9]+")))
+				return null;
+
+			Calendar calendar = Calendar.getInstance(Partition.UTC);
+			calendar.clear();
+			calendar.set(Integer.parseInt(suffix.substring(0, 4)),
+					Integer.parseInt(suffix.substring(4, 6)) - 1,
+					(suffix.length() == 8) ? Integer.parseInt(suffix
+							.substring(6, 8)) : 1);
+
+			return Partition.create(name,
+					(suffix.length() == 8) ? PartitionMode.DAY
+							: PartitionMode.MONTH, calendar.getTimeInMillis());
+		}
+
+		/**
+		 * Gets the name of the partition of the given table holding the given
+		 * timestamp
+		 */
+		private static String getName(String table, PartitionMode mode,
+				long timestamp)
+		{
+			Calendar calendar = Partition.truncate(mode, timestamp);
+
+			if (mode == PartitionMode.DAY)
+				return String.format("%s_%04d%02d%02d", table,
+						calendar.get(Calendar.YEAR),
+						calendar.get(Calendar.MONTH) + 1,
+						calendar.get(Calendar.DAY_OF_MONTH));
+			else
+				return String.format("%s_%04d%02d", table,
+						calendar.get(Calendar.YEAR),
+						calendar.get(Calendar.MONTH) + 1);
+		}
+
+		/**
+		 * Truncates the given timestamp to the beginning of its day or month
+		 */
+		private static Calendar truncate(PartitionMode mode, long timestamp)
+		{
+			Calendar calendar = Calendar.getInstance(Partition.UTC);
+			calendar.setTimeInMillis(timestamp);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			if (mode == PartitionMode.MONTH)
+				calendar.set(Calendar.DAY_OF_MONTH, 1);
+
+			return calendar;
+		}
+
+		private boolean contains(long timestamp)
+		{
+			return (timestamp >= this.start) && (timestamp < this.end);
+		}
+
+		private boolean overlaps(long from, long to)
+		{
+			return (this.start <= to) && (this.end > from);
+		}
+
+		@Override
+		public int compareTo(Partition other)
+		{
+			return Long.compare(this.start, other.start);
+		}
+	}
+}
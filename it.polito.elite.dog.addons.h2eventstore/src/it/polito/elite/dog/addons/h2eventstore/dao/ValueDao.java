@@ -0,0 +1,249 @@
+package it.polito.elite.dog.addons.h2eventstore.dao;
+
+import it.polito.elite.dog.addons.h2eventstore.db.GroupCommitter;
+import it.polito.elite.dog.addons.h2eventstore.db.H2Storage;
+import it.polito.elite.dog.addons.h2eventstore.db.SchemaMigration;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * The value dictionary, maps each discrete value, e.g., "OnState" or
+ * "OffNotification", to the small integer code stored in the data tables of
+ * discrete states and non-parametric notifications. As for series, the whole
+ * dictionary is kept in memory and is bidirectional.
+ *
+ */
+public class ValueDao
+{
+	// OSGi logger
+	private LogHelper logger;
+
+	// The storage layer
+	private H2Storage storage;
+
+	// the codes indexed by value
+	private final ConcurrentHashMap<String, Integer> codesByValue;
+
+	// the values indexed by code
+	private final ConcurrentHashMap<Integer, String> valuesByCode;
+
+	// ---- TABLE NAMES
+	private final String valueTableName = "ValueDictionary";
+
+	// ---- TABLE STRUCTURE
+	private final String valueTableCreateQuery = "CREATE TABLE IF NOT EXISTS "
+			+ this.valueTableName
+			+ "(id int(11) NOT NULL AUTO_INCREMENT, value VARCHAR(100) NOT NULL, "
+			+ "PRIMARY KEY(id), UNIQUE(value));";
+
+	// --------- commonly used statements ------------
+	private PreparedStatement insertValueStmt;
+
+	// ---- INSERTION QUERIES
+	private final String insertValueQuery = "INSERT INTO "
+			+ this.valueTableName + "(value) VALUES (?);";
+
+	// ---- SELECT QUERIES
+	private final String selectAllValuesQuery = "SELECT id, value FROM "
+			+ this.valueTableName + " ORDER BY id;";
+
+	public ValueDao(final H2Storage storage, final BundleContext context)
+	{
+		// init logger
+		this.logger = new LogHelper(context);
+
+		// store the connection
+		this.storage = storage;
+
+		// the in-memory dictionary
+		this.codesByValue = new ConcurrentHashMap<>();
+		this.valuesByCode = new ConcurrentHashMap<>();
+
+		// check and create tables if needed
+		this.checkAndCreateTables();
+
+		// load the dictionary
+		this.loadValues();
+
+		// prepare the commonly executed statements
+		this.prepareCommonStatements();
+	}
+
+	private void checkAndCreateTables()
+	{
+		// the value table migrations
+		List<SchemaMigration> migrations = new ArrayList<>();
+		migrations.add(new SchemaMigration(1, "value dictionary") {
+
+			@Override
+			public void apply(Connection connection, String table)
+					throws SQLException
+			{
+				try (Statement query = connection.createStatement())
+				{
+					query.executeUpdate(ValueDao.this.valueTableCreateQuery);
+				}
+			}
+		});
+
+		try
+		{
+			// create or evolve the ValueDictionary table
+			for (SchemaMigration migration : this.storage.getSchemaMigrator()
+					.migrate(this.valueTableName, migrations))
+				this.logger.log(LogService.LOG_INFO, this.valueTableName
+						+ " migrated to version " + migration.getVersion()
+						+ ": " + migration.getDescription());
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to check / create value db tables", e);
+		}
+	}
+
+	/**
+	 * Loads all the stored values in the in-memory dictionary
+	 */
+	private void loadValues()
+	{
+		try (Statement query = this.storage.getConnection().createStatement();
+				ResultSet result = query
+						.executeQuery(this.selectAllValuesQuery))
+		{
+			while (result.next())
+				this.register(result.getInt(1), result.getString(2));
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to load the value dictionary", e);
+		}
+	}
+
+	/**
+	 * Prepares commonly used statements to improve db operation performance.
+	 */
+	private void prepareCommonStatements()
+	{
+		try
+		{
+			this.insertValueStmt = this.storage.getConnection()
+					.prepareStatement(this.insertValueQuery,
+							Statement.RETURN_GENERATED_KEYS);
+		}
+		catch (SQLException e)
+		{
+			// Log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to create commonly used prepared statements");
+		}
+	}
+
+	public boolean close()
+	{
+		boolean isClosed = false;
+		// close db connection
+		try
+		{
+			this.insertValueStmt.close();
+			isClosed = true;
+		}
+		catch (SQLException e)
+		{
+			// log the error
+			this.logger.log(LogService.LOG_ERROR,
+					"Unable to close commonly used prepared statements");
+		}
+
+		return isClosed;
+	}
+
+	/**
+	 * Adds the given value to the in-memory dictionary
+	 */
+	private void register(int code, String value)
+	{
+		this.codesByValue.put(value, code);
+		this.valuesByCode.put(code, value);
+	}
+
+	/**
+	 * Gets the value having the given code
+	 *
+	 * @param code
+	 *            The value code.
+	 * @return The value or null if no value has the given code.
+	 */
+	public String getValue(int code)
+	{
+		return this.valuesByCode.get(code);
+	}
+
+	/**
+	 * Gets the code of the given value, storing it if needed
+	 *
+	 * @param value
+	 *            The value.
+	 * @return The code, or null for null values.
+	 * @throws SQLException
+	 *             if the value cannot be stored.
+	 */
+	public Integer getOrCreateCode(String value) throws SQLException
+	{
+		if (value == null)
+			return null;
+
+		Integer code = this.codesByValue.get(value);
+
+		if (code == null)
+		{
+			// the connection is shared with the group committer
+			GroupCommitter committer = this.storage.getGroupCommitter();
+			synchronized (committer)
+			{
+				// check again, another thread may have created it
+				code = this.codesByValue.get(value);
+
+				if (code == null)
+				{
+					// the pending rows are committed on their own first
+					committer.flush();
+
+					this.insertValueStmt.setString(1, value);
+					this.insertValueStmt.executeUpdate();
+
+					try (ResultSet keys = this.insertValueStmt
+							.getGeneratedKeys())
+					{
+						if (!keys.next())
+							throw new SQLException("No id generated for value "
+									+ value);
+
+						code = keys.getInt(1);
+					}
+
+					// the value must be visible before rows referring to it
+					this.storage.getConnection().commit();
+
+					this.register(code, value);
+				}
+			}
+		}
+
+		return code;
+	}
+}
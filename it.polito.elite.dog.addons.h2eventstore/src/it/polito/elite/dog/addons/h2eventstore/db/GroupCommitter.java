@@ -0,0 +1,509 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Gathers single-row insertions issued by the data access objects into JDBC
+ * batches sharing one commit. Pending batches are flushed, i.e., executed and
+ * committed together, as soon as either the current batch size or the
+ * configured time budget is reached.
+ * </p>
+ * 
+ * <p>
+ * The batch size adapts to the observed flush latency: it is halved whenever
+ * a flush takes longer than the time budget and it is slowly increased, up to
+ * the configured maximum, while flushes complete well within the budget.
+ * </p>
+ * 
+ * <p>
+ * A row refused by the database, e.g., since it violates a constraint, makes
+ * its whole batch fail: the pending rows are then executed one by one, and
+ * only the refused ones are dropped, so that the other rows are committed
+ * anyway.
+ * </p>
+ * 
+ * <p>
+ * Callers must hold the lock of the {@link GroupCommitter} instance while
+ * choosing a statement and adding a row to its batch, and while using the
+ * writer connection in any other way, so that rows of different threads are
+ * never mixed on shared statements and nothing else is committed or rolled
+ * back with the pending rows.
+ * </p>
+ * 
+ */
+public class GroupCommitter
+{
+	// the default max number of rows per batch
+	public static final int DEFAULT_MAX_ROWS = 500;
+
+	// the default time budget, in milliseconds
+	public static final long DEFAULT_MAX_DELAY = 50;
+
+	// the minimum batch size reachable by the adaptation
+	private static final int MIN_BATCH_SIZE = 16;
+
+	// the storage layer owning the connection to commit
+	private final H2Storage storage;
+
+	// the group commit flag, if false every row is committed immediately
+	private boolean enabled;
+
+	// the upper bound of the adaptive batch size
+	private int maxRows;
+
+	// the time budget in nanoseconds
+	private long maxDelayNanos;
+
+	// the current (adaptive) batch size
+	private int batchSize;
+
+	// the number of rows waiting for the next flush
+	private int pendingRows;
+
+	// the time at which the first pending row has been added
+	private long firstPendingNanos;
+
+	// the statements having pending batches, with their rows
+	private final LinkedHashMap<PreparedStatement, List<Row>> pendingStatements;
+
+	// the number of flushes, flushed and refused rows, for monitoring
+	// purposes
+	private long flushCount;
+	private long flushedRows;
+	private long refusedRows;
+
+	// the participants writing their changes in the flushed transactions
+	private final List<Participant> participants;
+
+	/**
+	 * A row added to a batch, able to fill the statement again if the batch
+	 * must be executed one row at a time. Rows are notified holding the lock
+	 * of the {@link GroupCommitter}.
+	 */
+	public interface Row
+	{
+		/**
+		 * Fills the parameters of the given statement with the row values
+		 * 
+		 * @param statement
+		 *            The statement to fill.
+		 * @throws SQLException
+		 *             if the parameters cannot be set.
+		 */
+		public void bind(PreparedStatement statement) throws SQLException;
+
+		/**
+		 * Notifies that the row has been written in the transaction about to
+		 * be committed, before the participants write their changes.
+		 */
+		public void accepted();
+
+		/**
+		 * Notifies that the database refused the row, which is dropped while
+		 * the other pending rows are committed.
+		 * 
+		 * @param cause
+		 *            The error raised by the row.
+		 */
+		public void refused(SQLException cause);
+	}
+
+	/**
+	 * A participant to group commits, i.e., a component keeping changes
+	 * derived from the inserted rows, e.g., summaries, which must be written
+	 * in the same transaction as the rows. Participants are called holding
+	 * the lock of the {@link GroupCommitter}.
+	 */
+	public interface Participant
+	{
+		/**
+		 * Writes the pending changes, called once the pending batches have
+		 * been executed and before committing them.
+		 * 
+		 * @throws SQLException
+		 *             if the changes cannot be written, the whole transaction
+		 *             is rolled back.
+		 */
+		public void beforeCommit() throws SQLException;
+
+		/**
+		 * Notifies that the flushed rows have been committed, i.e., that they
+		 * are now visible to queries.
+		 */
+		public void afterCommit();
+
+		/**
+		 * Discards the pending changes, called when the transaction has been
+		 * rolled back.
+		 */
+		public void afterRollback();
+	}
+
+	/**
+	 * Creates a {@link GroupCommitter} committing on the connection of the
+	 * given {@link H2Storage} with the default batch size and time budget.
+	 * 
+	 * @param storage
+	 *            The storage layer.
+	 */
+	public GroupCommitter(H2Storage storage)
+	{
+		this.storage = storage;
+		this.pendingStatements = new LinkedHashMap<>();
+		this.participants = new CopyOnWriteArrayList<>();
+		this.configure(true, GroupCommitter.DEFAULT_MAX_ROWS,
+				GroupCommitter.DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Configures the group commit behavior
+	 * 
+	 * @param enabled
+	 *            true to gather rows in batches, false to commit each row as
+	 *            soon as it is added.
+	 * @param maxRows
+	 *            The max number of rows per batch.
+	 * @param maxDelay
+	 *            The max time, in milliseconds, a row may wait before being
+	 *            committed.
+	 */
+	public synchronized void configure(boolean enabled, int maxRows,
+			long maxDelay)
+	{
+		this.enabled = enabled;
+		this.maxRows = Math.max(GroupCommitter.MIN_BATCH_SIZE,
+				maxRows > 0 ? maxRows : GroupCommitter.DEFAULT_MAX_ROWS);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS
+				.toNanos(maxDelay > 0 ? maxDelay
+						: GroupCommitter.DEFAULT_MAX_DELAY);
+		this.batchSize = this.maxRows;
+	}
+
+	/**
+	 * Adds a row to the batch of the given statement, possibly triggering a
+	 * flush.
+	 * 
+	 * @param statement
+	 *            The statement inserting the row.
+	 * @param row
+	 *            The row to add.
+	 * @throws SQLException
+	 *             if the row cannot be added or the triggered flush fails.
+	 */
+	public synchronized void add(PreparedStatement statement, Row row)
+			throws SQLException
+	{
+		// add the row to the batch
+		row.bind(statement);
+		statement.addBatch();
+
+		// track the pending row
+		List<Row> rows = this.pendingStatements.get(statement);
+		if (rows == null)
+		{
+			rows = new ArrayList<>();
+			this.pendingStatements.put(statement, rows);
+		}
+		rows.add(row);
+		if (this.pendingRows == 0)
+			this.firstPendingNanos = System.nanoTime();
+		this.pendingRows++;
+
+		// flush if needed
+		if ((!this.enabled)
+				|| (this.pendingRows >= this.batchSize)
+				|| (System.nanoTime() - this.firstPendingNanos >= this.maxDelayNanos))
+			this.flush();
+	}
+
+	/**
+	 * Flushes the pending rows if the time budget of the oldest one has been
+	 * consumed.
+	 * 
+	 * @return the time, in nanoseconds, after which this method should be
+	 *         called again.
+	 * @throws SQLException
+	 *             if the flush fails.
+	 */
+	public synchronized long flushIfDue() throws SQLException
+	{
+		if (this.pendingRows > 0)
+		{
+			long elapsed = System.nanoTime() - this.firstPendingNanos;
+
+			if (elapsed >= this.maxDelayNanos)
+				this.flush();
+			else
+				return this.maxDelayNanos - elapsed;
+		}
+
+		return this.maxDelayNanos;
+	}
+
+	/**
+	 * Executes all the pending batches and commits them in a single
+	 * transaction. If a batch fails, the rows are executed one by one and
+	 * the refused ones are dropped.
+	 * 
+	 * @throws SQLException
+	 *             if the participants or the commit fail, in which case the
+	 *             pending rows are discarded.
+	 */
+	public synchronized void flush() throws SQLException
+	{
+		if (this.pendingRows == 0)
+			return;
+
+		int rows = this.pendingRows;
+		long start = System.nanoTime();
+
+		try
+		{
+			try
+			{
+				// execute the insertion batches
+				for (PreparedStatement statement : this.pendingStatements
+						.keySet())
+					statement.executeBatch();
+			}
+			catch (SQLException e)
+			{
+				// a row has been refused, isolate it
+				rows -= this.executeRowByRow();
+			}
+
+			// the rows are part of the transaction
+			for (List<Row> statementRows : this.pendingStatements.values())
+			{
+				for (Row row : statementRows)
+					row.accepted();
+			}
+
+			// write the derived changes
+			for (Participant participant : this.participants)
+				participant.beforeCommit();
+
+			// commit all of them at once
+			this.storage.getConnection().commit();
+		}
+		catch (SQLException e)
+		{
+			// discard the failed transaction
+			this.rollback();
+			throw e;
+		}
+		finally
+		{
+			this.pendingStatements.clear();
+			this.pendingRows = 0;
+		}
+
+		// the rows are now visible
+		for (Participant participant : this.participants)
+			participant.afterCommit();
+
+		// update statistics
+		this.flushCount++;
+		this.flushedRows += rows;
+
+		// adapt the batch size to the observed latency
+		this.adaptBatchSize(rows, System.nanoTime() - start);
+	}
+
+	/**
+	 * Rolls back the current transaction of the writer connection, e.g., when
+	 * a maintenance task sharing it fails, discarding the pending rows and
+	 * notifying the participants.
+	 * 
+	 * @throws SQLException
+	 *             if the rollback fails, the participants are notified
+	 *             anyway.
+	 */
+	public synchronized void rollback() throws SQLException
+	{
+		try
+		{
+			for (PreparedStatement statement : this.pendingStatements
+					.keySet())
+				statement.clearBatch();
+			this.storage.getConnection().rollback();
+		}
+		finally
+		{
+			this.pendingStatements.clear();
+			this.pendingRows = 0;
+
+			for (Participant participant : this.participants)
+				participant.afterRollback();
+		}
+	}
+
+	/**
+	 * Executes the pending rows one at a time, after a failed batch, so that
+	 * the rows refused by the database are dropped without discarding the
+	 * other ones. A failed statement does not affect the rest of the
+	 * transaction.
+	 * 
+	 * @return the number of refused rows.
+	 * @throws SQLException
+	 *             if the failed batches cannot be rolled back.
+	 */
+	private int executeRowByRow() throws SQLException
+	{
+		// discard whatever the batches wrote
+		for (PreparedStatement statement : this.pendingStatements.keySet())
+			statement.clearBatch();
+		this.storage.getConnection().rollback();
+
+		int refused = 0;
+		for (Map.Entry<PreparedStatement, List<Row>> pending : this.pendingStatements
+				.entrySet())
+		{
+			PreparedStatement statement = pending.getKey();
+			Iterator<Row> rows = pending.getValue().iterator();
+			while (rows.hasNext())
+			{
+				Row row = rows.next();
+				try
+				{
+					row.bind(statement);
+					statement.executeUpdate();
+				}
+				catch (SQLException e)
+				{
+					// drop the row
+					rows.remove();
+					row.refused(e);
+					refused++;
+				}
+			}
+		}
+
+		this.refusedRows += refused;
+		return refused;
+	}
+
+	/**
+	 * Adds a {@link Participant} to the next flushes
+	 * 
+	 * @param participant
+	 *            The participant to add.
+	 */
+	public void addParticipant(Participant participant)
+	{
+		this.participants.add(participant);
+	}
+
+	/**
+	 * Removes a {@link Participant} from the next flushes
+	 * 
+	 * @param participant
+	 *            The participant to remove.
+	 */
+	public void removeParticipant(Participant participant)
+	{
+		this.participants.remove(participant);
+	}
+
+	/**
+	 * Adapts the batch size to the latency observed while flushing the given
+	 * number of rows.
+	 * 
+	 * @param rows
+	 *            The number of flushed rows.
+	 * @param latencyNanos
+	 *            The flush latency in nanoseconds.
+	 */
+	private void adaptBatchSize(int rows, long latencyNanos)
+	{
+		if (latencyNanos > this.maxDelayNanos)
+		{
+			// too slow, halve the batch
+			this.batchSize = Math.max(GroupCommitter.MIN_BATCH_SIZE,
+					this.batchSize / 2);
+		}
+		else if ((rows >= this.batchSize)
+				&& (latencyNanos < this.maxDelayNanos / 2))
+		{
+			// full batch flushed well within the budget, grow it
+			this.batchSize = Math.min(this.maxRows, this.batchSize
+					+ Math.max(1, this.batchSize / 4));
+		}
+	}
+
+	/**
+	 * Gets the current batch size, as adapted to the observed latency.
+	 * 
+	 * @return the number of rows triggering a flush.
+	 */
+	public synchronized int getBatchSize()
+	{
+		return this.batchSize;
+	}
+
+	/**
+	 * Gets the number of rows waiting for the next flush
+	 * 
+	 * @return the number of pending rows.
+	 */
+	public synchronized int getPendingRows()
+	{
+		return this.pendingRows;
+	}
+
+	/**
+	 * Gets the number of flushes carried since the creation
+	 * 
+	 * @return the number of flushes.
+	 */
+	public synchronized long getFlushCount()
+	{
+		return this.flushCount;
+	}
+
+	/**
+	 * Gets the number of rows committed since the creation
+	 * 
+	 * @return the number of flushed rows.
+	 */
+	public synchronized long getFlushedRows()
+	{
+		return this.flushedRows;
+	}
+
+	/**
+	 * Gets the number of rows refused by the database since the creation
+	 * 
+	 * @return the number of refused rows.
+	 */
+	public synchronized long getRefusedRows()
+	{
+		return this.refusedRows;
+	}
+}
@@ -17,6 +17,7 @@
  */
 package it.polito.elite.dog.addons.h2eventstore.db;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -29,9 +30,6 @@ import java.sql.Statement;
 public class H2Storage
 {
 
-	// ---- The max insertion batch size
-	public static final int MAX_BATCH_SIZE = 1000;
-
 	// the jdbc connection object
 	private Connection connection;
 	
@@ -43,6 +41,37 @@ public class H2Storage
 	
 	//the db url
 	private String url;
+	
+	// the group commit handler for the connection
+	private GroupCommitter groupCommitter;
+	
+	// the statements prepared on the writer connection
+	private StatementCache statementCache;
+	
+	// the read-only connections used by queries
+	private ReaderPool readerPool;
+	
+	// the results of recent queries
+	private QueryCache queryCache;
+	
+	// the runner of table migrations
+	private SchemaMigrator schemaMigrator;
+	
+	// true if referential integrity checks are disabled, in the whole
+	// database
+	private boolean relaxedIntegrity;
+	
+	// the time partitioning of event tables
+	private PartitionMode partitionMode;
+	
+	// the row count and size limits of the stored events
+	private StorageQuota quota;
+	
+	// true if measures are packed into compressed chunks
+	private boolean chunkStorage;
+	
+	// true if discrete states are stored as value transitions only
+	private boolean runLengthStates;
 
 	// TODO: comment this
 	public H2Storage(String url, String user, String password)
@@ -54,26 +83,321 @@ public class H2Storage
 		this.password = password;
 		
 		// open database connection
-		this.connection = DriverManager.getConnection(url, user, password);
+		this.connection = this.openConnection();
+		this.statementCache = new StatementCache(this.connection, StatementCache.DEFAULT_MAX_STATEMENTS);
+		
+		// gathers insertions in batches committed together
+		this.groupCommitter = new GroupCommitter(this);
+		
+		// queries run on their own connections
+		this.readerPool = new ReaderPool(url, user, password);
+		
+		// results are invalidated as rows are committed
+		this.queryCache = new QueryCache();
+		this.groupCommitter.addParticipant(this.queryCache);
+		
+		// evolves tables created by previous versions
+		this.schemaMigrator = new SchemaMigrator(this);
+		
+		// by default event tables are not partitioned
+		this.partitionMode = PartitionMode.NONE;
+		
+		// by default the storage is unlimited
+		this.quota = new StorageQuota();
+	}
+	
+	/**
+	 * Opens a new connection to the database, commits are explicitly handled
+	 * by the {@link GroupCommitter}.
+	 * 
+	 * @return The opened connection.
+	 * @throws SQLException
+	 */
+	private Connection openConnection() throws SQLException
+	{
+		Connection newConnection = DriverManager.getConnection(this.url, this.user, this.password);
+		newConnection.setAutoCommit(false);
+		
+		// the integrity setting is reset when the database is closed, which
+		// happens if the previous connection was the last one open
+		if (this.relaxedIntegrity)
+			this.applyReferentialIntegrity(newConnection);
+		
+		return newConnection;
+	}
+	
+	/**
+	 * Enables or disables the referential integrity checks, i.e., the foreign
+	 * key lookups performed by the database for every inserted row. Checks can
+	 * be safely relaxed as long as the data access objects only insert rows of
+	 * devices and series already stored in the database. The setting applies
+	 * to the whole database, i.e., to every connection, until the database is
+	 * closed. Changing it commits the open transaction of the writer
+	 * connection, thus the pending rows are committed first.
+	 * 
+	 * @param relaxed
+	 *            true to disable referential integrity checks, false to enable
+	 *            them (already stored rows are not checked again).
+	 * @throws SQLException
+	 */
+	public void setRelaxedIntegrity(boolean relaxed) throws SQLException
+	{
+		synchronized (this.groupCommitter)
+		{
+			this.groupCommitter.flush();
+
+			this.relaxedIntegrity = relaxed;
+			this.applyReferentialIntegrity(this.getConnection());
+		}
+	}
+	
+	/**
+	 * Checks whether referential integrity checks are disabled
+	 * 
+	 * @return true if integrity checks are relaxed.
+	 */
+	public boolean isRelaxedIntegrity()
+	{
+		return this.relaxedIntegrity;
+	}
+	
+	/**
+	 * Applies the current referential integrity setting to the database
+	 * through the given connection.
+	 * 
+	 * @param target
+	 *            The connection.
+	 * @throws SQLException
+	 */
+	private void applyReferentialIntegrity(Connection target) throws SQLException
+	{
+		try (Statement query = target.createStatement())
+		{
+			query.execute("SET REFERENTIAL_INTEGRITY " + (this.relaxedIntegrity ? "FALSE" : "TRUE"));
+		}
 	}
 
 	public Connection getConnection() throws SQLException
 	{
 		//re-create the connection if it was closed by some "external event", e.g., errors on the db, etc.
 		if(this.connection.isClosed())
-			this.connection = DriverManager.getConnection(this.url, this.user, this.password);
+		{
+			this.connection = this.openConnection();
+			this.statementCache = new StatementCache(this.connection, StatementCache.DEFAULT_MAX_STATEMENTS);
+		}
 		
 		//return the connection
 		return this.connection;
 	}
+	
+	/**
+	 * Gets the cache of the statements prepared on the writer connection, must
+	 * be used holding the lock of the {@link GroupCommitter}.
+	 * 
+	 * @return The statement cache of the writer connection.
+	 * @throws SQLException
+	 */
+	public StatementCache getStatementCache() throws SQLException
+	{
+		// the connection may have been re-created
+		this.getConnection();
+		
+		return this.statementCache;
+	}
+	
+	/**
+	 * Borrows a read-only connection from the {@link ReaderPool}, so that
+	 * queries neither wait for nor delay insertions. The connection must be
+	 * closed to give it back.
+	 * 
+	 * @return The reader connection, with its statement cache.
+	 * @throws SQLException
+	 *             if no reader connection is available in time.
+	 */
+	public ReadConnection getReadConnection() throws SQLException
+	{
+		return this.readerPool.acquire();
+	}
+	
+	/**
+	 * Gets the {@link ReaderPool} of the connections used by queries, e.g., to
+	 * configure it or to read its metrics.
+	 * 
+	 * @return The reader pool.
+	 */
+	public ReaderPool getReaderPool()
+	{
+		return this.readerPool;
+	}
+	
+	/**
+	 * Gets the {@link QueryCache} of the results of recent queries, e.g., to
+	 * configure it or to read its metrics.
+	 * 
+	 * @return The query cache.
+	 */
+	public QueryCache getQueryCache()
+	{
+		return this.queryCache;
+	}
+	
+	/**
+	 * Gets the {@link GroupCommitter} handling commits of insertions issued on
+	 * the connection of this storage.
+	 * 
+	 * @return The group committer.
+	 */
+	public GroupCommitter getGroupCommitter()
+	{
+		return this.groupCommitter;
+	}
 
-	public void close() throws SQLException
+	/**
+	 * Gets the time partitioning adopted for newly inserted events
+	 * 
+	 * @return the partition mode.
+	 */
+	public PartitionMode getPartitionMode()
+	{
+		return this.partitionMode;
+	}
+	
+	/**
+	 * Sets the time partitioning adopted for newly inserted events, must be
+	 * set before creating the data access objects. Events already stored with
+	 * a different partitioning stay where they are and are still queried.
+	 * 
+	 * @param partitionMode
+	 *            The partition mode.
+	 */
+	public void setPartitionMode(PartitionMode partitionMode)
+	{
+		this.partitionMode = (partitionMode != null) ? partitionMode : PartitionMode.NONE;
+	}
+	
+	/**
+	 * Checks whether measures are packed into compressed chunks
+	 * 
+	 * @return true if chunk storage is enabled.
+	 */
+	public boolean isChunkStorage()
+	{
+		return this.chunkStorage;
+	}
+	
+	/**
+	 * Enables or disables the packing of measures into compressed chunks, must
+	 * be set before creating the data access objects. Chunks already stored
+	 * are still queried when disabled.
+	 * 
+	 * @param chunkStorage
+	 *            true to enable chunk storage.
+	 */
+	public void setChunkStorage(boolean chunkStorage)
+	{
+		this.chunkStorage = chunkStorage;
+	}
+	
+	/**
+	 * Checks whether discrete states are stored as value transitions only
+	 * 
+	 * @return true if run-length storage of states is enabled.
+	 */
+	public boolean isRunLengthStates()
+	{
+		return this.runLengthStates;
+	}
+	
+	/**
+	 * Enables or disables the run-length storage of discrete states, where
+	 * states repeating the last stored value of their series are not stored,
+	 * must be set before creating the data access objects.
+	 * 
+	 * @param runLengthStates
+	 *            true to store value transitions only.
+	 */
+	public void setRunLengthStates(boolean runLengthStates)
+	{
+		this.runLengthStates = runLengthStates;
+	}
+	
+	/**
+	 * Gets the {@link SchemaMigrator} handling the versions of the tables
+	 * stored in this storage.
+	 * 
+	 * @return The schema migrator.
+	 */
+	public SchemaMigrator getSchemaMigrator()
+	{
+		return this.schemaMigrator;
+	}
+	
+	/**
+	 * Gets the {@link StorageQuota} tracking the number of stored event rows
+	 * and the storage limits.
+	 * 
+	 * @return The storage quota.
+	 */
+	public StorageQuota getQuota()
 	{
-		Statement query = this.connection.createStatement();
-		query.execute("SHUTDOWN COMPACT");
+		return this.quota;
+	}
+	
+	/**
+	 * Gets the size of the database file, if the database is stored in a
+	 * local file.
+	 * 
+	 * @return The file size in bytes, -1 for in-memory or remote databases.
+	 */
+	public long getDatabaseFileSize()
+	{
+		// strip the url prefix and settings
+		String location = this.url.startsWith("jdbc:h2:") ? this.url.substring(8) : this.url;
+		int settings = location.indexOf(';');
+		if (settings >= 0)
+			location = location.substring(0, settings);
+		
+		if (location.startsWith("file:"))
+			location = location.substring(5);
+		else if (location.startsWith("mem:") || location.startsWith("tcp:") || location.startsWith("ssl:")
+				|| location.startsWith("zip:"))
+			return -1;
+		
+		// the home directory shortcut
+		if (location.startsWith("~"))
+			location = System.getProperty("user.home") + location.substring(1);
 		
-		if(!this.connection.isClosed())
-			this.connection.close();
+		// MVStore and PageStore files
+		for (String extension : new String[] { ".mv.db", ".h2.db" })
+		{
+			File file = new File(location + extension);
+			if (file.isFile())
+				return file.length();
+		}
+		
+		return -1;
+	}
+	
+	public void close() throws SQLException
+	{
+		try
+		{
+			// commit pending insertions
+			this.groupCommitter.flush();
+		}
+		finally
+		{
+			// readers and statements are not needed anymore
+			this.readerPool.close();
+			this.statementCache.clear();
+			this.queryCache.clear();
+			
+			Statement query = this.connection.createStatement();
+			query.execute("SHUTDOWN COMPACT");
+			
+			if(!this.connection.isClosed())
+				this.connection.close();
+		}
 	}
 
 }
@@ -0,0 +1,33 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+/**
+ * A public enumeration used to set how event tables are split in time
+ * partitions. It can either assume the value <code>PartitionMode.NONE</code>,
+ * which stores all the events of a kind in a single table, or the values
+ * <code>PartitionMode.DAY</code> and <code>PartitionMode.MONTH</code> that
+ * store events in one table per (UTC) day or month, respectively.
+ * 
+ */
+public enum PartitionMode
+{
+	NONE, // a single table per event kind
+	DAY, // one table per day
+	MONTH // one table per month
+}
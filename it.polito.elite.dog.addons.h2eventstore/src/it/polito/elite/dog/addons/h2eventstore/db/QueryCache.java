@@ -0,0 +1,488 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * A bounded, least recently used cache of query results, shared by all the
+ * data tables. Each result is stored together with the series and the time
+ * frame it has been read from, and it is invalidated only when rows of one of
+ * those series are inserted inside that time frame: results on time frames in
+ * the past stay cached until evicted, while results reaching the present are
+ * invalidated by the ongoing insertions.
+ * </p>
+ * 
+ * <p>
+ * Inserted rows become visible to queries only when committed by the
+ * {@link GroupCommitter}, therefore invalidations are applied once rows are
+ * committed, and results read by queries running meanwhile, or while rows of
+ * their series are pending, are not stored. The cache is bounded by the total
+ * weight, i.e., the number of events, of the stored results. Stored results
+ * are shared and must never be modified nor handed out to callers.
+ * </p>
+ * 
+ */
+public class QueryCache implements GroupCommitter.Participant
+{
+	// the default max number of cached events
+	public static final int DEFAULT_MAX_WEIGHT = 100000;
+
+	// results heavier than this fraction of the max weight are not cached
+	private static final int MAX_RESULT_SHARE = 8;
+
+	// the cached results, in access order
+	private final LinkedHashMap<String, Entry> entries;
+
+	// the cached results indexed by series id
+	private final Map<Integer, Set<Entry>> entriesBySeries;
+
+	// the queries running on the database, whose results may be cached
+	private final Set<Ticket> running;
+
+	// the time frame of the pending rows of each series, as min and max
+	private final Map<Integer, long[]> pendingRows;
+
+	// the max total weight of the cached results, 0 to disable the cache
+	private int maxWeight;
+
+	// the total weight of the cached results
+	private long weight;
+
+	// the number of results served from the cache
+	private long hits;
+
+	// the number of results read from the database
+	private long misses;
+
+	/**
+	 * Creates an empty {@link QueryCache} with the default max weight
+	 */
+	public QueryCache()
+	{
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.entriesBySeries = new HashMap<>();
+		this.running = new HashSet<>();
+		this.pendingRows = new HashMap<>();
+		this.maxWeight = QueryCache.DEFAULT_MAX_WEIGHT;
+	}
+
+	/**
+	 * Sets the max total weight of the cached results, exceeding results are
+	 * evicted
+	 * 
+	 * @param maxWeight
+	 *            The max number of cached events, 0 to disable the cache.
+	 */
+	public synchronized void setMaxWeight(int maxWeight)
+	{
+		this.maxWeight = Math.max(0, maxWeight);
+		this.evict();
+	}
+
+	/**
+	 * Gets the cached result of the query having the given key
+	 * 
+	 * @param key
+	 *            The query key, identifying the query and its arguments.
+	 * @return The result, not to be modified, or null if not cached.
+	 */
+	public synchronized Object get(String key)
+	{
+		Entry entry = this.entries.get(key);
+
+		if (entry == null)
+		{
+			this.misses++;
+			return null;
+		}
+
+		this.hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Starts tracking a query about to be run on the database, so that its
+	 * result can be cached by {@link #put(Ticket, Object, int)} unless rows
+	 * affecting it are committed meanwhile. The returned ticket must be
+	 * closed once the query is complete.
+	 * 
+	 * @param key
+	 *            The query key.
+	 * @param seriesIds
+	 *            The ids of the queried series.
+	 * @param start
+	 *            The start of the queried time frame, in milliseconds.
+	 * @param end
+	 *            The end of the queried time frame, in milliseconds.
+	 * @return The ticket of the query.
+	 */
+	public synchronized Ticket begin(String key, int[] seriesIds, long start,
+			long end)
+	{
+		Ticket ticket = new Ticket(key, seriesIds, start, end);
+
+		if (this.maxWeight > 0)
+		{
+			// pending rows are not visible yet, but they will be
+			for (int seriesId : seriesIds)
+			{
+				if (ticket.overlaps(this.pendingRows.get(seriesId)))
+				{
+					ticket.valid = false;
+					break;
+				}
+			}
+
+			if (ticket.valid)
+				this.running.add(ticket);
+		}
+		else
+			ticket.valid = false;
+
+		return ticket;
+	}
+
+	/**
+	 * Stores the result of the query of the given ticket, unless rows
+	 * affecting it have been committed while the query was running
+	 * 
+	 * @param ticket
+	 *            The ticket of the query.
+	 * @param value
+	 *            The result, not to be modified afterwards.
+	 * @param weight
+	 *            The result weight, i.e., the number of events.
+	 */
+	public synchronized void put(Ticket ticket, Object value, int weight)
+	{
+		if ((!ticket.valid) || (!this.running.contains(ticket))
+				|| ((long) weight * QueryCache.MAX_RESULT_SHARE > this.maxWeight))
+			return;
+
+		// replace the previous result, if any
+		this.remove(this.entries.get(ticket.key));
+
+		Entry entry = new Entry(ticket, value, Math.max(1, weight));
+		this.entries.put(entry.key, entry);
+		for (int seriesId : entry.seriesIds)
+		{
+			Set<Entry> seriesEntries = this.entriesBySeries.get(seriesId);
+			if (seriesEntries == null)
+			{
+				seriesEntries = new HashSet<>();
+				this.entriesBySeries.put(seriesId, seriesEntries);
+			}
+			seriesEntries.add(entry);
+		}
+		this.weight += entry.weight;
+
+		this.evict();
+	}
+
+	/**
+	 * Records a row written in the group commit being flushed, must be called
+	 * holding the lock of the {@link GroupCommitter}
+	 * 
+	 * @param seriesId
+	 *            The series of the row.
+	 * @param timestamp
+	 *            The row timestamp.
+	 */
+	public synchronized void rowAdded(int seriesId, long timestamp)
+	{
+		if (this.maxWeight == 0)
+			return;
+
+		long[] pending = this.pendingRows.get(seriesId);
+		if (pending == null)
+			this.pendingRows.put(seriesId, new long[] { timestamp, timestamp });
+		else
+		{
+			pending[0] = Math.min(pending[0], timestamp);
+			pending[1] = Math.max(pending[1], timestamp);
+		}
+	}
+
+	/**
+	 * Invalidates the results, cached or being read, including times before
+	 * the given one, e.g., once older rows have been evicted
+	 * 
+	 * @param before
+	 *            The time of the latest removed row.
+	 */
+	public synchronized void rowsRemoved(long before)
+	{
+		long[] removed = new long[] { Long.MIN_VALUE, before };
+
+		Iterator<Entry> iterator = this.entries.values().iterator();
+		while (iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if (entry.overlaps(removed))
+			{
+				iterator.remove();
+				this.unindex(entry);
+			}
+		}
+
+		for (Ticket ticket : this.running)
+		{
+			if (ticket.overlaps(removed))
+				ticket.valid = false;
+		}
+	}
+
+	/**
+	 * Prevents the caching of the results being read on the given series and
+	 * time frame, e.g., once its rows have been moved between tables, since
+	 * running queries may have read them partially. Cached results are kept.
+	 * 
+	 * @param seriesId
+	 *            The series of the moved rows.
+	 * @param from
+	 *            The time of the first moved row.
+	 * @param to
+	 *            The time of the last moved row.
+	 */
+	public synchronized void rowsMoved(int seriesId, long from, long to)
+	{
+		long[] moved = new long[] { from, to };
+
+		for (Ticket ticket : this.running)
+		{
+			if ((ticket.includes(seriesId)) && (ticket.overlaps(moved)))
+				ticket.valid = false;
+		}
+	}
+
+	@Override
+	public void beforeCommit()
+	{
+		// nothing to write, rows are not visible until committed
+	}
+
+	@Override
+	public synchronized void afterCommit()
+	{
+		for (Map.Entry<Integer, long[]> pending : this.pendingRows.entrySet())
+		{
+			// the results including the committed rows
+			Set<Entry> seriesEntries = this.entriesBySeries.get(pending
+					.getKey());
+			if (seriesEntries != null)
+			{
+				for (Entry entry : seriesEntries.toArray(new Entry[seriesEntries
+						.size()]))
+				{
+					if (entry.overlaps(pending.getValue()))
+						this.remove(entry);
+				}
+			}
+
+			// the queries which may or may not have read them
+			for (Ticket ticket : this.running)
+			{
+				if ((ticket.valid) && (ticket.includes(pending.getKey()))
+						&& (ticket.overlaps(pending.getValue())))
+					ticket.valid = false;
+			}
+		}
+
+		this.pendingRows.clear();
+	}
+
+	@Override
+	public synchronized void afterRollback()
+	{
+		// the pending rows have been discarded
+		this.pendingRows.clear();
+	}
+
+	/**
+	 * Removes all the cached results
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.entriesBySeries.clear();
+		this.weight = 0;
+
+		for (Ticket ticket : this.running)
+			ticket.valid = false;
+	}
+
+	/**
+	 * Gets the number of results currently cached
+	 * 
+	 * @return The cache size.
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * Evicts the least recently used results exceeding the max weight
+	 */
+	private void evict()
+	{
+		Iterator<Entry> eldest = this.entries.values().iterator();
+		while ((this.weight > this.maxWeight) && (eldest.hasNext()))
+		{
+			Entry entry = eldest.next();
+			eldest.remove();
+			this.unindex(entry);
+		}
+	}
+
+	/**
+	 * Removes the given cached result, if not null
+	 */
+	private void remove(Entry entry)
+	{
+		if (entry != null)
+		{
+			this.entries.remove(entry.key);
+			this.unindex(entry);
+		}
+	}
+
+	/**
+	 * Removes the given result, already removed from the cached results,
+	 * from the series index
+	 */
+	private void unindex(Entry entry)
+	{
+		for (int seriesId : entry.seriesIds)
+		{
+			Set<Entry> seriesEntries = this.entriesBySeries.get(seriesId);
+			if (seriesEntries != null)
+			{
+				seriesEntries.remove(entry);
+				if (seriesEntries.isEmpty())
+					this.entriesBySeries.remove(seriesId);
+			}
+		}
+		this.weight -= entry.weight;
+	}
+
+	/**
+	 * A query running on the database, whose result may be cached. Closing
+	 * the ticket stops tracking the query.
+	 */
+	public class Ticket implements AutoCloseable
+	{
+		private final String key;
+		private final int[] seriesIds;
+		private final long start;
+		private final long end;
+
+		// false once rows affecting the query have been committed
+		private boolean valid;
+
+		private Ticket(String key, int[] seriesIds, long start, long end)
+		{
+			this.key = key;
+			this.seriesIds = seriesIds;
+			this.start = start;
+			this.end = end;
+			this.valid = true;
+		}
+
+		/**
+		 * Checks whether the query reads the given series
+		 */
+		private boolean includes(int seriesId)
+		{
+			for (int id : this.seriesIds)
+			{
+				if (id == seriesId)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Checks whether the query time frame overlaps the given one, given
+		 * as min and max time
+		 */
+		private boolean overlaps(long[] frame)
+		{
+			return (frame != null) && (frame[0] <= this.end)
+					&& (frame[1] >= this.start);
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized (QueryCache.this)
+			{
+				QueryCache.this.running.remove(this);
+			}
+		}
+	}
+
+	/**
+	 * A cached result, with the series and the time frame it depends on
+	 */
+	private static class Entry
+	{
+		private final String key;
+		private final int[] seriesIds;
+		private final long start;
+		private final long end;
+		private final Object value;
+		private final int weight;
+
+		private Entry(Ticket ticket, Object value, int weight)
+		{
+			this.key = ticket.key;
+			this.seriesIds = ticket.seriesIds;
+			this.start = ticket.start;
+			this.end = ticket.end;
+			this.value = value;
+			this.weight = weight;
+		}
+
+		/**
+		 * Checks whether the result time frame overlaps the given one, given
+		 * as min and max time
+		 */
+		private boolean overlaps(long[] frame)
+		{
+			return (frame[0] <= this.end) && (frame[1] >= this.start);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A reader connection borrowed from the {@link ReaderPool}, together with the
+ * cache of its prepared statements. Closing it gives the connection back to
+ * the pool, statements stay cached for the next borrower.
+ * 
+ */
+public class ReadConnection implements AutoCloseable
+{
+	// the pool owning the connection
+	private final ReaderPool pool;
+
+	// the physical connection
+	private final Connection connection;
+
+	// the statements prepared on the connection
+	private final StatementCache statements;
+
+	// true while borrowed, guards against double releases
+	private boolean inUse;
+
+	/**
+	 * Wraps the given physical connection of the given pool
+	 */
+	ReadConnection(ReaderPool pool, Connection connection, int maxStatements)
+	{
+		this.pool = pool;
+		this.connection = connection;
+		this.statements = new StatementCache(connection, maxStatements);
+	}
+
+	/**
+	 * Gets the statement cache of the connection
+	 * 
+	 * @return The statement cache.
+	 */
+	public StatementCache getStatements()
+	{
+		return this.statements;
+	}
+
+	/**
+	 * Marks the connection as borrowed, called by the pool
+	 */
+	void borrowed()
+	{
+		this.inUse = true;
+	}
+
+	/**
+	 * Checks whether the connection can be given back to the pool
+	 */
+	boolean isReusable() throws SQLException
+	{
+		return !this.connection.isClosed();
+	}
+
+	/**
+	 * Closes the cached statements and the physical connection
+	 */
+	void dispose()
+	{
+		this.statements.clear();
+
+		try
+		{
+			this.connection.close();
+		}
+		catch (SQLException e)
+		{
+			// already unusable, nothing to release
+		}
+	}
+
+	/**
+	 * Gives the connection back to the pool
+	 */
+	@Override
+	public void close()
+	{
+		if (this.inUse)
+		{
+			this.inUse = false;
+			this.pool.release(this);
+		}
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded pool of read-only connections, used by queries so that they
+ * neither wait for nor delay the insertions carried on the writer connection
+ * of the {@link H2Storage}. Each query reads a consistent snapshot of the
+ * committed data (MVCC), pending insertions are not visible until committed
+ * by the {@link GroupCommitter}.
+ * </p>
+ * 
+ * <p>
+ * Connections are borrowed with {@link #acquire()} and given back by closing
+ * them; when all of them are in use, callers wait up to the acquire timeout.
+ * Physical connections are kept open, together with their cache of prepared
+ * statements, until the pool is closed.
+ * </p>
+ * 
+ */
+public class ReaderPool
+{
+	// the default number of reader connections
+	public static final int DEFAULT_MAX_READERS = 4;
+
+	// the default max wait for a reader connection, in seconds
+	public static final int DEFAULT_ACQUIRE_TIMEOUT = 10;
+
+	// the database coordinates
+	private final String url;
+	private final String user;
+	private final String password;
+
+	// the idle connections, most recently used first
+	private final ArrayDeque<ReadConnection> idle;
+
+	// the number of open connections, idle or in use
+	private int opened;
+
+	// the number of connections in use
+	private int active;
+
+	// true once the pool has been closed
+	private boolean closed;
+
+	// the max number of reader connections
+	private volatile int maxReaders;
+
+	// the max wait for a reader connection, in seconds
+	private volatile int acquireTimeout;
+
+	// the max number of statements cached per connection
+	private volatile int maxStatements;
+
+	// the number of connections handed out since the start
+	private final AtomicLong acquired;
+
+	// the number of requests which could not get a connection
+	private final AtomicLong failed;
+
+	// the total and max time spent waiting for a connection
+	private final AtomicLong totalWaitNanos;
+	private final AtomicLong maxWaitNanos;
+
+	/**
+	 * Creates a {@link ReaderPool} of the given database, connections are
+	 * opened on demand
+	 * 
+	 * @param url
+	 *            The database url.
+	 * @param user
+	 *            The user name.
+	 * @param password
+	 *            The password.
+	 */
+	public ReaderPool(String url, String user, String password)
+	{
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.idle = new ArrayDeque<>();
+		this.maxReaders = ReaderPool.DEFAULT_MAX_READERS;
+		this.acquireTimeout = ReaderPool.DEFAULT_ACQUIRE_TIMEOUT;
+		this.maxStatements = StatementCache.DEFAULT_MAX_STATEMENTS;
+		this.acquired = new AtomicLong();
+		this.failed = new AtomicLong();
+		this.totalWaitNanos = new AtomicLong();
+		this.maxWaitNanos = new AtomicLong();
+	}
+
+	/**
+	 * Configures the pool size and the acquire timeout, connections exceeding
+	 * a reduced size are closed as they are given back
+	 * 
+	 * @param maxReaders
+	 *            The max number of reader connections, at least 1.
+	 * @param acquireTimeout
+	 *            The max wait for a reader connection, in seconds.
+	 */
+	public synchronized void configure(int maxReaders, int acquireTimeout)
+	{
+		this.maxReaders = Math.max(1, maxReaders);
+		this.acquireTimeout = Math.max(1, acquireTimeout);
+
+		// waiting callers may now open a connection
+		this.notifyAll();
+	}
+
+	/**
+	 * Sets the max number of statements cached per connection, applied to
+	 * connections opened afterwards
+	 * 
+	 * @param maxStatements
+	 *            The max number of cached statements.
+	 */
+	public void setMaxStatements(int maxStatements)
+	{
+		this.maxStatements = Math.max(1, maxStatements);
+	}
+
+	/**
+	 * Borrows a reader connection, waiting up to the acquire timeout if all
+	 * of them are in use. The connection must be closed to give it back.
+	 * 
+	 * @return The connection, in auto-commit and read-only mode.
+	 * @throws SQLException
+	 *             if no connection is available before the timeout.
+	 */
+	public ReadConnection acquire() throws SQLException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			ReadConnection reader = this.borrow(start);
+			this.acquired.incrementAndGet();
+			return reader;
+		}
+		catch (SQLException e)
+		{
+			this.failed.incrementAndGet();
+			throw e;
+		}
+		finally
+		{
+			// waiting time statistics
+			long wait = System.nanoTime() - start;
+			this.totalWaitNanos.addAndGet(wait);
+			long max = this.maxWaitNanos.get();
+			while ((wait > max)
+					&& (!this.maxWaitNanos.compareAndSet(max, wait)))
+				max = this.maxWaitNanos.get();
+		}
+	}
+
+	/**
+	 * Gets an idle connection or opens a new one, waiting for a connection to
+	 * be given back if the pool is exhausted
+	 */
+	private ReadConnection borrow(long start) throws SQLException
+	{
+		long deadline = start
+				+ TimeUnit.SECONDS.toNanos(this.acquireTimeout);
+
+		synchronized (this)
+		{
+			while (true)
+			{
+				if (this.closed)
+					throw new SQLException("The reader pool is closed");
+
+				ReadConnection reader = this.idle.pollFirst();
+				if (reader != null)
+				{
+					this.active++;
+					reader.borrowed();
+					return reader;
+				}
+
+				if (this.opened < this.maxReaders)
+				{
+					// open a new connection, out of the lock
+					this.opened++;
+					this.active++;
+					break;
+				}
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					throw new SQLException("No reader connection available in "
+							+ this.acquireTimeout + " s");
+
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new SQLException(
+							"Interrupted while waiting for a reader connection");
+				}
+			}
+		}
+
+		try
+		{
+			Connection connection = DriverManager.getConnection(this.url,
+					this.user, this.password);
+			connection.setAutoCommit(true);
+			connection.setReadOnly(true);
+
+			ReadConnection reader = new ReadConnection(this, connection,
+					this.maxStatements);
+			reader.borrowed();
+			return reader;
+		}
+		catch (SQLException e)
+		{
+			synchronized (this)
+			{
+				this.opened--;
+				this.active--;
+				this.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back the given connection, called when it is closed
+	 */
+	void release(ReadConnection reader)
+	{
+		boolean reusable;
+		try
+		{
+			reusable = reader.isReusable();
+		}
+		catch (SQLException e)
+		{
+			reusable = false;
+		}
+
+		synchronized (this)
+		{
+			this.active--;
+
+			if ((reusable) && (!this.closed)
+					&& (this.opened <= this.maxReaders))
+			{
+				this.idle.addFirst(reader);
+				reader = null;
+			}
+			else
+				this.opened--;
+
+			this.notifyAll();
+		}
+
+		// close the discarded connection, out of the lock
+		if (reader != null)
+			reader.dispose();
+	}
+
+	/**
+	 * Closes all the idle connections, connections still in use are closed as
+	 * they are given back
+	 */
+	public void close()
+	{
+		ReadConnection[] toClose;
+
+		synchronized (this)
+		{
+			this.closed = true;
+			toClose = this.idle.toArray(new ReadConnection[0]);
+			this.opened -= toClose.length;
+			this.idle.clear();
+			this.notifyAll();
+		}
+
+		for (ReadConnection reader : toClose)
+			reader.dispose();
+	}
+
+	/**
+	 * Gets the number of reader connections currently in use
+	 * 
+	 * @return The number of active readers.
+	 */
+	public synchronized int getActiveReaders()
+	{
+		return this.active;
+	}
+
+	/**
+	 * Gets the number of open reader connections, idle or in use
+	 * 
+	 * @return The number of open readers.
+	 */
+	public synchronized int getOpenReaders()
+	{
+		return this.opened;
+	}
+
+	public int getMaxReaders()
+	{
+		return this.maxReaders;
+	}
+
+	public int getAcquireTimeout()
+	{
+		return this.acquireTimeout;
+	}
+
+	public long getAcquiredCount()
+	{
+		return this.acquired.get();
+	}
+
+	public long getFailedCount()
+	{
+		return this.failed.get();
+	}
+
+	/**
+	 * Gets the average time spent waiting for a reader connection
+	 * 
+	 * @return The average wait, in milliseconds.
+	 */
+	public double getAverageWaitMillis()
+	{
+		long requests = this.acquired.get() + this.failed.get();
+		return (requests > 0) ? (double) this.totalWaitNanos.get() / requests
+				/ TimeUnit.MILLISECONDS.toNanos(1) : 0;
+	}
+
+	/**
+	 * Gets the longest time spent waiting for a reader connection
+	 * 
+	 * @return The max wait, in milliseconds.
+	 */
+	public long getMaxWaitMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A single step in the evolution of a database table, identified by a
+ * version number. Migrations are applied by the {@link SchemaMigrator} in
+ * ascending version order and should be idempotent, as databases created
+ * before the introduction of schema versions have no version recorded.
+ * 
+ */
+public abstract class SchemaMigration
+{
+	// the schema version reached once the migration is applied
+	private final int version;
+
+	// a human readable description, for logging purposes
+	private final String description;
+
+	/**
+	 * Creates a new {@link SchemaMigration}
+	 * 
+	 * @param version
+	 *            The schema version reached once the migration is applied,
+	 *            starting from 1.
+	 * @param description
+	 *            The description of the migration.
+	 */
+	public SchemaMigration(int version, String description)
+	{
+		this.version = version;
+		this.description = description;
+	}
+
+	/**
+	 * Gets the schema version reached once this migration is applied
+	 * 
+	 * @return the version.
+	 */
+	public int getVersion()
+	{
+		return this.version;
+	}
+
+	/**
+	 * Gets the migration description
+	 * 
+	 * @return the description.
+	 */
+	public String getDescription()
+	{
+		return this.description;
+	}
+
+	/**
+	 * Applies the migration to the given table
+	 * 
+	 * @param connection
+	 *            The connection to use, commits are handled by the
+	 *            {@link SchemaMigrator}.
+	 * @param table
+	 *            The name of the table to migrate.
+	 * @throws SQLException
+	 *             if the migration fails.
+	 */
+	public abstract void apply(Connection connection, String table)
+			throws SQLException;
+}
@@ -0,0 +1,210 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Runs the ordered {@link SchemaMigration}s of database tables, keeping
+ * track of the schema version reached by each table in the SchemaVersion
+ * table. Each table is versioned independently, so that tables created at
+ * different times, e.g., time partitions, can be migrated one by one.
+ * </p>
+ * 
+ * <p>
+ * Every migration is committed together with the version it reaches, a
+ * failed migration stops the run and is retried at the next start.
+ * </p>
+ * 
+ */
+public class SchemaMigrator
+{
+	// the name of the version table
+	public static final String VERSION_TABLE = "SchemaVersion";
+
+	// the storage layer
+	private final H2Storage storage;
+
+	// true once the version table has been checked
+	private boolean versionTableReady;
+
+	/**
+	 * Creates a {@link SchemaMigrator} operating on the given storage
+	 * 
+	 * @param storage
+	 *            The storage layer.
+	 */
+	public SchemaMigrator(H2Storage storage)
+	{
+		this.storage = storage;
+		this.versionTableReady = false;
+	}
+
+	/**
+	 * Creates the version table, if missing
+	 * 
+	 * @throws SQLException
+	 */
+	private void checkVersionTable() throws SQLException
+	{
+		if (!this.versionTableReady)
+		{
+			try (Statement query = this.storage.getConnection()
+					.createStatement())
+			{
+				query.executeUpdate("CREATE TABLE IF NOT EXISTS "
+						+ SchemaMigrator.VERSION_TABLE
+						+ "(component VARCHAR(255), version INT, updated TIMESTAMP, "
+						+ "PRIMARY KEY(component));");
+			}
+			this.storage.getConnection().commit();
+			this.versionTableReady = true;
+		}
+	}
+
+	/**
+	 * Gets the schema version reached by the given table
+	 * 
+	 * @param table
+	 *            The table name.
+	 * @return The version, 0 if no migration has been recorded.
+	 * @throws SQLException
+	 */
+	public synchronized int getVersion(String table) throws SQLException
+	{
+		this.checkVersionTable();
+
+		try (PreparedStatement query = this.storage.getConnection()
+				.prepareStatement(
+						"SELECT version FROM " + SchemaMigrator.VERSION_TABLE
+								+ " WHERE component=?;"))
+		{
+			query.setString(1, table.toUpperCase());
+			try (ResultSet result = query.executeQuery())
+			{
+				return result.next() ? result.getInt(1) : 0;
+			}
+		}
+	}
+
+	/**
+	 * Applies to the given table all the migrations having a version greater
+	 * than the one already reached, in ascending version order.
+	 * 
+	 * @param table
+	 *            The name of the table to migrate.
+	 * @param migrations
+	 *            The table migrations.
+	 * @return The list of applied migrations, possibly empty.
+	 * @throws SQLException
+	 *             if a migration fails, previously applied migrations stay
+	 *             committed.
+	 */
+	public synchronized List<SchemaMigration> migrate(String table,
+			List<SchemaMigration> migrations) throws SQLException
+	{
+		List<SchemaMigration> applied = new ArrayList<>();
+
+		// sort the migrations by version
+		List<SchemaMigration> sorted = new ArrayList<>(migrations);
+		Collections.sort(sorted, new Comparator<SchemaMigration>() {
+
+			@Override
+			public int compare(SchemaMigration m1, SchemaMigration m2)
+			{
+				return Integer.compare(m1.getVersion(), m2.getVersion());
+			}
+		});
+
+		int currentVersion = this.getVersion(table);
+		Connection connection = this.storage.getConnection();
+
+		for (SchemaMigration migration : sorted)
+		{
+			if (migration.getVersion() > currentVersion)
+			{
+				try
+				{
+					// apply the migration and record the reached version
+					migration.apply(connection, table);
+					this.setVersion(connection, table, migration.getVersion());
+					connection.commit();
+				}
+				catch (SQLException e)
+				{
+					connection.rollback();
+					throw e;
+				}
+
+				currentVersion = migration.getVersion();
+				applied.add(migration);
+			}
+		}
+
+		return applied;
+	}
+
+	/**
+	 * Records the schema version reached by the given table
+	 */
+	private void setVersion(Connection connection, String table, int version)
+			throws SQLException
+	{
+		try (PreparedStatement query = connection.prepareStatement("MERGE INTO "
+				+ SchemaMigrator.VERSION_TABLE
+				+ "(component, version, updated) KEY(component) VALUES (?,?,?);"))
+		{
+			query.setString(1, table.toUpperCase());
+			query.setInt(2, version);
+			query.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+			query.executeUpdate();
+		}
+	}
+
+	/**
+	 * Removes the version record of the given table, to be called when the
+	 * table is dropped.
+	 * 
+	 * @param table
+	 *            The dropped table.
+	 * @throws SQLException
+	 */
+	public synchronized void forget(String table) throws SQLException
+	{
+		this.checkVersionTable();
+
+		try (PreparedStatement query = this.storage.getConnection()
+				.prepareStatement(
+						"DELETE FROM " + SchemaMigrator.VERSION_TABLE
+								+ " WHERE component=?;"))
+		{
+			query.setString(1, table.toUpperCase());
+			query.executeUpdate();
+		}
+	}
+}
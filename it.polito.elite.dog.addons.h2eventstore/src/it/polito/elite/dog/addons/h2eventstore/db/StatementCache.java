@@ -0,0 +1,166 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>
+ * A least recently used cache of the {@link PreparedStatement}s of a single
+ * connection, indexed by their SQL text, so that queries of the same shape
+ * are parsed once. Evicted statements are closed, releasing their database
+ * resources.
+ * </p>
+ * 
+ * <p>
+ * Cached statements are owned by the cache and must not be closed by
+ * callers, which must close their result sets instead. As its connection,
+ * the cache must be used by a single thread at a time.
+ * </p>
+ * 
+ */
+public class StatementCache
+{
+	// the default max number of cached statements
+	public static final int DEFAULT_MAX_STATEMENTS = 64;
+
+	// the connection of the cached statements
+	private final Connection connection;
+
+	// the cached statements, in access order
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	// the max number of cached statements
+	private final int maxStatements;
+
+	// the number of statements served from the cache
+	private long hits;
+
+	// the number of prepared statements
+	private long misses;
+
+	/**
+	 * Creates an empty {@link StatementCache} of the given connection
+	 * 
+	 * @param connection
+	 *            The connection.
+	 * @param maxStatements
+	 *            The max number of cached statements.
+	 */
+	public StatementCache(Connection connection, int maxStatements)
+	{
+		this.connection = connection;
+		this.maxStatements = Math.max(1, maxStatements);
+		this.statements = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the statement of the given SQL, preparing it if not cached. Its
+	 * parameters are cleared, as they may have been set by a previous use.
+	 * 
+	 * @param sql
+	 *            The SQL text.
+	 * @return The statement, not to be closed.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException
+	{
+		PreparedStatement stmt = this.statements.get(sql);
+
+		if ((stmt != null) && (!stmt.isClosed()))
+		{
+			this.hits++;
+			stmt.clearParameters();
+			return stmt;
+		}
+
+		this.misses++;
+		stmt = this.connection.prepareStatement(sql);
+		this.statements.put(sql, stmt);
+
+		// evict the least recently used statement
+		if (this.statements.size() > this.maxStatements)
+		{
+			Iterator<PreparedStatement> eldest = this.statements.values()
+					.iterator();
+			PreparedStatement evicted = eldest.next();
+			eldest.remove();
+			evicted.close();
+		}
+
+		return stmt;
+	}
+
+	/**
+	 * Closes all the cached statements
+	 */
+	public void clear()
+	{
+		for (PreparedStatement stmt : this.statements.values())
+		{
+			try
+			{
+				stmt.close();
+			}
+			catch (SQLException e)
+			{
+				// already unusable, nothing to release
+			}
+		}
+		this.statements.clear();
+	}
+
+	/**
+	 * Gets the number of statements currently cached
+	 * 
+	 * @return The cache size.
+	 */
+	public int size()
+	{
+		return this.statements.size();
+	}
+
+	public long getHits()
+	{
+		return this.hits;
+	}
+
+	public long getMisses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * Gets the number of placeholders to use for a list of the given number
+	 * of parameters, rounded up to the next power of two, so that queries on
+	 * lists of similar length share the same statement. Exceeding
+	 * placeholders are filled by repeating the last parameter.
+	 * 
+	 * @param size
+	 *            The number of parameters.
+	 * @return The number of placeholders.
+	 */
+	public static int getArity(int size)
+	{
+		return (size <= 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+	}
+}
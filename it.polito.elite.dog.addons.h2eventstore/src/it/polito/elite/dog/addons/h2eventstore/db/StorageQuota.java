@@ -0,0 +1,193 @@
+/*
+ * Dog - Addons
+ * 
+ * Copyright (c) 2013-2014 Claudio Degioanni, Luigi De Russis, Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.h2eventstore.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps track of the number of event rows stored in the database, updated
+ * incrementally by insertions and evictions, and of the limits configured for
+ * the storage size, either in rows or in bytes on disk.
+ * </p>
+ * 
+ * <p>
+ * When rejection is enabled, i.e., with the drop retention mode, rows
+ * exceeding the limits are refused; otherwise limits are only checked by the
+ * retention manager, which evicts the oldest rows.
+ * </p>
+ * 
+ */
+public class StorageQuota
+{
+	// the value of unlimited sizes
+	public static final long UNLIMITED = -1;
+
+	// the number of stored rows
+	private final AtomicLong storedRows;
+
+	// the number of rows refused since the start
+	private final AtomicLong rejectedRows;
+
+	// the max number of rows
+	private volatile long maxRows;
+
+	// the max size of the database file, in bytes
+	private volatile long maxFileSize;
+
+	// true if rows exceeding the limits must be refused
+	private volatile boolean rejectWhenFull;
+
+	// true if the database file reached its max size
+	private volatile boolean fileFull;
+
+	/**
+	 * Creates an unlimited {@link StorageQuota}
+	 */
+	public StorageQuota()
+	{
+		this.storedRows = new AtomicLong();
+		this.rejectedRows = new AtomicLong();
+		this.maxRows = StorageQuota.UNLIMITED;
+		this.maxFileSize = StorageQuota.UNLIMITED;
+		this.rejectWhenFull = false;
+		this.fileFull = false;
+	}
+
+	/**
+	 * Configures the storage limits
+	 * 
+	 * @param maxRows
+	 *            The max number of stored rows, or {@link #UNLIMITED}.
+	 * @param maxFileSize
+	 *            The max size of the database file in bytes, or
+	 *            {@link #UNLIMITED}.
+	 * @param rejectWhenFull
+	 *            true to refuse rows once a limit is reached, false to let
+	 *            the retention manager evict older rows.
+	 */
+	public void configure(long maxRows, long maxFileSize,
+			boolean rejectWhenFull)
+	{
+		this.maxRows = (maxRows > 0) ? maxRows : StorageQuota.UNLIMITED;
+		this.maxFileSize = (maxFileSize > 0) ? maxFileSize
+				: StorageQuota.UNLIMITED;
+		this.rejectWhenFull = rejectWhenFull;
+	}
+
+	/**
+	 * Accounts for a new row, if accepted
+	 * 
+	 * @return true if the row can be stored, false if it must be dropped.
+	 */
+	public boolean tryAcquire()
+	{
+		if (this.rejectWhenFull && this.isFull())
+		{
+			this.rejectedRows.incrementAndGet();
+			return false;
+		}
+
+		this.storedRows.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Accounts for removed rows
+	 * 
+	 * @param rows
+	 *            The number of removed rows.
+	 */
+	public void rowsRemoved(long rows)
+	{
+		this.storedRows.addAndGet(-rows);
+	}
+
+	/**
+	 * Replaces the tracked row count with an actual count, e.g., at startup or
+	 * to recover from failed insertions.
+	 * 
+	 * @param rows
+	 *            The number of stored rows.
+	 */
+	public void setStoredRows(long rows)
+	{
+		this.storedRows.set(rows);
+	}
+
+	/**
+	 * Records whether the database file reached its max size
+	 * 
+	 * @param fileSize
+	 *            The current size of the database file, in bytes.
+	 * @return true if the file reached its max size.
+	 */
+	public boolean checkFileSize(long fileSize)
+	{
+		this.fileFull = (this.maxFileSize > 0)
+				&& (fileSize >= this.maxFileSize);
+		return this.fileFull;
+	}
+
+	/**
+	 * Checks whether any limit has been reached
+	 * 
+	 * @return true if the storage is full.
+	 */
+	public boolean isFull()
+	{
+		return this.fileFull
+				|| ((this.maxRows > 0)
+						&& (this.storedRows.get() >= this.maxRows));
+	}
+
+	/**
+	 * Checks whether any limit is configured
+	 * 
+	 * @return true if the storage is bounded.
+	 */
+	public boolean isBounded()
+	{
+		return (this.maxRows > 0) || (this.maxFileSize > 0);
+	}
+
+	public boolean isRejectWhenFull()
+	{
+		return this.rejectWhenFull;
+	}
+
+	public long getStoredRows()
+	{
+		return this.storedRows.get();
+	}
+
+	public long getRejectedRows()
+	{
+		return this.rejectedRows.get();
+	}
+
+	public long getMaxRows()
+	{
+		return this.maxRows;
+	}
+
+	public long getMaxFileSize()
+	{
+		return this.maxFileSize;
+	}
+}
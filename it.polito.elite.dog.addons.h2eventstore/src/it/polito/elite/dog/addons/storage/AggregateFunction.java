@@ -0,0 +1,34 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+/**
+ * The aggregate functions that can be computed from rollups, each returned
+ * data point carries the aggregate of one rollup bucket.
+ * 
+ */
+public enum AggregateFunction
+{
+	COUNT, // the number of events
+	MIN, // the minimum value
+	MAX, // the maximum value
+	SUM, // the sum of values
+	AVG, // the average value
+	FIRST, // the value of the first event
+	LAST // the value of the last event
+}
@@ -0,0 +1,790 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * Encodes an {@link EventDataStreamSet} in a compact, versioned binary form,
+ * e.g., to pass it between bundles or over the network, and decodes it back.
+ * </p>
+ * 
+ * <p>
+ * Device URIs, names, parameters, units and textual values are written once,
+ * in a string table shared by the whole set, and then referred by index. The
+ * events of each stream are written by column: timestamps as variable-length
+ * deltas from the previous one, values as variable-length integers if all
+ * integral, as 8-byte doubles otherwise, or, for non-numeric streams, with a
+ * type tag per event. All the integers are written as zig-zag varints.
+ * </p>
+ * 
+ * <p>
+ * Decoding reads straight from the given {@link ByteBuffer}, with no copy of
+ * the payload, and fills the columns of {@link NumericEventDataStream}s
+ * without creating any {@link EventDataPoint}. Decoded streams have the same
+ * ids, events and values of the encoded ones.
+ * </p>
+ * 
+ */
+public final class EventDataBinaryCodec
+{
+	/**
+	 * The first bytes of every payload, "DSET"
+	 */
+	public static final int MAGIC = 0x44534554;
+
+	/**
+	 * The version of the format written by this codec
+	 */
+	public static final byte VERSION = 1;
+
+	// the stream flags
+	private static final int NUMERIC = 0x01;
+	private static final int SLASH_ID = 0x02;
+	private static final int NO_ID = 0x04;
+	private static final int SHARED_UNIT = 0x08;
+
+	// the types of the value column of numeric streams
+	private static final byte LONG_COLUMN = 1;
+	private static final byte DOUBLE_COLUMN = 2;
+
+	// the value tags of the events of other streams
+	private static final int NULL_VALUE = 0;
+	private static final int LONG_VALUE = 1;
+	private static final int DOUBLE_VALUE = 2;
+	private static final int STRING_VALUE = 3;
+	private static final int VALUE_MASK = 0x07;
+	private static final int NULL_TIMESTAMP = 0x08;
+
+	// the largest magnitude of the doubles exactly represented as longs
+	private static final double MAX_EXACT_LONG = 9007199254740992.0;
+
+	// the string encoding
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private EventDataBinaryCodec()
+	{
+		// static methods only
+	}
+
+	/**
+	 * Encodes the given set of streams
+	 * 
+	 * @param streamSet
+	 *            The set to encode.
+	 * @return The encoded set.
+	 */
+	public static byte[] encode(EventDataStreamSet streamSet)
+	{
+		Encoder encoder = new Encoder();
+		encoder.encode(streamSet);
+		return Arrays.copyOf(encoder.bytes, encoder.size);
+	}
+
+	/**
+	 * Encodes the given set of streams on the given output stream
+	 * 
+	 * @param streamSet
+	 *            The set to encode.
+	 * @param out
+	 *            The stream on which the set is written, not closed.
+	 * @throws IOException
+	 */
+	public static void encode(EventDataStreamSet streamSet, OutputStream out)
+			throws IOException
+	{
+		Encoder encoder = new Encoder();
+		encoder.encode(streamSet);
+		out.write(encoder.bytes, 0, encoder.size);
+	}
+
+	/**
+	 * Decodes a set of streams from the given bytes
+	 * 
+	 * @param bytes
+	 *            The encoded set.
+	 * @return The decoded set.
+	 * @throws IllegalArgumentException
+	 *             if the bytes do not hold a valid set.
+	 */
+	public static EventDataStreamSet decode(byte[] bytes)
+	{
+		return EventDataBinaryCodec.decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Decodes a set of streams from the given buffer, starting at its
+	 * position, which is moved past the decoded set
+	 * 
+	 * @param buffer
+	 *            The buffer holding the encoded set.
+	 * @return The decoded set.
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not hold a valid set or holds one of an
+	 *             unsupported version.
+	 */
+	public static EventDataStreamSet decode(ByteBuffer buffer)
+	{
+		try
+		{
+			return new Decoder(buffer).decode();
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IllegalArgumentException("Truncated event data", e);
+		}
+	}
+
+	/**
+	 * Gets the type of the given textual value: a number if written exactly
+	 * as {@link Long#toString(long)} or {@link Double#toString(double)} would,
+	 * so that it is decoded back to the same string, a string otherwise
+	 */
+	private static int typeOf(String value)
+	{
+		if (value == null)
+			return EventDataBinaryCodec.NULL_VALUE;
+
+		// only digits, signs, dots and exponents may be numbers
+		int length = value.length();
+		boolean digits = (length > 0) && (length < 20);
+		for (int i = 0; i < length; i++)
+		{
+			char c = value.charAt(i);
+			if ((c < '0') || (c > '9'))
+			{
+				if ((c != '-') && (c != '.') && (c != 'E'))
+					return EventDataBinaryCodec.STRING_VALUE;
+				if ((c != '-') || (i > 0))
+					digits = false;
+			}
+		}
+
+		try
+		{
+			if ((digits)
+					&& (Long.toString(Long.parseLong(value)).equals(value)))
+				return EventDataBinaryCodec.LONG_VALUE;
+		}
+		catch (NumberFormatException e)
+		{
+			// out of the long range, may still be a double
+		}
+
+		try
+		{
+			if (Double.toString(Double.parseDouble(value)).equals(value))
+				return EventDataBinaryCodec.DOUBLE_VALUE;
+		}
+		catch (NumberFormatException e)
+		{
+			// e.g., a lone sign or dot
+		}
+
+		return EventDataBinaryCodec.STRING_VALUE;
+	}
+
+	/**
+	 * Gets the id the given stream would have if created with its 3-argument
+	 * constructor, e.g., <code>uri/name?parameters</code>
+	 */
+	private static String legacyId(EventDataStream stream)
+	{
+		if (stream.getParameters() == null)
+			return null;
+
+		return stream.getDeviceUri()
+				+ "/"
+				+ stream.getName()
+				+ ((!stream.getParameters().isEmpty()) ? ("?" + stream
+						.getParameters()) : "");
+	}
+
+	/**
+	 * Checks whether the given number is an integer that a long holds exactly,
+	 * negative zero excluded, so that it is decoded back to the same double
+	 */
+	private static boolean isExactLong(double value)
+	{
+		return (value == Math.rint(value))
+				&& (Math.abs(value) <= EventDataBinaryCodec.MAX_EXACT_LONG)
+				&& ((value != 0) || (1 / value > 0));
+	}
+
+	/**
+	 * Writes a set of streams in a growing array of bytes
+	 */
+	private static class Encoder
+	{
+		// the encoded bytes
+		byte[] bytes = new byte[4096];
+		int size;
+
+		// the strings, with their index
+		private final HashMap<String, Integer> stringIndex = new HashMap<>();
+		private final List<String> strings = new ArrayList<>();
+
+		// the value tags of the streams with textual values
+		private final HashMap<EventDataStream, byte[]> tags = new HashMap<>();
+
+		void encode(EventDataStreamSet streamSet)
+		{
+			List<EventDataStream> streams = new ArrayList<>(
+					streamSet.getDatastreams());
+
+			// the table of all the strings of the set
+			for (EventDataStream stream : streams)
+			{
+				this.index(stream.getDeviceUri());
+				this.index(stream.getName());
+				this.index(stream.getParameters());
+				if (stream instanceof NumericEventDataStream)
+				{
+					NumericEventDataStream numeric = (NumericEventDataStream) stream;
+					for (int i = 0; i < numeric.size(); i++)
+						this.index(numeric.getUnit(i));
+				}
+				else
+				{
+					List<EventDataPoint> points = stream.getDatapoints();
+					byte[] streamTags = new byte[points.size()];
+					for (int i = 0; i < streamTags.length; i++)
+					{
+						EventDataPoint point = points.get(i);
+						int tag = EventDataBinaryCodec.typeOf(point.getValue());
+						if (tag == EventDataBinaryCodec.STRING_VALUE)
+							this.index(point.getValue());
+						if (point.getAt() == null)
+							tag |= EventDataBinaryCodec.NULL_TIMESTAMP;
+						streamTags[i] = (byte) tag;
+						this.index(point.getUnit());
+					}
+					this.tags.put(stream, streamTags);
+				}
+			}
+
+			this.writeInt(EventDataBinaryCodec.MAGIC);
+			this.writeByte(EventDataBinaryCodec.VERSION);
+			this.writeVarint(this.strings.size());
+			for (String string : this.strings)
+			{
+				byte[] utf8 = string.getBytes(EventDataBinaryCodec.UTF8);
+				this.writeVarint(utf8.length);
+				this.ensure(utf8.length);
+				System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+				this.size += utf8.length;
+			}
+
+			this.writeVarint(streams.size());
+			for (EventDataStream stream : streams)
+			{
+				if (stream instanceof NumericEventDataStream)
+					this.writeNumeric((NumericEventDataStream) stream);
+				else
+					this.writeGeneric(stream);
+			}
+		}
+
+		/**
+		 * Writes the description of a stream, with its flags
+		 */
+		private void writeHeader(EventDataStream stream, int flags, int size)
+		{
+			if (stream.getId() == null)
+				flags |= EventDataBinaryCodec.NO_ID;
+			else if (!stream.getId().equals(
+					EventDataBinaryCodec.legacyId(stream)))
+				flags |= EventDataBinaryCodec.SLASH_ID;
+
+			this.writeByte(flags);
+			this.writeRef(stream.getDeviceUri());
+			this.writeRef(stream.getName());
+			this.writeRef(stream.getParameters());
+			this.writeVarint(size);
+		}
+
+		/**
+		 * Writes a numeric stream, by column
+		 */
+		private void writeNumeric(NumericEventDataStream stream)
+		{
+			int size = stream.size();
+			String unit = stream.getUnit();
+			int flags = EventDataBinaryCodec.NUMERIC;
+			if (unit != null)
+				flags |= EventDataBinaryCodec.SHARED_UNIT;
+			this.writeHeader(stream, flags, size);
+
+			// the units
+			if (unit != null)
+				this.writeRef(unit);
+			else
+			{
+				for (int i = 0; i < size; i++)
+					this.writeRef(stream.getUnit(i));
+			}
+
+			// the timestamps
+			long previous = 0;
+			for (int i = 0; i < size; i++)
+			{
+				long timestamp = stream.getTimestamp(i);
+				this.writeVarint(timestamp - previous);
+				previous = timestamp;
+			}
+
+			// the values, as integers if possible
+			boolean integral = true;
+			for (int i = 0; (i < size) && (integral); i++)
+				integral = EventDataBinaryCodec.isExactLong(stream.getValue(i));
+
+			if (integral)
+			{
+				this.writeByte(EventDataBinaryCodec.LONG_COLUMN);
+				long last = 0;
+				for (int i = 0; i < size; i++)
+				{
+					long value = (long) stream.getValue(i);
+					this.writeVarint(value - last);
+					last = value;
+				}
+			}
+			else
+			{
+				this.writeByte(EventDataBinaryCodec.DOUBLE_COLUMN);
+				this.ensure(size * 8);
+				for (int i = 0; i < size; i++)
+					this.writeLong(Double.doubleToRawLongBits(stream
+							.getValue(i)));
+			}
+		}
+
+		/**
+		 * Writes a stream of events with textual values, by column
+		 */
+		private void writeGeneric(EventDataStream stream)
+		{
+			List<EventDataPoint> points = stream.getDatapoints();
+			int size = points.size();
+
+			String unit = (size > 0) ? points.get(0).getUnit() : null;
+			boolean shared = true;
+			for (EventDataPoint point : points)
+			{
+				String pointUnit = point.getUnit();
+				if ((unit == null) ? (pointUnit != null) : (!unit
+						.equals(pointUnit)))
+				{
+					shared = false;
+					break;
+				}
+			}
+			this.writeHeader(stream, (shared) ? EventDataBinaryCodec.SHARED_UNIT
+					: 0, size);
+
+			// the tags, holding the value type and missing timestamps
+			byte[] streamTags = this.tags.get(stream);
+			this.ensure(size);
+			System.arraycopy(streamTags, 0, this.bytes, this.size, size);
+			this.size += size;
+
+			// the units
+			if (shared)
+				this.writeRef(unit);
+			else
+			{
+				for (EventDataPoint point : points)
+					this.writeRef(point.getUnit());
+			}
+
+			// the timestamps
+			long previous = 0;
+			for (EventDataPoint point : points)
+			{
+				if (point.getAt() != null)
+				{
+					long timestamp = point.getAt().getTime();
+					this.writeVarint(timestamp - previous);
+					previous = timestamp;
+				}
+			}
+
+			// the values
+			for (int i = 0; i < size; i++)
+			{
+				String value = points.get(i).getValue();
+				switch (streamTags[i] & EventDataBinaryCodec.VALUE_MASK)
+				{
+					case LONG_VALUE:
+						this.writeVarint(Long.parseLong(value));
+						break;
+					case DOUBLE_VALUE:
+						this.ensure(8);
+						this.writeLong(Double.doubleToRawLongBits(Double
+								.parseDouble(value)));
+						break;
+					case STRING_VALUE:
+						this.writeRef(value);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		/**
+		 * Adds the given string to the string table, if not null or already
+		 * there
+		 */
+		private void index(String string)
+		{
+			if ((string != null) && (!this.stringIndex.containsKey(string)))
+			{
+				this.stringIndex.put(string, this.strings.size());
+				this.strings.add(string);
+			}
+		}
+
+		/**
+		 * Writes a reference to the given string, 0 if null and the index in
+		 * the string table plus one otherwise
+		 */
+		private void writeRef(String string)
+		{
+			this.writeVarint((string != null) ? this.stringIndex.get(string) + 1
+					: 0);
+		}
+
+		private void writeByte(int value)
+		{
+			this.ensure(1);
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		private void writeInt(int value)
+		{
+			this.ensure(4);
+			this.bytes[this.size++] = (byte) (value >>> 24);
+			this.bytes[this.size++] = (byte) (value >>> 16);
+			this.bytes[this.size++] = (byte) (value >>> 8);
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		/**
+		 * Writes the given long in 8 bytes, big-endian, once ensured the room
+		 * for them
+		 */
+		private void writeLong(long value)
+		{
+			for (int shift = 56; shift >= 0; shift -= 8)
+				this.bytes[this.size++] = (byte) (value >>> shift);
+		}
+
+		/**
+		 * Writes the given long as a zig-zag varint, in 1 to 10 bytes
+		 */
+		private void writeVarint(long value)
+		{
+			this.ensure(10);
+			long zigzag = (value << 1) ^ (value >> 63);
+			while ((zigzag & ~0x7FL) != 0)
+			{
+				this.bytes[this.size++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			this.bytes[this.size++] = (byte) zigzag;
+		}
+
+		/**
+		 * Makes room for the given number of bytes
+		 */
+		private void ensure(int length)
+		{
+			if (this.size + length > this.bytes.length)
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(
+						this.bytes.length * 2, this.size + length));
+		}
+	}
+
+	/**
+	 * Reads a set of streams from a buffer
+	 */
+	private static class Decoder
+	{
+		// the encoded set
+		private final ByteBuffer buffer;
+
+		// the string table
+		private String[] strings;
+
+		Decoder(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		EventDataStreamSet decode()
+		{
+			if (this.buffer.getInt() != EventDataBinaryCodec.MAGIC)
+				throw new IllegalArgumentException("Not an event data set");
+
+			byte version = this.buffer.get();
+			if (version != EventDataBinaryCodec.VERSION)
+				throw new IllegalArgumentException(
+						"Unsupported event data version " + version);
+
+			this.strings = new String[this.readCount()];
+			for (int i = 0; i < this.strings.length; i++)
+				this.strings[i] = this.readString(this.readCount());
+
+			EventDataStreamSet streamSet = new EventDataStreamSet();
+			int streams = this.readCount();
+			for (int i = 0; i < streams; i++)
+			{
+				int flags = this.buffer.get();
+				String deviceUri = this.readRef();
+				String name = this.readRef();
+				String parameters = this.readRef();
+				int size = this.readCount();
+				if (size > this.buffer.remaining())
+					throw new BufferUnderflowException();
+
+				// the constructor giving the same id of the encoded stream
+				EventDataStream stream;
+				if ((flags & EventDataBinaryCodec.NUMERIC) != 0)
+				{
+					NumericEventDataStream numeric;
+					if ((flags & EventDataBinaryCodec.NO_ID) != 0)
+						numeric = new NumericEventDataStream(size);
+					else if ((flags & EventDataBinaryCodec.SLASH_ID) != 0)
+						numeric = new NumericEventDataStream(name, parameters,
+								deviceUri, size);
+					else
+					{
+						numeric = new NumericEventDataStream(name, parameters,
+								deviceUri);
+						numeric.ensureCapacity(size);
+					}
+					this.readNumeric(numeric, flags, size);
+					stream = numeric;
+				}
+				else
+				{
+					if ((flags & EventDataBinaryCodec.NO_ID) != 0)
+						stream = new EventDataStream(size);
+					else if ((flags & EventDataBinaryCodec.SLASH_ID) != 0)
+						stream = new EventDataStream(name, parameters,
+								deviceUri, size);
+					else
+						stream = new EventDataStream(name, parameters,
+								deviceUri);
+					this.readGeneric(stream, flags, size);
+				}
+				streamSet.addDatastream(stream);
+			}
+
+			return streamSet;
+		}
+
+		/**
+		 * Reads the columns of a numeric stream
+		 */
+		private void readNumeric(NumericEventDataStream stream, int flags,
+				int size)
+		{
+			// the units
+			String unit = null;
+			String[] units = null;
+			if ((flags & EventDataBinaryCodec.SHARED_UNIT) != 0)
+				unit = this.readRef();
+			else
+			{
+				units = new String[size];
+				for (int i = 0; i < size; i++)
+					units[i] = this.readRef();
+			}
+
+			// the timestamps
+			long[] timestamps = new long[size];
+			long previous = 0;
+			for (int i = 0; i < size; i++)
+			{
+				previous += this.readVarint();
+				timestamps[i] = previous;
+			}
+
+			// the values
+			byte column = this.buffer.get();
+			if (column == EventDataBinaryCodec.LONG_COLUMN)
+			{
+				long value = 0;
+				for (int i = 0; i < size; i++)
+				{
+					value += this.readVarint();
+					stream.add(timestamps[i], value, (units != null) ? units[i]
+							: unit);
+				}
+			}
+			else if (column == EventDataBinaryCodec.DOUBLE_COLUMN)
+			{
+				for (int i = 0; i < size; i++)
+					stream.add(timestamps[i], Double.longBitsToDouble(this.buffer
+							.getLong()), (units != null) ? units[i] : unit);
+			}
+			else
+				throw new IllegalArgumentException("Unknown value column "
+						+ column);
+		}
+
+		/**
+		 * Reads the columns of a stream of events with textual values
+		 */
+		private void readGeneric(EventDataStream stream, int flags, int size)
+		{
+			// the tags
+			byte[] tags = new byte[size];
+			this.buffer.get(tags);
+
+			// the units
+			String unit = null;
+			String[] units = null;
+			if ((flags & EventDataBinaryCodec.SHARED_UNIT) != 0)
+				unit = this.readRef();
+			else
+			{
+				units = new String[size];
+				for (int i = 0; i < size; i++)
+					units[i] = this.readRef();
+			}
+
+			// the timestamps
+			Date[] dates = new Date[size];
+			long previous = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if ((tags[i] & EventDataBinaryCodec.NULL_TIMESTAMP) == 0)
+				{
+					previous += this.readVarint();
+					dates[i] = new Date(previous);
+				}
+			}
+
+			// the values
+			for (int i = 0; i < size; i++)
+			{
+				String value;
+				switch (tags[i] & EventDataBinaryCodec.VALUE_MASK)
+				{
+					case NULL_VALUE:
+						value = null;
+						break;
+					case LONG_VALUE:
+						value = Long.toString(this.readVarint());
+						break;
+					case DOUBLE_VALUE:
+						value = Double.toString(Double
+								.longBitsToDouble(this.buffer.getLong()));
+						break;
+					case STRING_VALUE:
+						value = this.readRef();
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown value type "
+								+ tags[i]);
+				}
+
+				EventDataPoint point = new EventDataPoint(dates[i], value,
+						null);
+				point.setUnit((units != null) ? units[i] : unit);
+				stream.addDatapoint(point);
+			}
+		}
+
+		/**
+		 * Reads a reference to a string of the string table
+		 */
+		private String readRef()
+		{
+			int ref = this.readCount();
+			if (ref > this.strings.length)
+				throw new IllegalArgumentException("Unknown string " + ref);
+			return (ref > 0) ? this.strings[ref - 1] : null;
+		}
+
+		/**
+		 * Reads a string of the given length in bytes, straight from the
+		 * backing array if any
+		 */
+		private String readString(int length)
+		{
+			if (length > this.buffer.remaining())
+				throw new BufferUnderflowException();
+
+			String string;
+			if (this.buffer.hasArray())
+				string = new String(this.buffer.array(),
+						this.buffer.arrayOffset() + this.buffer.position(),
+						length, EventDataBinaryCodec.UTF8);
+			else
+			{
+				byte[] utf8 = new byte[length];
+				this.buffer.duplicate().get(utf8);
+				string = new String(utf8, EventDataBinaryCodec.UTF8);
+			}
+			this.buffer.position(this.buffer.position() + length);
+
+			return string;
+		}
+
+		/**
+		 * Reads a size or an index, which cannot be negative
+		 */
+		private int readCount()
+		{
+			long count = this.readVarint();
+			if ((count < 0) || (count > Integer.MAX_VALUE))
+				throw new IllegalArgumentException("Invalid count " + count);
+			return (int) count;
+		}
+
+		/**
+		 * Reads a zig-zag varint
+		 */
+		private long readVarint()
+		{
+			long zigzag = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				byte b = this.buffer.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+	}
+}
@@ -0,0 +1,848 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * <p>
+ * Writes event data streams as JSON straight to a {@link Writer} or an
+ * {@link OutputStream}, without building the whole document in memory.
+ * Characters are gathered in a buffer reused across writes, timestamps are
+ * formatted in UTC without any date formatter, and the events of
+ * {@link NumericEventDataStream}s are written from their columns.
+ * </p>
+ * 
+ * <p>
+ * Two layouts are available: {@link Layout#ROWS}, one object per event with
+ * its timestamp, value and unit, as in the legacy string representation, and
+ * {@link Layout#COLUMNS}, one array of timestamps (in milliseconds) and one
+ * of values per stream, which is far more compact.
+ * </p>
+ * 
+ * <p>
+ * A writer instance is not thread-safe, as the underlying {@link Writer}; the
+ * timestamp formatting is stateless and can be shared.
+ * </p>
+ * 
+ */
+public class EventDataJsonWriter implements Flushable, Closeable
+{
+	/**
+	 * The layout of the events of each stream
+	 */
+	public enum Layout
+	{
+		/**
+		 * An array of objects, one per event: <code>"datapoints":[{"at":
+		 * "2014-01-01T00:00:00.000+0000","value":1.0,"unit":"W"},...]</code>
+		 */
+		ROWS,
+
+		/**
+		 * One array per column: <code>"unit":"W","timestamps":[1388534400000,
+		 * ...],"values":[1.0,...]</code>
+		 */
+		COLUMNS
+	}
+
+	// the size of the character buffer
+	private static final int BUFFER_SIZE = 8192;
+
+	// the milliseconds in a day
+	private static final long DAY_MILLIS = 86400000L;
+
+	// the length of the formatted day, e.g., 2014-01-01T
+	private static final int DAY_LENGTH = 11;
+
+	// the max magnitude of doubles written as integers
+	private static final double MAX_INTEGRAL = 1e15;
+
+	// the hexadecimal digits, for escaped characters
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// the target writer
+	private final Writer writer;
+
+	// the layout of the events
+	private final Layout layout;
+
+	// the buffer of the characters to write
+	private final char[] buffer;
+	private int position;
+
+	// the last formatted day, reused by the events of the same day
+	private final char[] dayChars;
+	private long cachedDay;
+
+	// the digits of the number being written
+	private final char[] digits;
+
+	/**
+	 * Creates an {@link EventDataJsonWriter} writing the events to the given
+	 * writer, one object per event
+	 * 
+	 * @param writer
+	 *            The target writer.
+	 */
+	public EventDataJsonWriter(Writer writer)
+	{
+		this(writer, Layout.ROWS);
+	}
+
+	/**
+	 * Creates an {@link EventDataJsonWriter} writing the events to the given
+	 * writer with the given layout
+	 * 
+	 * @param writer
+	 *            The target writer.
+	 * @param layout
+	 *            The layout of the events.
+	 */
+	public EventDataJsonWriter(Writer writer, Layout layout)
+	{
+		this(writer, layout, EventDataJsonWriter.BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates an {@link EventDataJsonWriter} writing the events to the given
+	 * stream, encoded in UTF-8, with the given layout
+	 * 
+	 * @param out
+	 *            The target stream.
+	 * @param layout
+	 *            The layout of the events.
+	 */
+	public EventDataJsonWriter(OutputStream out, Layout layout)
+	{
+		this(new OutputStreamWriter(out, Charset.forName("UTF-8")), layout);
+	}
+
+	/**
+	 * Creates an {@link EventDataJsonWriter} with a buffer of the given size
+	 */
+	private EventDataJsonWriter(Writer writer, Layout layout, int bufferSize)
+	{
+		this.writer = writer;
+		this.layout = (layout != null) ? layout : Layout.ROWS;
+		this.buffer = new char[bufferSize];
+		this.dayChars = new char[EventDataJsonWriter.DAY_LENGTH];
+		this.cachedDay = Long.MIN_VALUE;
+		this.digits = new char[20];
+	}
+
+	/**
+	 * Writes the given stream set, as an array of streams
+	 * 
+	 * @param streamSet
+	 *            The stream set.
+	 * @throws IOException
+	 */
+	public void write(EventDataStreamSet streamSet) throws IOException
+	{
+		this.writeStreams(streamSet);
+		this.drain();
+	}
+
+	/**
+	 * Writes the given page, as an object holding the array of its streams
+	 * and its continuation token
+	 * 
+	 * @param page
+	 *            The page.
+	 * @throws IOException
+	 */
+	public void write(EventDataPage page) throws IOException
+	{
+		this.append("{\"continuation\":");
+		this.appendString(page.getContinuation());
+		this.append(",\"datastreams\":");
+		this.writeStreams(page.getDatastreams());
+		this.append('}');
+		this.drain();
+	}
+
+	/**
+	 * Writes the given stream, as an object holding its description and its
+	 * events
+	 * 
+	 * @param stream
+	 *            The stream.
+	 * @throws IOException
+	 */
+	public void write(EventDataStream stream) throws IOException
+	{
+		this.writeStream(stream);
+		this.drain();
+	}
+
+	/**
+	 * Writes the given event, as an object holding its timestamp, value and
+	 * unit
+	 * 
+	 * @param point
+	 *            The event.
+	 * @throws IOException
+	 */
+	public void write(EventDataPoint point) throws IOException
+	{
+		this.append("{\"at\":");
+		this.appendDate(point.getAt());
+		this.append(",\"value\":");
+		this.appendValue(point.getValue());
+		this.append(",\"unit\":");
+		this.appendString(point.getUnit());
+		this.append('}');
+		this.drain();
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		this.drain();
+		this.writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.drain();
+		this.writer.close();
+	}
+
+	/**
+	 * Gets the JSON representation of the given stream set, e.g., for
+	 * {@link EventDataStreamSet#toString()}
+	 */
+	static String toJson(EventDataStreamSet streamSet)
+	{
+		StringWriter json = new StringWriter();
+		try
+		{
+			new EventDataJsonWriter(json, Layout.ROWS).write(streamSet);
+		}
+		catch (IOException e)
+		{
+			// string writers do not throw
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Gets the JSON representation of the given page
+	 */
+	static String toJson(EventDataPage page)
+	{
+		StringWriter json = new StringWriter();
+		try
+		{
+			new EventDataJsonWriter(json, Layout.ROWS).write(page);
+		}
+		catch (IOException e)
+		{
+			// string writers do not throw
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Gets the JSON representation of the given stream
+	 */
+	static String toJson(EventDataStream stream)
+	{
+		StringWriter json = new StringWriter();
+		try
+		{
+			new EventDataJsonWriter(json, Layout.ROWS).write(stream);
+		}
+		catch (IOException e)
+		{
+			// string writers do not throw
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Gets the JSON representation of the given event, with a small buffer
+	 */
+	static String toJson(EventDataPoint point)
+	{
+		StringWriter json = new StringWriter();
+		try
+		{
+			new EventDataJsonWriter(json, Layout.ROWS, 128).write(point);
+		}
+		catch (IOException e)
+		{
+			// string writers do not throw
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Formats the given timestamp in UTC, as
+	 * <code>yyyy-MM-dd'T'HH:mm:ss.SSS+0000</code>, without any date formatter
+	 * 
+	 * @param timestamp
+	 *            The timestamp in milliseconds.
+	 * @return The formatted timestamp.
+	 */
+	public static String formatTimestamp(long timestamp)
+	{
+		char[] chars = new char[EventDataJsonWriter.DAY_LENGTH + 17];
+		EventDataJsonWriter.formatDay(EventDataJsonWriter.dayOf(timestamp),
+				chars);
+		EventDataJsonWriter.formatTime(timestamp, chars,
+				EventDataJsonWriter.DAY_LENGTH);
+		return new String(chars);
+	}
+
+	/**
+	 * Writes the array of the streams of the given set
+	 */
+	private void writeStreams(EventDataStreamSet streamSet) throws IOException
+	{
+		this.append('[');
+		if (streamSet != null)
+		{
+			boolean first = true;
+			for (EventDataStream stream : streamSet.getDatastreams())
+			{
+				if (!first)
+					this.append(',');
+				first = false;
+
+				this.writeStream(stream);
+			}
+		}
+		this.append(']');
+	}
+
+	/**
+	 * Writes the given stream, with the events in the writer layout
+	 */
+	private void writeStream(EventDataStream stream) throws IOException
+	{
+		this.append("{\"uid\":");
+		this.appendString(stream.getId());
+		this.append(",\"deviceuri\":");
+		this.appendString(stream.getDeviceUri());
+		this.append(",\"name\":");
+		this.appendString(stream.getName());
+		this.append(",\"additionalparams\":");
+		this.appendString(stream.getParameters());
+
+		if (stream instanceof NumericEventDataStream)
+		{
+			if (this.layout == Layout.COLUMNS)
+				this.writeColumns((NumericEventDataStream) stream);
+			else
+				this.writeRows((NumericEventDataStream) stream);
+		}
+		else
+		{
+			if (this.layout == Layout.COLUMNS)
+				this.writeColumns(stream.getDatapoints());
+			else
+				this.writeRows(stream.getDatapoints());
+		}
+
+		this.append('}');
+	}
+
+	/**
+	 * Writes the events of a numeric stream, one object per event
+	 */
+	private void writeRows(NumericEventDataStream stream) throws IOException
+	{
+		this.append(",\"datapoints\":[");
+		for (int i = 0; i < stream.size(); i++)
+		{
+			if (i > 0)
+				this.append(',');
+			this.append("{\"at\":");
+			this.appendTimestamp(stream.getTimestamp(i));
+			this.append(",\"value\":");
+			this.appendDouble(stream.getValue(i));
+			this.append(",\"unit\":");
+			this.appendString(stream.getUnit(i));
+			this.append('}');
+		}
+		this.append(']');
+	}
+
+	/**
+	 * Writes the events of a numeric stream, one array per column
+	 */
+	private void writeColumns(NumericEventDataStream stream)
+			throws IOException
+	{
+		String unit = stream.getUnit();
+		if ((unit != null) || (stream.size() == 0))
+		{
+			this.append(",\"unit\":");
+			this.appendString((unit != null) ? unit : "");
+		}
+		else
+		{
+			// the events have different units
+			this.append(",\"units\":[");
+			for (int i = 0; i < stream.size(); i++)
+			{
+				if (i > 0)
+					this.append(',');
+				this.appendString(stream.getUnit(i));
+			}
+			this.append(']');
+		}
+
+		this.append(",\"timestamps\":[");
+		for (int i = 0; i < stream.size(); i++)
+		{
+			if (i > 0)
+				this.append(',');
+			this.appendLong(stream.getTimestamp(i));
+		}
+
+		this.append("],\"values\":[");
+		for (int i = 0; i < stream.size(); i++)
+		{
+			if (i > 0)
+				this.append(',');
+			this.appendDouble(stream.getValue(i));
+		}
+		this.append(']');
+	}
+
+	/**
+	 * Writes the given events, one object per event
+	 */
+	private void writeRows(List<EventDataPoint> points) throws IOException
+	{
+		this.append(",\"datapoints\":[");
+		boolean first = true;
+		for (EventDataPoint point : points)
+		{
+			if (!first)
+				this.append(',');
+			first = false;
+
+			this.append("{\"at\":");
+			this.appendDate(point.getAt());
+			this.append(",\"value\":");
+			this.appendValue(point.getValue());
+			this.append(",\"unit\":");
+			this.appendString(point.getUnit());
+			this.append('}');
+		}
+		this.append(']');
+	}
+
+	/**
+	 * Writes the given events, one array per column
+	 */
+	private void writeColumns(List<EventDataPoint> points) throws IOException
+	{
+		// a shared unit if all the events have the same
+		String unit = points.isEmpty() ? "" : points.get(0).getUnit();
+		for (EventDataPoint point : points)
+		{
+			if ((unit != null) && (!unit.equals(point.getUnit())))
+				unit = null;
+		}
+
+		if (unit != null)
+		{
+			this.append(",\"unit\":");
+			this.appendString(unit);
+		}
+		else
+		{
+			this.append(",\"units\":[");
+			boolean first = true;
+			for (EventDataPoint point : points)
+			{
+				if (!first)
+					this.append(',');
+				first = false;
+				this.appendString(point.getUnit());
+			}
+			this.append(']');
+		}
+
+		this.append(",\"timestamps\":[");
+		boolean first = true;
+		for (EventDataPoint point : points)
+		{
+			if (!first)
+				this.append(',');
+			first = false;
+
+			if (point.getAt() != null)
+				this.appendLong(point.getAt().getTime());
+			else
+				this.append("null");
+		}
+
+		this.append("],\"values\":[");
+		first = true;
+		for (EventDataPoint point : points)
+		{
+			if (!first)
+				this.append(',');
+			first = false;
+			this.appendValue(point.getValue());
+		}
+		this.append(']');
+	}
+
+	/**
+	 * Appends the given date as a quoted UTC timestamp, or null
+	 */
+	private void appendDate(Date date) throws IOException
+	{
+		if (date != null)
+			this.appendTimestamp(date.getTime());
+		else
+			this.append("null");
+	}
+
+	/**
+	 * Appends the given timestamp, quoted, reusing the day of the previous
+	 * one if the same
+	 */
+	private void appendTimestamp(long timestamp) throws IOException
+	{
+		long day = EventDataJsonWriter.dayOf(timestamp);
+		if (day != this.cachedDay)
+		{
+			EventDataJsonWriter.formatDay(day, this.dayChars);
+			this.cachedDay = day;
+		}
+
+		this.reserve(EventDataJsonWriter.DAY_LENGTH + 19);
+		this.buffer[this.position++] = '"';
+		System.arraycopy(this.dayChars, 0, this.buffer, this.position,
+				EventDataJsonWriter.DAY_LENGTH);
+		this.position += EventDataJsonWriter.DAY_LENGTH;
+		this.position = EventDataJsonWriter.formatTime(timestamp, this.buffer,
+				this.position);
+		this.buffer[this.position++] = '"';
+	}
+
+	/**
+	 * Appends the given value as a number if it is a JSON number, as a string
+	 * otherwise
+	 */
+	private void appendValue(String value) throws IOException
+	{
+		if ((value != null) && (EventDataJsonWriter.isNumber(value)))
+			this.append(value);
+		else
+			this.appendString(value);
+	}
+
+	/**
+	 * Appends the given double, integral values without any allocation
+	 */
+	private void appendDouble(double value) throws IOException
+	{
+		if ((Double.isNaN(value)) || (Double.isInfinite(value)))
+			this.append("null");
+		else if ((value == Math.rint(value))
+				&& (Math.abs(value) < EventDataJsonWriter.MAX_INTEGRAL)
+				&& ((value != 0) || (1 / value > 0)))
+		{
+			// in full with a trailing .0, e.g., 12.0, as Double.toString
+			// does below 1e7
+			this.appendLong((long) value);
+			this.append(".0");
+		}
+		else
+			this.append(Double.toString(value));
+	}
+
+	/**
+	 * Appends the digits of the given long
+	 */
+	private void appendLong(long value) throws IOException
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			this.append(Long.toString(value));
+			return;
+		}
+
+		this.reserve(this.digits.length);
+		if (value < 0)
+		{
+			this.buffer[this.position++] = '-';
+			value = -value;
+		}
+
+		int start = this.digits.length;
+		do
+		{
+			this.digits[--start] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+		while (value > 0);
+
+		int length = this.digits.length - start;
+		System.arraycopy(this.digits, start, this.buffer, this.position,
+				length);
+		this.position += length;
+	}
+
+	/**
+	 * Appends the given string, quoted and escaped, or null
+	 */
+	private void appendString(String value) throws IOException
+	{
+		if (value == null)
+		{
+			this.append("null");
+			return;
+		}
+
+		this.append('"');
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+				case '"':
+					this.append("\\\"");
+					break;
+				case '\\':
+					this.append("\\\\");
+					break;
+				case '\n':
+					this.append("\\n");
+					break;
+				case '\r':
+					this.append("\\r");
+					break;
+				case '\t':
+					this.append("\\t");
+					break;
+				default:
+					if ((c < 0x20) || (c == '\u2028') || (c == '\u2029'))
+					{
+						this.append("\\u");
+						for (int shift = 12; shift >= 0; shift -= 4)
+							this.append(EventDataJsonWriter.HEX_DIGITS[(c >> shift) & 0xf]);
+					}
+					else
+						this.append(c);
+			}
+		}
+		this.append('"');
+	}
+
+	/**
+	 * Appends the given characters
+	 */
+	private void append(String chars) throws IOException
+	{
+		int length = chars.length();
+		if (length > this.buffer.length)
+		{
+			this.drain();
+			this.writer.write(chars);
+			return;
+		}
+
+		this.reserve(length);
+		chars.getChars(0, length, this.buffer, this.position);
+		this.position += length;
+	}
+
+	/**
+	 * Appends the given character
+	 */
+	private void append(char c) throws IOException
+	{
+		this.reserve(1);
+		this.buffer[this.position++] = c;
+	}
+
+	/**
+	 * Makes room for the given number of characters in the buffer
+	 */
+	private void reserve(int length) throws IOException
+	{
+		if (this.position + length > this.buffer.length)
+			this.drain();
+	}
+
+	/**
+	 * Writes the buffered characters to the target writer
+	 */
+	private void drain() throws IOException
+	{
+		if (this.position > 0)
+		{
+			this.writer.write(this.buffer, 0, this.position);
+			this.position = 0;
+		}
+	}
+
+	/**
+	 * Checks whether the given string is a JSON number
+	 */
+	private static boolean isNumber(String value)
+	{
+		int i = 0;
+		int length = value.length();
+
+		if ((i < length) && (value.charAt(i) == '-'))
+			i++;
+
+		// the integer part, with no leading zeros
+		int start = i;
+		while ((i < length) && (value.charAt(i) >= '0')
+				&& (value.charAt(i) <= '9'))
+			i++;
+		if ((i == start) || ((value.charAt(start) == '0') && (i - start > 1)))
+			return false;
+
+		// the fraction
+		if ((i < length) && (value.charAt(i) == '.'))
+		{
+			start = ++i;
+			while ((i < length) && (value.charAt(i) >= '0')
+					&& (value.charAt(i) <= '9'))
+				i++;
+			if (i == start)
+				return false;
+		}
+
+		// the exponent
+		if ((i < length)
+				&& ((value.charAt(i) == 'e') || (value.charAt(i) == 'E')))
+		{
+			i++;
+			if ((i < length)
+					&& ((value.charAt(i) == '+') || (value.charAt(i) == '-')))
+				i++;
+			start = i;
+			while ((i < length) && (value.charAt(i) >= '0')
+					&& (value.charAt(i) <= '9'))
+				i++;
+			if (i == start)
+				return false;
+		}
+
+		return i == length;
+	}
+
+	/**
+	 * Gets the UTC day of the given timestamp, in days since the epoch
+	 */
+	private static long dayOf(long timestamp)
+	{
+		long day = timestamp / EventDataJsonWriter.DAY_MILLIS;
+		if (timestamp % EventDataJsonWriter.DAY_MILLIS < 0)
+			day--;
+		return day;
+	}
+
+	/**
+	 * Formats the given day as <code>yyyy-MM-dd'T'</code>, in the proleptic
+	 * Gregorian calendar
+	 */
+	private static void formatDay(long day, char[] chars)
+	{
+		// civil date from days, see "chrono-Compatible Low-Level Date
+		// Algorithms" by Howard Hinnant
+		long z = day + 719468;
+		long era = ((z >= 0) ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+				- dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+		int month = (int) ((shiftedMonth < 10) ? shiftedMonth + 3
+				: shiftedMonth - 9);
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+
+		// four-digit years, as date formatters do
+		int yearDigits = (int) Math.max(0, Math.min(9999, year));
+		chars[0] = (char) ('0' + yearDigits / 1000);
+		chars[1] = (char) ('0' + (yearDigits / 100) % 10);
+		chars[2] = (char) ('0' + (yearDigits / 10) % 10);
+		chars[3] = (char) ('0' + yearDigits % 10);
+		chars[4] = '-';
+		chars[5] = (char) ('0' + month / 10);
+		chars[6] = (char) ('0' + month % 10);
+		chars[7] = '-';
+		chars[8] = (char) ('0' + dayOfMonth / 10);
+		chars[9] = (char) ('0' + dayOfMonth % 10);
+		chars[10] = 'T';
+	}
+
+	/**
+	 * Formats the time of day of the given timestamp as
+	 * <code>HH:mm:ss.SSS+0000</code> at the given position
+	 * 
+	 * @return the position following the formatted time.
+	 */
+	private static int formatTime(long timestamp, char[] chars, int position)
+	{
+		int millis = (int) (timestamp % EventDataJsonWriter.DAY_MILLIS);
+		if (millis < 0)
+			millis += EventDataJsonWriter.DAY_MILLIS;
+
+		int hours = millis / 3600000;
+		int minutes = (millis / 60000) % 60;
+		int seconds = (millis / 1000) % 60;
+		int fraction = millis % 1000;
+
+		chars[position++] = (char) ('0' + hours / 10);
+		chars[position++] = (char) ('0' + hours % 10);
+		chars[position++] = ':';
+		chars[position++] = (char) ('0' + minutes / 10);
+		chars[position++] = (char) ('0' + minutes % 10);
+		chars[position++] = ':';
+		chars[position++] = (char) ('0' + seconds / 10);
+		chars[position++] = (char) ('0' + seconds % 10);
+		chars[position++] = '.';
+		chars[position++] = (char) ('0' + fraction / 100);
+		chars[position++] = (char) ('0' + (fraction / 10) % 10);
+		chars[position++] = (char) ('0' + fraction % 10);
+		chars[position++] = '+';
+		chars[position++] = '0';
+		chars[position++] = '0';
+		chars[position++] = '0';
+		chars[position++] = '0';
+
+		return position;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+/**
+ * A page of events selected with keyset pagination: events are in time order
+ * across all the page streams and the page carries the continuation token to
+ * pass back to get the following events. Unlike count-based pagination, the
+ * cost of a page does not depend on how many events come before it.
+ * 
+ */
+public class EventDataPage
+{
+	// the page events, grouped in streams
+	private EventDataStreamSet datastreams;
+
+	// the position of the last event of the page, null if no events follow
+	private String continuation;
+
+	/**
+	 * Creates an {@link EventDataPage} holding the given streams
+	 * 
+	 * @param datastreams
+	 *            The page events, grouped in streams.
+	 * @param continuation
+	 *            The continuation token, null for the last page.
+	 */
+	public EventDataPage(EventDataStreamSet datastreams, String continuation)
+	{
+		this.datastreams = datastreams;
+		this.continuation = continuation;
+	}
+
+	/**
+	 * Gets the page events, grouped in streams
+	 * 
+	 * @return The event data stream set.
+	 */
+	public EventDataStreamSet getDatastreams()
+	{
+		return this.datastreams;
+	}
+
+	/**
+	 * Gets the opaque token identifying the position of the last event of the
+	 * page, to be passed back to get the following page
+	 * 
+	 * @return The continuation token, null if no events follow.
+	 */
+	public String getContinuation()
+	{
+		return this.continuation;
+	}
+
+	/**
+	 * Checks whether events follow this page
+	 * 
+	 * @return true if a following page exists.
+	 */
+	public boolean hasMore()
+	{
+		return this.continuation != null;
+	}
+
+	@Override
+	public String toString()
+	{
+		return EventDataJsonWriter.toJson(this);
+	}
+}
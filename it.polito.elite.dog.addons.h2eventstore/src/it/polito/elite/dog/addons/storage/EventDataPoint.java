@@ -17,7 +17,6 @@
  */
 package it.polito.elite.dog.addons.storage;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
@@ -118,13 +117,7 @@ public class EventDataPoint
 	@Override
 	public String toString()
 	{
-		// format the timestamp
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-		StringBuffer asStringBuffer = new StringBuffer();
-		asStringBuffer.append("{'at':'" + sdf.format(this.at)+"',");
-		asStringBuffer.append(" 'value':" + this.value+"',");
-		asStringBuffer.append(" 'unit':" + this.unit + "'}");
-		return asStringBuffer.toString();
+		return EventDataJsonWriter.toJson(this);
 	}
 
 }
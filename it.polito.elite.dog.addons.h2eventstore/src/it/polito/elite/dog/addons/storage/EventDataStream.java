@@ -253,24 +253,7 @@ public class EventDataStream
 	@Override
 	public String toString()
 	{
-		StringBuffer asStringBuffer = new StringBuffer();
-
-		asStringBuffer.append(" {'uid':'" + this.id + "', 'deviceuri':'"
-				+ this.deviceUri + "', 'name':'" + this.name + "', ");
-		asStringBuffer.append("'additionalparams':'"
-				+ this.additionalParameters + "', 'datapoints':[");
-		boolean first = true;
-		for (EventDataPoint datapoint : this.datapoints)
-		{
-			if (!first)
-				asStringBuffer.append(",");
-			else
-				first = false;
-
-			asStringBuffer.append(datapoint.toString());
-		}
-		asStringBuffer.append("]}");
-		return asStringBuffer.toString();
+		return EventDataJsonWriter.toJson(this);
 	}
 
 }
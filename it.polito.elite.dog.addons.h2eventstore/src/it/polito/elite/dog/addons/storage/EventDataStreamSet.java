@@ -70,21 +70,7 @@ public class EventDataStreamSet
 	@Override
 	public String toString()
 	{
-		StringBuffer asStringBuffer = new StringBuffer();
-		asStringBuffer.append("[");
-		boolean first = true;
-		for (EventDataStream stream : this.eventDataStreams)
-		{
-			if (!first)
-				asStringBuffer.append(",");
-			else
-				first = false;
-
-			asStringBuffer.append(stream.toString());
-
-		}
-		asStringBuffer.append("]");
-		return asStringBuffer.toString();
+		return EventDataJsonWriter.toJson(this);
 	}
 
 }
@@ -0,0 +1,39 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+/**
+ * Receives the events read by the visits of an {@link EventStore}, one at a
+ * time and in time order, so that large results can be processed without
+ * being held in memory. Events are read only as fast as they are visited.
+ * 
+ */
+public interface EventDataVisitor
+{
+	/**
+	 * Visits an event
+	 * 
+	 * @param stream
+	 *            The stream the event belongs to, describing its device, name
+	 *            and parameters; the stream itself holds no data points.
+	 * @param point
+	 *            The event.
+	 * @return true to continue the visit, false to stop it.
+	 */
+	public boolean visit(EventDataStream stream, EventDataPoint point);
+}
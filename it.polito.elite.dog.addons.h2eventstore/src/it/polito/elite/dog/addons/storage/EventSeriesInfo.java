@@ -0,0 +1,150 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+import java.util.Date;
+
+/**
+ * Describes an event series stored by an {@link EventStore}, i.e., the events
+ * of one state or notification of a device, with the time frame and the
+ * number of its stored events.
+ * 
+ */
+public class EventSeriesInfo
+{
+	// the series type
+	private final EventSeriesType type;
+
+	// the device generating the events
+	private final String deviceUri;
+
+	// the state or notification name
+	private final String name;
+
+	// the state or notification parameters
+	private final String parameters;
+
+	// the unit of measure, empty for discrete values
+	private final String unit;
+
+	// the time stamps of the first and last stored events, null if none
+	private final Date firstTimestamp;
+	private final Date lastTimestamp;
+
+	// the number of stored events
+	private final long count;
+
+	/**
+	 * Creates an {@link EventSeriesInfo} describing one stored series.
+	 * 
+	 * @param type
+	 *            The series type.
+	 * @param deviceUri
+	 *            The uri of the device generating the events.
+	 * @param name
+	 *            The state or notification name.
+	 * @param parameters
+	 *            The state or notification parameters.
+	 * @param unit
+	 *            The unit of measure, if present.
+	 * @param firstTimestamp
+	 *            The time stamp of the first stored event, null if none.
+	 * @param lastTimestamp
+	 *            The time stamp of the last stored event, null if none.
+	 * @param count
+	 *            The number of stored events.
+	 */
+	public EventSeriesInfo(EventSeriesType type, String deviceUri,
+			String name, String parameters, String unit, Date firstTimestamp,
+			Date lastTimestamp, long count)
+	{
+		this.type = type;
+		this.deviceUri = deviceUri;
+		this.name = name;
+		this.parameters = (parameters != null) ? parameters : "";
+		this.unit = (unit != null) ? unit : "";
+		this.firstTimestamp = firstTimestamp;
+		this.lastTimestamp = lastTimestamp;
+		this.count = count;
+	}
+
+	public EventSeriesType getType()
+	{
+		return this.type;
+	}
+
+	public String getDeviceUri()
+	{
+		return this.deviceUri;
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public String getParameters()
+	{
+		return this.parameters;
+	}
+
+	public String getUnit()
+	{
+		return this.unit;
+	}
+
+	/**
+	 * Gets the time stamp of the first stored event
+	 * 
+	 * @return The time stamp, or null if no event is stored.
+	 */
+	public Date getFirstTimestamp()
+	{
+		return this.firstTimestamp;
+	}
+
+	/**
+	 * Gets the time stamp of the last stored event
+	 * 
+	 * @return The time stamp, or null if no event is stored.
+	 */
+	public Date getLastTimestamp()
+	{
+		return this.lastTimestamp;
+	}
+
+	/**
+	 * Gets the number of stored events
+	 * 
+	 * @return The number of events.
+	 */
+	public long getCount()
+	{
+		return this.count;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "EventSeriesInfo [type=" + this.type + ", deviceUri="
+				+ this.deviceUri + ", name=" + this.name + ", parameters="
+				+ this.parameters + ", unit=" + this.unit + ", firstTimestamp="
+				+ this.firstTimestamp + ", lastTimestamp="
+				+ this.lastTimestamp + ", count=" + this.count + "]";
+	}
+}
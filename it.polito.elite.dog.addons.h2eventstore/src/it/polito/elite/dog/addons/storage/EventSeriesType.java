@@ -0,0 +1,30 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+/**
+ * The types of event series stored by an {@link EventStore}.
+ * 
+ */
+public enum EventSeriesType
+{
+	CONTINUOUS_STATE, // states carrying a measure
+	DISCRETE_STATE, // states carrying a discrete value
+	PARAMETRIC_NOTIFICATION, // notifications carrying a measure
+	NON_PARAMETRIC_NOTIFICATION // notifications carrying a discrete value
+}
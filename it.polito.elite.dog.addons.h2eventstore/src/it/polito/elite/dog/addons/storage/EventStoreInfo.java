@@ -29,6 +29,48 @@ public class EventStoreInfo
 	// the event store event managemet policy
 	public final static String EVENT_ATTACHMENT = "eventhandling.auto";
 	
+	// the ingest queue sizing and overflow policy
+	public final static String INGEST_QUEUE_CAPACITY = "ingest.queue.capacity";
+	public final static String INGEST_OVERFLOW_POLICY = "ingest.queue.overflow";
+	
+	// the group commit of insertions, with its row count and time budget
+	public final static String GROUP_COMMIT_ENABLED = "database.groupcommit";
+	public final static String GROUP_COMMIT_ROWS = "database.groupcommit.rows";
+	public final static String GROUP_COMMIT_DELAY = "database.groupcommit.delay";
+	
+	// disables the per-row foreign key checks on insertions
+	public final static String RELAXED_INTEGRITY = "database.relaxedintegrity";
+	
+	// the max size of the database file, in megabytes, enforced together with
+	// the max number of rows according to the retention mode
+	public final static String DB_MAX_FILE_SIZE = "database.maxfilesize";
+	
+	// the number of connections serving queries, and the max time in
+	// seconds a query waits for one of them
+	public final static String DB_READERS = "database.readers";
+	public final static String DB_READER_TIMEOUT = "database.readers.timeout";
+	
+	// the max number of events kept by the cache of query results, 0 to
+	// disable it
+	public final static String QUERY_CACHE_SIZE = "database.querycache";
+	
+	// the time partitioning of event tables: NONE, DAY or MONTH
+	public final static String PARTITION_MODE = "database.partitioning";
+	
+	// packs measures into compressed hourly chunks per series
+	public final static String CHUNK_STORAGE = "database.chunks";
+	
+	// stores discrete states only when their value changes
+	public final static String RUN_LENGTH_STATES = "database.runlength";
+	
+	// skips monitored states unchanged since their last write, measures
+	// within the absolute or relative deadband are considered unchanged,
+	// and unchanged states are written anyway every heartbeat minutes
+	public final static String STATE_FILTER = "states.changeonly";
+	public final static String STATE_DEADBAND_ABSOLUTE = "states.deadband.absolute";
+	public final static String STATE_DEADBAND_RELATIVE = "states.deadband.relative";
+	public final static String STATE_HEARTBEAT = "states.heartbeat";
+	
 	// the default persistent storage size
 	public final static int UNLIMITED_SIZE = -1;
 }
@@ -0,0 +1,362 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * An {@link EventDataStream} of numeric events, e.g., measures, storing
+ * timestamps and values in primitive arrays with one unit shared by the whole
+ * stream, instead of one {@link EventDataPoint} per event. The list of
+ * {@link EventDataPoint}s is only built when requested, for code using the
+ * legacy view.
+ * 
+ * @author bonino
+ * 
+ */
+public class NumericEventDataStream extends EventDataStream
+{
+	// the initial capacity of the columns, if not given
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// the event timestamps, in milliseconds
+	private long[] timestamps;
+
+	// the event values
+	private double[] values;
+
+	// the number of events
+	private int size;
+
+	// the unit shared by the events
+	private String unit;
+
+	// the unit of each event, only if events with different units were added
+	private String[] units;
+
+	// the legacy view of the events, built on first request
+	private ArrayList<EventDataPoint> datapoints;
+
+	/**
+	 * Basic constructor, provides an empty {@link NumericEventDataStream}
+	 * instance not bounded to any device and notification
+	 */
+	public NumericEventDataStream()
+	{
+		this(NumericEventDataStream.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Basic constructor, provides an empty {@link NumericEventDataStream}
+	 * instance not bounded to any device and notification
+	 * 
+	 * @param initialSize
+	 *            The initial capacity of the stream, in events.
+	 */
+	public NumericEventDataStream(int initialSize)
+	{
+		super(0);
+		this.timestamps = new long[Math.max(1, initialSize)];
+		this.values = new double[Math.max(1, initialSize)];
+	}
+
+	/**
+	 * Full constructor, provides a {@link NumericEventDataStream} instance
+	 * bound to the given device and notification data.
+	 * 
+	 * @param notificationName
+	 *            The name of the notification to which this stream refers.
+	 * @param notificationParameters
+	 *            The name of the notification parameters, in case of parametric
+	 *            notifications such as
+	 *            ThreePhaseActivePowerMeasurementNotification.
+	 * @param deviceUri
+	 *            The uri of the device generating the event stream
+	 */
+	public NumericEventDataStream(String notificationName,
+			String notificationParameters, String deviceUri)
+	{
+		super(notificationName, notificationParameters, deviceUri);
+		this.timestamps = new long[NumericEventDataStream.DEFAULT_CAPACITY];
+		this.values = new double[NumericEventDataStream.DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * Full constructor, provides a {@link NumericEventDataStream} instance
+	 * bound to the given device and notification data.
+	 * 
+	 * @param notificationName
+	 *            The name of the notification to which this stream refers.
+	 * @param notificationParameters
+	 *            The name of the notification parameters, in case of parametric
+	 *            notifications such as
+	 *            ThreePhaseActivePowerMeasurementNotification.
+	 * @param deviceUri
+	 *            The uri of the device generating the event stream
+	 * @param initialSize
+	 *            The initial capacity of the stream, in events.
+	 */
+	public NumericEventDataStream(String notificationName,
+			String notificationParameters, String deviceUri, int initialSize)
+	{
+		super(notificationName, notificationParameters, deviceUri, 0);
+		this.timestamps = new long[Math.max(1, initialSize)];
+		this.values = new double[Math.max(1, initialSize)];
+	}
+
+	/**
+	 * Adds an event to this stream
+	 * 
+	 * @param timestamp
+	 *            The event timestamp, in milliseconds.
+	 * @param value
+	 *            The event value.
+	 * @param unit
+	 *            The unit of measure of the event, if any.
+	 */
+	public void add(long timestamp, double value, String unit)
+	{
+		String eventUnit = (unit != null) ? unit : "";
+
+		if (this.size == this.timestamps.length)
+		{
+			int capacity = this.size * 2;
+			this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+			if (this.units != null)
+				this.units = Arrays.copyOf(this.units, capacity);
+		}
+
+		// units are stored per event only once they differ
+		if (this.size == 0)
+			this.unit = eventUnit;
+		else if ((this.units == null) && (!this.unit.equals(eventUnit)))
+		{
+			this.units = new String[this.timestamps.length];
+			Arrays.fill(this.units, 0, this.size, this.unit);
+		}
+		if (this.units != null)
+			this.units[this.size] = eventUnit;
+
+		this.timestamps[this.size] = timestamp;
+		this.values[this.size] = value;
+		this.size++;
+
+		// keep the legacy view, if any, up to date
+		if (this.datapoints != null)
+			this.datapoints.add(this.toDatapoint(this.size - 1));
+	}
+
+	/**
+	 * Adds all the events of the given stream to this stream
+	 * 
+	 * @param other
+	 *            The stream whose events must be added.
+	 */
+	public void addAll(NumericEventDataStream other)
+	{
+		for (int i = 0; i < other.size; i++)
+			this.add(other.timestamps[i], other.values[i], other.getUnit(i));
+	}
+
+	/**
+	 * Adds the given data point to this stream, its value must be numeric
+	 * 
+	 * @param datapoint
+	 *            The data point to add
+	 * @return true if successfully added, false if the value is not numeric
+	 */
+	@Override
+	public boolean addDatapoint(EventDataPoint datapoint)
+	{
+		if ((datapoint.getAt() == null) || (datapoint.getValue() == null))
+			return false;
+
+		double value;
+		try
+		{
+			value = Double.parseDouble(datapoint.getValue());
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+
+		this.add(datapoint.getAt().getTime(), value, datapoint.getUnit());
+		return true;
+	}
+
+	/**
+	 * Gets the number of events in this stream
+	 * 
+	 * @return The number of events.
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Gets the timestamp of the event at the given position
+	 * 
+	 * @param index
+	 *            The event position.
+	 * @return The timestamp in milliseconds.
+	 */
+	public long getTimestamp(int index)
+	{
+		this.checkIndex(index);
+		return this.timestamps[index];
+	}
+
+	/**
+	 * Gets the value of the event at the given position
+	 * 
+	 * @param index
+	 *            The event position.
+	 * @return The value.
+	 */
+	public double getValue(int index)
+	{
+		this.checkIndex(index);
+		return this.values[index];
+	}
+
+	/**
+	 * Gets the unit of measure of the event at the given position
+	 * 
+	 * @param index
+	 *            The event position.
+	 * @return The unit, empty if none.
+	 */
+	public String getUnit(int index)
+	{
+		this.checkIndex(index);
+		return (this.units != null) ? this.units[index] : this.unit;
+	}
+
+	/**
+	 * Gets the unit of measure shared by the events of this stream
+	 * 
+	 * @return The unit, empty if none, or null if the stream is empty or
+	 *         holds events with different units.
+	 */
+	public String getUnit()
+	{
+		return (this.units == null) ? this.unit : null;
+	}
+
+	/**
+	 * Gets the timestamps of the events of this stream
+	 * 
+	 * @return A copy of the timestamps, in milliseconds.
+	 */
+	public long[] getTimestamps()
+	{
+		return Arrays.copyOf(this.timestamps, this.size);
+	}
+
+	/**
+	 * Gets the values of the events of this stream
+	 * 
+	 * @return A copy of the values.
+	 */
+	public double[] getValues()
+	{
+		return Arrays.copyOf(this.values, this.size);
+	}
+
+	/**
+	 * Get the list of {@link EventDataPoint}s composing this stream, built on
+	 * the first call and then kept up to date with the added events. Changes
+	 * to the list are not reflected in the stream.
+	 * 
+	 * @return
+	 */
+	@Override
+	public ArrayList<EventDataPoint> getDatapoints()
+	{
+		if (this.datapoints == null)
+		{
+			ArrayList<EventDataPoint> view = new ArrayList<>(Math.max(1,
+					this.size));
+			for (int i = 0; i < this.size; i++)
+				view.add(this.toDatapoint(i));
+			this.datapoints = view;
+		}
+
+		return this.datapoints;
+	}
+
+	/**
+	 * Sets the {@link EventDataPoint}s composing this stream, points with non
+	 * numeric values are discarded
+	 * 
+	 * @param datapoints
+	 */
+	@Override
+	public void setDatapoints(ArrayList<EventDataPoint> datapoints)
+	{
+		this.size = 0;
+		this.unit = null;
+		this.units = null;
+		this.datapoints = null;
+
+		for (EventDataPoint datapoint : datapoints)
+			this.addDatapoint(datapoint);
+	}
+
+	/**
+	 * Makes room for the given number of events, e.g., before adding a known
+	 * number of decoded events
+	 * 
+	 * @param capacity
+	 *            The number of events.
+	 */
+	void ensureCapacity(int capacity)
+	{
+		if (capacity > this.timestamps.length)
+		{
+			this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+			if (this.units != null)
+				this.units = Arrays.copyOf(this.units, capacity);
+		}
+	}
+
+	/**
+	 * Converts the event at the given position into an {@link EventDataPoint}
+	 */
+	private EventDataPoint toDatapoint(int index)
+	{
+		return new EventDataPoint(new Date(this.timestamps[index]), ""
+				+ this.values[index], this.getUnit(index));
+	}
+
+	/**
+	 * Checks that the given position holds an event
+	 */
+	private void checkIndex(int index)
+	{
+		if ((index < 0) || (index >= this.size))
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ this.size);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+/**
+ * The time resolutions at which the event store maintains rollups, i.e.,
+ * per-bucket summaries (count, min, max, sum, first and last value) of the
+ * events carrying a measure. Buckets are aligned to UTC.
+ * 
+ */
+public enum RollupResolution
+{
+	MINUTE(60), // 1-minute buckets
+	HOUR(3600), // 1-hour buckets
+	DAY(86400); // 1-day buckets
+
+	// the bucket width in seconds
+	private final int seconds;
+
+	private RollupResolution(int seconds)
+	{
+		this.seconds = seconds;
+	}
+
+	/**
+	 * Gets the bucket width
+	 * 
+	 * @return the width in seconds.
+	 */
+	public int getSeconds()
+	{
+		return this.seconds;
+	}
+
+	/**
+	 * Gets the bucket width
+	 * 
+	 * @return the width in milliseconds.
+	 */
+	public long getMillis()
+	{
+		return this.seconds * 1000L;
+	}
+
+	/**
+	 * Gets the start of the bucket holding the given time
+	 * 
+	 * @param timestamp
+	 *            The time, in milliseconds.
+	 * @return the bucket start, in milliseconds.
+	 */
+	public long truncate(long timestamp)
+	{
+		long width = this.getMillis();
+		return timestamp - (((timestamp % width) + width) % width);
+	}
+}
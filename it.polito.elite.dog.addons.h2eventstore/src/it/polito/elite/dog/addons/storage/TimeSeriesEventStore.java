@@ -0,0 +1,675 @@
+/*
+ * Dog - Addons - H2 EventStore
+ * 
+ * Copyright (c) 2014 Dario Bonino
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.addons.storage;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link EventStore} offering the time-series capabilities of the H2 event
+ * store: rollups and aggregates of measures, keyset pagination, streaming
+ * visits, the latest stored values, the description of the stored series and
+ * downsampled reads. It is registered as a service along with the
+ * {@link EventStore} interface, which keeps its original methods.
+ * 
+ */
+public interface TimeSeriesEventStore extends EventStore
+{
+	/**
+	 * Gets the rollups of the given continuous state (including any
+	 * restricting parameter) in the time frame between startDate and endDate,
+	 * i.e., one data point per bucket of the given resolution, carrying the
+	 * requested aggregate of the bucket events. Rollups are maintained as
+	 * events are stored, so that long time frames can be charted without
+	 * retrieving all the events. Buckets overlapping the time frame are
+	 * included, pagination counts buckets.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which rollups must be retrieved
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param resolution
+	 *            The bucket width.
+	 * @param function
+	 *            The aggregate function.
+	 * @param startCount
+	 *            The starting count
+	 * @param nResults
+	 *            The number of results to provide back
+	 */
+	public EventDataStream getSpecificDeviceContinuousStateRollups(
+			String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, RollupResolution resolution,
+			AggregateFunction function, int startCount, int nResults);
+
+	/**
+	 * Gets the rollups of the given notification carrying a measure
+	 * (including any restricting parameter) in the time frame between
+	 * startDate and endDate, i.e., one data point per bucket of the given
+	 * resolution, carrying the requested aggregate of the bucket events.
+	 * Buckets overlapping the time frame are included, pagination counts
+	 * buckets.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which rollups must be
+	 *            retrieved
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param resolution
+	 *            The bucket width.
+	 * @param function
+	 *            The aggregate function.
+	 * @param startCount
+	 *            The starting count
+	 * @param nResults
+	 *            The number of results to provide back
+	 */
+	public EventDataStream getSpecificDeviceParametricNotificationRollups(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			RollupResolution resolution, AggregateFunction function,
+			int startCount, int nResults);
+
+	/**
+	 * Gets all the measures generated by a given device in the time frame
+	 * between startDate and endDate, in time order, using keyset pagination:
+	 * each page carries the continuation token identifying its last event,
+	 * to be passed back to get the following page, so that pages deep in the
+	 * history cost as the first one.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @return the page, one event stream for each notification.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getAllDeviceParametricNotifications(
+			String deviceURI, Date startDate, Date endDate,
+			String continuation, int nResults);
+
+	/**
+	 * Gets all the events generated by a given device in the time frame between
+	 * startDate and endDate, in time order, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @param aggregated
+	 *            true if events should be aggregated in a single event stream,
+	 *            false to get one event stream for each notification type
+	 * @return the page.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getAllDeviceNonParametricNotifications(
+			String deviceURI, Date startDate, Date endDate,
+			String continuation, int nResults, boolean aggregated);
+
+	/**
+	 * Gets all the measures corresponding to the given notification (including
+	 * any restricting parameter, e.g., phaseId=1) in the time frame between
+	 * startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which measures must be
+	 *            retrieved
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the notification stream.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getSpecificDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			String continuation, int nResults);
+
+	/**
+	 * Gets all the events corresponding to the given notification in the time
+	 * frame between startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which events must be
+	 *            retrieved
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the notification stream.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getSpecificDeviceNonParametricNotifications(
+			String deviceURI, String notificationName, Date startDate,
+			Date endDate, String continuation, int nResults);
+
+	/**
+	 * Gets all the events carrying a measure generated by a given device in the
+	 * time frame between startDate and endDate, in time order, using keyset
+	 * pagination.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @return the page, one event stream for each state.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getAllDeviceContinuousStates(String deviceUri,
+			Date startDate, Date endDate, String continuation, int nResults);
+
+	/**
+	 * Gets all the events carrying a discrete value generated by a given device
+	 * in the time frame between startDate and endDate, in time order, using
+	 * keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param continuation
+	 *            the continuation token of the previous page, null for the
+	 *            first page
+	 * @param nResults
+	 *            the number of results to provide back
+	 * @param aggregated
+	 *            true if events should be aggregated in a single event stream,
+	 *            false to get one event stream for each state
+	 * @return the page.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getAllDeviceDiscreteStates(String deviceUri,
+			Date startDate, Date endDate, String continuation, int nResults,
+			boolean aggregated);
+
+	/**
+	 * Gets all the events corresponding to the given state (continuous)
+	 * including any restricting parameter, e.g., phaseId=1, in the time frame
+	 * between startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which events must be retrieved
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the state stream.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getSpecificDeviceContinuousStates(String deviceURI,
+			String stateName, String stateParams, Date startDate,
+			Date endDate, String continuation, int nResults);
+
+	/**
+	 * Gets all the events corresponding to the given state (discrete) in the
+	 * time frame between startDate and endDate, using keyset pagination.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which events must be retrieved
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param continuation
+	 *            The continuation token of the previous page, null for the
+	 *            first page.
+	 * @param nResults
+	 *            The number of results to provide back
+	 * @return The page, holding the state stream.
+	 * @throws IllegalArgumentException
+	 *             if the continuation token is not valid.
+	 */
+	public EventDataPage getSpecificDeviceDiscreteStates(String deviceURI,
+			String stateName, Date startDate, Date endDate,
+			String continuation, int nResults);
+
+	/**
+	 * Visits all the measures generated by a given device in the time frame
+	 * between startDate and endDate, in time order. Events are handed to the
+	 * visitor as they are read, and read only as fast as they are visited, so
+	 * that results of any size can be processed, e.g., exported, without
+	 * being held in memory.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param visitor
+	 *            the visitor, called with the stream of each notification
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitAllDeviceParametricNotifications(String deviceURI,
+			Date startDate, Date endDate, EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events generated by a given device in the time frame
+	 * between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param aggregated
+	 *            true if events should be visited with a single event stream,
+	 *            false with the event stream of each notification type
+	 * @param visitor
+	 *            the visitor
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitAllDeviceNonParametricNotifications(String deviceURI,
+			Date startDate, Date endDate, boolean aggregated,
+			EventDataVisitor visitor);
+
+	/**
+	 * Visits all the measures corresponding to the given notification
+	 * (including any restricting parameter, e.g., phaseId=1) in the time frame
+	 * between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which measures must be
+	 *            retrieved
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitSpecificDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events corresponding to the given notification in the
+	 * time frame between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which events must be
+	 *            retrieved
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitSpecificDeviceNonParametricNotifications(
+			String deviceURI, String notificationName, Date startDate,
+			Date endDate, EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events carrying a measure generated by a given device in
+	 * the time frame between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param visitor
+	 *            the visitor, called with the stream of each state
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitAllDeviceContinuousStates(String deviceUri,
+			Date startDate, Date endDate, EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events carrying a discrete value generated by a given
+	 * device in the time frame between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            the deviceURI as a{@link String}
+	 * @param startDate
+	 *            the start date
+	 * @param endDate
+	 *            the end date
+	 * @param aggregated
+	 *            true if events should be visited with a single event stream,
+	 *            false with the event stream of each state
+	 * @param visitor
+	 *            the visitor
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitAllDeviceDiscreteStates(String deviceUri,
+			Date startDate, Date endDate, boolean aggregated,
+			EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events corresponding to the given state (continuous)
+	 * including any restricting parameter, e.g., phaseId=1, in the time frame
+	 * between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which events must be retrieved
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitSpecificDeviceContinuousStates(String deviceURI,
+			String stateName, String stateParams, Date startDate,
+			Date endDate, EventDataVisitor visitor);
+
+	/**
+	 * Visits all the events corresponding to the given state (discrete) in
+	 * the time frame between startDate and endDate, in time order.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which events must be retrieved
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param visitor
+	 *            The visitor.
+	 * @return true if all the events were visited, false if the visitor
+	 *         stopped the visit or events could not be retrieved.
+	 */
+	public boolean visitSpecificDeviceDiscreteStates(String deviceURI,
+			String stateName, Date startDate, Date endDate,
+			EventDataVisitor visitor);
+
+	/**
+	 * Gets the given aggregates of the given continuous state (including any
+	 * restricting parameter) in the time frame between startDate and
+	 * endDate, in buckets of the given width aligned to UTC, e.g., the
+	 * average, min and max power in 15-minute buckets. Aggregates are
+	 * computed by the storage, so that no event needs to be retrieved.
+	 * Buckets overlapping the time frame are included.
+	 * They are computed from the stored rollups, the finest of which spans
+	 * one minute, thus the bucket width must be a whole number of minutes:
+	 * finer aggregates must be computed from the events, e.g., by visiting
+	 * them.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which aggregates must be retrieved
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param bucketMillis
+	 *            The bucket width in milliseconds, a multiple of one minute.
+	 * @param functions
+	 *            The aggregate functions to compute.
+	 * @return One stream per requested function, holding one data point per
+	 *         bucket.
+	 * @throws IllegalArgumentException
+	 *             if the bucket width is not a positive multiple of one
+	 *             minute.
+	 */
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceContinuousStateAggregates(
+			String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, long bucketMillis,
+			Set<AggregateFunction> functions);
+
+	/**
+	 * Gets the given aggregates of the given notification carrying a measure
+	 * (including any restricting parameter) in the time frame between
+	 * startDate and endDate, in buckets of the given width aligned to UTC.
+	 * Aggregates are computed by the storage, so that no event needs to be
+	 * retrieved. Buckets overlapping the time frame are included.
+	 * They are computed from the stored rollups, the finest of which spans
+	 * one minute, thus the bucket width must be a whole number of minutes:
+	 * finer aggregates must be computed from the events, e.g., by visiting
+	 * them.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which aggregates must be
+	 *            retrieved
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param bucketMillis
+	 *            The bucket width in milliseconds, a multiple of one minute.
+	 * @param functions
+	 *            The aggregate functions to compute.
+	 * @return One stream per requested function, holding one data point per
+	 *         bucket.
+	 * @throws IllegalArgumentException
+	 *             if the bucket width is not a positive multiple of one
+	 *             minute.
+	 */
+	public Map<AggregateFunction, EventDataStream> getSpecificDeviceParametricNotificationAggregates(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			long bucketMillis, Set<AggregateFunction> functions);
+
+	/**
+	 * Gets the latest event of each state and notification of the given
+	 * device, i.e., its current value, without scanning the event history.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @return One stream per state and notification, holding its latest
+	 *         event.
+	 */
+	public EventDataStreamSet getLatestDeviceValues(String deviceURI);
+
+	/**
+	 * Gets the latest event of each state and notification of all the
+	 * devices, without scanning the event history.
+	 * 
+	 * @return One stream per device and state or notification, holding its
+	 *         latest event.
+	 */
+	public EventDataStreamSet getLatestValues();
+
+	/**
+	 * Lists the stored series of the given device, i.e., its states and
+	 * notifications, with their first and last timestamp and number of
+	 * events, without reading the stored events.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @return The series of the device, empty if none is stored.
+	 */
+	public List<EventSeriesInfo> getDeviceSeries(String deviceURI);
+
+	/**
+	 * Gets all the events corresponding to the given notification (continuous)
+	 * including any restricting parameter, e.g., phaseId=1, in the time frame
+	 * between startDate and endDate, downsampled to at most the given number
+	 * of points while preserving the shape of the series, e.g., for drawing
+	 * charts. Events are downsampled as they are read, with the
+	 * Largest-Triangle-Three-Buckets algorithm; up to maxPoints events are
+	 * returned unchanged.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param notificationName
+	 *            The name of the notification for which events must be
+	 *            retrieved
+	 * @param notificationParams
+	 *            The parameter values needed to further specify which
+	 *            notification must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param maxPoints
+	 *            The max number of points to return, at least 3, e.g., the
+	 *            width of the chart in pixels.
+	 * @return The downsampled events, in time order.
+	 * @throws IllegalArgumentException
+	 *             if less than 3 points are requested.
+	 */
+	public EventDataStream getDownsampledDeviceParametricNotifications(
+			String deviceURI, String notificationName,
+			String notificationParams, Date startDate, Date endDate,
+			int maxPoints);
+
+	/**
+	 * Gets all the events corresponding to the given state (continuous)
+	 * including any restricting parameter, e.g., phaseId=1, in the time frame
+	 * between startDate and endDate, downsampled to at most the given number
+	 * of points while preserving the shape of the series, e.g., for drawing
+	 * charts. Events are downsampled as they are read, with the
+	 * Largest-Triangle-Three-Buckets algorithm; up to maxPoints events are
+	 * returned unchanged.
+	 * 
+	 * @param deviceURI
+	 *            The deviceURI as a{@link String}
+	 * @param stateName
+	 *            The name of the state for which events must be retrieved
+	 * @param stateParams
+	 *            The parameter values needed to further specify which state
+	 *            must be matched,
+	 *            <code>paramname1-paramvalue1/paramname2-paramvalue2/</code>;
+	 * @param startDate
+	 *            The start date.
+	 * @param endDate
+	 *            The end date.
+	 * @param maxPoints
+	 *            The max number of points to return, at least 3, e.g., the
+	 *            width of the chart in pixels.
+	 * @return The downsampled events, in time order.
+	 * @throws IllegalArgumentException
+	 *             if less than 3 points are requested.
+	 */
+	public EventDataStream getDownsampledDeviceContinuousStates(
+			String deviceURI, String stateName, String stateParams,
+			Date startDate, Date endDate, int maxPoints);
+}